@@ -353,9 +353,25 @@ public class FileSaver{ //push thumbnail to thumbnail manager
             mDateTaken = time;
         } 
 
-        public void saveImageToDatabase(RequestOperator r) {
-            Log.i(TAG, "------------->   saveImageToDatabase");
-            // Insert into MediaStore.
+        @Override
+        public ContentValues saveFile() {
+            saveRequest();
+            return null;
+        }
+
+        @Override
+        public void onInserted(Uri uri) {
+            mUri = uri;
+            mContext.addSecureAlbumItemIfNeeded(false, mUri);
+            if (mContext.isNonePickIntent()) {
+            	// picture taken and saved by camera which is launched by 3rd apps will 
+            	// be inserted into DB. But do not broadcast "New_Picture" intent, 
+            	// otherwise, it will not pass camera CTS test.
+            	Util.broadcastNewPicture(mContext, mUri);
+            }
+        }
+
+        public ContentValues createImageValues(RequestOperator r) {
             ContentValues values = new ContentValues(14);
             values.put(ImageColumns.TITLE, mTag == BLENDED_IMAGE ? r.mBlendedTitle:r.mTitle);
             values.put(ImageColumns.DISPLAY_NAME, r.mDisplayName);
@@ -375,15 +391,18 @@ public class FileSaver{ //push thumbnail to thumbnail manager
             values.put(Images.Media.FOCUS_VALUE_LOW,r.mFocusValueLow);
             values.put(ImageColumns.WIDTH, r.mWidth);
             values.put(ImageColumns.HEIGHT,r.mHeight); 
+            return values;
+        }
+
+        public void saveImageToDatabase(RequestOperator r) {
+            saveImageToDatabase(r, createImageValues(r));
+        }
+
+        public void saveImageToDatabase(RequestOperator r, ContentValues values) {
+            Log.i(TAG, "------------->   saveImageToDatabase");
+            // Insert into MediaStore.
             try {
-                r.mUri = mResolver.insert(Images.Media.EXTERNAL_CONTENT_URI, values);
-                mContext.addSecureAlbumItemIfNeeded(false, r.mUri);
-                if (mContext.isNonePickIntent()) {
-                	// picture taken and saved by camera which is launched by 3rd apps will 
-                	// be inserted into DB. But do not broadcast "New_Picture" intent, 
-                	// otherwise, it will not pass camera CTS test.
-                	Util.broadcastNewPicture(mContext, r.mUri);
-                }
+                r.onInserted(mResolver.insert(Images.Media.EXTERNAL_CONTENT_URI, values));
             } catch (Throwable th)  { //Here we keep google default, don't follow check style
                 // This can happen when the external volume is already mounted, but
                 // MediaScanner has not notify MediaProvider to add that volume.
@@ -502,6 +521,14 @@ public class FileSaver{ //push thumbnail to thumbnail manager
         
         @Override
         public void saveRequest() {
+            ContentValues values = saveFile();
+            if (values != null) {
+                saveImageToDatabase(this, values);
+            }
+        }
+
+        @Override
+        public ContentValues saveFile() {
             // get the mindex
             if (mTag != IGNORE_IMAGE_TYPE) {
                 mIndex = mIndexArrary.get(0);
@@ -547,11 +574,9 @@ public class FileSaver{ //push thumbnail to thumbnail manager
             mMimeType = Storage.generateMimetype(mTitle, mTempPictureType);
             //hardcode write stereotype for feature table is not ready
 
-            if (needAddToDataBase()) {
-                saveImageToDatabase(this);
-            }
-            Log.i(TAG, "saveRequest() mTempJpegRotation=" + mTempJpegRotation
+            Log.i(TAG, "saveFile() mTempJpegRotation=" + mTempJpegRotation
                     + ", mOrientation=" + mOrientation);
+            return needAddToDataBase() ? createImageValues(this) : null;
         }
         
         private boolean needAddToDataBase() {
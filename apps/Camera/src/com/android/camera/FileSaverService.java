@@ -3,30 +3,56 @@ package com.android.camera;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Service;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images;
 
 public class FileSaverService extends Service {
 	private static final String TAG = "FileSaverService";
-	private static final int SAVE_TASK_LIMIT = 3;
-	
+	// The shutter is disabled while the JPEGs which are not written yet take
+	// more than this share of the heap, within the bounds below.
+	private static final int SAVE_BYTES_HEAP_DIVISOR = 4;
+	private static final long MIN_SAVE_BYTES_BUDGET = 16 * 1024 * 1024;
+	private static final long MAX_SAVE_BYTES_BUDGET = 64 * 1024 * 1024;
+	// The most continuous shot rows inserted into MediaStore at once
+	private static final int MAX_INSERT_BATCH = 8;
+
 	private List<SaveRequest> mQueue = new LinkedList<SaveRequest>();
 	private final Binder mBinder = new LocalBinder();
-	private int mTaskNumber;
-	private ContinuousSaveTask mContinuousSaveTask;
+	private final AtomicInteger mTaskNumber = new AtomicInteger();
+	// The bytes of the requests added and not written yet
+	private final AtomicLong mPendingBytes = new AtomicLong();
+	// The continuous requests added and not inserted yet
+	private final AtomicInteger mPendingCount = new AtomicInteger();
+	private long mSaveBytesBudget;
+	private boolean mQueueFull; // only accessed in main thread
+	private Handler mHandler;
+	private ContinuousSavePipeline mContinuousSavePipeline;
+	private volatile String mLastPipelineStats;
 	private boolean mStopped = false;
 	private List<FileSaverListener> mListeners = new ArrayList<FileSaverService.FileSaverListener>();
-	
+
 	public interface FileSaverListener {
 		public void onQueueStatus(boolean full);
 		public void onFileSaved(SaveRequest r);
 		public void onSaveDone();
 	}
-	
+
 	public void registerFileSaverListener(FileSaverListener listener) {
         Log.i(TAG, "registerFileSaverListener");
         if (!mListeners.contains(listener)) {
@@ -46,66 +72,68 @@ public class FileSaverService extends Service {
 			return FileSaverService.this;
 		}
 	}
-	
+
 	@Override
 	public IBinder onBind(Intent intent) {
 		return mBinder;
 	}
-	
+
 	@Override
 	public int onStartCommand(Intent intent, int flag, int startId) {
 		return START_STICKY;
 	}
-	
+
 	@Override
 	public void onCreate() {
-		mTaskNumber = 0;
+		mTaskNumber.set(0);
+		mHandler = new Handler();
+		long budget = Runtime.getRuntime().maxMemory() / SAVE_BYTES_HEAP_DIVISOR;
+		mSaveBytesBudget = Math.max(MIN_SAVE_BYTES_BUDGET, Math.min(MAX_SAVE_BYTES_BUDGET, budget));
+		Log.i(TAG, "onCreate, save bytes budget = " + mSaveBytesBudget);
 	}
-	
+
 	@Override
 	public void onDestroy() {
-		
+
 	}
-	
+
 	public void onContinousShotDone() {
-		mStopped = true;
+		synchronized (mQueue) {
+			mStopped = true;
+			mQueue.notifyAll();
+		}
 	}
-	
+
 	public boolean isNoneSaveTask() {
-		return mTaskNumber == 0;
+		return mTaskNumber.get() == 0;
 	}
-	
+
 	public long getWaitingDataSize() {
-		long totalToWrite = 0;
-		// LinkedList is not saved list, so mQueue should be sync in multi thread
-		synchronized (mQueue) {
-			for (SaveRequest r: mQueue) {
-				totalToWrite += r.getDataSize();
-			}
-		}
-		
-		return totalToWrite;
+		return mPendingBytes.get();
 	}
-	
+
 	public int getWaitingCount() {
-	    synchronized (mQueue) {
-            return mQueue.size();
-        }
+		return mPendingCount.get();
 	}
-	
+
 	public boolean isQueueFull() {
-		return mTaskNumber >= SAVE_TASK_LIMIT;
+		return mPendingBytes.get() >= mSaveBytesBudget;
 	}
-	
+
+	// Returns the throughput of each stage of the last continuous shot, for debugging.
+	public String getPipelineStats() {
+		return mLastPipelineStats;
+	}
+
 	private void onQueueFull() {
 		if (mListeners != null) {
 		    for (FileSaverListener l : mListeners) {
 		         l.onQueueStatus(true);
 		    }
-		    
+
 		}
 	}
-	
+
 	private void onQueueAvailable() {
 		if (mListeners != null) {
 		    for (FileSaverListener l : mListeners) {
@@ -113,34 +141,56 @@ public class FileSaverService extends Service {
 		    }
 		}
 	}
-	
+
+	private final Runnable mCheckQueueAvailable = new Runnable() {
+		@Override
+		public void run() {
+			if (mQueueFull && !isQueueFull()) {
+				mQueueFull = false;
+				onQueueAvailable();
+			}
+		}
+	};
+
+	// Called in any thread when the data of a request has been written.
+	private void releaseBytes(SaveRequest r) {
+		long pending = mPendingBytes.addAndGet(-r.getDataSize());
+		if (pending < mSaveBytesBudget) {
+			mHandler.post(mCheckQueueAvailable);
+		}
+	}
+
 	// run in main thread
 	public void addSaveRequest(SaveRequest request) {
 		boolean isContinuousRequest = request.isContinuousRequest();
+		mPendingBytes.addAndGet(request.getDataSize());
+		if (!mQueueFull && isQueueFull()) {
+			// when the waiting data is over the budget, disable photo shutter button.
+			mQueueFull = true;
+			onQueueFull();
+		}
 		if (!isContinuousRequest) {
 			NormalSaveTask t = new NormalSaveTask(request);
-			mTaskNumber++;
-			if (isQueueFull()) {
-				// when numbers of saveTask over 3, disable photo shutter button.
-				onQueueFull();
-			}
+			mTaskNumber.incrementAndGet();
 			t.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 			Log.i(TAG, "execute normal AsyncTask");
 		} else {
+			mPendingCount.incrementAndGet();
 			// LinkedList is not saved list, so mQueue should be sync in multi thread
 			synchronized (mQueue) {
 				mQueue.add(request);
-			}
-			if (mContinuousSaveTask == null) {
-				mContinuousSaveTask = new ContinuousSaveTask();
-				mTaskNumber++;
-				mContinuousSaveTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-				Log.i(TAG, "execute continuous AsyncTask = " + mContinuousSaveTask);
+				mQueue.notifyAll();
+				if (mContinuousSavePipeline == null) {
+					mContinuousSavePipeline = new ContinuousSavePipeline();
+					mTaskNumber.incrementAndGet();
+					mContinuousSavePipeline.start();
+					Log.i(TAG, "start continuous pipeline = " + mContinuousSavePipeline);
+				}
 			}
 		}
 
 	}
-	
+
 	// this AsyncTask is used to save snapshot image and video.
 	private class NormalSaveTask extends AsyncTask<Void, Void, Void> {
 		SaveRequest r;
@@ -151,85 +201,224 @@ public class FileSaverService extends Service {
 		protected void onPreExecute() {
 		    Log.i(TAG, "NormalSaveTask, onPreExecute");
 		}
-		
+
 		@Override
 		protected Void doInBackground(Void...v) {
 			Log.i(TAG, "NormalSaveTask, doInBackground(), saveRequest:" + r);
 			if (Storage.isStorageReady()) {
 				r.saveRequest();
 			}
+			releaseBytes(r);
 			r.notifyListener();
 			for (FileSaverListener l : mListeners) {
 			     l.onFileSaved(r);
 			}
-			
-			mTaskNumber--;
-			if (isNoneSaveTask()) {
+
+			if (mTaskNumber.decrementAndGet() == 0) {
 				for (FileSaverListener l : mListeners) {
 				    l.onSaveDone();
 				}
 			}
 			return null;
 		}
-		
+
 		@Override
 		protected void onPostExecute(Void v) {
 			Log.i(TAG, "NormalSaveTask, onPostExecute()");
-			if (mTaskNumber == SAVE_TASK_LIMIT -1) onQueueAvailable();
 		}
 	}
-	
-	// this AsyncTask is used to save continous shot images.
-	private class ContinuousSaveTask extends AsyncTask<Void, Void, Void> {
-		SaveRequest r;
-		public ContinuousSaveTask() {
+
+	// The throughput of a stage of the continuous save pipeline.
+	private static class StageStats {
+		final String mName;
+		int mCount;
+		long mBytes;
+		long mBusyMs;
+
+		StageStats(String name) {
+			mName = name;
 		}
-		
+
 		@Override
-		protected void onPreExecute() {
-		    Log.i(TAG, "ContinousSaveTask, onPreExcute");
+		public String toString() {
+			StringBuilder sb = new StringBuilder(mName).append(": ").append(mCount)
+					.append(" in ").append(mBusyMs).append("ms");
+			if (mBusyMs > 0) {
+				sb.append(", ").append(mCount * 1000 / mBusyMs).append("/s");
+				if (mBytes > 0) {
+					sb.append(", ").append(mBytes * 1000 / mBusyMs / (1024 * 1024)).append("MB/s");
+				}
+			}
+			return sb.toString();
 		}
-		
-		@Override
-		protected Void doInBackground(Void...v) {
-			Log.i(TAG, "ContinousSaveTask, doInBackground()");
-			while(true) {
-				if (mQueue.isEmpty()) {
-					// if mQueue is empty and continuous shot is stopped, means 
-					// continuous save task is finished, so break;
-					if (mStopped) break;
-				} else {
-					r = mQueue.get(0);
-					
-					if (Storage.isStorageReady()) {
-						r.saveRequest();
+	}
+
+	// A written continuous shot request, with the values to insert for it.
+	private static class WrittenRequest {
+		final SaveRequest mRequest;
+		final ContentValues mValues;
+
+		WrittenRequest(SaveRequest request, ContentValues values) {
+			mRequest = request;
+			mValues = values;
+		}
+	}
+
+	// this pipeline is used to save continous shot images. It has three stages,
+	// each of which keeps the order of the shots:
+	//   1. the writer thread writes the JPEGs to the disk;
+	//   2. the inserter thread inserts the rows of the shots written meanwhile
+	//      into MediaStore in one batch;
+	//   3. the listeners are notified; ThumbnailManager builds the thumbnail
+	//      in its own thread, only for the latest shot.
+	// So the next shot is written while the previous ones are inserted, and
+	// the back pressure is on the bytes which are not written yet.
+	private class ContinuousSavePipeline {
+		private final WrittenRequest mEnd = new WrittenRequest(null, null);
+		private final LinkedBlockingQueue<WrittenRequest> mWritten =
+				new LinkedBlockingQueue<WrittenRequest>();
+		private final StageStats mWriteStats = new StageStats("write");
+		private final StageStats mInsertStats = new StageStats("insert");
+		private final StageStats mNotifyStats = new StageStats("notify");
+		private int mBatches;
+
+		void start() {
+			new Thread("FileSaver-write") {
+				@Override
+				public void run() {
+					runWriter();
+				}
+			}.start();
+			new Thread("FileSaver-insert") {
+				@Override
+				public void run() {
+					runInserter();
+				}
+			}.start();
+		}
+
+		private void runWriter() {
+			Log.i(TAG, "ContinuousSavePipeline, runWriter()");
+			while (true) {
+				SaveRequest r;
+				synchronized (mQueue) {
+					while (mQueue.isEmpty() && !mStopped) {
+						try {
+							mQueue.wait();
+						} catch (InterruptedException ex) {
+							// ignore.
+						}
 					}
-					// LinkedList is not saved list, so mQueue should be sync in multi thread
-					synchronized (mQueue) {
-						mQueue.remove(0);
+					// if mQueue is empty and continuous shot is stopped, means
+					// continuous save task is finished, so break;
+					if (mQueue.isEmpty()) {
+						mStopped = false;
+						mContinuousSavePipeline = null;
+						break;
 					}
+					r = mQueue.remove(0);
+				}
+				long start = SystemClock.uptimeMillis();
+				ContentValues values = null;
+				if (Storage.isStorageReady()) {
+					values = r.saveFile();
+				}
+				mWriteStats.mBusyMs += SystemClock.uptimeMillis() - start;
+				mWriteStats.mCount++;
+				mWriteStats.mBytes += r.getDataSize();
+				releaseBytes(r);
+				mWritten.add(new WrittenRequest(r, values));
+			}
+			mWritten.add(mEnd);
+		}
+
+		private void runInserter() {
+			Log.i(TAG, "ContinuousSavePipeline, runInserter()");
+			ArrayList<WrittenRequest> batch = new ArrayList<WrittenRequest>(MAX_INSERT_BATCH);
+			boolean end = false;
+			while (!end) {
+				batch.clear();
+				try {
+					batch.add(mWritten.take());
+				} catch (InterruptedException ex) {
+					// ignore.
+					continue;
+				}
+				// Take what has been written meanwhile, but don't wait for more
+				mWritten.drainTo(batch, MAX_INSERT_BATCH - 1);
+				int endIndex = batch.indexOf(mEnd);
+				if (endIndex != -1) {
+					// The writer stops after mEnd, so nothing follows it
+					batch.remove(endIndex);
+					end = true;
+				}
+				if (batch.isEmpty()) continue;
+
+				long start = SystemClock.uptimeMillis();
+				insert(batch);
+				mInsertStats.mBusyMs += SystemClock.uptimeMillis() - start;
+
+				start = SystemClock.uptimeMillis();
+				for (WrittenRequest w : batch) {
+					mPendingCount.decrementAndGet();
 					if (mListeners != null) {
 						for (FileSaverListener l : mListeners) {
-						    l.onFileSaved(r);
+						    l.onFileSaved(w.mRequest);
 						}
 					}
 				}
+				mNotifyStats.mBusyMs += SystemClock.uptimeMillis() - start;
+				mNotifyStats.mCount += batch.size();
 			}
-			
-			mTaskNumber--;
+
+			mLastPipelineStats = mWriteStats + "; " + mInsertStats + " in " + mBatches
+					+ " batches; " + mNotifyStats;
+			Log.i(TAG, "ContinuousSavePipeline done, " + mLastPipelineStats);
+			mTaskNumber.decrementAndGet();
 			if (mListeners != null) {
 				for (FileSaverListener l : mListeners) {
 				    l.onSaveDone();
 				}
 			}
-			return null;
 		}
-		
-		@Override
-		protected void onPostExecute(Void v) {
-			Log.i(TAG, "ContinousSaveTask, onPostExecute()");
-			mStopped = false;
-			mContinuousSaveTask = null;
+
+		private void insert(ArrayList<WrittenRequest> batch) {
+			ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+			ArrayList<WrittenRequest> inserted = new ArrayList<WrittenRequest>();
+			for (WrittenRequest w : batch) {
+				if (w.mValues == null) continue;
+				ops.add(ContentProviderOperation.newInsert(Images.Media.EXTERNAL_CONTENT_URI)
+						.withValues(w.mValues).build());
+				inserted.add(w);
+			}
+			if (ops.isEmpty()) return;
+
+			ContentResolver resolver = getContentResolver();
+			ContentProviderResult[] results = null;
+			try {
+				results = resolver.applyBatch(MediaStore.AUTHORITY, ops);
+				mBatches++;
+			} catch (Throwable th) { //Here we keep google default, don't follow check style
+				Log.w(TAG, "Failed to batch " + ops.size() + " rows, insert them one by one", th);
+			}
+			for (int i = 0, n = inserted.size(); i < n; i++) {
+				WrittenRequest w = inserted.get(i);
+				Uri uri = null;
+				if (results != null) {
+					uri = results[i].uri;
+				} else {
+					try {
+						uri = resolver.insert(Images.Media.EXTERNAL_CONTENT_URI, w.mValues);
+					} catch (Throwable th) { //Here we keep google default, don't follow check style
+						// The picture is still safe and MediaScanner will find it and
+						// insert it into MediaProvider.
+						Log.e(TAG, "Failed to write MediaStore", th);
+						continue;
+					}
+				}
+				w.mRequest.onInserted(uri);
+				mInsertStats.mCount++;
+			}
 		}
 	}
 }
@@ -1,5 +1,6 @@
 package com.android.camera;
 
+import android.content.ContentValues;
 import android.location.Location;
 import android.net.Uri;
 
@@ -7,6 +8,12 @@ public interface SaveRequest {
     void prepareRequest();
     void addRequest();
     void saveRequest();
+    // saveRequest() in two steps, so that the MediaStore inserts of a burst
+    // can be batched: saveFile() writes the file and returns the values to
+    // insert into Images.Media, or null if it has nothing left to insert;
+    // onInserted() is then given the uri of the inserted row.
+    ContentValues saveFile();
+    void onInserted(Uri uri);
     Thumbnail createThumbnail(int thumbnailWidth);
     
     void setIgnoreThumbnail(boolean ignore);
@@ -26,12 +26,20 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.MediaStore.Video;
 import android.util.Log;
 
 import com.android.camera.exif.ExifInterface;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /*
  * Service for saving images in the background thread.
@@ -39,8 +47,13 @@ import java.io.File;
 public class MediaSaveService extends Service {
     public static final String VIDEO_BASE_URI = "content://media/external/video/media";
 
-    // The memory limit for unsaved image is 20MB.
+    // The memory limit for unsaved image is 20MB. Images queued beyond it
+    // are spilled to a file, up to 256MB, before the queue is full.
     private static final int SAVE_TASK_MEMORY_LIMIT = 20 * 1024 * 1024;
+    private static final long SAVE_TASK_SPILL_LIMIT = 256 * 1024 * 1024;
+    // The space left in the cache directory after spilling an image.
+    private static final long SPILL_MIN_FREE_SPACE = 50 * 1024 * 1024;
+    private static final String SPILL_FILE_NAME = "save_spill";
     private static final String TAG = "CAM_" + MediaSaveService.class.getSimpleName();
 
     private final IBinder mBinder = new LocalBinder();
@@ -48,6 +61,35 @@ public class MediaSaveService extends Service {
     // Memory used by the total queued save request, in bytes.
     private long mMemoryUse;
 
+    // The queued images which are spilled, with their total size in bytes,
+    // and the end of the spilled data in the spill file. The file is
+    // emptied whenever no spilled image is left.
+    private int mSpillCount;
+    private long mSpillUse;
+    private long mSpillEnd;
+    private FileChannel mSpillChannel;
+    // Set when the spill file could not be written, until the queue drains.
+    private boolean mSpillFailed;
+    // Set when the last image could not be spilled, for any reason, until
+    // the spill file is emptied or the queue drains.
+    private boolean mSpillUnavailable;
+
+    // Saves run one at a time, in the order they are added, on a thread of
+    // their own rather than the AsyncTask pool shared with the rest of the app.
+    private final ExecutorService mSaveExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "MediaSaveService");
+                }
+            });
+
+    // The time from addImage() to onMediaSaved(), in ms.
+    private int mSavedImageCount;
+    private long mLastSaveLatency;
+    private long mTotalSaveLatency;
+    private long mMaxSaveLatency;
+
     public interface Listener {
         public void onQueueStatus(boolean full);
     }
@@ -74,15 +116,38 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onDestroy() {
+        // The saves already queued still run, and the thread exits after the
+        // last one. Spilled images stay readable, as their mappings outlive
+        // the spill file being closed and deleted.
+        mSaveExecutor.shutdown();
+        closeSpillFile();
     }
 
     @Override
     public void onCreate() {
         mMemoryUse = 0;
+        // Left over if the process died while images were spilled
+        getSpillFile().delete();
     }
 
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT) && mSpillUnavailable;
+    }
+
+    /**
+     * Returns the time taken by the last image to be saved, from
+     * {@link #addImage} to {@link OnMediaSavedListener#onMediaSaved}, in ms.
+     */
+    public long getLastSaveLatency() {
+        return mLastSaveLatency;
+    }
+
+    public long getAverageSaveLatency() {
+        return (mSavedImageCount == 0) ? 0 : mTotalSaveLatency / mSavedImageCount;
+    }
+
+    public long getMaxSaveLatency() {
+        return mMaxSaveLatency;
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -96,11 +161,13 @@ public class MediaSaveService extends Service {
                 (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l);
 
-        mMemoryUse += data.length;
+        if (mMemoryUse + data.length <= SAVE_TASK_MEMORY_LIMIT || !t.spill()) {
+            mMemoryUse += data.length;
+        }
         if (isQueueFull()) {
             onQueueFull();
         }
-        t.execute();
+        t.executeOnExecutor(mSaveExecutor);
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -121,7 +188,7 @@ public class MediaSaveService extends Service {
             OnMediaSavedListener l, ContentResolver resolver) {
         // We don't set a queue limit for video saving because the file
         // is already in the storage. Only updating the database.
-        new VideoSaveTask(path, duration, values, l, resolver).execute();
+        new VideoSaveTask(path, duration, values, l, resolver).executeOnExecutor(mSaveExecutor);
     }
 
     public void setListener(Listener l) {
@@ -138,8 +205,78 @@ public class MediaSaveService extends Service {
         if (mListener != null) mListener.onQueueStatus(false);
     }
 
+    private File getSpillFile() {
+        return new File(getCacheDir(), SPILL_FILE_NAME);
+    }
+
+    // Copies the data to the end of the spill file and returns the mapping
+    // it is in, or null if it cannot be spilled.
+    private MappedByteBuffer spill(byte[] data) {
+        MappedByteBuffer buffer = writeSpill(data);
+        mSpillUnavailable = (buffer == null);
+        return buffer;
+    }
+
+    private MappedByteBuffer writeSpill(byte[] data) {
+        // The file only shrinks once it is emptied, so bound its end.
+        if (mSpillFailed || mSpillEnd + data.length > SAVE_TASK_SPILL_LIMIT) return null;
+        File file = getSpillFile();
+        if (file.getParentFile().getUsableSpace() < data.length + SPILL_MIN_FREE_SPACE) {
+            return null;
+        }
+        try {
+            if (mSpillChannel == null) {
+                mSpillChannel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            // Copying to the page cache is much faster than writing, as
+            // this runs in the capture callback.
+            MappedByteBuffer buffer = mSpillChannel.map(
+                    FileChannel.MapMode.READ_WRITE, mSpillEnd, data.length);
+            buffer.put(data);
+            buffer.flip();
+            mSpillEnd += data.length;
+            mSpillUse += data.length;
+            mSpillCount++;
+            return buffer;
+        } catch (IOException e) {
+            Log.e(TAG, "cannot spill image, keeping the queue in memory", e);
+            mSpillFailed = true;
+            closeSpillFile();
+            return null;
+        }
+    }
+
+    private void releaseSpill(int length) {
+        mSpillUse -= length;
+        if (--mSpillCount > 0) return;
+        mSpillEnd = 0;
+        mSpillUnavailable = false;
+        if (mSpillChannel == null) return;
+        try {
+            mSpillChannel.truncate(0);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot empty the spill file", e);
+            closeSpillFile();
+        }
+    }
+
+    private void closeSpillFile() {
+        if (mSpillChannel == null) return;
+        try {
+            mSpillChannel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "cannot close the spill file", e);
+        }
+        mSpillChannel = null;
+        getSpillFile().delete();
+    }
+
     private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
         private byte[] data;
+        // Where the data is, when it has been spilled.
+        private MappedByteBuffer spilled;
+        private final int length;
+        private final long addTime;
         private String title;
         private long date;
         private Location loc;
@@ -162,6 +299,16 @@ public class MediaSaveService extends Service {
             this.exif = exif;
             this.resolver = resolver;
             this.listener = listener;
+            this.length = data.length;
+            this.addTime = SystemClock.uptimeMillis();
+        }
+
+        // Moves the data to the spill file; returns false if it stays in memory.
+        public boolean spill() {
+            spilled = MediaSaveService.this.spill(data);
+            if (spilled == null) return false;
+            data = null;
+            return true;
         }
 
         @Override
@@ -171,6 +318,10 @@ public class MediaSaveService extends Service {
 
         @Override
         protected Uri doInBackground(Void... v) {
+            if (spilled != null) {
+                data = new byte[length];
+                spilled.get(data);
+            }
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
@@ -187,8 +338,27 @@ public class MediaSaveService extends Service {
         protected void onPostExecute(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
             boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
+            if (spilled != null) {
+                spilled = null;
+                releaseSpill(length);
+            } else {
+                mMemoryUse -= length;
+            }
+            data = null;
+            if (mMemoryUse == 0 && mSpillCount == 0) {
+                // Retry spilling after a transient failure.
+                mSpillFailed = false;
+                mSpillUnavailable = false;
+            }
             if (isQueueFull() != previouslyFull) onQueueAvailable();
+
+            long latency = SystemClock.uptimeMillis() - addTime;
+            mLastSaveLatency = latency;
+            mTotalSaveLatency += latency;
+            mMaxSaveLatency = Math.max(mMaxSaveLatency, latency);
+            mSavedImageCount++;
+            Log.v(TAG, "image saved in " + latency + "ms, average "
+                    + getAverageSaveLatency() + "ms");
         }
     }
 
@@ -32,7 +32,10 @@ import com.android.camera.app.PlaceholderManager;
 import com.android.camera.ui.FilmStripView.ImageData;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * A {@link LocalDataAdapter} that provides data in the camera folder.
@@ -43,7 +46,19 @@ public class CameraDataAdapter implements LocalDataAdapter {
     private static final int DEFAULT_DECODE_SIZE = 1600;
     private static final String[] CAMERA_PATH = { Storage.DIRECTORY + "%" };
 
+    // The newest data is shown as soon as this much is loaded; the rest is
+    // then appended in pages of PAGE_SIZE.
+    private static final int FIRST_PAGE_SIZE = 32;
+    private static final int PAGE_SIZE = 256;
+    // A reload changing more data than this is reported as a whole new load
+    // rather than as insertions and removals.
+    private static final int MAX_DIFF_CHANGES = 32;
+    // The number of data whose bitmaps are prefetched in the swipe direction.
+    private static final int PREFETCH_COUNT = 2;
+
     private LocalDataList mImages;
+    private QueryTask mQueryTask;
+    private int mLastViewDataID = -1;
 
     private Listener mListener;
     private Drawable mPlaceHolder;
@@ -60,8 +75,14 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     @Override
     public void requestLoad(ContentResolver resolver) {
-        QueryTask qtask = new QueryTask();
-        qtask.execute(resolver);
+        if (mQueryTask != null) {
+            mQueryTask.cancel(false);
+        }
+        // Show the data page by page on the first load. A reload is only
+        // applied at the end, as the changes to the data shown.
+        mQueryTask = new QueryTask(mImages.size() == 0);
+        // Not on the serial executor, which the bitmaps are loaded on.
+        mQueryTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, resolver);
     }
 
     @Override
@@ -99,9 +120,31 @@ public class CameraDataAdapter implements LocalDataAdapter {
             return null;
         }
 
-        return mImages.get(dataID).getView(
+        View v = mImages.get(dataID).getView(
                 activity, mSuggestedWidth, mSuggestedHeight,
                 mPlaceHolder.getConstantState().newDrawable(), this);
+        prefetch(activity.getContentResolver(), dataID);
+        return v;
+    }
+
+    /**
+     * Prefetches the bitmaps of the data next to the given one, in the
+     * direction of the previous views asked for, i.e. the swipe direction.
+     */
+    private void prefetch(ContentResolver resolver, int dataID) {
+        int direction = (dataID < mLastViewDataID) ? -1 : 1;
+        mLastViewDataID = dataID;
+        for (int i = 1; i <= PREFETCH_COUNT; i++) {
+            int id = dataID + direction * i;
+            if (id < 0 || id >= mImages.size()) {
+                break;
+            }
+            LocalData data = mImages.get(id);
+            if (data instanceof LocalMediaData) {
+                ((LocalMediaData) data).prefetchBitmap(
+                        resolver, mSuggestedWidth, mSuggestedHeight, this);
+            }
+        }
     }
 
     @Override
@@ -202,6 +245,10 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     @Override
     public void flush() {
+        if (mQueryTask != null) {
+            mQueryTask.cancel(false);
+            mQueryTask = null;
+        }
         replaceData(new LocalDataList());
     }
 
@@ -263,85 +310,339 @@ public class CameraDataAdapter implements LocalDataAdapter {
         }
     }
 
-    private class QueryTask extends AsyncTask<ContentResolver, Void, LocalDataList> {
+    /** Appends a page of data older than all the current data. */
+    private void appendData(ArrayList<LocalData> page) {
+        if (mImages.size() == 0) {
+            LocalDataList list = new LocalDataList();
+            for (LocalData data : page) {
+                list.add(data);
+            }
+            replaceData(list);
+            return;
+        }
+        for (LocalData data : page) {
+            // It may have been added meanwhile by addNewPhoto()/addNewVideo().
+            if (mImages.get(data.getContentUri()) == null) {
+                mImages.add(data);
+            }
+        }
+        if (mListener != null) {
+            // Nothing shown has changed, but the views after the last one
+            // shown can now be filled.
+            mListener.onDataUpdated(new UpdateReporter() {
+                @Override
+                public boolean isDataRemoved(int dataID) {
+                    return false;
+                }
+
+                @Override
+                public boolean isDataUpdated(int dataID) {
+                    return false;
+                }
+            });
+        }
+    }
+
+    private static boolean isChanged(LocalData oldData, LocalData newData) {
+        return oldData.getClass() != newData.getClass()
+                || oldData.getDateModified() != newData.getDateModified()
+                || oldData.getWidth() != newData.getWidth()
+                || oldData.getHeight() != newData.getHeight()
+                || !oldData.getMimeType().equals(newData.getMimeType());
+    }
+
+    /**
+     * Replaces the data with the reloaded list, reporting the differences as
+     * removals, insertions and updates so that the views of the data which
+     * have not changed are kept. Falls back to {@link #replaceData} if there
+     * are many differences.
+     */
+    private void applyDiff(LocalDataList list) {
+        if (mImages.size() == 0 || list.size() == 0) {
+            replaceData(list);
+            return;
+        }
+        ArrayList<LocalData> oldList = mImages.toArrayList();
+        ArrayList<LocalData> newList = list.toArrayList();
+
+        // The positions of the removed data, in the old list, and of the
+        // inserted and updated data, in the new list.
+        ArrayList<Integer> removed = new ArrayList<Integer>();
+        boolean[] isRemoved = new boolean[oldList.size()];
+        HashMap<Uri, LocalData> kept = new HashMap<Uri, LocalData>();
+        for (int i = 0; i < oldList.size(); i++) {
+            LocalData data = oldList.get(i);
+            if (list.get(data.getContentUri()) == null) {
+                removed.add(i);
+                isRemoved[i] = true;
+            } else {
+                kept.put(data.getContentUri(), data);
+            }
+        }
+        ArrayList<Integer> inserted = new ArrayList<Integer>();
+        final HashSet<Integer> updated = new HashSet<Integer>();
+        int oldIndex = 0;
+        for (int i = 0; i < newList.size(); i++) {
+            LocalData data = newList.get(i);
+            LocalData oldData = kept.get(data.getContentUri());
+            if (oldData == null) {
+                inserted.add(i);
+                continue;
+            }
+            // The kept data must be in the same order in both lists.
+            while (isRemoved[oldIndex]) {
+                oldIndex++;
+            }
+            if (oldList.get(oldIndex++) != oldData) {
+                replaceData(list);
+                return;
+            }
+            if (isChanged(oldData, data)) {
+                updated.add(i);
+            }
+            if (removed.size() + inserted.size() + updated.size() > MAX_DIFF_CHANGES) {
+                replaceData(list);
+                return;
+            }
+        }
+
+        for (int i = removed.size() - 1; i >= 0; i--) {
+            int pos = removed.get(i);
+            LocalData data = mImages.remove(pos);
+            if (mListener != null) {
+                mListener.onDataRemoved(pos, data);
+            }
+        }
+        for (int pos : inserted) {
+            LocalData data = newList.get(pos);
+            mImages.add(pos, data);
+            if (mListener != null) {
+                mListener.onDataInserted(pos, data);
+            }
+        }
+        if (updated.isEmpty()) {
+            return;
+        }
+        for (int pos : updated) {
+            mImages.set(pos, newList.get(pos));
+        }
+        if (mListener != null) {
+            mListener.onDataUpdated(new UpdateReporter() {
+                @Override
+                public boolean isDataRemoved(int dataID) {
+                    return false;
+                }
+
+                @Override
+                public boolean isDataUpdated(int dataID) {
+                    return updated.contains(dataID);
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the photos or the videos in the camera folder, newest first, a
+     * page at a time. Each page follows the last row of the previous one, so
+     * the rows are only read once however many pages are loaded.
+     */
+    private static class MediaPageLoader {
+        private final ContentResolver mResolver;
+        private final boolean mIsPhoto;
+        /** The data loaded and not taken yet, newest first. */
+        private final ArrayList<LocalData> mBuffer = new ArrayList<LocalData>();
+        /** The DATE_TAKEN and _ID of the last row loaded. */
+        private long mLastDateTaken;
+        private long mLastId;
+        private boolean mHasLoaded;
+        private boolean mDone;
+
+        MediaPageLoader(ContentResolver resolver, boolean isPhoto) {
+            mResolver = resolver;
+            mIsPhoto = isPhoto;
+        }
+
+        boolean isDone() {
+            return mDone;
+        }
+
+        int getBufferedCount() {
+            return mBuffer.size();
+        }
+
+        /**
+         * Returns the DATE_TAKEN of the last row loaded; the rows not loaded
+         * yet are not newer than it.
+         */
+        long getLastDateTaken() {
+            return mLastDateTaken;
+        }
+
+        void loadPage(int count) {
+            if (mDone) {
+                return;
+            }
+            Uri uri = mIsPhoto ? LocalMediaData.PhotoData.CONTENT_URI
+                    : LocalMediaData.VideoData.CONTENT_URI;
+            uri = uri.buildUpon().appendQueryParameter("limit", String.valueOf(count)).build();
+            String dataColumn = mIsPhoto ? MediaStore.Images.Media.DATA
+                    : MediaStore.Video.Media.DATA;
+            String selection = dataColumn + " like ? ";
+            String[] selectionArgs = CAMERA_PATH;
+            if (mHasLoaded) {
+                // Matches the order of QUERY_ORDER, so rows without a DATE_TAKEN are
+                // compared as 0 rather than never matching.
+                String dateTaken = "COALESCE(" + (mIsPhoto
+                        ? MediaStore.Images.ImageColumns.DATE_TAKEN
+                        : MediaStore.Video.VideoColumns.DATE_TAKEN) + ", 0)";
+                String id = mIsPhoto ? MediaStore.Images.ImageColumns._ID
+                        : MediaStore.Video.VideoColumns._ID;
+                selection += "AND (" + dateTaken + " < ? OR (" + dateTaken + " = ? AND "
+                        + id + " < ?))";
+                String date = String.valueOf(mLastDateTaken);
+                selectionArgs = new String[] {
+                        CAMERA_PATH[0], date, date, String.valueOf(mLastId) };
+            }
+            Cursor c = mResolver.query(uri,
+                    mIsPhoto ? LocalMediaData.PhotoData.QUERY_PROJECTION
+                            : LocalMediaData.VideoData.QUERY_PROJECTION,
+                    selection, selectionArgs,
+                    mIsPhoto ? LocalMediaData.PhotoData.QUERY_ORDER
+                            : LocalMediaData.VideoData.QUERY_ORDER);
+            if (c == null) {
+                mDone = true;
+                return;
+            }
+            int rows = 0;
+            try {
+                while (c.moveToNext()) {
+                    rows++;
+                    mLastDateTaken = c.getLong(mIsPhoto ? LocalMediaData.PhotoData.COL_DATE_TAKEN
+                            : LocalMediaData.VideoData.COL_DATE_TAKEN);
+                    mLastId = c.getLong(mIsPhoto ? LocalMediaData.PhotoData.COL_ID
+                            : LocalMediaData.VideoData.COL_ID);
+                    mHasLoaded = true;
+                    LocalData data = mIsPhoto ? LocalMediaData.PhotoData.buildFromCursor(c)
+                            : LocalMediaData.VideoData.buildFromCursor(c);
+                    if (data == null) {
+                        Log.e(TAG, "Error loading data:" + c.getString(mIsPhoto
+                                ? LocalMediaData.PhotoData.COL_DATA
+                                : LocalMediaData.VideoData.COL_DATA));
+                    } else if (mIsPhoto && data.getMimeType().equals(
+                            PlaceholderManager.PLACEHOLDER_MIME_TYPE)) {
+                        mBuffer.add(new InProgressDataWrapper(data, true));
+                    } else {
+                        mBuffer.add(data);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            if (rows < count) {
+                mDone = true;
+            }
+        }
+
+        /**
+         * Moves the loaded data taken after the given date, or all of it if
+         * the date is {@code Long.MIN_VALUE}, to the list.
+         */
+        void takeNewerThan(long dateTaken, ArrayList<LocalData> list) {
+            int n = 0;
+            while (n < mBuffer.size()
+                    && (dateTaken == Long.MIN_VALUE || mBuffer.get(n).getDateTaken() > dateTaken)) {
+                n++;
+            }
+            list.addAll(mBuffer.subList(0, n));
+            mBuffer.subList(0, n).clear();
+        }
+    }
+
+    private class QueryTask extends AsyncTask<ContentResolver, ArrayList<LocalData>, LocalDataList> {
+        private final boolean mProgressive;
+
+        /**
+         * @param progressive Whether each page is shown as soon as it is
+         *                    loaded, rather than all the data at the end.
+         */
+        QueryTask(boolean progressive) {
+            mProgressive = progressive;
+        }
 
         /**
          * Loads all the photo and video data in the camera folder in background
-         * and combine them into one single list.
+         * and combine them into one single list, page by page. The newest
+         * photos and videos are loaded first, and each page holds the data
+         * taken after anything not loaded yet, so the pages follow each other.
          *
          * @param resolver {@link ContentResolver} to load all the data.
-         * @return An {@link ArrayList} of all loaded data.
+         * @return An {@link ArrayList} of all loaded data, or null if the
+         *         pages have been published.
          */
         @Override
+        @SuppressWarnings("unchecked")
         protected LocalDataList doInBackground(ContentResolver... resolver) {
+            MediaPageLoader photos = new MediaPageLoader(resolver[0], true);
+            MediaPageLoader videos = new MediaPageLoader(resolver[0], false);
             LocalDataList l = new LocalDataList();
-            // Photos
-            Cursor c = resolver[0].query(
-                    LocalMediaData.PhotoData.CONTENT_URI,
-                    LocalMediaData.PhotoData.QUERY_PROJECTION,
-                    MediaStore.Images.Media.DATA + " like ? ", CAMERA_PATH,
-                    LocalMediaData.PhotoData.QUERY_ORDER);
-            if (c != null && c.moveToFirst()) {
-                // build up the list.
-                while (true) {
-                    LocalData data = LocalMediaData.PhotoData.buildFromCursor(c);
-                    if (data != null) {
-                        if (data.getMimeType().equals(PlaceholderManager.PLACEHOLDER_MIME_TYPE)) {
-                            l.add(new InProgressDataWrapper(data, true));
-                        } else {
-                            l.add(data);
-                        }
-                    } else {
-                        Log.e(TAG, "Error loading data:"
-                                + c.getString(LocalMediaData.PhotoData.COL_DATA));
-                    }
-                    if (c.isLast()) {
-                        break;
-                    }
-                    c.moveToNext();
+            Comparator<LocalData> comp = new LocalData.NewestFirstComparator();
+            int pageSize = FIRST_PAGE_SIZE;
+            while (!isCancelled()) {
+                // Load from the loader whose last row bounds what can be
+                // taken, or whose buffer is running low.
+                boolean photosBound = !photos.isDone() && (videos.isDone()
+                        || photos.getLastDateTaken() >= videos.getLastDateTaken());
+                if (photosBound || photos.getBufferedCount() < pageSize) {
+                    photos.loadPage(pageSize);
+                }
+                if (!photosBound || videos.getBufferedCount() < pageSize) {
+                    videos.loadPage(pageSize);
                 }
-            }
-            if (c != null) {
-                c.close();
-            }
 
-            c = resolver[0].query(
-                    LocalMediaData.VideoData.CONTENT_URI,
-                    LocalMediaData.VideoData.QUERY_PROJECTION,
-                    MediaStore.Video.Media.DATA + " like ? ", CAMERA_PATH,
-                    LocalMediaData.VideoData.QUERY_ORDER);
-            if (c != null && c.moveToFirst()) {
-                // build up the list.
-                c.moveToFirst();
-                while (true) {
-                    LocalData data = LocalMediaData.VideoData.buildFromCursor(c);
-                    if (data != null) {
-                        l.add(data);
-                    } else {
-                        Log.e(TAG, "Error loading data:"
-                                + c.getString(LocalMediaData.VideoData.COL_DATA));
+                long bound = Long.MIN_VALUE;
+                if (!photos.isDone()) {
+                    bound = photos.getLastDateTaken();
+                }
+                if (!videos.isDone()) {
+                    bound = Math.max(bound, videos.getLastDateTaken());
+                }
+                ArrayList<LocalData> page = new ArrayList<LocalData>();
+                photos.takeNewerThan(bound, page);
+                videos.takeNewerThan(bound, page);
+                Collections.sort(page, comp);
+                if (mProgressive) {
+                    if (!page.isEmpty()) {
+                        publishProgress(page);
                     }
-                    if (!c.isLast()) {
-                        c.moveToNext();
-                    } else {
-                        break;
+                } else {
+                    for (LocalData data : page) {
+                        l.add(data);
                     }
                 }
+                if (photos.isDone() && videos.isDone()) {
+                    break;
+                }
+                pageSize = PAGE_SIZE;
             }
-            if (c != null) {
-                c.close();
-            }
+            return mProgressive ? null : l;
+        }
 
-            if (l.size() != 0) {
-                l.sort(new LocalData.NewestFirstComparator());
+        @Override
+        protected void onProgressUpdate(ArrayList<LocalData>... pages) {
+            if (isCancelled()) {
+                return;
             }
-
-            return l;
+            appendData(pages[0]);
         }
 
         @Override
         protected void onPostExecute(LocalDataList l) {
-            replaceData(l);
+            if (mQueryTask == this) {
+                mQueryTask = null;
+            }
+            if (l != null) {
+                applyDiff(l);
+            }
         }
     }
 
@@ -18,6 +18,7 @@ package com.android.camera.data;
 
 import android.net.Uri;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -56,7 +57,7 @@ public class LocalDataList {
 
     public LocalData remove(int index) {
         LocalData removedItem = mList.remove(index);
-        mUriMap.remove(removedItem);
+        mUriMap.remove(removedItem.getContentUri());
         return removedItem;
     }
 
@@ -83,6 +84,11 @@ public class LocalDataList {
         return mList.size();
     }
 
+    /** Returns a copy of the list, in order. */
+    public ArrayList<LocalData> toArrayList() {
+        return new ArrayList<LocalData>(mList);
+    }
+
     public void sort(Comparator<LocalData> comparator) {
         Collections.sort(mList, comparator);
     }
@@ -32,6 +32,7 @@ import android.os.AsyncTask;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
@@ -46,6 +47,7 @@ import com.android.camera2.R;
 import java.io.File;
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Locale;
 
 /**
@@ -55,6 +57,20 @@ import java.util.Locale;
  * return a bitmap.
  */
 public abstract class LocalMediaData implements LocalData {
+    /**
+     * The decoded bitmaps of the latest viewed and prefetched data, bounded
+     * to an eighth of the heap. Only accessed in the main thread.
+     */
+    private static final LruCache<String, Bitmap> sBitmapCache =
+            new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / 8)) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+    /** The keys of the bitmaps being prefetched. */
+    private static final HashSet<String> sPrefetching = new HashSet<String>();
+
     protected final long mContentId;
     protected final String mTitle;
     protected final String mMimeType;
@@ -205,6 +221,11 @@ public abstract class LocalMediaData implements LocalData {
             int decodeWidth, int decodeHeight, Drawable placeHolder,
             LocalDataAdapter adapter) {
         v.setScaleType(ImageView.ScaleType.FIT_XY);
+        Bitmap cached = sBitmapCache.get(getBitmapCacheKey(decodeWidth, decodeHeight));
+        if (cached != null) {
+            v.setImageDrawable(new BitmapDrawable(cached));
+            return v;
+        }
         v.setImageDrawable(placeHolder);
 
         BitmapLoadTask task = getBitmapLoadTask(v, decodeWidth, decodeHeight,
@@ -213,6 +234,31 @@ public abstract class LocalMediaData implements LocalData {
         return v;
     }
 
+    /**
+     * Decodes the bitmap in the background, for a view of this data which is
+     * likely to be shown next. Must be called in the main thread.
+     */
+    public void prefetchBitmap(ContentResolver resolver, int decodeWidth, int decodeHeight,
+            LocalDataAdapter adapter) {
+        String key = getBitmapCacheKey(decodeWidth, decodeHeight);
+        if (sBitmapCache.get(key) != null || !sPrefetching.add(key)) {
+            return;
+        }
+        BitmapLoadTask task = getBitmapLoadTask(null, decodeWidth, decodeHeight,
+                resolver, adapter);
+        // Not on the serial executor, not to delay the loads of the views shown.
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Returns the key of the bitmap decoded for the given size in the bitmap
+     * cache. It changes whenever the decoded bitmap would.
+     */
+    protected String getBitmapCacheKey(int decodeWidth, int decodeHeight) {
+        return getContentUri() + "/" + mDateModifiedInSeconds + "/" + decodeWidth
+                + "x" + decodeHeight;
+    }
+
     @Override
     public View getView(Activity activity,
             int decodeWidth, int decodeHeight, Drawable placeHolder,
@@ -302,8 +348,9 @@ public abstract class LocalMediaData implements LocalData {
 
         static final Uri CONTENT_URI = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
 
-        static final String QUERY_ORDER = MediaStore.Images.ImageColumns.DATE_TAKEN + " DESC, "
-                + MediaStore.Images.ImageColumns._ID + " DESC";
+        // A missing DATE_TAKEN sorts as 0, which is also what getLong() returns for it.
+        static final String QUERY_ORDER = "COALESCE(" + MediaStore.Images.ImageColumns.DATE_TAKEN
+                + ", 0) DESC, " + MediaStore.Images.ImageColumns._ID + " DESC";
         /**
          * These values should be kept in sync with column IDs (COL_*) above.
          */
@@ -429,6 +476,12 @@ public abstract class LocalMediaData implements LocalData {
             return baseUri.buildUpon().appendPath(String.valueOf(mContentId)).build();
         }
 
+        @Override
+        protected String getBitmapCacheKey(int decodeWidth, int decodeHeight) {
+            // Rotating only changes the orientation.
+            return super.getBitmapCacheKey(decodeWidth, decodeHeight) + "/" + mOrientation;
+        }
+
         @Override
         public MediaDetails getMediaDetails(Context context) {
             MediaDetails mediaDetails = super.getMediaDetails(context);
@@ -484,7 +537,7 @@ public abstract class LocalMediaData implements LocalData {
             public PhotoBitmapLoadTask(ImageView v, int decodeWidth,
                     int decodeHeight, ContentResolver resolver,
                     LocalDataAdapter adapter) {
-                super(v);
+                super(v, decodeWidth, decodeHeight);
                 mDecodeWidth = decodeWidth;
                 mDecodeHeight = decodeHeight;
                 mResolver = resolver;
@@ -533,13 +586,13 @@ public abstract class LocalMediaData implements LocalData {
                 BitmapFactory.Options opts = new BitmapFactory.Options();
                 opts.inSampleSize = sampleSize;
                 opts.inTempStorage = DECODE_TEMP_STORAGE;
-                if (isCancelled() || !isUsing()) {
+                if (isAborted()) {
                     return null;
                 }
                 Bitmap b = BitmapFactory.decodeFile(mPath, opts);
 
                 if (mOrientation != 0 && b != null) {
-                    if (isCancelled() || !isUsing()) {
+                    if (isAborted()) {
                         return null;
                     }
                     Matrix m = new Matrix();
@@ -592,8 +645,9 @@ public abstract class LocalMediaData implements LocalData {
                 LocalData.ACTION_DELETE
                         | LocalData.ACTION_PLAY;
 
-        static final String QUERY_ORDER = MediaStore.Video.VideoColumns.DATE_TAKEN + " DESC, "
-                + MediaStore.Video.VideoColumns._ID + " DESC";
+        // As in PhotoData, a missing DATE_TAKEN sorts as 0.
+        static final String QUERY_ORDER = "COALESCE(" + MediaStore.Video.VideoColumns.DATE_TAKEN
+                + ", 0) DESC, " + MediaStore.Video.VideoColumns._ID + " DESC";
         /**
          * These values should be kept in sync with column IDs (COL_*) above.
          */
@@ -781,18 +835,18 @@ public abstract class LocalMediaData implements LocalData {
         protected BitmapLoadTask getBitmapLoadTask(
                 ImageView v, int decodeWidth, int decodeHeight,
                 ContentResolver resolver, LocalDataAdapter adapter) {
-            return new VideoBitmapLoadTask(v);
+            return new VideoBitmapLoadTask(v, decodeWidth, decodeHeight);
         }
 
         private final class VideoBitmapLoadTask extends BitmapLoadTask {
 
-            public VideoBitmapLoadTask(ImageView v) {
-                super(v);
+            public VideoBitmapLoadTask(ImageView v, int decodeWidth, int decodeHeight) {
+                super(v, decodeWidth, decodeHeight);
             }
 
             @Override
             protected Bitmap doInBackground(Void... v) {
-                if (isCancelled() || !isUsing()) {
+                if (isAborted()) {
                     return null;
                 }
                 MediaMetadataRetriever retriever = new MediaMetadataRetriever();
@@ -800,7 +854,7 @@ public abstract class LocalMediaData implements LocalData {
                 try {
                     retriever.setDataSource(mPath);
                     byte[] data = retriever.getEmbeddedPicture();
-                    if (!isCancelled() && isUsing()) {
+                    if (!isAborted()) {
                         if (data != null) {
                             bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
                         }
@@ -830,17 +884,35 @@ public abstract class LocalMediaData implements LocalData {
      * An {@link AsyncTask} class that loads the bitmap in the background
      * thread. Sub-classes should implement their own
      * {@code BitmapLoadTask#doInBackground(Void...)}."
+     * The bitmap is put into the bitmap cache. If there is no view, the task
+     * is a prefetch, which isn't stopped when this data is not in use.
      */
     protected abstract class BitmapLoadTask extends AsyncTask<Void, Void, Bitmap> {
         protected ImageView mView;
+        private final String mCacheKey;
 
-        protected BitmapLoadTask(ImageView v) {
+        protected BitmapLoadTask(ImageView v, int decodeWidth, int decodeHeight) {
             mView = v;
+            mCacheKey = getBitmapCacheKey(decodeWidth, decodeHeight);
+        }
+
+        /** Returns true if the decoding should stop. */
+        protected boolean isAborted() {
+            return isCancelled() || (mView != null && !isUsing());
+        }
+
+        @Override
+        protected void onCancelled() {
+            sPrefetching.remove(mCacheKey);
         }
 
         @Override
         protected void onPostExecute(Bitmap bitmap) {
-            if (!isUsing()) {
+            sPrefetching.remove(mCacheKey);
+            if (bitmap != null) {
+                sBitmapCache.put(mCacheKey, bitmap);
+            }
+            if (mView == null || !isUsing()) {
                 return;
             }
             if (bitmap == null) {
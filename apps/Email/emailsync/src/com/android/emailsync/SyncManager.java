@@ -174,6 +174,8 @@ public abstract class SyncManager extends Service implements Runnable {
     // Keeps track of running services (by mailbox id)
     public final HashMap<Long, AbstractSyncService> mServiceMap =
         new HashMap<Long, AbstractSyncService>();
+    // Runs the services in mServiceMap on a small pool of threads
+    private final SyncScheduler mScheduler = new SyncScheduler(getClass().getSimpleName());
     // Keeps track of services whose last sync ended with an error (by mailbox id)
     /*package*/ public ConcurrentHashMap<Long, SyncError> mSyncErrorMap =
         new ConcurrentHashMap<Long, SyncError>();
@@ -952,6 +954,7 @@ public abstract class SyncManager extends Service implements Runnable {
                         AbstractSyncService svc = mServiceMap.get(mid);
                         if (svc != null) {
                             svc.stop();
+                            mScheduler.cancel(svc);
                             Thread t = svc.mThread;
                             if (t != null) {
                                 t.interrupt();
@@ -1205,8 +1208,10 @@ public abstract class SyncManager extends Service implements Runnable {
     }
 
     /**
-     * Starts a service thread and enters it into the service map
-     * This is the point of instantiation of all sync threads
+     * Starts a service and enters it into the service map
+     * This is the point of instantiation of all syncs. Account mailboxes, which ping the server
+     * for all of the account's pushed folders, get a thread of their own; other mailboxes are
+     * queued on the {@link SyncScheduler}'s worker pool.
      * @param service the service to start
      * @param m the Mailbox on which the service will operate
      */
@@ -1215,10 +1220,12 @@ public abstract class SyncManager extends Service implements Runnable {
         synchronized (sSyncLock) {
             String mailboxName = mailbox.mDisplayName;
             String accountName = service.mAccount.mDisplayName;
-            Thread thread = new Thread(service, mailboxName + "[" + accountName + "]");
-            log("Starting thread for " + mailboxName + " in account " + accountName);
-            thread.start();
+            log("Starting sync for " + mailboxName + " in account " + accountName + ", "
+                    + mScheduler.getQueueDepth() + " queued");
             mServiceMap.put(mailbox.mId, service);
+            mScheduler.execute(service, mailboxName + "[" + accountName + "]",
+                    mailbox.mType == Mailbox.TYPE_EAS_ACCOUNT_MAILBOX,
+                    service.mSyncReason >= SYNC_CALLBACK_START);
             runAwake(mailbox.mId);
         }
         onStartService(mailbox);
@@ -1279,8 +1286,10 @@ public abstract class SyncManager extends Service implements Runnable {
                 if (svc != null) {
                     log("Stopping " + svc.mAccount.mDisplayName + '/' + svc.mMailbox.mDisplayName);
                     svc.stop();
-                    if (svc.mThread != null) {
-                        svc.mThread.interrupt();
+                    mScheduler.cancel(svc);
+                    Thread thread = svc.mThread;
+                    if (thread != null) {
+                        thread.interrupt();
                     }
                 }
                 releaseWakeLock(mailboxId);
@@ -1805,18 +1814,12 @@ public abstract class SyncManager extends Service implements Runnable {
             // If so, stop them or remove them from the map
             for (Long mailboxId: deletedMailboxes) {
                 AbstractSyncService svc = mServiceMap.get(mailboxId);
-                if (svc == null || svc.mThread == null) {
+                if (svc == null || !mScheduler.isActive(svc)) {
                     releaseMailbox(mailboxId);
                     continue;
                 } else {
-                    boolean alive = svc.mThread.isAlive();
                     log("Deleted mailbox: " + svc.mMailboxName);
-                    if (alive) {
-                        stopManualSync(mailboxId);
-                    } else {
-                        log("Removing from serviceMap");
-                        releaseMailbox(mailboxId);
-                    }
+                    stopManualSync(mailboxId);
                 }
             }
         }
@@ -1898,9 +1901,8 @@ public abstract class SyncManager extends Service implements Runnable {
                         }
                     }
                 } else {
-                    Thread thread = service.mThread;
-                    // Look for threads that have died and remove them from the map
-                    if (thread != null && !thread.isAlive()) {
+                    // Look for services that have finished and remove them from the map
+                    if (!mScheduler.isActive(service)) {
                         if (sUserLog) {
                             log("Dead thread, mailbox released: " +
                                     c.getString(Mailbox.CONTENT_DISPLAY_NAME_COLUMN));
@@ -2086,7 +2088,11 @@ public abstract class SyncManager extends Service implements Runnable {
             if (svc != null) {
                 log("Stopping sync for " + svc.mMailboxName);
                 svc.stop();
-                svc.mThread.interrupt();
+                ssm.mScheduler.cancel(svc);
+                Thread thread = svc.mThread;
+                if (thread != null) {
+                    thread.interrupt();
+                }
                 ssm.releaseWakeLock(mailboxId);
             }
         }
@@ -2286,5 +2292,6 @@ public abstract class SyncManager extends Service implements Runnable {
             pw.println("  Historical times");
             writeWakeLockTimes(pw, mWakeLocksHistory, true);
         }
+        mScheduler.dump(pw);
     }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailsync;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the sync services started by {@link SyncManager} on a small pool of worker threads
+ * instead of one thread per mailbox.
+ *
+ * Mailbox syncs are short-lived (a sync, then the service exits), so they are multiplexed onto
+ * the pool; user-requested syncs are taken ahead of background ones. Long-lived services, i.e.
+ * the account mailbox that pings the server on behalf of all of the account's pushed folders,
+ * get a dedicated thread so they never hold a worker.
+ *
+ * The scheduler doesn't combine pings itself: there is one ping per account only because the
+ * protocol's account mailbox (e.g. EasAccountService) builds a single request for all of its
+ * pushed folders. Services that ping on their own still hold a thread each.
+ *
+ * Because a worker outlives the service it ran, callers must use {@link #isActive} rather than
+ * {@link Thread#isAlive} on the service's thread to find out whether a service is done.
+ */
+public class SyncScheduler {
+    private static final int WORKER_COUNT = 4;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    private final String mName;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mSequence = new AtomicInteger();
+
+    // Services that are queued or running; guarded by this
+    private final HashSet<AbstractSyncService> mActive = new HashSet<AbstractSyncService>();
+    private final HashMap<Long, MailboxStats> mStats = new HashMap<Long, MailboxStats>();
+
+    /**
+     * Per-mailbox latency, as reported by {@link #dump}.
+     */
+    private static class MailboxStats {
+        String mName;
+        int mSyncCount;
+        long mLastQueueTime;
+        long mLastRunTime;
+        long mTotalQueueTime;
+        long mTotalRunTime;
+    }
+
+    public SyncScheduler(final String name) {
+        mName = name;
+        mExecutor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, mName + " sync #" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a service to run.
+     *
+     * @param service the service to run
+     * @param threadName the name given to the thread while it runs the service
+     * @param dedicated whether the service is long-lived and needs a thread of its own
+     * @param userRequested whether the user is waiting for this sync
+     */
+    public void execute(final AbstractSyncService service, final String threadName,
+            final boolean dedicated, final boolean userRequested) {
+        final Task task = new Task(service, threadName, userRequested);
+        synchronized (this) {
+            mActive.add(service);
+        }
+        if (dedicated) {
+            new Thread(task, threadName).start();
+        } else {
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * @return whether the service is still queued or running
+     */
+    public synchronized boolean isActive(final AbstractSyncService service) {
+        return mActive.contains(service);
+    }
+
+    /**
+     * Remove a service that hasn't started yet from the queue.
+     *
+     * @return true if the service was removed before it ran
+     */
+    public boolean cancel(final AbstractSyncService service) {
+        for (Runnable r : mExecutor.getQueue()) {
+            if (((Task) r).mService == service && mExecutor.remove(r)) {
+                synchronized (this) {
+                    mActive.remove(service);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of services waiting for a worker
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    public void dump(final PrintWriter pw) {
+        pw.println("  Sync workers: " + mExecutor.getActiveCount() + "/" + WORKER_COUNT
+                + " busy, " + getQueueDepth() + " queued");
+        synchronized (this) {
+            for (MailboxStats stats : mStats.values()) {
+                pw.println("    " + stats.mName + ": " + stats.mSyncCount + " syncs, last queued "
+                        + stats.mLastQueueTime + "ms ran " + stats.mLastRunTime + "ms, avg queued "
+                        + (stats.mTotalQueueTime / stats.mSyncCount) + "ms ran "
+                        + (stats.mTotalRunTime / stats.mSyncCount) + "ms");
+            }
+        }
+    }
+
+    private synchronized void onTaskDone(final Task task, final long startTime,
+            final long endTime) {
+        mActive.remove(task.mService);
+        final long mailboxId = task.mService.mMailboxId;
+        MailboxStats stats = mStats.get(mailboxId);
+        if (stats == null) {
+            stats = new MailboxStats();
+            mStats.put(mailboxId, stats);
+        }
+        stats.mName = task.mThreadName;
+        stats.mSyncCount++;
+        stats.mLastQueueTime = startTime - task.mQueuedTime;
+        stats.mLastRunTime = endTime - startTime;
+        stats.mTotalQueueTime += stats.mLastQueueTime;
+        stats.mTotalRunTime += stats.mLastRunTime;
+        if (SyncManager.sUserLog) {
+            SyncManager.log(task.mThreadName + " sync done; queued " + stats.mLastQueueTime
+                    + "ms, ran " + stats.mLastRunTime + "ms, " + getQueueDepth()
+                    + " still queued");
+        }
+    }
+
+    /**
+     * Runs one service; ordered so that user-requested syncs come first, then by arrival.
+     */
+    private class Task implements Runnable, Comparable<Task> {
+        final AbstractSyncService mService;
+        final String mThreadName;
+        final boolean mUserRequested;
+        final int mSequenceNumber = mSequence.incrementAndGet();
+        final long mQueuedTime = System.currentTimeMillis();
+
+        Task(final AbstractSyncService service, final String threadName,
+                final boolean userRequested) {
+            mService = service;
+            mThreadName = threadName;
+            mUserRequested = userRequested;
+        }
+
+        @Override
+        public void run() {
+            final Thread thread = Thread.currentThread();
+            final String workerName = thread.getName();
+            final long startTime = System.currentTimeMillis();
+            thread.setName(mThreadName);
+            try {
+                mService.run();
+            } finally {
+                // The worker goes on to other services; don't let this one interrupt it
+                synchronized (mService.getSynchronizer()) {
+                    if (mService.mThread == thread) {
+                        mService.mThread = null;
+                    }
+                }
+                Thread.interrupted();
+                thread.setName(workerName);
+                onTaskDone(this, startTime, System.currentTimeMillis());
+            }
+        }
+
+        @Override
+        public int compareTo(final Task another) {
+            if (mUserRequested != another.mUserRequested) {
+                return mUserRequested ? -1 : 1;
+            }
+            return mSequenceNumber - another.mSequenceNumber;
+        }
+    }
+}
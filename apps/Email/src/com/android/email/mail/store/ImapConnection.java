@@ -173,8 +173,10 @@ class ImapConnection {
             mTransport.close();
             mTransport = null;
         }
-        destroyResponses();
-        mParser = null;
+        if (mParser != null) {
+            mParser.close();
+            mParser = null;
+        }
         mImapStore = null;
     }
 
@@ -213,10 +215,12 @@ class ImapConnection {
      * set it to {@link #mParser}.
      *
      * If we already have an {@link ImapResponseParser}, we
-     * {@link #destroyResponses()} and throw it away.
+     * {@link ImapResponseParser#close()} and throw it away.
      */
     private void createParser() {
-        destroyResponses();
+        if (mParser != null) {
+            mParser.close();
+        }
         mParser = new ImapResponseParser(mTransport.getInputStream(), mDiscourse);
     }
 
@@ -252,6 +256,16 @@ class ImapConnection {
         return readResponse;
     }
 
+    /**
+     * Set a sink for large literals in the responses to come, or null to go back to storing them
+     * in temp files.
+     */
+    void setLiteralSink(ImapResponseParser.LiteralSink sink) {
+        if (mParser != null) {
+            mParser.setLiteralSink(sink);
+        }
+    }
+
     /**
      * Send a single command to the server.  The command will be preceded by an IMAP command
      * tag and followed by \r\n (caller need not supply them).
@@ -21,12 +21,14 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Base64DataException;
 
+import com.android.email.FixedLengthInputStream;
 import com.android.email.mail.store.ImapStore.ImapException;
 import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapElement;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapResponseParser;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.store.imap.ImapTempFileLiteral;
 import com.android.email.mail.store.imap.ImapUtility;
@@ -719,6 +721,8 @@ public class ImapFolder extends Folder {
 
         // TODO Why are we only fetching the first part given?
         final Part fetchPart = fp.getFirstPart();
+        String contentTransferEncoding = null;
+        PartBodySink partSink = null;
         if (fetchPart != null) {
             final String[] partIds =
                     fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
@@ -728,6 +732,22 @@ public class ImapFolder extends Folder {
                 fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE
                         + "[" + partIds[0] + "]" + (mFetchSize > 0 ? String.format("<0.%d>", mFetchSize) : ""));
             }
+
+            String encodings[] = fetchPart.getHeader(
+                    MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+            if (encodings != null && encodings.length > 0) {
+                contentTransferEncoding = encodings[0];
+            } else {
+                // According to http://tools.ietf.org/html/rfc2045#section-6.1
+                // "7bit" is the default.
+                contentTransferEncoding = "7bit";
+            }
+
+            // The part is then the only large literal in the responses, so it can be decoded
+            // as it comes in.
+            if (!fp.contains(FetchProfile.Item.BODY) && !fp.contains(FetchProfile.Item.BODY_SANE)) {
+                partSink = new PartBodySink(contentTransferEncoding, listener);
+            }
         }
 
         try {
@@ -735,6 +755,9 @@ public class ImapFolder extends Folder {
                     ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
                     Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
                     ), false);
+            if (partSink != null) {
+                mConnection.setLiteralSink(partSink);
+            }
             ImapResponse response;
             do {
                 response = null;
@@ -806,20 +829,13 @@ public class ImapFolder extends Folder {
                         InputStream bodyStream = body.getAsStream();
                         message.parse(bodyStream);
                     }
-                    if (fetchPart != null) {
+                    final Body sunkBody = (partSink != null) ? partSink.takeBody() : null;
+                    if (sunkBody != null) {
+                        // Already decoded by partSink while the response was being read.
+                        fetchPart.setBody(sunkBody);
+                    } else if (fetchPart != null) {
                         /// M: change for redecoding when catch Base64DataException
                         ImapString imapString = fetchList.getKeyedStringOrEmpty("BODY[", true);
-                        String encodings[] = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-                        String contentTransferEncoding = null;
-                        if (encodings != null && encodings.length > 0) {
-                            contentTransferEncoding = encodings[0];
-                        } else {
-                            // According to http://tools.ietf.org/html/rfc2045#section-6.1
-                            // "7bit" is the default.
-                            contentTransferEncoding = "7bit";
-                        }
 
                         try {
                             // TODO Don't create 2 temp files.
@@ -842,10 +858,94 @@ public class ImapFolder extends Folder {
                     }
                 } finally {
                     destroyResponses();
+                    if (partSink != null) {
+                        // In case the response wasn't for one of our messages
+                        partSink.discardBody();
+                    }
                 }
             } while (!response.isTagged());
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            if (partSink != null && mConnection != null) {
+                mConnection.setLiteralSink(null);
+            }
+        }
+    }
+
+    /**
+     * Decodes a large part straight from the network into its body, rather than copying the
+     * literal to a temp file first and then decoding that into another one.
+     */
+    private static class PartBodySink implements ImapResponseParser.LiteralSink {
+        private final String mContentTransferEncoding;
+        private final MessageRetrievalListener mListener;
+        private BinaryTempFileBody mBody;
+
+        PartBodySink(String contentTransferEncoding, MessageRetrievalListener listener) {
+            mContentTransferEncoding = contentTransferEncoding;
+            mListener = listener;
+        }
+
+        @Override
+        public ImapString consumeLiteral(FixedLengthInputStream literal, int size)
+                throws IOException {
+            discardBody();
+            /// M: Fix up bare CR and LF line endings, as decodeBody() does.
+            InputStream in = new EOLConvertingInputStream(literal);
+            in = MimeUtility.getInputStreamForContentTransferEncoding(in,
+                    mContentTransferEncoding);
+            final BinaryTempFileBody body = new BinaryTempFileBody();
+            final OutputStream out = body.getOutputStream();
+            boolean success = false;
+            try {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int n = 0;
+                int count = 0;
+                try {
+                    while (-1 != (n = in.read(buffer))) {
+                        out.write(buffer, 0, n);
+                        count += n;
+                        final int received = size - literal.available();
+                        if (mListener != null && received < size) {
+                            mListener.loadAttachmentProgress((int) (received * 100L / size));
+                        }
+                    }
+                } catch (Base64DataException bde) {
+                    // We can't go back and store the undecoded data, as decodeBody() does;
+                    // keep what we've got, and say so.  The parser skips the rest.
+                    String warning = "\n\n" + MailActivityEmail.getMessageDecodeErrorString();
+                    out.write(warning.getBytes());
+                }
+                /// M: Send finished callback, to ask UI to update progress status.
+                if (mListener != null) {
+                    mListener.loadAttachmentProgress(count > 0 ? 100 : 0);
+                }
+                success = true;
+            } finally {
+                out.close();
+                if (!success) {
+                    body.deleteFile();
+                }
+            }
+            mBody = body;
+            return ImapString.EMPTY;
+        }
+
+        /**
+         * @return the body decoded from the last response, or null
+         */
+        Body takeBody() {
+            final Body body = mBody;
+            mBody = null;
+            return body;
+        }
+
+        void discardBody() {
+            if (mBody != null) {
+                mBody.deleteFile();
+                mBody = null;
+            }
         }
     }
 
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Buffered, peekable InputStream used by {@link ImapResponseParser}.
+ *
+ * <p>Unlike {@link java.io.BufferedInputStream} nothing here is synchronized, and the buffer is
+ * exposed to the parser so that atoms, quoted strings and literal lengths can be scanned in
+ * place rather than with one read() call per byte.  Literals are copied straight out of the
+ * buffer to their destination.
+ *
+ * <p>Buffers are taken from a small pool shared by all connections, and must be given back with
+ * {@link #release} when the parser is thrown away.
+ */
+/* package */ final class ImapInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final ArrayList<byte[]> sBufferPool = new ArrayList<byte[]>();
+
+    private final InputStream mIn;
+
+    // The parser reads these directly; valid bytes are buf[pos, limit)
+    byte[] buf;
+    int pos;
+    int limit;
+
+    ImapInputStream(InputStream in) {
+        mIn = in;
+        buf = obtainBuffer();
+    }
+
+    private static byte[] obtainBuffer() {
+        synchronized (sBufferPool) {
+            final int size = sBufferPool.size();
+            if (size > 0) {
+                return sBufferPool.remove(size - 1);
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Give the buffer back to the pool.  Any unread bytes are dropped, and the stream can't be
+     * read anymore.
+     */
+    void release() {
+        final byte[] b = buf;
+        if (b == null) {
+            return;
+        }
+        buf = null;
+        pos = 0;
+        limit = 0;
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.add(b);
+            }
+        }
+    }
+
+    /**
+     * Makes sure there is at least one unread byte in the buffer.
+     *
+     * @return the number of buffered bytes, or -1 at end of stream
+     */
+    int fill() throws IOException {
+        if (pos < limit) {
+            return limit - pos;
+        }
+        if (buf == null) {
+            throw new IOException("Stream already released");
+        }
+        pos = 0;
+        limit = 0;
+        final int count = mIn.read(buf, 0, buf.length);
+        if (count <= 0) {
+            return -1;
+        }
+        limit = count;
+        return count;
+    }
+
+    /**
+     * @return the next byte without consuming it, or -1 at end of stream
+     */
+    int peek() throws IOException {
+        if (pos >= limit && fill() < 0) {
+            return -1;
+        }
+        return buf[pos] & 0xff;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= limit && fill() < 0) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int avail = limit - pos;
+        if (avail <= 0) {
+            // Don't copy large reads through our buffer
+            if (len >= BUFFER_SIZE) {
+                if (buf == null) {
+                    throw new IOException("Stream already released");
+                }
+                return mIn.read(b, off, len);
+            }
+            avail = fill();
+            if (avail < 0) {
+                return -1;
+            }
+        }
+        final int count = Math.min(avail, len);
+        System.arraycopy(buf, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        final int avail = limit - pos;
+        if (avail > 0) {
+            final int count = (int) Math.min(avail, n);
+            pos += count;
+            return count;
+        }
+        return mIn.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + mIn.available();
+    }
+
+    /**
+     * Copies at most {@code max} bytes, and at most one buffer's worth, to the given stream, or
+     * skips them if it is null.
+     *
+     * @return the number of bytes copied, or -1 at end of stream
+     */
+    int transferTo(OutputStream out, int max) throws IOException {
+        if (max <= 0) {
+            return 0;
+        }
+        if (fill() < 0) {
+            return -1;
+        }
+        final int count = Math.min(limit - pos, max);
+        if (out != null) {
+            out.write(buf, pos, count);
+        }
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ImapInputStream(in=%s, buffered=%d)", mIn.toString(), limit - pos);
+    }
+}
@@ -19,7 +19,6 @@ package com.android.email.mail.store.imap;
 import android.text.TextUtils;
 
 import com.android.email.FixedLengthInputStream;
-import com.android.email.PeekableInputStream;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.email2.ui.MailActivityEmail;
 import com.android.emailcommon.Logging;
@@ -31,6 +30,7 @@ import com.android.mail.utils.LogUtils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * IMAP response parser.
@@ -43,8 +43,40 @@ public class ImapResponseParser {
      */
     public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
+    /** Size of {@link #mAtomCache}; must be a power of 2. */
+    private static final int ATOM_CACHE_SIZE = 64;
+
+    /** Atoms longer than this are not worth caching. */
+    private static final int MAX_CACHED_ATOM_LENGTH = 128;
+
+    /** Bytes that end an atom; see {@link #parseBareString}. */
+    private static final boolean[] ATOM_END = new boolean[256];
+
+    static {
+        // TODO Can we clean this up?  (This condition is from the old parser.)
+        for (int ch = 0x00; ch <= 0x1f; ch++) {
+            ATOM_END[ch] = true;
+        }
+        ATOM_END[0x7f] = true;
+        ATOM_END['('] = true;
+        ATOM_END[')'] = true;
+        ATOM_END['{'] = true;
+        ATOM_END[' '] = true;
+        // ']' is not part of atom (it's in resp-specials)
+        ATOM_END[']'] = true;
+        // docs claim that flags are \ atom but atom isn't supposed to
+        // contain
+        // * and some flags contain *
+        // ch == '%' || ch == '*' ||
+        ATOM_END['%'] = true;
+        // TODO probably should not allow \ and should recognize
+        // it as a flag instead
+        // ch == '"' || ch == '\' ||
+        ATOM_END['"'] = true;
+    }
+
     /** Input stream */
-    private final PeekableInputStream mIn;
+    private final ImapInputStream mIn;
 
     /**
      * To log network activities when the parser crashes.
@@ -55,11 +87,19 @@ public class ImapResponseParser {
 
     private final int mLiteralKeepInMemoryThreshold;
 
-    /** StringBuilder used by readUntil() */
-    private final StringBuilder mBufferReadUntil = new StringBuilder();
+    /** Characters read by readUntil() and parseBareString(); the first mCharCount are valid. */
+    private char[] mChars = new char[256];
+    private int mCharCount;
 
-    /** StringBuilder used by parseBareString() */
-    private final StringBuilder mParseBareString = new StringBuilder();
+    /**
+     * Atoms parsed recently, indexed by hash.  Most atoms in a FETCH response (FETCH, UID, FLAGS,
+     * the flags themselves, the BODY[HEADER.FIELDS (...)] key...) are the same for every message,
+     * so this saves creating a new String for each of them.
+     */
+    private final String[] mAtomCache = new String[ATOM_CACHE_SIZE];
+
+    /** Receives literals larger than mLiteralKeepInMemoryThreshold, if set. */
+    private LiteralSink mLiteralSink;
 
     /**
      * We store all {@link ImapResponse} in it.  {@link #destroyResponses()} must be called from
@@ -78,6 +118,22 @@ public class ImapResponseParser {
         }
     }
 
+    /**
+     * Receives large literals as they come off the network, so that they can be written straight
+     * to their final storage instead of first being copied to a temp file.
+     */
+    public interface LiteralSink {
+        /**
+         * Called for each literal larger than the in-memory threshold.  The sink doesn't have to
+         * read all of {@code in}; the parser skips whatever is left.
+         *
+         * @param in the literal; it reports end of stream at the end of the literal
+         * @param size the size of the literal in bytes
+         * @return the element to put in the response in place of the literal
+         */
+        ImapString consumeLiteral(FixedLengthInputStream in, int size) throws IOException;
+    }
+
     /**
      * Public constructor for normal use.
      */
@@ -93,7 +149,7 @@ public class ImapResponseParser {
         if (DEBUG_LOG_RAW_STREAM && MailActivityEmail.DEBUG) {
             in = new LoggingInputStream(in);
         }
-        mIn = new PeekableInputStream(in);
+        mIn = new ImapInputStream(in);
         mDiscourseLogger = discourseLogger;
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
     }
@@ -106,6 +162,15 @@ public class ImapResponseParser {
         return new IOException(message);
     }
 
+    /**
+     * Destroy all the responses and give the parser's buffer back to the pool.  The parser can't
+     * be used after this is called.
+     */
+    public void close() {
+        destroyResponses();
+        mIn.release();
+    }
+
     /**
      * Peek next one byte.
      *
@@ -223,15 +288,61 @@ public class ImapResponseParser {
      * The {@code end} will be read (rather than peeked) and won't be included in the result.
      */
     /* package for test */ String readUntil(char end) throws IOException {
-        mBufferReadUntil.setLength(0);
+        mCharCount = 0;
+        appendUntil(end);
+        return new String(mChars, 0, mCharCount);
+    }
+
+    /**
+     * Read bytes until we find {@code end}, and append them to {@link #mChars}.
+     * The {@code end} will be read (rather than peeked) and won't be appended.
+     */
+    private void appendUntil(char end) throws IOException {
         for (;;) {
-            final int ch = readByte();
-            if (ch != end) {
-                mBufferReadUntil.append((char) ch);
-            } else {
-                return mBufferReadUntil.toString();
+            if (mIn.fill() < 0) {
+                throw newEOSException();
+            }
+            final byte[] buf = mIn.buf;
+            final int start = mIn.pos;
+            final int limit = mIn.limit;
+            int i = start;
+            while (i < limit && buf[i] != end) {
+                i++;
+            }
+            appendChars(buf, start, i);
+            if (i < limit) {
+                // Found it; consume the end char too.
+                i++;
+                mDiscourseLogger.addReceivedBytes(buf, start, i - start);
+                mIn.pos = i;
+                return;
             }
+            mDiscourseLogger.addReceivedBytes(buf, start, i - start);
+            mIn.pos = i;
+        }
+    }
+
+    /**
+     * Append buf[start, end) to {@link #mChars}, one char per byte.
+     */
+    private void appendChars(byte[] buf, int start, int end) {
+        final int needed = mCharCount + end - start;
+        if (needed > mChars.length) {
+            mChars = Arrays.copyOf(mChars, Math.max(needed, mChars.length * 2));
+        }
+        final char[] chars = mChars;
+        int count = mCharCount;
+        for (int i = start; i < end; i++) {
+            chars[count++] = (char) (buf[i] & 0xff);
+        }
+        mCharCount = count;
+    }
+
+    private void appendChar(char ch) {
+        if (mCharCount == mChars.length) {
+            mChars = Arrays.copyOf(mChars, mChars.length * 2);
         }
+        mChars[mCharCount++] = ch;
     }
 
     /**
@@ -362,42 +473,87 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
+        mCharCount = 0;
+        int hash = 0;
+        long number = 0;
+        boolean isNumber = true;
         for (;;) {
             final int ch = peek();
-
-            // TODO Can we clean this up?  (This condition is from the old parser.)
-            if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                    // ']' is not part of atom (it's in resp-specials)
-                    ch == ']' ||
-                    // docs claim that flags are \ atom but atom isn't supposed to
-                    // contain
-                    // * and some flags contain *
-                    // ch == '%' || ch == '*' ||
-                    ch == '%' ||
-                    // TODO probably should not allow \ and should recognize
-                    // it as a flag instead
-                    // ch == '"' || ch == '\' ||
-                    ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
-                    throw new MessagingException("Expected string, none found.");
-                }
-                String s = mParseBareString.toString();
-
-                // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
-                    return ImapString.EMPTY;
-                }
-                return new ImapSimpleString(s);
+            if (ATOM_END[ch]) {
+                break;
             } else if (ch == '[') {
                 // Eat all until next ']'
-                mParseBareString.append((char) readByte());
-                mParseBareString.append(readUntil(']'));
-                mParseBareString.append(']'); // readUntil won't include the end char.
+                final int start = mCharCount;
+                appendChar((char) readByte());
+                appendUntil(']');
+                appendChar(']'); // appendUntil won't include the end char.
+                for (int i = start; i < mCharCount; i++) {
+                    hash = 31 * hash + mChars[i];
+                }
+                isNumber = false;
             } else {
-                mParseBareString.append((char) readByte());
+                // Scan as much of the atom as is in the buffer, parsing it as a number as we go.
+                final byte[] buf = mIn.buf;
+                final int start = mIn.pos;
+                final int limit = mIn.limit;
+                int i = start;
+                for (; i < limit; i++) {
+                    final int b = buf[i] & 0xff;
+                    if (ATOM_END[b] || b == '[') {
+                        break;
+                    }
+                    hash = 31 * hash + b;
+                    if (isNumber) {
+                        number = number * 10 + (b - '0');
+                        isNumber = ('0' <= b && b <= '9') && number <= Integer.MAX_VALUE;
+                    }
+                }
+                appendChars(buf, start, i);
+                mDiscourseLogger.addReceivedBytes(buf, start, i - start);
+                mIn.pos = i;
+            }
+        }
+
+        if (mCharCount == 0) {
+            throw new MessagingException("Expected string, none found.");
+        }
+
+        // Numbers don't need a String unless someone asks for one.  Leave the ones with leading
+        // zeros alone, so that getString() still returns what the server sent.
+        if (isNumber && (mChars[0] != '0' || mCharCount == 1)) {
+            return new ImapSimpleString((int) number);
+        }
+
+        // NIL will be always converted into the empty string.
+        if (mCharCount == 3 && (mChars[0] | 0x20) == 'n' && (mChars[1] | 0x20) == 'i'
+                && (mChars[2] | 0x20) == 'l') {
+            return ImapString.EMPTY;
+        }
+        return new ImapSimpleString(getAtomString(hash));
+    }
+
+    /**
+     * @return the atom in {@link #mChars} as a String, from {@link #mAtomCache} if possible.
+     */
+    private String getAtomString(int hash) {
+        final int length = mCharCount;
+        if (length > MAX_CACHED_ATOM_LENGTH) {
+            return new String(mChars, 0, length);
+        }
+        final int index = (hash ^ (hash >>> 16)) & (ATOM_CACHE_SIZE - 1);
+        final String cached = mAtomCache[index];
+        if (cached != null && cached.length() == length) {
+            int i = 0;
+            while (i < length && cached.charAt(i) == mChars[i]) {
+                i++;
+            }
+            if (i == length) {
+                return cached;
             }
         }
+        final String s = new String(mChars, 0, length);
+        mAtomCache[index] = s;
+        return s;
     }
 
     private void parseElements(ImapList list, char end)
@@ -433,20 +589,60 @@ public class ImapResponseParser {
 
     private ImapString parseLiteral() throws IOException, MessagingException {
         expect('{');
-        final int size;
-        try {
-            size = Integer.parseInt(readUntil('}'));
-        } catch (NumberFormatException nfe) {
-            throw new MessagingException("Invalid length in literal");
-        }
+        final int size = readLiteralLength();
         expect('\r');
         expect('\n');
-        FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
         if (size > mLiteralKeepInMemoryThreshold) {
-            return new ImapTempFileLiteral(in, mListener);
+            if (mLiteralSink != null) {
+                return sinkLiteral(size);
+            }
+            return new ImapTempFileLiteral(mIn, size, mListener);
         } else {
-            return new ImapMemoryLiteral(in, mListener);
+            return new ImapMemoryLiteral(new FixedLengthInputStream(mIn, size), mListener);
+        }
+    }
+
+    /**
+     * Read the length of a literal, up to and including the closing '}'.
+     */
+    private int readLiteralLength() throws IOException, MessagingException {
+        long size = 0;
+        int digits = 0;
+        for (;;) {
+            final int ch = readByte();
+            if (ch == '}') {
+                break;
+            }
+            if (ch < '0' || ch > '9' || ++digits > 10) {
+                throw new MessagingException("Invalid length in literal");
+            }
+            size = size * 10 + (ch - '0');
         }
+        if (digits == 0 || size > Integer.MAX_VALUE) {
+            throw new MessagingException("Invalid length in literal");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Hand a literal to {@link #mLiteralSink}, and skip whatever it leaves unread.
+     */
+    private ImapString sinkLiteral(int size) throws IOException {
+        final FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
+        final ImapString literal = mLiteralSink.consumeLiteral(in, size);
+        int remaining = in.available();
+        while (remaining > 0) {
+            final int skipped = mIn.transferTo(null, remaining);
+            if (skipped < 0) {
+                throw newEOSException();
+            }
+            remaining -= skipped;
+        }
+        return (literal != null) ? literal : ImapString.EMPTY;
+    }
+
+    public void setLiteralSink(LiteralSink sink) {
+        mLiteralSink = sink;
     }
 
     /** M: Callback to update UI @ {*/
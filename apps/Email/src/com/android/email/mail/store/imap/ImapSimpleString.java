@@ -31,6 +31,14 @@ public class ImapSimpleString extends ImapString {
         mString = (string != null) ? string : "";
     }
 
+    /**
+     * Constructor for an atom the parser has already parsed as a number.  The string form is only
+     * created if someone asks for it.
+     */
+    /* package */  ImapSimpleString(int number) {
+        setParsedNumber(number);
+    }
+
     @Override
     public void destroy() {
         mString = null;
@@ -39,17 +47,20 @@ public class ImapSimpleString extends ImapString {
 
     @Override
     public String getString() {
+        if (mString == null && !isDestroyed()) {
+            mString = Integer.toString(getNumberOrZero());
+        }
         return mString;
     }
 
     @Override
     public InputStream getAsStream() {
-        return new ByteArrayInputStream(Utility.toAscii(mString));
+        return new ByteArrayInputStream(Utility.toAscii(getString()));
     }
 
     @Override
     public String toString() {
         // Purposefully not return just mString, in order to prevent using it instead of getString.
-        return "\"" + mString + "\"";
+        return "\"" + getString() + "\"";
     }
 }
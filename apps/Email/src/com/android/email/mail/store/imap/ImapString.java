@@ -107,6 +107,15 @@ public abstract class ImapString extends ImapElement {
         }
     }
 
+    /**
+     * Record a value the parser has already parsed as a number, so that it doesn't have to be
+     * parsed again from {@link #getString}.
+     */
+    /* package */ final void setParsedNumber(int number) {
+        mParsedInteger = number;
+        mIsInteger = true;
+    }
+
     /**
      * @return value parsed as a number.
      */
@@ -57,13 +57,15 @@ public class ImapTempFileLiteral extends ImapString {
     }
 
     /** M: added UI update processing.
+     * The literal is copied straight out of the parser's buffer into the temp file.
      * @param in
+     * @param size
      * @param listener
      * @throws IOException
      */
-    ImapTempFileLiteral(FixedLengthInputStream stream,
+    ImapTempFileLiteral(ImapInputStream in, int size,
             MessageRetrievalListener listener) throws IOException {
-        mSize = stream.getLength();
+        mSize = size;
         mFile = File.createTempFile("imap", ".tmp", TempDirectory.getTempDirectory());
 
         // Unfortunately, we can't really use deleteOnExit(), because temp filenames are random
@@ -72,21 +74,17 @@ public class ImapTempFileLiteral extends ImapString {
         // mFile.deleteOnExit();
         OutputStream out = new FileOutputStream(mFile);
         try {
-            // IOUtils.copy(stream, out);
-            byte[] buffer = new byte[4 * 1024];
-            int size = stream.getLength();
             int count = 0;
             int n = 0;
-            while (-1 != (n = stream.read(buffer))) {
-                out.write(buffer, 0, n);
+            while (count < size && -1 != (n = in.transferTo(out, size - count))) {
                 count += n;
                 /*
                  * callback to update ui progress. Loading data from server
                  * finished, but not send finished callback. Waiting finished
                  * decoding the file. @{
                  */
-                if (listener != null && size != 0 && count < size) {
-                    listener.loadAttachmentProgress(count * 100 / size);
+                if (listener != null && count < size) {
+                    listener.loadAttachmentProgress((int) (count * 100L / size));
                 }
             }
         } finally {
@@ -74,6 +74,16 @@ public class DiscourseLogger {
         }
     }
 
+    /**
+     * Same as calling {@link #addReceivedByte} for each of the given bytes.
+     */
+    public void addReceivedBytes(byte[] b, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            addReceivedByte(b[i] & 0xff);
+        }
+    }
+
     /** Add a line sent to the server to {@link #mBuffer}. */
     public void addSentCommand(String command) {
         addLine(command);
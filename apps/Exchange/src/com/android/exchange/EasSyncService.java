@@ -263,8 +263,11 @@ public class EasSyncService extends AbstractSyncService {
     @Override
     public boolean alarm() {
         HttpPost post;
-        if (mThread == null) return true;
-        String threadName = mThread.getName();
+        // Read it once: it is cleared when the service ends, and the thread may then run
+        // another service
+        final Thread thread = mThread;
+        if (thread == null) return true;
+        String threadName = thread.getName();
 
         // Synchronize here so that we are guaranteed to have valid mPendingPost and mPostLock
         // executePostWithTimeout (which executes the HttpPost) also uses this lock
@@ -300,17 +303,23 @@ public class EasSyncService extends AbstractSyncService {
         } catch (InterruptedException e) {
         }
 
-        State s = mThread.getState();
+        State s = thread.getState();
         if (Eas.USER_LOG) {
             userLog(threadName + ": State = " + s.name());
         }
 
         synchronized (getSynchronizer()) {
+            // If the service has ended in the meantime, its thread may be running another
+            // service's sync; leave it alone
+            if (mThread != thread) {
+                mPendingPost = null;
+                return true;
+            }
             // If the thread is still hanging around and the same post is pending, let's try to
             // stop the thread with an interrupt.
             if ((s != State.TERMINATED) && (mPendingPost != null) && (mPendingPost == post)) {
                 mStop = true;
-                mThread.interrupt();
+                thread.interrupt();
                 userLog("Interrupting...");
                 // Let the caller know we had to interrupt the thread
                 return false;
@@ -38,11 +38,25 @@ public class MockParserStream extends InputStream {
 
     @Override
     public int read() throws IOException {
-        try {
-            return array[pos++];
-        } catch (IndexOutOfBoundsException e) {
-            throw new IOException("End of stream");
+        if (pos >= array.length) {
+            return -1;
         }
+        return array[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= array.length) {
+            return -1;
+        }
+        int count = Math.min(len, array.length - pos);
+        for (int i = 0; i < count; i++) {
+            b[off + i] = (byte) array[pos++];
+        }
+        return count;
     }
 
     public void setResult(Object _value) {
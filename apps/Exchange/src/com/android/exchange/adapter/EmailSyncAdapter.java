@@ -840,7 +840,7 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
 
         private void attachmentParser(ArrayList<Attachment> atts, Message msg) throws IOException {
             String fileName = null;
-            String length = null;
+            long length = -1;
             String location = null;
             boolean isInline = false;
             String contentId = null;
@@ -858,7 +858,7 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
                         break;
                     case Tags.EMAIL_ATT_SIZE:
                     case Tags.BASE_ESTIMATED_DATA_SIZE:
-                        length = getValue();
+                        length = getValueLong();
                         break;
                     case Tags.BASE_IS_INLINE:
                         isInline = getValueInt() == 1;
@@ -871,10 +871,10 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
                 }
             }
 
-            if ((fileName != null) && (length != null) && (location != null)) {
+            if ((fileName != null) && (length >= 0) && (location != null)) {
                 Attachment att = new Attachment();
                 att.mEncoding = "base64";
-                att.mSize = Long.parseLong(length);
+                att.mSize = length;
                 att.mFileName = fileName;
                 att.mLocation = location;
                 att.mMimeType = getMimeTypeFromFileName(fileName);
@@ -54,9 +54,11 @@ import com.google.common.annotations.VisibleForTesting;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * Parser for Sync on an email collection.
@@ -97,8 +99,16 @@ public class EmailSyncParser extends AbstractSyncParser {
     // above this number, we flush.
     private static final int MAX_OPS_PER_BATCH = 50;
 
+    // Max number of parsed commands waiting for the committer thread in pipelined mode. Each
+    // holds at most one message, so this (plus one batch being applied) bounds what we keep in
+    // memory however large the sync window is.
+    private static final int PIPELINE_QUEUE_CAPACITY = 20;
+
     private boolean mFetchNeeded = false;
 
+    private boolean mPipelined = false;
+    private PipelinedCommitter mCommitter;
+
     private final Map<String, Integer> mMessageUpdateStatus = new HashMap();
     /// M: Bad sync key recovery
     private static final String WHERE_MAILBOX_KEY = MessageColumns.MAILBOX_KEY + "=?";
@@ -121,6 +131,19 @@ public class EmailSyncParser extends AbstractSyncParser {
         return mFetchNeeded;
     }
 
+    /**
+     * In pipelined mode, parsed adds, fetches, deletes and changes are handed to a background
+     * thread that writes them to the provider while we keep reading from the network, instead
+     * of being held until {@link #commit()}. The sync key is still only saved once everything
+     * has been written, and new messages written for a response that fails to parse are
+     * removed again, since the server will send them again with the old sync key.
+     *
+     * @param pipelined whether to commit while parsing
+     */
+    public void setPipelined(boolean pipelined) {
+        mPipelined = pipelined;
+    }
+
     public Map<String, Integer> getMessageStatuses() {
         return mMessageUpdateStatus;
     }
@@ -477,7 +500,7 @@ public class EmailSyncParser extends AbstractSyncParser {
     private void attachmentParser(ArrayList<EmailContent.Attachment> atts,
             EmailContent.Message msg) throws IOException {
         String fileName = null;
-        String length = null;
+        long length = -1;
         String location = null;
         boolean isInline = false;
         String contentId = null;
@@ -495,7 +518,7 @@ public class EmailSyncParser extends AbstractSyncParser {
                     break;
                 case Tags.EMAIL_ATT_SIZE:
                 case Tags.BASE_ESTIMATED_DATA_SIZE:
-                    length = getValue();
+                    length = getValueLong();
                     break;
                 case Tags.BASE_IS_INLINE:
                     String isInlineStr = getValue();
@@ -509,10 +532,10 @@ public class EmailSyncParser extends AbstractSyncParser {
             }
         }
 
-        if ((fileName != null) && (length != null) && (location != null)) {
+        if ((fileName != null) && (length >= 0) && (location != null)) {
             EmailContent.Attachment att = new EmailContent.Attachment();
             att.mEncoding = "base64";
-            att.mSize = Long.parseLong(length);
+            att.mSize = length;
             att.mFileName = fileName;
             att.mLocation = location;
             att.mMimeType = getMimeTypeFromFileName(fileName);
@@ -693,11 +716,28 @@ public class EmailSyncParser extends AbstractSyncParser {
     public void commandsParser() throws IOException, CommandStatusException {
         while (nextTag(Tags.SYNC_COMMANDS) != END) {
             if (tag == Tags.SYNC_ADD) {
-                newEmails.add(addParser());
+                final EmailContent.Message msg = addParser();
+                if (startPipelineIfNeeded()) {
+                    mCommitter.put(new PipelineItem(PipelineItem.NEW, msg, 0, null));
+                } else {
+                    newEmails.add(msg);
+                }
             } else if (tag == Tags.SYNC_DELETE || tag == Tags.SYNC_SOFT_DELETE) {
                 deleteParser(deletedEmails, tag);
+                if (startPipelineIfNeeded()) {
+                    for (Long id : deletedEmails) {
+                        mCommitter.put(new PipelineItem(PipelineItem.DELETED, null, id, null));
+                    }
+                    deletedEmails.clear();
+                }
             } else if (tag == Tags.SYNC_CHANGE) {
                 changeParser(changedEmails);
+                if (startPipelineIfNeeded()) {
+                    for (ServerChange change : changedEmails) {
+                        mCommitter.put(new PipelineItem(PipelineItem.CHANGED, null, 0, change));
+                    }
+                    changedEmails.clear();
+                }
             } else
                 skipTag();
         }
@@ -753,7 +793,12 @@ public class EmailSyncParser extends AbstractSyncParser {
                 messageUpdateParser(tag);
             } else if (tag == Tags.SYNC_FETCH) {
                 try {
-                    fetchedEmails.add(addParser());
+                    final EmailContent.Message msg = addParser();
+                    if (startPipelineIfNeeded()) {
+                        mCommitter.put(new PipelineItem(PipelineItem.FETCHED, msg, 0, null));
+                    } else {
+                        fetchedEmails.add(msg);
+                    }
                 } catch (CommandStatusException sse) {
                     if (sse.mStatus == 8) {
                         // 8 = object not found; delete the message from EmailProvider
@@ -812,7 +857,16 @@ public class EmailSyncParser extends AbstractSyncParser {
 
     @Override
     public boolean parse() throws IOException, CommandStatusException {
-        final boolean result = super.parse();
+        final boolean result;
+        try {
+            result = super.parse();
+        } finally {
+            // If commit() wasn't reached, stop the committer and undo the new messages
+            if (mCommitter != null) {
+                mCommitter.abort();
+                mCommitter = null;
+            }
+        }
         return result || fetchNeeded();
     }
 
@@ -830,6 +884,12 @@ public class EmailSyncParser extends AbstractSyncParser {
      */
     @Override
     public void commit() throws RemoteException, OperationApplicationException {
+        if (mCommitter != null) {
+            // Everything parsed is queued; wait for it to be written before the sync key
+            final PipelinedCommitter committer = mCommitter;
+            mCommitter = null;
+            committer.finish();
+        }
         try {
             commitImpl(MAX_OPS_PER_BATCH);
         } catch (TransactionTooLargeException e) {
@@ -856,39 +916,7 @@ public class EmailSyncParser extends AbstractSyncParser {
                 deletedEmails.size(),
                 changedEmails.size());
         for (EmailContent.Message msg: fetchedEmails) {
-            // Find the original message's id (by serverId and mailbox)
-            Cursor c = getServerIdCursor(msg.mServerId, EmailContent.ID_PROJECTION);
-            String id = null;
-            try {
-                if (c.moveToFirst()) {
-                    id = c.getString(EmailContent.ID_PROJECTION_COLUMN);
-                    while (c.moveToNext()) {
-                        // This shouldn't happen, but clean up if it does
-                        Long dupId =
-                                Long.parseLong(c.getString(EmailContent.ID_PROJECTION_COLUMN));
-                        userLog("Delete duplicate with id: " + dupId);
-                        deletedEmails.add(dupId);
-                    }
-                }
-            } finally {
-                c.close();
-            }
-
-            // If we find one, we do two things atomically: 1) set the body text for the
-            // message, and 2) mark the message loaded (i.e. completely loaded)
-            if (id != null) {
-                LogUtils.i(TAG, "Fetched body successfully for %s", id);
-                final String[] bindArgument = new String[] {id};
-                ops.add(ContentProviderOperation.newUpdate(EmailContent.Body.CONTENT_URI)
-                        .withSelection(EmailContent.Body.SELECTION_BY_MESSAGE_KEY, bindArgument)
-                        .withValue(EmailContent.Body.TEXT_CONTENT, msg.mText)
-                        .build());
-                ops.add(ContentProviderOperation.newUpdate(EmailContent.Message.CONTENT_URI)
-                        .withSelection(EmailContent.RECORD_ID + "=?", bindArgument)
-                        .withValue(EmailContent.Message.FLAG_LOADED,
-                                EmailContent.Message.FLAG_LOADED_COMPLETE)
-                        .build());
-            }
+            addFetchedOps(msg, ops, deletedEmails);
             applyBatchIfNeeded(ops, maxOpsPerBatch, false);
         }
 
@@ -1005,29 +1033,14 @@ public class EmailSyncParser extends AbstractSyncParser {
         /// @}
 
         for (Long id : deletedEmails) {
-            ops.add(ContentProviderOperation.newDelete(
-                    ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, id)).build());
-            AttachmentUtilities.deleteAllAttachmentFiles(mContext, mAccount.mId, id);
+            addDeleteOps(id, ops);
             applyBatchIfNeeded(ops, maxOpsPerBatch, false);
         }
 
         if (!changedEmails.isEmpty()) {
             // Server wins in a conflict...
             for (ServerChange change : changedEmails) {
-                ContentValues cv = new ContentValues();
-                if (change.read != null) {
-                    cv.put(EmailContent.MessageColumns.FLAG_READ, change.read);
-                }
-                if (change.flag != null) {
-                    cv.put(EmailContent.MessageColumns.FLAG_FAVORITE, change.flag);
-                }
-                if (change.flags != null) {
-                    cv.put(EmailContent.MessageColumns.FLAGS, change.flags);
-                }
-                ops.add(ContentProviderOperation.newUpdate(
-                        ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, change.id))
-                        .withValues(cv)
-                        .build());
+                addChangeOps(change, ops);
             }
             applyBatchIfNeeded(ops, maxOpsPerBatch, false);
         }
@@ -1043,6 +1056,320 @@ public class EmailSyncParser extends AbstractSyncParser {
         userLog(mMailbox.mDisplayName, " SyncKey saved as: ", mMailbox.mSyncKey);
     }
 
+    /**
+     * Add the ops to save the body of a fetched message and mark it loaded. Duplicates of the
+     * message found along the way are added to deletes.
+     */
+    private void addFetchedOps(EmailContent.Message msg, ArrayList<ContentProviderOperation> ops,
+            ArrayList<Long> deletes) {
+        // Find the original message's id (by serverId and mailbox)
+        Cursor c = getServerIdCursor(msg.mServerId, EmailContent.ID_PROJECTION);
+        String id = null;
+        try {
+            if (c.moveToFirst()) {
+                id = c.getString(EmailContent.ID_PROJECTION_COLUMN);
+                while (c.moveToNext()) {
+                    // This shouldn't happen, but clean up if it does
+                    Long dupId =
+                            Long.parseLong(c.getString(EmailContent.ID_PROJECTION_COLUMN));
+                    userLog("Delete duplicate with id: " + dupId);
+                    deletes.add(dupId);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        // If we find one, we do two things atomically: 1) set the body text for the
+        // message, and 2) mark the message loaded (i.e. completely loaded)
+        if (id != null) {
+            LogUtils.i(TAG, "Fetched body successfully for %s", id);
+            final String[] bindArgument = new String[] {id};
+            ops.add(ContentProviderOperation.newUpdate(EmailContent.Body.CONTENT_URI)
+                    .withSelection(EmailContent.Body.SELECTION_BY_MESSAGE_KEY, bindArgument)
+                    .withValue(EmailContent.Body.TEXT_CONTENT, msg.mText)
+                    .build());
+            ops.add(ContentProviderOperation.newUpdate(EmailContent.Message.CONTENT_URI)
+                    .withSelection(EmailContent.RECORD_ID + "=?", bindArgument)
+                    .withValue(EmailContent.Message.FLAG_LOADED,
+                            EmailContent.Message.FLAG_LOADED_COMPLETE)
+                    .build());
+        }
+    }
+
+    private void addDeleteOps(long id, ArrayList<ContentProviderOperation> ops) {
+        ops.add(ContentProviderOperation.newDelete(
+                ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, id)).build());
+        AttachmentUtilities.deleteAllAttachmentFiles(mContext, mAccount.mId, id);
+    }
+
+    private void addChangeOps(ServerChange change, ArrayList<ContentProviderOperation> ops) {
+        ContentValues cv = new ContentValues();
+        if (change.read != null) {
+            cv.put(EmailContent.MessageColumns.FLAG_READ, change.read);
+        }
+        if (change.flag != null) {
+            cv.put(EmailContent.MessageColumns.FLAG_FAVORITE, change.flag);
+        }
+        if (change.flags != null) {
+            cv.put(EmailContent.MessageColumns.FLAGS, change.flags);
+        }
+        ops.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, change.id))
+                .withValues(cv)
+                .build());
+    }
+
+    /**
+     * Start the committer thread the first time something is parsed in pipelined mode.
+     * The "Bad Sync Key" recovery needs the whole window of new messages at once, so we don't
+     * pipeline while it's in progress.
+     *
+     * @return whether parsed items should go to the committer
+     */
+    private boolean startPipelineIfNeeded() {
+        if (mCommitter != null) {
+            return true;
+        }
+        if (!mPipelined || mMailbox.mId == Exchange.sBadSyncKeyMailboxId) {
+            return false;
+        }
+        mCommitter = new PipelinedCommitter();
+        mCommitter.start();
+        return true;
+    }
+
+    /**
+     * A parsed command waiting to be written by the {@link PipelinedCommitter}.
+     */
+    private static class PipelineItem {
+        static final int NEW = 0;
+        static final int FETCHED = 1;
+        static final int DELETED = 2;
+        static final int CHANGED = 3;
+        static final int END = 4;
+
+        final int type;
+        final EmailContent.Message msg;
+        final long id;
+        final ServerChange change;
+
+        PipelineItem(int _type, EmailContent.Message _msg, long _id, ServerChange _change) {
+            type = _type;
+            msg = _msg;
+            id = _id;
+            change = _change;
+        }
+    }
+
+    /**
+     * Writes parsed commands to the provider on a background thread, in batches of
+     * {@link #MAX_OPS_PER_BATCH} ops, while the parser keeps reading. The queue between the two
+     * is bounded, so the parser blocks if the provider can't keep up.
+     */
+    private class PipelinedCommitter implements Runnable {
+        private final PipelineItem mEnd = new PipelineItem(PipelineItem.END, null, 0, null);
+        private final ArrayBlockingQueue<PipelineItem> mQueue =
+                new ArrayBlockingQueue<PipelineItem>(PIPELINE_QUEUE_CAPACITY);
+        private final Thread mThread = new Thread(this, "EmailSyncParser committer");
+
+        // The items whose ops are in mOps, so a batch can be rebuilt one item at a time
+        private final ArrayList<PipelineItem> mBatchItems = new ArrayList<PipelineItem>();
+        private final ArrayList<ContentProviderOperation> mOps =
+                new ArrayList<ContentProviderOperation>();
+        // Server ids of the new messages written so far, in case we need to undo them
+        private final ArrayList<String> mCommittedServerIds = new ArrayList<String>();
+
+        private volatile boolean mAborted;
+        private volatile Exception mError;
+
+        void start() {
+            mThread.start();
+        }
+
+        void put(PipelineItem item) throws IOException {
+            try {
+                mQueue.put(item);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final PipelineItem item;
+                try {
+                    item = mQueue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (item == mEnd) {
+                    break;
+                }
+                if (mError != null || mAborted) {
+                    // Just drain the queue so the parser doesn't block
+                    continue;
+                }
+                try {
+                    addItemOps(item, mOps);
+                    mBatchItems.add(item);
+                    if (mOps.size() >= MAX_OPS_PER_BATCH) {
+                        flush();
+                    }
+                } catch (Exception e) {
+                    LogUtils.e(TAG, "Pipelined commit failed", e);
+                    mError = e;
+                }
+            }
+            if (mError == null && !mAborted) {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    LogUtils.e(TAG, "Pipelined commit failed", e);
+                    mError = e;
+                }
+            }
+        }
+
+        private void addItemOps(PipelineItem item, ArrayList<ContentProviderOperation> ops) {
+            switch (item.type) {
+                case PipelineItem.NEW:
+                    item.msg.addSaveOps(ops);
+                    break;
+                case PipelineItem.FETCHED:
+                    final ArrayList<Long> duplicates = new ArrayList<Long>();
+                    addFetchedOps(item.msg, ops, duplicates);
+                    for (Long id : duplicates) {
+                        addDeleteOps(id, ops);
+                    }
+                    break;
+                case PipelineItem.DELETED:
+                    addDeleteOps(item.id, ops);
+                    break;
+                case PipelineItem.CHANGED:
+                    addChangeOps(item.change, ops);
+                    break;
+            }
+        }
+
+        private void flush() throws RemoteException, OperationApplicationException {
+            if (mOps.isEmpty()) {
+                mBatchItems.clear();
+                return;
+            }
+            try {
+                applyBatchIfNeeded(mOps, MAX_OPS_PER_BATCH, true);
+            } catch (TransactionTooLargeException e) {
+                // Same fallback as commit(): apply the batch again one message at a time.
+                // The ops are rebuilt, since new messages' ops back-reference their position.
+                LogUtils.w(TAG, "Transaction too large, retrying in single mode", e);
+                mOps.clear();
+                for (PipelineItem item : mBatchItems) {
+                    addItemOps(item, mOps);
+                    applyBatchIfNeeded(mOps, 1, true);
+                }
+            }
+            final ArrayList<Message> newMessages = new ArrayList<Message>();
+            for (PipelineItem item : mBatchItems) {
+                if (item.type == PipelineItem.NEW) {
+                    newMessages.add(item.msg);
+                    mCommittedServerIds.add(item.msg.mServerId);
+                }
+            }
+            mBatchItems.clear();
+            if (!newMessages.isEmpty()) {
+                /// M: For smart push, record new mails' coming
+                DataCollectUtils.recordNewMails(mContext, newMessages);
+                /// M: Log receive new message.
+                EmailContent.Message.logMessageReceived(mContext,
+                        newMessages.toArray(new Message[] {}));
+            }
+        }
+
+        private void join() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mThread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Wait for everything queued to be written.  If anything failed, the new messages
+         * written so far are removed and the error is rethrown, so the sync key isn't saved.
+         */
+        void finish() throws RemoteException, OperationApplicationException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mQueue.put(mEnd);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            join();
+            final Exception error = mError;
+            if (error != null) {
+                removeCommittedMessages();
+                if (error instanceof RemoteException) {
+                    throw (RemoteException) error;
+                } else if (error instanceof OperationApplicationException) {
+                    throw (OperationApplicationException) error;
+                }
+                throw new OperationApplicationException(error.getMessage());
+            }
+        }
+
+        /**
+         * Stop writing, drop whatever is still queued, and remove the new messages written so
+         * far; called when the response couldn't be parsed to the end.
+         */
+        void abort() {
+            mAborted = true;
+            mQueue.clear();
+            mQueue.offer(mEnd);
+            join();
+            removeCommittedMessages();
+        }
+
+        private void removeCommittedMessages() {
+            if (mCommittedServerIds.isEmpty()) {
+                return;
+            }
+            LogUtils.i(TAG, "Removing %d new messages of an incomplete sync",
+                    mCommittedServerIds.size());
+            final ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>();
+            try {
+                for (String serverId : mCommittedServerIds) {
+                    ops.add(ContentProviderOperation.newDelete(EmailContent.Message.CONTENT_URI)
+                            .withSelection(WHERE_SERVER_ID_AND_MAILBOX_KEY,
+                                    new String[] {serverId, mMailboxIdAsString})
+                            .build());
+                    applyBatchIfNeeded(ops, MAX_OPS_PER_BATCH, false);
+                }
+                applyBatchIfNeeded(ops, MAX_OPS_PER_BATCH, true);
+            } catch (RemoteException e) {
+                LogUtils.e(TAG, "Failed to remove new messages", e);
+            } catch (OperationApplicationException e) {
+                LogUtils.e(TAG, "Failed to remove new messages", e);
+            }
+            mCommittedServerIds.clear();
+        }
+    }
+
     // Check if there at least MAX_OPS_PER_BATCH ops in queue and flush if there are.
     // If force is true, flush regardless of size.
     private void applyBatchIfNeeded(ArrayList<ContentProviderOperation> ops, int maxOpsPerBatch,
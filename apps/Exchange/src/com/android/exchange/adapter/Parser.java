@@ -25,17 +25,21 @@ import com.android.exchange.utility.FileLogger;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 
 /**
  * Extremely fast and lightweight WBXML parser, implementing only the subset of WBXML that
  * EAS uses (as defined in the EAS specification)
  *
+ * The input is read through a {@link WbxmlInputStream}, and values are only decoded as far as
+ * the caller asks for: {@link #getValue()} returns a String, {@link #getValueInt()} and
+ * {@link #getValueLong()} parse the inline string directly, and values skipped with
+ * {@link #skipTag()} aren't decoded at all.
  */
 public abstract class Parser {
     private static final boolean LOG_VERBOSE = false;
@@ -53,6 +57,14 @@ public abstract class Parser {
     private static final int NOT_ENDED = Integer.MIN_VALUE;
     private static final int EOF_BYTE = -1;
 
+    // How getNext() should handle a value
+    private static final int VALUE_STRING = 0;
+    private static final int VALUE_INT = 1;
+    private static final int VALUE_LONG = 2;
+    private static final int VALUE_SKIP = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     // Where tags start in a page
     private static final int TAG_BASE = 5;
 
@@ -62,7 +74,11 @@ public abstract class Parser {
     private ArrayList<Integer> captureArray;
 
     // The input stream for this parser
-    private InputStream in;
+    private WbxmlInputStream in;
+
+    // The raw bytes of the last inline string read; reused from value to value
+    private byte[] valueBuffer = new byte[256];
+    private int valueLength;
 
     // The current tag depth
     private int depth;
@@ -110,6 +126,9 @@ public abstract class Parser {
     // The value read, as an int
     public int num;
 
+    // The value read, as a long
+    public long numLong;
+
     // The value read, as bytes
     public byte[] bytes;
 
@@ -175,6 +194,7 @@ public abstract class Parser {
      * @throws IOException
      */
     public Parser(Parser parser) throws IOException {
+        // Share the buffered stream, so neither parser loses the other's read-ahead
         setInput(parser.in, false);
         logging = Eas.PARSER_LOG;
     }
@@ -237,8 +257,7 @@ public abstract class Parser {
      * @throws IOException
      */
     public String getValue() throws IOException {
-        // The false argument tells getNext to return the value as a String
-        getNext(false);
+        getNext(VALUE_STRING);
         // This means there was no value given, just <Foo/>; we'll return empty string for now
         if (type == END) {
             if (logging) {
@@ -249,11 +268,7 @@ public abstract class Parser {
         // Save the value
         String val = text;
         // Read the next token; it had better be the end of the current tag
-        getNext(false);
-        // If not, throw an exception
-        if (type != END) {
-            throw new IOException("No END found!");
-        }
+        requireEnd();
         return val;
     }
 
@@ -265,20 +280,43 @@ public abstract class Parser {
      * @throws IOException
      */
    public int getValueInt() throws IOException {
-        // The true argument to getNext indicates the desire for an integer return value
-        getNext(true);
+        getNext(VALUE_INT);
         if (type == END) {
             return 0;
         }
         // Save the value
         int val = num;
         // Read the next token; it had better be the end of the current tag
-        getNext(false);
+        requireEnd();
+        return val;
+    }
+
+    /**
+     * Return the value of the current tag, as a long.  Like {@link #getValueInt()}, the digits
+     * are parsed straight from the stream without building a String.
+     *
+     * @return the long value of the current tag
+     * @throws IOException
+     */
+    public long getValueLong() throws IOException {
+        getNext(VALUE_LONG);
+        if (type == END) {
+            return 0;
+        }
+        long val = numLong;
+        requireEnd();
+        return val;
+    }
+
+    /**
+     * Read the token after a value; it had better be the end of the current tag
+     */
+    private void requireEnd() throws IOException {
+        getNext(VALUE_SKIP);
         // If not, throw an exception
         if (type != END) {
             throw new IOException("No END found!");
         }
-        return val;
     }
 
     /**
@@ -295,7 +333,8 @@ public abstract class Parser {
     public int nextTag(int endingTag) throws IOException {
         // Lose the page information
         endTag = endingTag &= Tags.PAGE_MASK;
-        while (getNext(false) != DONE) {
+        // Values found here weren't asked for, so don't bother decoding them
+        while (getNext(VALUE_SKIP) != DONE) {
             // If we're a start, set tag to include the page and return it
             if (type == START) {
                 tag = page | startTag;
@@ -324,7 +363,7 @@ public abstract class Parser {
     public void skipTag() throws IOException {
         int thisTag = startTag;
         // Just loop until we hit the end of the current tag
-        while (getNext(false) != DONE) {
+        while (getNext(VALUE_SKIP) != DONE) {
             if (type == END && startTag == thisTag) {
                 return;
             }
@@ -341,7 +380,7 @@ public abstract class Parser {
      * @throws IOException
      */
     public int nextToken() throws IOException {
-        getNext(false);
+        getNext(VALUE_STRING);
         return type;
     }
 
@@ -354,7 +393,7 @@ public abstract class Parser {
      * @throws IOException
      */
     public void setInput(InputStream in, boolean initialize) throws IOException {
-        this.in = in;
+        this.in = WbxmlInputStream.wrap(in);
         if ((in != null) && initialize) {
             // If we fail on the very first byte, report an empty stream
             try {
@@ -371,7 +410,7 @@ public abstract class Parser {
 
     @VisibleForTesting
     void resetInput(InputStream in) {
-        this.in = in;
+        this.in = WbxmlInputStream.wrap(in);
         try {
             // Read leading zero
             read();
@@ -426,11 +465,11 @@ public abstract class Parser {
      * that has been retrieved - START (start of tag), END (end of tag), DONE (end of stream), or
      * TEXT (the value of a tag)
      *
-     * @param asInt whether a TEXT value should be parsed as a String or an int.
+     * @param valueMode how a TEXT value should be read (VALUE_STRING, VALUE_INT, etc.)
      * @return the type of data retrieved
      * @throws IOException
      */
-    private final int getNext(boolean asInt) throws IOException {
+    private final int getNext(int valueMode) throws IOException {
         if (noContent) {
             nameArray[depth--] = null;
             type = END;
@@ -471,23 +510,43 @@ public abstract class Parser {
             case Wbxml.STR_I:
                 // Inline string
                 type = TEXT;
-                if (asInt) {
-                    num = readInlineInt();
-                } else {
-                    text = readInlineString();
+                String logValue = null;
+                switch (valueMode) {
+                    case VALUE_INT:
+                        num = (int) readInlineLong();
+                        logValue = Integer.toString(num);
+                        break;
+                    case VALUE_LONG:
+                        numLong = readInlineLong();
+                        logValue = Long.toString(numLong);
+                        break;
+                    case VALUE_STRING:
+                        readInlineBytes();
+                        text = new String(valueBuffer, 0, valueLength, UTF_8);
+                        logValue = text;
+                        break;
+                    default:
+                        readInlineBytes();
+                        if (logging) {
+                            logValue = new String(valueBuffer, 0, valueLength, UTF_8);
+                        }
+                        break;
                 }
                 if (logging) {
                     name = tagTable[startTag - TAG_BASE];
-                    log(name + ": " + (asInt ? Integer.toString(num) : text));
+                    log(name + ": " + logValue);
                 }
                 break;
 
             case Wbxml.OPAQUE:
                 // Integer length + opaque data
+                type = TEXT;
                 int length = readInt();
-                bytes = new byte[length];
-                for (int i = 0; i < length; i++) {
-                    bytes[i] = (byte)readByte();
+                if (valueMode == VALUE_SKIP) {
+                    readOpaque(null, length);
+                } else {
+                    bytes = new byte[length];
+                    readOpaque(bytes, length);
                 }
                 if (logging) {
                     name = tagTable[startTag - TAG_BASE];
@@ -546,8 +605,8 @@ public abstract class Parser {
      * @return the integer as parsed from the stream
      * @throws IOException
      */
-    private int readInlineInt() throws IOException {
-        int result = 0;
+    private long readInlineLong() throws IOException {
+        long result = 0;
 
         while (true) {
             int i = readByte();
@@ -576,25 +635,75 @@ public abstract class Parser {
     }
 
     /**
-     * Read an inline string from the stream
+     * Read the bytes of an inline string into valueBuffer, scanning the stream's buffer for the
+     * terminating zero byte rather than reading a byte at a time.
      *
-     * @return the String as parsed from the stream
      * @throws IOException
      */
-    private String readInlineString() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+    private void readInlineBytes() throws IOException {
+        valueLength = 0;
         while (true) {
-            int i = read();
-            if (i == 0) {
-                break;
-            } else if (i == EOF_BYTE) {
+            if (in.fill() < 0) {
                 throw new EofException();
             }
-            outputStream.write(i);
+            final byte[] buf = in.buf;
+            final int start = in.pos;
+            final int limit = in.limit;
+            int i = start;
+            while (i < limit && buf[i] != 0) {
+                i++;
+            }
+            int count = i - start;
+            ensureValueCapacity(valueLength + count);
+            System.arraycopy(buf, start, valueBuffer, valueLength, count);
+            valueLength += count;
+            if (capture) {
+                for (int j = start; j <= i && j < limit; j++) {
+                    captureArray.add(buf[j] & 0xff);
+                }
+            }
+            if (i < limit) {
+                // Consume the terminating zero
+                in.pos = i + 1;
+                return;
+            }
+            in.pos = limit;
+        }
+    }
+
+    /**
+     * Read length bytes of opaque data into dest; if dest is null, the bytes are skipped.
+     */
+    private void readOpaque(byte[] dest, int length) throws IOException {
+        if (capture || LOG_VERBOSE) {
+            // Slow path, so that every byte is captured
+            for (int i = 0; i < length; i++) {
+                int b = readByte();
+                if (dest != null) {
+                    dest[i] = (byte) b;
+                }
+            }
+            return;
+        }
+        if (dest != null) {
+            int offset = 0;
+            while (offset < length) {
+                int count = in.read(dest, offset, length - offset);
+                if (count < 0) {
+                    throw new EofException();
+                }
+                offset += count;
+            }
+        } else if (!in.skipFully(length)) {
+            throw new EofException();
+        }
+    }
+
+    private void ensureValueCapacity(int capacity) {
+        if (capacity > valueBuffer.length) {
+            byte[] newBuffer = new byte[Math.max(capacity, valueBuffer.length * 2)];
+            System.arraycopy(valueBuffer, 0, newBuffer, 0, valueLength);
+            valueBuffer = newBuffer;
         }
-        outputStream.flush();
-        String res = outputStream.toString("UTF-8");
-        outputStream.close();
-        return res;
     }
 }
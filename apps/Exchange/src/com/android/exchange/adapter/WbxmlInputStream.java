@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered InputStream shared by all the {@link Parser}s reading a single WBXML response.
+ *
+ * Unlike {@link java.io.BufferedInputStream}, nothing here is synchronized, and the buffer is
+ * exposed to the parser (within this package) so that inline strings and opaque data can be
+ * scanned and copied in bulk rather than one read() call per byte. Parsers that are chained
+ * on the same response (see {@link Parser#Parser(Parser)}) share one instance, so read-ahead
+ * is never lost, and callers that read the raw stream through {@link Parser#getInput()}
+ * (e.g. attachment data in ItemOperations) see the buffered bytes first.
+ */
+public final class WbxmlInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream mIn;
+
+    // The parser reads these directly; valid bytes are buf[pos, limit)
+    final byte[] buf = new byte[BUFFER_SIZE];
+    int pos;
+    int limit;
+
+    private WbxmlInputStream(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Wraps the given stream, unless it already is a WbxmlInputStream.
+     */
+    public static WbxmlInputStream wrap(InputStream in) {
+        if (in == null || in instanceof WbxmlInputStream) {
+            return (WbxmlInputStream) in;
+        }
+        return new WbxmlInputStream(in);
+    }
+
+    /**
+     * Makes sure there is at least one unread byte in the buffer.
+     *
+     * @return the number of buffered bytes, or -1 at end of stream
+     * @throws IOException
+     */
+    int fill() throws IOException {
+        if (pos < limit) {
+            return limit - pos;
+        }
+        pos = 0;
+        limit = 0;
+        int count = mIn.read(buf, 0, buf.length);
+        if (count <= 0) {
+            return -1;
+        }
+        limit = count;
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= limit && fill() < 0) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int avail = limit - pos;
+        if (avail <= 0) {
+            // Don't copy large reads through our buffer
+            if (len >= buf.length) {
+                return mIn.read(b, off, len);
+            }
+            avail = fill();
+            if (avail < 0) {
+                return -1;
+            }
+        }
+        int count = Math.min(avail, len);
+        System.arraycopy(buf, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int avail = limit - pos;
+        if (avail > 0) {
+            int count = (int) Math.min(avail, n);
+            pos += count;
+            return count;
+        }
+        return mIn.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + mIn.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Skips exactly {@code length} bytes.
+     *
+     * @param length the number of bytes to skip
+     * @return false if the stream ended before {@code length} bytes were skipped
+     * @throws IOException
+     */
+    boolean skipFully(int length) throws IOException {
+        while (length > 0) {
+            if (fill() < 0) {
+                return false;
+            }
+            int count = Math.min(limit - pos, length);
+            pos += count;
+            length -= count;
+        }
+        return true;
+    }
+}
@@ -120,7 +120,11 @@ public class EasMailboxSyncHandler extends EasSyncHandler {
 
     @Override
     protected AbstractSyncParser getParser(final InputStream is) throws IOException {
-        return new EmailSyncParser(mContext, mContentResolver, is, mMailbox, mAccount);
+        final EmailSyncParser parser =
+                new EmailSyncParser(mContext, mContentResolver, is, mMailbox, mAccount);
+        // Write messages while the rest of the response is still being read
+        parser.setPipelined(true);
+        return parser;
     }
 
     @Override
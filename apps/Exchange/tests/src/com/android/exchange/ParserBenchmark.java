@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.exchange.adapter.Parser;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.adapter.Wbxml;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Replays a generated Email sync response through {@link MockParserStream}, once with a copy of
+ * the former byte-at-a-time tokenizer and once with {@link Parser}.  It checks that both read the
+ * same tokens and values, and logs how long a pass takes with each, and with the parser skipping
+ * the values as parsers do for data they don't use.
+ */
+@LargeTest
+public class ParserBenchmark extends TestCase {
+    private static final String LOG_TAG = "ParserBenchmark";
+
+    private static final int MESSAGES = 200;
+    private static final int PASSES = 20;
+
+    /**
+     * Build a sync response with the given number of messages; bodies range from a few bytes to
+     * more than the parser's buffer, some are sent as opaque data, and some subjects aren't ASCII.
+     */
+    private static int[] buildResponse(int messages) throws IOException {
+        Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS).start(Tags.SYNC_COLLECTION);
+        s.data(Tags.SYNC_SYNC_KEY, "1234567890").data(Tags.SYNC_COLLECTION_ID, "5");
+        s.data(Tags.SYNC_STATUS, "1").start(Tags.SYNC_COMMANDS);
+        for (int i = 0; i < messages; i++) {
+            s.start(Tags.SYNC_ADD).data(Tags.SYNC_SERVER_ID, "5:" + i);
+            s.start(Tags.SYNC_APPLICATION_DATA);
+            s.data(Tags.EMAIL_TO, "\"Recipient " + i + "\" <recipient" + i + "@example.com>");
+            s.data(Tags.EMAIL_FROM, "\"Sender\" <sender@example.com>");
+            s.data(Tags.EMAIL_SUBJECT, (i % 3 == 0)
+                    ? "R\u00e9union \u2013 \u4f1a\u8b70 " + i : "Meeting notes " + i);
+            s.data(Tags.EMAIL_DATE_RECEIVED, "2014-01-01T12:00:00.000Z");
+            s.data(Tags.EMAIL_READ, Integer.toString(i % 2));
+            String body = makeBody(i);
+            s.start(Tags.BASE_BODY).data(Tags.BASE_TYPE, "1");
+            s.data(Tags.BASE_ESTIMATED_DATA_SIZE, Integer.toString(body.length()));
+            if (i % 4 == 0) {
+                byte[] bytes = body.getBytes("UTF-8");
+                s.start(Tags.BASE_DATA).opaque(new ByteArrayInputStream(bytes), bytes.length);
+                s.end();
+            } else {
+                s.data(Tags.BASE_DATA, body);
+            }
+            s.end().end().end();
+        }
+        s.end().end().end().end().done();
+        byte[] bytes = s.toByteArray();
+        int[] array = new int[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            array[i] = bytes[i] & 0xff;
+        }
+        return array;
+    }
+
+    private static String makeBody(int i) {
+        StringBuilder sb = new StringBuilder();
+        int lines = (i * 37) % 400 + 1;
+        for (int j = 0; j < lines; j++) {
+            sb.append("Line ").append(j).append(" of message ").append(i).append(".\r\n");
+        }
+        return sb.toString();
+    }
+
+    public void testSameTokens() throws IOException {
+        int[] response = buildResponse(MESSAGES);
+        ArrayList<String> expected = new ArrayList<String>();
+        new LegacyTokenizer(new MockParserStream(response), expected).parse();
+        ArrayList<String> actual = new ArrayList<String>();
+        new WalkingParser(new MockParserStream(response), false, actual).parse();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("token " + i, expected.get(i), actual.get(i));
+        }
+    }
+
+    public void testSpeed() throws IOException {
+        int[] response = buildResponse(MESSAGES);
+        // Warm up
+        new LegacyTokenizer(new MockParserStream(response), null).parse();
+        new WalkingParser(new MockParserStream(response), false, null).parse();
+        new WalkingParser(new MockParserStream(response), true, null).parse();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < PASSES; i++) {
+            new LegacyTokenizer(new MockParserStream(response), null).parse();
+        }
+        long legacyUs = (System.nanoTime() - start) / 1000 / PASSES;
+        start = System.nanoTime();
+        for (int i = 0; i < PASSES; i++) {
+            new WalkingParser(new MockParserStream(response), false, null).parse();
+        }
+        long stringsUs = (System.nanoTime() - start) / 1000 / PASSES;
+        start = System.nanoTime();
+        for (int i = 0; i < PASSES; i++) {
+            new WalkingParser(new MockParserStream(response), true, null).parse();
+        }
+        long skipUs = (System.nanoTime() - start) / 1000 / PASSES;
+        Log.d(LOG_TAG, response.length + " bytes: " + legacyUs + "us/pass byte at a time, "
+                + stringsUs + "us/pass with Parser, " + skipUs + "us/pass skipping values");
+    }
+
+    private static String opaqueToken(byte[] bytes) {
+        return "O" + bytes.length + ":" + Arrays.hashCode(bytes);
+    }
+
+    /**
+     * Walks every token with {@link Parser#nextToken()}, which decodes every value to a String,
+     * or every start tag with {@link Parser#nextTag(int)}, which skips the values.
+     */
+    private static class WalkingParser extends Parser {
+        private final boolean mSkip;
+        private final ArrayList<String> mTokens;
+
+        WalkingParser(InputStream in, boolean skip, ArrayList<String> tokens) throws IOException {
+            super(in);
+            mSkip = skip;
+            mTokens = tokens;
+        }
+
+        @Override
+        public boolean parse() throws IOException {
+            if (mSkip) {
+                while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+                    // Keep going
+                }
+                return true;
+            }
+            while (nextToken() != DONE) {
+                if (mTokens == null) {
+                    continue;
+                }
+                if (type == START) {
+                    mTokens.add("<" + (page | startTag));
+                } else if (type == END) {
+                    mTokens.add(">");
+                } else if (text != null) {
+                    mTokens.add("T" + text);
+                } else {
+                    mTokens.add(opaqueToken(bytes));
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The tokenizer the parser used before it was buffered: one read() call on the raw stream
+     * per byte, a ByteArrayOutputStream and a UTF-8 String per inline string, and a new array
+     * for every opaque value.
+     */
+    private static class LegacyTokenizer {
+        private final InputStream mIn;
+        private final ArrayList<String> mTokens;
+        private int mPage;
+        private boolean mNoContent;
+
+        LegacyTokenizer(InputStream in, ArrayList<String> tokens) {
+            mIn = in;
+            mTokens = tokens;
+        }
+
+        void parse() throws IOException {
+            readByte(); // version
+            readInt();  // ?
+            readInt();  // 106 (UTF-8)
+            readInt();  // string table length
+            while (next()) {
+                // Keep going
+            }
+        }
+
+        private boolean next() throws IOException {
+            if (mNoContent) {
+                mNoContent = false;
+                if (mTokens != null) {
+                    mTokens.add(">");
+                }
+                return true;
+            }
+            int id = mIn.read();
+            while (id == Wbxml.SWITCH_PAGE) {
+                mPage = readByte() << Tags.PAGE_SHIFT;
+                id = mIn.read();
+            }
+            switch (id) {
+                case -1:
+                    return false;
+                case Wbxml.END:
+                    if (mTokens != null) {
+                        mTokens.add(">");
+                    }
+                    break;
+                case Wbxml.STR_I:
+                    String text = readInlineString();
+                    if (mTokens != null) {
+                        mTokens.add("T" + text);
+                    }
+                    break;
+                case Wbxml.OPAQUE:
+                    int length = readInt();
+                    byte[] bytes = new byte[length];
+                    for (int i = 0; i < length; i++) {
+                        bytes[i] = (byte) readByte();
+                    }
+                    if (mTokens != null) {
+                        mTokens.add(opaqueToken(bytes));
+                    }
+                    break;
+                default:
+                    mNoContent = (id & 0x40) == 0;
+                    if (mTokens != null) {
+                        mTokens.add("<" + (mPage | (id & 0x3F)));
+                    }
+            }
+            return true;
+        }
+
+        private int readByte() throws IOException {
+            int i = mIn.read();
+            if (i == -1) {
+                throw new IOException("Unexpected end of stream");
+            }
+            return i;
+        }
+
+        private int readInt() throws IOException {
+            int result = 0;
+            int i;
+            do {
+                i = readByte();
+                result = (result << 7) | (i & 0x7f);
+            } while ((i & 0x80) != 0);
+            return result;
+        }
+
+        private String readInlineString() throws IOException {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+            while (true) {
+                int i = readByte();
+                if (i == 0) {
+                    break;
+                }
+                outputStream.write(i);
+            }
+            outputStream.flush();
+            String res = outputStream.toString("UTF-8");
+            outputStream.close();
+            return res;
+        }
+    }
+}
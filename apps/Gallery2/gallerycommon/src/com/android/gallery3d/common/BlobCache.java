@@ -56,6 +56,7 @@
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
+// public void insert(long key, byte[] data, int length) throws IOException;
 // public byte[] lookup(long key) throws IOException;
 // public void lookup(LookupRequest req) throws IOException;
 // public void close();
@@ -372,12 +373,18 @@ public class BlobCache implements Closeable {
 
     // Inserts a (key, data) pair into the cache.
     public void insert(long key, byte[] data) throws IOException {
-        if (DATA_HEADER_SIZE + BLOB_HEADER_SIZE + data.length > mMaxBytes) {
+        insert(key, data, data.length);
+    }
+
+    // Inserts a (key, data) pair into the cache, where only the first length
+    // bytes of the data array are used.
+    public void insert(long key, byte[] data, int length) throws IOException {
+        if (DATA_HEADER_SIZE + BLOB_HEADER_SIZE + length > mMaxBytes) {
             throw new RuntimeException("blob is too large!");
         }
 
         Trace.traceBegin(Trace.TRACE_TAG_APP, ">>>>BlobCache-flipRegion");
-        if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
+        if (mActiveBytes + BLOB_HEADER_SIZE + length > mMaxBytes
                 || mActiveEntries * 2 >= mMaxEntries) {
             flipRegion();
         }
@@ -393,7 +400,7 @@ public class BlobCache implements Closeable {
         Trace.traceEnd(Trace.TRACE_TAG_APP);
 
         Trace.traceBegin(Trace.TRACE_TAG_APP, ">>>>BlobCache-insertInternal");
-        insertInternal(key, data, data.length);
+        insertInternal(key, data, length);
         Trace.traceEnd(Trace.TRACE_TAG_APP);
         Trace.traceBegin(Trace.TRACE_TAG_APP, ">>>>BlobCache-updateIndexHeader");
         updateIndexHeader();
@@ -416,7 +423,7 @@ public class BlobCache implements Closeable {
     private void insertInternal(long key, byte[] data, int length)
             throws IOException {
         byte[] header = mBlobHeader;
-        int sum = checkSum(data);
+        int sum = checkSum(data, 0, length);
         writeLong(header, BH_KEY, key);
         writeInt(header, BH_CHECKSUM, sum);
         writeInt(header, BH_OFFSET, mActiveBytes);
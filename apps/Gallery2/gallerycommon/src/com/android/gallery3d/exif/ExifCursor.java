@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.exif;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads a few EXIF tags from JPEG streams, without building an
+ * {@link ExifData} tree. Unlike {@link ExifInterface}, nothing is allocated
+ * per tag or per image once the cursor has grown to the size of the EXIF
+ * segments it reads, so a cursor can be reused over a whole album.
+ * <p>
+ * The tags wanted are given to the constructor. Only the IFDs holding them
+ * are visited, and the values are decoded on demand from the EXIF segment:
+ *
+ * <pre>
+ * ExifCursor cursor = new ExifCursor(ExifInterface.TAG_ORIENTATION);
+ * for (...) {
+ *     if (cursor.read(in)) {
+ *         int orientation = cursor.getInt(ExifInterface.TAG_ORIENTATION, 0, 1);
+ *     }
+ * }
+ * </pre>
+ *
+ * A cursor is not thread-safe.
+ */
+public class ExifCursor {
+    private static final String TAG = "ExifCursor";
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // The largest possible segment, since the length field is 16 bits
+    private static final int MAX_SEGMENT_SIZE = 0xFFFF;
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    private static final short TAG_EXIF_IFD =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
+    private static final short TAG_GPS_IFD =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD);
+    private static final short TAG_INTEROPERABILITY_IFD =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD);
+
+    // The wanted tags (as defined in ExifInterface), sorted
+    private final int[] mTags;
+    // Bit i is set if a tag is wanted from the IFD of type i
+    private final int mIfdMask;
+
+    // For each wanted tag found: its type, its count, and the position of
+    // its value in mBuffer; the type is 0 if the tag wasn't found.
+    private final short[] mTypes;
+    private final int[] mCounts;
+    private final int[] mValuePositions;
+
+    // The TIFF data of the EXIF segment; offsets in the TIFF data are
+    // relative to the start of the buffer.
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int mLength;
+    private boolean mLittleEndian;
+    // The position of the TIFF data in the stream
+    private int mTiffStartPosition;
+    private final byte[] mHeader = new byte[4];
+
+    /**
+     * @param tags the tags to read, as defined in {@link ExifInterface}
+     */
+    public ExifCursor(int... tags) {
+        mTags = tags.clone();
+        Arrays.sort(mTags);
+        int mask = 0;
+        for (int tag : mTags) {
+            int ifd = ExifInterface.getTrueIfd(tag);
+            if (!ExifTag.isValidIfd(ifd)) {
+                throw new IllegalArgumentException("Invalid tag: " + tag);
+            }
+            mask |= 1 << ifd;
+        }
+        // The interoperability IFD is only linked from the EXIF IFD
+        if ((mask & (1 << IfdId.TYPE_IFD_INTEROPERABILITY)) != 0) {
+            mask |= 1 << IfdId.TYPE_IFD_EXIF;
+        }
+        mIfdMask = mask;
+        mTypes = new short[mTags.length];
+        mCounts = new int[mTags.length];
+        mValuePositions = new int[mTags.length];
+    }
+
+    /**
+     * Reads the wanted tags of a JPEG stream. The stream is left after the
+     * EXIF segment, or wherever reading stopped.
+     *
+     * @return false if the stream has no EXIF data
+     * @throws IOException if the stream cannot be read
+     */
+    public boolean read(InputStream in) throws IOException {
+        Arrays.fill(mTypes, (short) 0);
+        mLength = 0;
+        if (!readTiffData(in)) return false;
+        if (mLength < 8) return false;
+
+        int byteOrder = getUnsignedShortAt(0);
+        if (byteOrder == 0x4949) {
+            mLittleEndian = true;
+        } else if (byteOrder == 0x4d4d) {
+            mLittleEndian = false;
+        } else {
+            Log.w(TAG, "Invalid TIFF header");
+            return false;
+        }
+        if (getUnsignedShortAt(2) != 0x002A) {
+            Log.w(TAG, "Invalid TIFF header");
+            return false;
+        }
+        int ifd0 = getIntAt(4);
+        int ifd1 = readIfd(IfdId.TYPE_IFD_0, ifd0);
+        if (ifd1 > 0 && wants(IfdId.TYPE_IFD_1)) {
+            readIfd(IfdId.TYPE_IFD_1, ifd1);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the wanted tags of a JPEG image in memory.
+     *
+     * @return false if the image has no EXIF data
+     */
+    public boolean read(byte[] jpeg) {
+        try {
+            return read(new ByteArrayInputStream(jpeg));
+        } catch (IOException e) {
+            // The image is truncated
+            return false;
+        }
+    }
+
+    private boolean wants(int ifd) {
+        return (mIfdMask & (1 << ifd)) != 0;
+    }
+
+    // Finds the EXIF APP1 segment and reads its TIFF data into mBuffer.
+    private boolean readTiffData(InputStream in) throws IOException {
+        byte[] header = mHeader;
+        readFully(in, header, 0, 4);
+        int position = 4;
+        if (getUnsignedShort(header, 0, false) != (JpegHeader.SOI & 0xFFFF)) {
+            return false;
+        }
+        int marker = getUnsignedShort(header, 2, false);
+        while (marker != (JpegHeader.EOI & 0xFFFF) && !JpegHeader.isSofMarker((short) marker)) {
+            readFully(in, header, 0, 2);
+            int length = getUnsignedShort(header, 0, false) - 2;
+            position += 2;
+            if (length < 0) return false;
+            if (marker == (JpegHeader.APP1 & 0xFFFF) && length >= 6) {
+                readFully(in, header, 0, 4);
+                position += 4;
+                length -= 4;
+                if (getInt(header, 0, false) == ExifParser.EXIF_HEADER) {
+                    // The two bytes after "Exif"
+                    readFully(in, header, 0, 2);
+                    position += 2;
+                    length -= 2;
+                    mTiffStartPosition = position;
+                    if (mBuffer.length < length) {
+                        mBuffer = new byte[Math.min(MAX_SEGMENT_SIZE,
+                                Math.max(length, mBuffer.length * 2))];
+                    }
+                    readFully(in, mBuffer, 0, length);
+                    mLength = length;
+                    return true;
+                }
+            }
+            skipFully(in, length);
+            position += length;
+            readFully(in, header, 0, 2);
+            position += 2;
+            marker = getUnsignedShort(header, 0, false);
+        }
+        return false;
+    }
+
+    // Reads the entries of an IFD and follows the links to the IFDs below it
+    // that have wanted tags. Returns the offset of the next IFD, or 0.
+    private int readIfd(int ifd, int offset) {
+        if (offset < 8 || offset + 2 > mLength) return 0;
+        int count = getUnsignedShortAt(offset);
+        int position = offset + 2;
+        if (position + count * 12 > mLength) {
+            Log.w(TAG, "Invalid size of IFD " + ifd);
+            return 0;
+        }
+        for (int i = 0; i < count; i++, position += 12) {
+            short tagId = (short) getUnsignedShortAt(position);
+            int subIfd = -1;
+            if (ifd == IfdId.TYPE_IFD_0) {
+                if (tagId == TAG_EXIF_IFD) {
+                    subIfd = IfdId.TYPE_IFD_EXIF;
+                } else if (tagId == TAG_GPS_IFD) {
+                    subIfd = IfdId.TYPE_IFD_GPS;
+                }
+            } else if (ifd == IfdId.TYPE_IFD_EXIF && tagId == TAG_INTEROPERABILITY_IFD) {
+                subIfd = IfdId.TYPE_IFD_INTEROPERABILITY;
+            }
+            if (subIfd >= 0 && wants(subIfd)) {
+                readIfd(subIfd, getIntAt(position + 8));
+            }
+
+            int index = Arrays.binarySearch(mTags, ExifInterface.defineTag(ifd, tagId));
+            if (index < 0) continue;
+            short type = (short) getUnsignedShortAt(position + 2);
+            if (!ExifTag.isValidType(type)) continue;
+            int components = getIntAt(position + 4);
+            if (components < 0) continue;
+            long size = (long) components * ExifTag.getElementSize(type);
+            int valuePosition = (size > 4) ? getIntAt(position + 8) : position + 8;
+            if (valuePosition < 0 || valuePosition + size > mLength) continue;
+            mTypes[index] = type;
+            mCounts[index] = components;
+            mValuePositions[index] = valuePosition;
+        }
+        return (position + 4 <= mLength) ? getIntAt(position) : 0;
+    }
+
+    private int indexOf(int tag) {
+        int index = Arrays.binarySearch(mTags, tag);
+        if (index < 0) {
+            throw new IllegalArgumentException("Tag not registered: " + tag);
+        }
+        return index;
+    }
+
+    /**
+     * @return whether the tag was found in the last stream read
+     */
+    public boolean hasValue(int tag) {
+        return mTypes[indexOf(tag)] != 0;
+    }
+
+    /**
+     * @return the type of the tag, as in {@link ExifTag#getDataType()}, or 0
+     *         if it wasn't found
+     */
+    public short getDataType(int tag) {
+        return mTypes[indexOf(tag)];
+    }
+
+    /**
+     * @return the number of components of the tag, or 0 if it wasn't found
+     */
+    public int getComponentCount(int tag) {
+        int index = indexOf(tag);
+        return mTypes[index] == 0 ? 0 : mCounts[index];
+    }
+
+    /**
+     * Returns a component of an integer tag, or of a rational tag truncated
+     * to an integer.
+     */
+    public long getLong(int tag, int component, long defaultValue) {
+        int index = indexOf(tag);
+        short type = mTypes[index];
+        if (type == 0 || component < 0 || component >= mCounts[index]) return defaultValue;
+        int position = mValuePositions[index] + component * ExifTag.getElementSize(type);
+        switch (type) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED:
+                return mBuffer[position] & 0xFF;
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                return getUnsignedShortAt(position);
+            case ExifTag.TYPE_UNSIGNED_LONG:
+                return getIntAt(position) & 0xFFFFFFFFL;
+            case ExifTag.TYPE_LONG:
+                return getIntAt(position);
+            case ExifTag.TYPE_UNSIGNED_RATIONAL:
+            case ExifTag.TYPE_RATIONAL:
+                return (long) getDouble(tag, component, defaultValue);
+            default:
+                return defaultValue;
+        }
+    }
+
+    public int getInt(int tag, int component, int defaultValue) {
+        return (int) getLong(tag, component, defaultValue);
+    }
+
+    /**
+     * Returns a component of a rational tag as a double, or of an integer
+     * tag converted to a double.
+     */
+    public double getDouble(int tag, int component, double defaultValue) {
+        int index = indexOf(tag);
+        short type = mTypes[index];
+        if (type == 0 || component < 0 || component >= mCounts[index]) return defaultValue;
+        int position = mValuePositions[index] + component * ExifTag.getElementSize(type);
+        if (type == ExifTag.TYPE_UNSIGNED_RATIONAL) {
+            long denominator = getIntAt(position + 4) & 0xFFFFFFFFL;
+            if (denominator == 0) return defaultValue;
+            return (getIntAt(position) & 0xFFFFFFFFL) / (double) denominator;
+        } else if (type == ExifTag.TYPE_RATIONAL) {
+            int denominator = getIntAt(position + 4);
+            if (denominator == 0) return defaultValue;
+            return getIntAt(position) / (double) denominator;
+        } else if (type == ExifTag.TYPE_ASCII) {
+            return defaultValue;
+        }
+        return getLong(tag, component, (long) defaultValue);
+    }
+
+    /**
+     * Returns the value of an ASCII tag. Unlike the other getters, this
+     * allocates the string.
+     */
+    public String getString(int tag) {
+        int index = indexOf(tag);
+        if (mTypes[index] != ExifTag.TYPE_ASCII) return null;
+        int start = mValuePositions[index];
+        int end = start + mCounts[index];
+        // The value is null-terminated, unless it is malformed
+        int length = 0;
+        while (start + length < end && mBuffer[start + length] != 0) length++;
+        return new String(mBuffer, start, length, US_ASCII);
+    }
+
+    /**
+     * Returns the offset of the tag's value in the stream last read, counted
+     * from the start of the stream, or -1 if it wasn't found.
+     */
+    public int getValueOffset(int tag) {
+        int index = indexOf(tag);
+        return mTypes[index] == 0 ? -1 : mTiffStartPosition + mValuePositions[index];
+    }
+
+    /**
+     * Returns the offset of the compressed thumbnail in the stream last read,
+     * or -1 if there is none. The cursor must have been created with
+     * {@link ExifInterface#TAG_JPEG_INTERCHANGE_FORMAT} and
+     * {@link ExifInterface#TAG_JPEG_INTERCHANGE_FORMAT_LENGTH}.
+     */
+    public int getThumbnailOffset() {
+        int offset = getThumbnailPosition();
+        return offset < 0 ? -1 : mTiffStartPosition + offset;
+    }
+
+    public int getThumbnailLength() {
+        return getThumbnailPosition() < 0 ? 0
+                : getInt(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 0, 0);
+    }
+
+    /**
+     * Returns a copy of the compressed thumbnail, or null if there is none.
+     * See {@link #getThumbnailOffset()}.
+     */
+    public byte[] getThumbnail() {
+        int position = getThumbnailPosition();
+        if (position < 0) return null;
+        int length = getInt(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 0, 0);
+        byte[] thumbnail = new byte[length];
+        System.arraycopy(mBuffer, position, thumbnail, 0, length);
+        return thumbnail;
+    }
+
+    // Returns the position of the thumbnail in mBuffer, or -1.
+    private int getThumbnailPosition() {
+        long position = getLong(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT, 0, -1);
+        long length = getLong(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 0, 0);
+        if (position < 0 || length <= 0 || position + length > mLength) return -1;
+        return (int) position;
+    }
+
+    private int getUnsignedShortAt(int position) {
+        return getUnsignedShort(mBuffer, position, mLittleEndian);
+    }
+
+    private int getIntAt(int position) {
+        return getInt(mBuffer, position, mLittleEndian);
+    }
+
+    private static int getUnsignedShort(byte[] b, int position, boolean littleEndian) {
+        int b0 = b[position] & 0xFF;
+        int b1 = b[position + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static int getInt(byte[] b, int position, boolean littleEndian) {
+        int high = getUnsignedShort(b, littleEndian ? position + 2 : position, littleEndian);
+        int low = getUnsignedShort(b, littleEndian ? position : position + 2, littleEndian);
+        return (high << 16) | low;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int r = in.read(b, offset, length);
+            if (r < 0) throw new EOFException();
+            offset += r;
+            length -= r;
+        }
+    }
+
+    private static void skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                // skip() may stop early without being at the end
+                if (in.read() < 0) throw new EOFException();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -16,12 +16,13 @@
 
 package com.android.gallery3d.util;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadPool {
     @SuppressWarnings("unused")
@@ -35,6 +36,20 @@ public class ThreadPool {
     public static final int MODE_CPU = 1;
     public static final int MODE_NETWORK = 2;
 
+    // Priority lanes. A waiting job is started before any job waiting in a
+    // later lane. In the VISIBLE and PREFETCH lanes the most recently
+    // submitted jobs start first, since older requests are usually for
+    // content which has been scrolled past; the other lanes keep the order
+    // of submission. Running jobs are never interrupted.
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_DEFAULT = 1;
+    public static final int PRIORITY_PREFETCH = 2;
+    public static final int PRIORITY_BACKGROUND = 3;
+    private static final int PRIORITY_COUNT = 4;
+    // Cancelled jobs are moved ahead of everything, so that their listeners
+    // are called without waiting for the jobs ahead of them.
+    private static final int PRIORITY_CANCELLED = -1;
+
     public static final JobContext JOB_CONTEXT_STUB = new JobContextStub();
 
     // M: Dynamic control thread number according to CPU Cores from constant number
@@ -83,37 +98,95 @@ public class ThreadPool {
         }
     }
 
-    private final Executor mExecutor;
+    // How long the jobs of a lane waited in the queue
+    private static class LaneStats {
+        public int count;
+        public long totalWaitMs;
+        public long maxWaitMs;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final PriorityBlockingQueue<Runnable> mQueue;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final LaneStats[] mLaneStats = new LaneStats[PRIORITY_COUNT];
 
     public ThreadPool() {
         this(CORE_POOL_SIZE, MAX_POOL_SIZE);
     }
 
     public ThreadPool(int initPoolSize, int maxPoolSize) {
+        mQueue = new PriorityBlockingQueue<Runnable>();
         mExecutor = new ThreadPoolExecutor(
                 initPoolSize, maxPoolSize, KEEP_ALIVE_TIME,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                TimeUnit.SECONDS, mQueue,
                 new PriorityThreadFactory("thread-pool",
                 android.os.Process.THREAD_PRIORITY_BACKGROUND));
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mLaneStats[i] = new LaneStats();
+        }
     }
 
     // Submit a job to the thread pool. The listener will be called when the
     // job is finished (or cancelled).
-    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        Worker<T> w = new Worker<T>(job, listener);
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener, int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("priority: " + priority);
+        }
+        Worker<T> w = new Worker<T>(job, listener, priority, mSequence.getAndIncrement());
         mExecutor.execute(w);
         return w;
     }
 
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, PRIORITY_DEFAULT);
+    }
+
     public <T> Future<T> submit(Job<T> job) {
-        return submit(job, null);
+        return submit(job, null, PRIORITY_DEFAULT);
+    }
+
+    // Returns, for each lane, how many jobs started and how long they waited
+    // in the queue.
+    public String getQueueStats() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (mLaneStats) {
+            for (int i = 0; i < PRIORITY_COUNT; i++) {
+                LaneStats stats = mLaneStats[i];
+                if (i > 0) sb.append(", ");
+                sb.append("lane ").append(i).append(": ").append(stats.count).append(" jobs");
+                if (stats.count > 0) {
+                    sb.append(", avg wait ").append(stats.totalWaitMs / stats.count)
+                            .append("ms, max ").append(stats.maxWaitMs).append("ms");
+                }
+            }
+        }
+        return sb.toString();
     }
 
-    private class Worker<T> implements Runnable, Future<T>, JobContext {
+    private void recordQueueWait(int priority, long waitMs) {
+        synchronized (mLaneStats) {
+            LaneStats stats = mLaneStats[priority];
+            stats.count++;
+            stats.totalWaitMs += waitMs;
+            if (waitMs > stats.maxWaitMs) stats.maxWaitMs = waitMs;
+        }
+    }
+
+    static boolean isRecentFirst(int priority) {
+        return priority == PRIORITY_VISIBLE || priority == PRIORITY_PREFETCH;
+    }
+
+    private class Worker<T> implements Runnable, Future<T>, JobContext, Comparable<Worker<?>> {
         @SuppressWarnings("hiding")
         private static final String TAG = "Gallery2/Worker";
         private Job<T> mJob;
         private FutureListener<T> mListener;
+        // The lane, and the position in the lane (smaller goes first); only
+        // changed while the worker is out of the queue.
+        private volatile int mPriority;
+        private final long mOrder;
+        private final long mSubmitTime = SystemClock.uptimeMillis();
+        private volatile boolean mStarted;
         private CancelListener mCancelListener;
         private ResourceCounter mWaitOnResource;
         private volatile boolean mIsCancelled;
@@ -121,14 +194,29 @@ public class ThreadPool {
         private T mResult;
         private int mMode;
 
-        public Worker(Job<T> job, FutureListener<T> listener) {
+        public Worker(Job<T> job, FutureListener<T> listener, int priority, long sequence) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
+            mOrder = isRecentFirst(priority) ? -sequence : sequence;
+        }
+
+        @Override
+        public int compareTo(Worker<?> another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mOrder < another.mOrder ? -1 : (mOrder == another.mOrder ? 0 : 1);
         }
 
         // This is called by a thread in the thread pool.
         @Override
         public void run() {
+            mStarted = true;
+            int priority = mPriority;
+            if (priority != PRIORITY_CANCELLED) {
+                recordQueueWait(priority, SystemClock.uptimeMillis() - mSubmitTime);
+            }
             T result = null;
 
             // A job is in CPU mode by default. setMode returns false
@@ -154,16 +242,26 @@ public class ThreadPool {
 
         // Below are the methods for Future.
         @Override
-        public synchronized void cancel() {
-            if (mIsCancelled) return;
-            mIsCancelled = true;
-            if (mWaitOnResource != null) {
-                synchronized (mWaitOnResource) {
-                    mWaitOnResource.notifyAll();
+        public void cancel() {
+            synchronized (this) {
+                if (mIsCancelled) return;
+                mIsCancelled = true;
+                if (mWaitOnResource != null) {
+                    synchronized (mWaitOnResource) {
+                        mWaitOnResource.notifyAll();
+                    }
+                }
+                if (mCancelListener != null) {
+                    mCancelListener.onCancel();
                 }
             }
-            if (mCancelListener != null) {
-                mCancelListener.onCancel();
+            // If the job is still waiting, move it to the front of the queue.
+            // It completes as cancelled as soon as a thread is free, instead
+            // of holding up its listener (a JobLimiter slot, say) until its
+            // turn would have come.
+            if (!mStarted && mQueue.remove(this)) {
+                mPriority = PRIORITY_CANCELLED;
+                mExecutor.execute(this);
             }
         }
 
@@ -109,6 +109,210 @@ class BucketHelper {
         return loadBucketEntries(jc, resolver, type, null);
     }
     
+    // The state of the rows which a list of buckets is computed from. Adding,
+    // removing, moving, rotating or rewriting an image or video changes at
+    // least one of the values. TOTAL() is used rather than SUM() as it cannot
+    // overflow; the sums stay far below 2^53, so they are exact.
+    private static final String[] PROJECTION_FINGERPRINT = {
+            "COUNT(*)",
+            "MAX(" + FileColumns._ID + ")",
+            "MAX(" + FileColumns.DATE_MODIFIED + ")",
+            "TOTAL(" + ImageColumns.BUCKET_ID + ")",
+            "TOTAL(" + ImageColumns.ORIENTATION + ")",
+            "TOTAL(" + FileColumns.SIZE + ")"};
+
+    // Like PROJECTION_BUCKET, with the latest date and the number of items of
+    // each (BUCKET_ID, MEDIA_TYPE), so that the buckets can be updated with
+    // the rows added since they were loaded.
+    private static final String[] PROJECTION_BUCKET_AGGREGATE = {
+            ImageColumns.BUCKET_ID,
+            FileColumns.MEDIA_TYPE,
+            ImageColumns.BUCKET_DISPLAY_NAME,
+            "MAX(datetaken)",
+            "COUNT(*)"};
+
+    private static final int INDEX_AGGREGATE_DATE_TAKEN = 3;
+    private static final int INDEX_AGGREGATE_COUNT = 4;
+
+    private static class Fingerprint {
+        long count;
+        long maxId;
+        long maxDateModified;
+        double bucketIdTotal;
+        double orientationTotal;
+        double sizeTotal;
+
+        boolean sameAs(Fingerprint other) {
+            return other != null && count == other.count && maxId == other.maxId
+                    && maxDateModified == other.maxDateModified
+                    && bucketIdTotal == other.bucketIdTotal
+                    && orientationTotal == other.orientationTotal
+                    && sizeTotal == other.sizeTotal;
+        }
+    }
+
+    // The buckets of one media set, together with the fingerprint of the rows
+    // they were computed from. It is updated in place by
+    // updateBucketEntries(), which only looks at what has changed since.
+    public static class BucketSnapshot {
+        private Fingerprint mFingerprint;
+        private final HashMap<Integer, BucketEntry> mBuckets =
+                new HashMap<Integer, BucketEntry>(64);
+        private BucketEntry[] mEntries;
+    }
+
+    /**
+     * Brings the snapshot up to date with the media provider, in the cheapest
+     * way the changes since the previous call allow:
+     *
+     * - if no row has changed, nothing is loaded;
+     * - if rows have only been added, only those are aggregated and merged
+     *   into the buckets of the snapshot;
+     * - otherwise, all the buckets are loaded again.
+     *
+     * @return the buckets sorted by the date of their latest item, which is
+     *         the same array as the previous call returned if nothing has
+     *         changed, or null if the job was cancelled. The array must not
+     *         be modified.
+     */
+    public static BucketEntry[] updateBucketEntries(JobContext jc,
+            ContentResolver resolver, int type, Path path, BucketSnapshot snapshot) {
+        if (!ApiHelper.HAS_MEDIA_PROVIDER_FILES_TABLE) {
+            return loadBucketEntriesFromImagesAndVideoTable(jc, resolver, type, path);
+        }
+        Uri uri = getFilesContentUri();
+        String where = getFilesWhere(type, path);
+        // The snapshot can be shared by a cancelled loader and its successor
+        synchronized (snapshot) {
+            Fingerprint current = queryFingerprint(resolver, uri, where, Long.MAX_VALUE);
+            if (current == null) return new BucketEntry[0];
+            Fingerprint previous = snapshot.mFingerprint;
+            if (current.sameAs(previous)) return snapshot.mEntries;
+
+            // From here on the snapshot is invalid until it is complete again
+            snapshot.mFingerprint = null;
+            boolean merged = false;
+            if (previous != null && current.count > previous.count
+                    && current.maxId > previous.maxId) {
+                // If the rows up to the previous last one are as they were,
+                // the only change is the rows added after it.
+                Fingerprint kept = queryFingerprint(resolver, uri, where, previous.maxId);
+                if (previous.sameAs(kept)) {
+                    if (!aggregate(jc, resolver, uri, where,
+                            previous.maxId, current.maxId, snapshot.mBuckets)) {
+                        return cancelUpdate(jc, snapshot);
+                    }
+                    merged = true;
+                }
+            }
+            if (!merged) {
+                snapshot.mBuckets.clear();
+                if (!aggregate(jc, resolver, uri, where,
+                        Long.MIN_VALUE, current.maxId, snapshot.mBuckets)) {
+                    return cancelUpdate(jc, snapshot);
+                }
+            }
+            snapshot.mFingerprint = current;
+            snapshot.mEntries = sortByDateTaken(snapshot.mBuckets);
+            Log.v("DebugLoadingTime", (merged ? "merged into " : "loaded ")
+                    + snapshot.mEntries.length + " buckets");
+            return snapshot.mEntries;
+        }
+    }
+
+    private static BucketEntry[] cancelUpdate(JobContext jc, BucketSnapshot snapshot) {
+        snapshot.mBuckets.clear();
+        snapshot.mEntries = null;
+        return jc.isCancelled() ? null : new BucketEntry[0];
+    }
+
+    private static String getFilesWhere(int type, Path path) {
+        String where;
+        if ((type & MediaObject.MEDIA_TYPE_ALL) == MediaObject.MEDIA_TYPE_ALL) {
+            where = VIDEO_IMAGE_CLAUSE;
+        } else if ((type & MediaObject.MEDIA_TYPE_IMAGE) != 0) {
+            where = FileColumns.MEDIA_TYPE + "=" + FileColumns.MEDIA_TYPE_IMAGE;
+        } else {
+            where = FileColumns.MEDIA_TYPE + "=" + FileColumns.MEDIA_TYPE_VIDEO;
+        }
+        String mtkWhere = (path == null)
+                ? null : MediatekFeature.getWhereClause(path.getMtkInclusion());
+        if (mtkWhere != null) where = "(" + where + ") AND (" + mtkWhere + ")";
+        return where;
+    }
+
+    // Returns the fingerprint of the rows whose id is at most maxId, or null
+    // if the media provider cannot be queried.
+    private static Fingerprint queryFingerprint(
+            ContentResolver resolver, Uri uri, String where, long maxId) {
+        String selection = "(" + where + ") AND " + FileColumns._ID + "<=?";
+        Cursor cursor = resolver.query(uri, PROJECTION_FINGERPRINT, selection,
+                new String[] {String.valueOf(maxId)}, null);
+        if (cursor == null) {
+            Log.w(TAG, "cannot open local database: " + uri);
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) return null;
+            Fingerprint fingerprint = new Fingerprint();
+            fingerprint.count = cursor.getLong(0);
+            fingerprint.maxId = cursor.getLong(1);
+            fingerprint.maxDateModified = cursor.getLong(2);
+            fingerprint.bucketIdTotal = cursor.getDouble(3);
+            fingerprint.orientationTotal = cursor.getDouble(4);
+            fingerprint.sizeTotal = cursor.getDouble(5);
+            return fingerprint;
+        } finally {
+            Utils.closeSilently(cursor);
+        }
+    }
+
+    // Adds the rows with fromId < id <= toId to the buckets. Returns false if
+    // the media provider cannot be queried or the job was cancelled, in which
+    // case the buckets are left half updated.
+    private static boolean aggregate(JobContext jc, ContentResolver resolver, Uri uri,
+            String where, long fromId, long toId, HashMap<Integer, BucketEntry> buckets) {
+        String selection = "(" + where + ") AND " + FileColumns._ID + ">? AND "
+                + FileColumns._ID + "<=?" + PURE_BUCKET_GROUP_BY;
+        Cursor cursor = resolver.query(uri, PROJECTION_BUCKET_AGGREGATE, selection,
+                new String[] {String.valueOf(fromId), String.valueOf(toId)}, null);
+        if (cursor == null) {
+            Log.w(TAG, "cannot open local database: " + uri);
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                int bucketId = cursor.getInt(INDEX_BUCKET_ID);
+                long dateTaken = cursor.getLong(INDEX_AGGREGATE_DATE_TAKEN);
+                BucketEntry entry = buckets.get(bucketId);
+                if (entry == null) {
+                    entry = new BucketEntry(bucketId, cursor.getString(INDEX_BUCKET_NAME));
+                    entry.dateTaken = dateTaken;
+                    buckets.put(bucketId, entry);
+                } else {
+                    entry.dateTaken = Math.max(entry.dateTaken, dateTaken);
+                }
+                entry.count += cursor.getInt(INDEX_AGGREGATE_COUNT);
+                if (jc.isCancelled()) return false;
+            }
+        } finally {
+            Utils.closeSilently(cursor);
+        }
+        return true;
+    }
+
+    private static BucketEntry[] sortByDateTaken(HashMap<Integer, BucketEntry> buckets) {
+        BucketEntry[] entries = buckets.values().toArray(new BucketEntry[buckets.size()]);
+        Arrays.sort(entries, new Comparator<BucketEntry>() {
+            @Override
+            public int compare(BucketEntry a, BucketEntry b) {
+                // sorted by dateTaken in descending order
+                return Utils.compare(b.dateTaken, a.dateTaken);
+            }
+        });
+        return entries;
+    }
+
     public static BucketEntry[] loadBucketEntries(
             JobContext jc, ContentResolver resolver, int type, Path path) {
         if (ApiHelper.HAS_MEDIA_PROVIDER_FILES_TABLE) {
@@ -135,7 +339,7 @@ class BucketHelper {
         try {
             while (cursor.moveToNext()) {
                 int bucketId = cursor.getInt(INDEX_BUCKET_ID);
-                int dateTaken = cursor.getInt(INDEX_DATE_TAKEN);
+                long dateTaken = cursor.getLong(INDEX_DATE_TAKEN);
                 BucketEntry entry = buckets.get(bucketId);
                 if (entry == null) {
                     entry = new BucketEntry(bucketId, cursor.getString(INDEX_BUCKET_NAME));
@@ -161,15 +365,7 @@ class BucketHelper {
             updateBucketEntriesFromTable(
                     jc, resolver, Video.Media.EXTERNAL_CONTENT_URI, buckets, path);
         }
-        BucketEntry[] entries = buckets.values().toArray(new BucketEntry[buckets.size()]);
-        Arrays.sort(entries, new Comparator<BucketEntry>() {
-            @Override
-            public int compare(BucketEntry a, BucketEntry b) {
-                // sorted by dateTaken in descending order
-                return b.dateTaken - a.dateTaken;
-            }
-        });
-        return entries;
+        return sortByDateTaken(buckets);
     }
 
     private static BucketEntry[] loadBucketEntriesFromFilesTable(
@@ -263,7 +459,9 @@ class BucketHelper {
     public static class BucketEntry {
         public String bucketName;
         public int bucketId;
-        public int dateTaken;
+        public long dateTaken;
+        // The number of items, only counted by updateBucketEntries()
+        public int count;
 
         public BucketEntry(int id, String name) {
             bucketId = id;
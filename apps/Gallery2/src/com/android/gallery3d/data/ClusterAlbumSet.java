@@ -181,7 +181,7 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
             clustering = new TimeClustering(context);
             break;
         case ClusterSource.CLUSTER_ALBUMSET_LOCATION:
-            clustering = new LocationClustering(context);
+            clustering = new LocationClustering(context, mApplication.getThreadPool());
             break;
             case ClusterSource.CLUSTER_ALBUMSET_TAG:
                 clustering = new TagClustering(context);
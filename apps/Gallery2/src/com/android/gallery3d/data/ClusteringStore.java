@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.Context;
+
+import com.android.gallery3d.common.BlobCache;
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.util.CacheManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Keeps the last result of a clustering of each media set, so that the next
+// run only has to place the items which were added or changed since.
+class ClusteringStore {
+    private static final String TAG = "Gallery2/ClusteringStore";
+
+    private static final String CLUSTERING_CACHE_FILE = "clustering";
+    private static final int CLUSTERING_CACHE_MAX_ENTRIES = 64;
+    private static final int CLUSTERING_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    private static final int CLUSTERING_CACHE_VERSION = 2;
+    // A single result may not take more than this
+    private static final int MAX_ENTRY_BYTES = CLUSTERING_CACHE_MAX_BYTES / 4;
+
+    // Changes to more than this ratio of the items (or more than
+    // MIN_DRIFT_ITEMS, if that is more) are not applied incrementally;
+    // everything is clustered again instead.
+    private static final float DRIFT_RATIO = 0.1f;
+    private static final int MIN_DRIFT_ITEMS = 20;
+
+    private ClusteringStore() {
+    }
+
+    static boolean isDrifted(int changedItems, int storedItems) {
+        return changedItems > Math.max(MIN_DRIFT_ITEMS, storedItems * DRIFT_RATIO);
+    }
+
+    // Returns the key under which the given kind of clustering of the set is stored.
+    static String getKey(String kind, MediaSet baseSet) {
+        Path path = baseSet.getPath();
+        return kind + ":" + path + ":" + path.getMtkInclusion();
+    }
+
+    // Returns a stream over the stored result, or null if there is none.
+    static DataInputStream load(Context context, String key) {
+        BlobCache cache = getCache(context);
+        if (cache == null) return null;
+        try {
+            byte[] data;
+            synchronized (cache) {
+                data = cache.lookup(Utils.crc64Long(key));
+            }
+            if (data == null) return null;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            // The key is stored first, in case two keys have the same crc
+            if (!key.equals(in.readUTF())) return null;
+            return in;
+        } catch (Throwable t) {
+            Log.w(TAG, "cannot load " + key, t);
+            return null;
+        }
+    }
+
+    // A stream to write a result to, which is then stored with save().
+    static class Writer extends DataOutputStream {
+        Writer(String key) throws IOException {
+            super(new ByteArrayOutputStream());
+            writeUTF(key);
+        }
+
+        byte[] toByteArray() throws IOException {
+            flush();
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    static void save(Context context, String key, Writer writer) {
+        BlobCache cache = getCache(context);
+        if (cache == null) return;
+        try {
+            byte[] data = writer.toByteArray();
+            if (data.length > MAX_ENTRY_BYTES) {
+                Log.w(TAG, "not saving " + key + ", " + data.length + " bytes");
+                return;
+            }
+            synchronized (cache) {
+                cache.insert(Utils.crc64Long(key), data);
+            }
+        } catch (Throwable t) {
+            Log.w(TAG, "cannot save " + key, t);
+        }
+    }
+
+    private static BlobCache getCache(Context context) {
+        return CacheManager.getCache(context, CLUSTERING_CACHE_FILE,
+                CLUSTERING_CACHE_MAX_ENTRIES, CLUSTERING_CACHE_MAX_BYTES,
+                CLUSTERING_CACHE_VERSION);
+    }
+}
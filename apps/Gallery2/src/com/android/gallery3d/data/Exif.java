@@ -18,14 +18,36 @@ package com.android.gallery3d.data;
 
 import android.util.Log;
 
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.exif.ExifCursor;
 import com.android.gallery3d.exif.ExifInterface;
 
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 public class Exif {
     private static final String TAG = "GalleryExif";
 
+    // Cursors are reused by each thread, since they keep their buffer
+    private static final ThreadLocal<ExifCursor> sOrientationCursor =
+            new ThreadLocal<ExifCursor>() {
+        @Override
+        protected ExifCursor initialValue() {
+            return new ExifCursor(ExifInterface.TAG_ORIENTATION);
+        }
+    };
+
+    private static final ThreadLocal<ExifCursor> sThumbnailCursor =
+            new ThreadLocal<ExifCursor>() {
+        @Override
+        protected ExifCursor initialValue() {
+            return new ExifCursor(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
+                    ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+        }
+    };
+
     /**
      * Returns the degrees in clockwise. Values are 0, 90, 180, or 270.
      */
@@ -33,19 +55,34 @@ public class Exif {
         if (is == null) {
             return 0;
         }
-        ExifInterface exif = new ExifInterface();
+        ExifCursor cursor = sOrientationCursor.get();
         try {
-            exif.readExif(is);
-            Integer val = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-            if (val == null) {
-                return 0;
-            } else {
-                return ExifInterface.getRotationForOrientationValue(val.shortValue());
-            }
+            if (!cursor.read(is)) return 0;
         } catch (IOException e) {
             Log.w(TAG, "Failed to read EXIF orientation", e);
             return 0;
         }
+        return getRotation(cursor);
+    }
+
+    private static int getRotation(ExifCursor cursor) {
+        if (!cursor.hasValue(ExifInterface.TAG_ORIENTATION)) return 0;
+        return ExifInterface.getRotationForOrientationValue(
+                (short) cursor.getInt(ExifInterface.TAG_ORIENTATION, 0, 0));
+    }
+
+    /**
+     * Returns the thumbnail in the EXIF data of the given JPEG file, or null
+     * if there is none. Only the EXIF segment of the file is read.
+     */
+    public static byte[] getThumbnail(String filePath) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(filePath));
+        try {
+            ExifCursor cursor = sThumbnailCursor.get();
+            return cursor.read(is) ? cursor.getThumbnail() : null;
+        } finally {
+            Utils.closeSilently(is);
+        }
     }
 
     /**
@@ -82,7 +119,8 @@ public class Exif {
         if (jpegData == null)
             return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        ExifCursor cursor = sOrientationCursor.get();
+        if (!cursor.read(jpegData)) return 0;
+        return getRotation(cursor);
     }
 }
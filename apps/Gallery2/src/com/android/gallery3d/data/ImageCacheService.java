@@ -17,6 +17,9 @@
 package com.android.gallery3d.data;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 
 import com.android.gallery3d.common.BlobCache;
 import com.android.gallery3d.common.BlobCache.LookupRequest;
@@ -24,9 +27,12 @@ import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.CacheManager;
 import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import com.mediatek.gallery3d.util.MtkLog;
 
@@ -39,8 +45,53 @@ public class ImageCacheService {
     private static final int IMAGE_CACHE_MAX_BYTES = 200 * 1024 * 1024;
     private static final int IMAGE_CACHE_VERSION = 7;
 
+    // Inserts are written behind, in batches, so that decode threads don't wait for the disk.
+    // Above this many bytes waiting, putImageData() writes the entry itself.
+    private static final int MAX_PENDING_BYTES = 2 * 1024 * 1024;
+    private static final int WRITE_DELAY_MS = 200;
+    // At most this many entries are kept from prefetchImageData() until they are asked for
+    private static final int MAX_PREFETCHED_ENTRIES = 64;
+    // Entries are copied into pooled buffers; most microthumbnails fit in one. At most
+    // ENTRY_POOL_SIZE entries hold one at a time, the others get buffers of their exact size.
+    private static final int ENTRY_POOL_SIZE = 16;
+    private static final int ENTRY_BUFFER_SIZE = 64 * 1024;
+
     private BlobCache mCache;
 
+    /**
+     * An entry held in memory, either waiting to be written or prefetched: data holds the key
+     * followed by the image data, which is length bytes from offset.
+     */
+    private static class Entry {
+        BytesBuffer pooled; // The buffer data came from, or null if it isn't pooled
+        byte[] data;
+        int offset;
+        int length;
+        boolean writing; // Set when the writer has started on it; the writer then recycles it
+    }
+
+    private final BytesBufferPool mEntryPool =
+            new BytesBufferPool(ENTRY_POOL_SIZE, ENTRY_BUFFER_SIZE);
+
+    // mCacheLock is always taken before mPendingLock
+    private final Object mPendingLock = new Object();
+    // Guarded by mPendingLock
+    private final LinkedHashMap<Long, Entry> mPendingWrites = new LinkedHashMap<Long, Entry>();
+    private final LinkedHashMap<Long, Entry> mPrefetched = new LinkedHashMap<Long, Entry>();
+    // The size of the buffers held by mPendingWrites, not just of their data
+    private int mPendingBytes;
+    // The entries which hold a buffer of mEntryPool
+    private int mPooledEntries;
+    private boolean mWriteScheduled;
+
+    private Handler mWriteHandler;
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            writePendingEntries();
+        }
+    };
+
     public ImageCacheService(Context context) {
         mContext = context;
         mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
@@ -66,6 +117,8 @@ public class ImageCacheService {
 
         byte[] key = makeKey(path, timeModified, type);
         long cacheKey = Utils.crc64Long(key);
+        // Entries that are waiting to be written, or were prefetched, don't need the cache lock
+        if (takeFromMemory(cacheKey, key, buffer)) return true;
         try {
             LookupRequest request = new LookupRequest();
             request.key = cacheKey;
@@ -74,6 +127,8 @@ public class ImageCacheService {
                 if (mCache == null) {
                     return false;
                 }
+                // It may have been prefetched while we waited for the lock
+                if (takeFromMemory(cacheKey, key, buffer)) return true;
                 if (!mCache.lookup(request)) return false;
             }
             if (isSameKey(key, request.buffer)) {
@@ -88,6 +143,130 @@ public class ImageCacheService {
         return false;
     }
 
+    // Copies the data for the key from the pending or prefetched entries, if there is one.
+    private boolean takeFromMemory(long cacheKey, byte[] key, BytesBuffer buffer) {
+        synchronized (mPendingLock) {
+            Entry entry = mPendingWrites.get(cacheKey);
+            boolean prefetched = false;
+            if (entry == null) {
+                entry = mPrefetched.remove(cacheKey);
+                prefetched = true;
+            }
+            if (entry == null) return false;
+            boolean found = isSameKey(key, entry.data);
+            if (found) {
+                if (buffer.data == null || buffer.data.length < entry.length) {
+                    buffer.data = new byte[entry.length];
+                }
+                System.arraycopy(entry.data, entry.offset, buffer.data, 0, entry.length);
+                buffer.offset = 0;
+                buffer.length = entry.length;
+            }
+            if (prefetched) recycleEntry(entry);
+            return found;
+        }
+    }
+
+    /**
+     * Looks up the image data of several items in one pass over the cache, and keeps what is
+     * found in memory until it is asked for with {@link #getImageData}.  This is meant for a
+     * window of thumbnails that are about to be requested.
+     *
+     * @return the number of items found
+     */
+    public int prefetchImageData(JobContext jc, Path[] paths, long[] timesModified,
+            int count, int type) {
+        if (mCache == null || count == 0) return 0;
+        byte[][] keys = new byte[count][];
+        long[] cacheKeys = new long[count];
+        synchronized (mPendingLock) {
+            for (int i = 0; i < count; i++) {
+                byte[] key = makeKey(paths[i], timesModified[i], type);
+                long cacheKey = Utils.crc64Long(key);
+                if (mPendingWrites.containsKey(cacheKey) || mPrefetched.containsKey(cacheKey)) {
+                    continue;
+                }
+                keys[i] = key;
+                cacheKeys[i] = cacheKey;
+            }
+        }
+
+        int found = 0;
+        LookupRequest request = new LookupRequest();
+        synchronized (mCacheLock) {
+            for (int i = 0; i < count && !jc.isCancelled(); i++) {
+                if (mCache == null) break;
+                if (keys[i] == null) continue;
+                BytesBuffer pooled = getPooledBuffer();
+                request.key = cacheKeys[i];
+                request.buffer = (pooled == null) ? null : pooled.data;
+                boolean hit = false;
+                try {
+                    hit = mCache.lookup(request) && isSameKey(keys[i], request.buffer);
+                } catch (IOException ex) {
+                    // ignore.
+                }
+                if (!hit) {
+                    recyclePooledBuffer(pooled);
+                    continue;
+                }
+                Entry entry = new Entry();
+                if (pooled != null && request.buffer == pooled.data) {
+                    entry.pooled = pooled;
+                } else {
+                    recyclePooledBuffer(pooled);
+                }
+                entry.data = request.buffer;
+                entry.offset = keys[i].length;
+                entry.length = request.length - entry.offset;
+                synchronized (mPendingLock) {
+                    Entry old = mPrefetched.put(cacheKeys[i], entry);
+                    if (old != null) recycleEntry(old);
+                    trimPrefetchedLocked();
+                }
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private void trimPrefetchedLocked() {
+        Iterator<Entry> it = mPrefetched.values().iterator();
+        while (mPrefetched.size() > MAX_PREFETCHED_ENTRIES && it.hasNext()) {
+            recycleEntry(it.next());
+            it.remove();
+        }
+    }
+
+    private void recycleEntry(Entry entry) {
+        recyclePooledBuffer(entry.pooled);
+        entry.pooled = null;
+        entry.data = null;
+    }
+
+    // Returns a buffer of mEntryPool, or null if ENTRY_POOL_SIZE entries already hold one
+    private BytesBuffer getPooledBuffer() {
+        synchronized (mPendingLock) {
+            if (mPooledEntries >= ENTRY_POOL_SIZE) return null;
+            mPooledEntries++;
+        }
+        return mEntryPool.get();
+    }
+
+    private void recyclePooledBuffer(BytesBuffer pooled) {
+        if (pooled == null) return;
+        mEntryPool.recycle(pooled);
+        synchronized (mPendingLock) {
+            mPooledEntries--;
+        }
+    }
+
+    // Drops an entry of mPendingWrites. The writer recycles it itself if it has started on it.
+    private void removePendingLocked(Entry entry) {
+        mPendingBytes -= entry.data.length;
+        if (!entry.writing) recycleEntry(entry);
+    }
+
     public void putImageData(Path path, long timeModified, int type, byte[] value) {
         if (mCache == null) {
             MtkLog.e(TAG, "putImageData: cache file is null!");
@@ -95,25 +274,117 @@ public class ImageCacheService {
         }
         byte[] key = makeKey(path, timeModified, type);
         long cacheKey = Utils.crc64Long(key);
-        ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
-        buffer.put(key);
-        buffer.put(value);
+
+        int size = key.length + value.length;
+        BytesBuffer pooled = null;
+        boolean writeBehind;
+        synchronized (mPendingLock) {
+            // Don't take a pooled buffer for an entry which will be written right away
+            writeBehind = mPendingBytes + size <= MAX_PENDING_BYTES;
+        }
+        if (writeBehind && size <= ENTRY_BUFFER_SIZE) pooled = getPooledBuffer();
+
+        Entry entry = new Entry();
+        entry.pooled = pooled;
+        entry.data = (pooled == null) ? new byte[size] : pooled.data;
+        System.arraycopy(key, 0, entry.data, 0, key.length);
+        System.arraycopy(value, 0, entry.data, key.length, value.length);
+        entry.offset = key.length;
+        entry.length = value.length;
+
+        if (writeBehind) {
+            synchronized (mPendingLock) {
+                if (mPendingBytes + entry.data.length <= MAX_PENDING_BYTES) {
+                    // A newer entry for the same key replaces the older one
+                    Entry old = mPendingWrites.remove(cacheKey);
+                    if (old != null) removePendingLocked(old);
+                    mPendingWrites.put(cacheKey, entry);
+                    mPendingBytes += entry.data.length;
+                    Entry prefetched = mPrefetched.remove(cacheKey);
+                    if (prefetched != null) recycleEntry(prefetched);
+                    if (!mWriteScheduled) {
+                        mWriteScheduled = true;
+                        getWriteHandler().postDelayed(mWriteTask, WRITE_DELAY_MS);
+                    }
+                    return;
+                }
+            }
+        }
+
+        // The writer is falling behind; write this one ourselves
         synchronized (mCacheLock) {
             try {
                 if (mCache != null) {
-                    mCache.insert(cacheKey, buffer.array());
+                    mCache.insert(cacheKey, entry.data, size);
                 }
             } catch (IOException ex) {
                 // ignore.
             }
         }
+        recycleEntry(entry);
+    }
+
+    private synchronized Handler getWriteHandler() {
+        if (mWriteHandler == null) {
+            HandlerThread thread = new HandlerThread("ImageCacheWriter",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mWriteHandler = new Handler(thread.getLooper());
+        }
+        return mWriteHandler;
     }
+
+    // Writes all the pending entries, in the order they were put. Runs on the writer thread.
+    private void writePendingEntries() {
+        ArrayList<Long> keys;
+        ArrayList<Entry> entries;
+        synchronized (mPendingLock) {
+            mWriteScheduled = false;
+            keys = new ArrayList<Long>(mPendingWrites.keySet());
+            entries = new ArrayList<Entry>(mPendingWrites.values());
+        }
+        for (int i = 0, n = keys.size(); i < n; i++) {
+            long cacheKey = keys.get(i);
+            Entry entry = entries.get(i);
+            synchronized (mCacheLock) {
+                synchronized (mPendingLock) {
+                    // Skip it if it was replaced, cleared or dropped in the meantime; whoever
+                    // removed it has recycled it
+                    if (mPendingWrites.get(cacheKey) != entry) continue;
+                    entry.writing = true;
+                }
+                try {
+                    if (mCache != null) {
+                        mCache.insert(cacheKey, entry.data, entry.offset + entry.length);
+                    }
+                } catch (IOException ex) {
+                    // ignore.
+                }
+                synchronized (mPendingLock) {
+                    if (mPendingWrites.get(cacheKey) == entry) {
+                        mPendingWrites.remove(cacheKey);
+                        mPendingBytes -= entry.data.length;
+                    }
+                }
+            }
+            recycleEntry(entry);
+        }
+    }
+
     public void clearImageData(Path path, long timeModified, int type) {
         byte[] key = makeKey(path, timeModified, type);
         long cacheKey = Utils.crc64Long(key);
-        synchronized (mCache) {
+        synchronized (mCacheLock) {
+            synchronized (mPendingLock) {
+                Entry pending = mPendingWrites.remove(cacheKey);
+                if (pending != null) removePendingLocked(pending);
+                Entry prefetched = mPrefetched.remove(cacheKey);
+                if (prefetched != null) recycleEntry(prefetched);
+            }
             try {
-                mCache.clearEntry(cacheKey);
+                if (mCache != null) {
+                    mCache.clearEntry(cacheKey);
+                }
             } catch (IOException ex) {
                 // ignore.
             }
@@ -216,6 +487,17 @@ public class ImageCacheService {
             // simply clear the reference,
             // since the BlobCache should already be closed in CacheManager
             mCache = null;
+            // Nothing can be written anymore, so drop what is waiting
+            synchronized (mPendingLock) {
+                for (Entry entry : mPendingWrites.values()) {
+                    removePendingLocked(entry);
+                }
+                mPendingWrites.clear();
+                for (Entry entry : mPrefetched.values()) {
+                    recycleEntry(entry);
+                }
+                mPrefetched.clear();
+            }
         }
     }
     
@@ -27,6 +27,7 @@ import android.provider.MediaStore.Video;
 import com.android.gallery3d.R;
 import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.data.BucketHelper.BucketEntry;
+import com.android.gallery3d.data.BucketHelper.BucketSnapshot;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
 import com.android.gallery3d.util.MediaSetUtils;
@@ -61,7 +62,18 @@ public class LocalAlbumSet extends MediaSet
     private boolean mIsLoading;
 
     private Future<ArrayList<MediaSet>> mLoadTask;
+    private AlbumsLoader mLoader;
     private ArrayList<MediaSet> mLoadBuffer;
+    private BucketEntry[] mLoadBufferEntries;
+
+    // The buckets mAlbums was built from, and the model they come from. A
+    // change notification only reloads the buckets which have changed, and
+    // if none has, the albums are kept as they are.
+    private final BucketSnapshot mSnapshot = new BucketSnapshot();
+    private BucketEntry[] mAlbumsEntries;
+
+    // Returned by AlbumsLoader when the buckets have not changed
+    private static final ArrayList<MediaSet> UNCHANGED = new ArrayList<MediaSet>();
 
 
     private static final boolean mIsDrmSupported = 
@@ -132,20 +144,33 @@ public class LocalAlbumSet extends MediaSet
     }
 
     private class AlbumsLoader implements ThreadPool.Job<ArrayList<MediaSet>> {
+        // The buckets of the albums shown when the loader was submitted
+        private final BucketEntry[] mBaseEntries;
+        // The buckets of the albums returned by run()
+        private volatile BucketEntry[] mEntries;
+
+        AlbumsLoader(BucketEntry[] baseEntries) {
+            mBaseEntries = baseEntries;
+        }
 
         @Override
         @SuppressWarnings("unchecked")
         public ArrayList<MediaSet> run(JobContext jc) {
             Trace.traceBegin(Trace.TRACE_TAG_APP, ">>>>LocalAlbumSet-AlbumsLoader");
-            // Note: it will be faster if we only select media_type and bucket_id.
-            //       need to test the performance if that is worth
-            BucketEntry[] entries = BucketHelper.loadBucketEntries(
-                    jc, mApplication.getContentResolver(), mType, mPath);
+            BucketEntry[] entries = BucketHelper.updateBucketEntries(
+                    jc, mApplication.getContentResolver(), mType, mPath, mSnapshot);
 
-            if (jc.isCancelled()) {
+            if (jc.isCancelled() || entries == null) {
                 Trace.traceEnd(Trace.TRACE_TAG_APP);
                 return null;
             }
+            if (entries == mBaseEntries) {
+                Trace.traceEnd(Trace.TRACE_TAG_APP);
+                return UNCHANGED;
+            }
+            mEntries = entries;
+            // The array belongs to the snapshot
+            entries = entries.clone();
 
             int offset = 0;
             // Move camera and download bucket to the front, while keeping the
@@ -217,10 +242,12 @@ public class LocalAlbumSet extends MediaSet
         if (mNotifier.isDirty()) {
             if (mLoadTask != null) mLoadTask.cancel();
             mIsLoading = true;
-            mLoadTask = mApplication.getThreadPool().submit(new AlbumsLoader(), this);
+            mLoader = new AlbumsLoader(mAlbumsEntries);
+            mLoadTask = mApplication.getThreadPool().submit(mLoader, this);
         }
         if (mLoadBuffer != null) {
             mAlbums = mLoadBuffer;
+            mAlbumsEntries = mLoadBufferEntries;
             mLoadBuffer = null;
             for (MediaSet album : mAlbums) {
                 album.reload();
@@ -236,12 +263,19 @@ public class LocalAlbumSet extends MediaSet
         if (mNotifier.isDirty()) {
             if (mLoadTask != null) mLoadTask.cancel();
             mIsLoading = true;
-            mLoadTask = mApplication.getThreadPool().submit(new AlbumsLoader(), null);
+            mLoader = new AlbumsLoader(mAlbumsEntries);
+            mLoadTask = mApplication.getThreadPool().submit(mLoader, null);
             mLoadBuffer = mLoadTask.get();
+            if (mLoadBuffer == UNCHANGED) {
+                mLoadBuffer = null;
+            } else {
+                mLoadBufferEntries = mLoader.mEntries;
+            }
             mIsLoading = false;
         }
         if (mLoadBuffer != null) {
             mAlbums = mLoadBuffer;
+            mAlbumsEntries = mLoadBufferEntries;
             mLoadBuffer = null;
             for (MediaSet album : mAlbums) {
                 album.reloadForSlideShow();
@@ -255,8 +289,13 @@ public class LocalAlbumSet extends MediaSet
     @Override
     public synchronized void onFutureDone(Future<ArrayList<MediaSet>> future) {
         if (mLoadTask != future) return; // ignore, wait for the latest task
-        mLoadBuffer = future.get();
-        if (mLoadBuffer == null) mLoadBuffer = new ArrayList<MediaSet>();
+        ArrayList<MediaSet> albums = future.get();
+        // If the buckets have not changed, the albums are kept as they are;
+        // listeners are still notified so that they see the end of loading.
+        if (albums != UNCHANGED) {
+            mLoadBuffer = (albums == null) ? new ArrayList<MediaSet>() : albums;
+            mLoadBufferEntries = mLoader.mEntries;
+        }
         mHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -313,16 +313,10 @@ public class LocalImage extends LocalMediaItem {
             // try to decode from JPEG EXIF
             if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
                 Trace.traceBegin(Trace.TRACE_TAG_APP, ">>>>LocalImage-onDecodeOriginal-decodeFromExif");
-                Trace.traceBegin(Trace.TRACE_TAG_APP, ">>>>LocalImage-new ExifInterface");
-                ExifInterface exif = new ExifInterface();
-                Trace.traceEnd(Trace.TRACE_TAG_APP);
                 byte[] thumbData = null;
                 try {
-                    Trace.traceBegin(Trace.TRACE_TAG_APP, ">>>>LocalImage-exif.readExif");
-                    exif.readExif(mLocalFilePath);
-                    Trace.traceEnd(Trace.TRACE_TAG_APP);
-                    Trace.traceBegin(Trace.TRACE_TAG_APP, ">>>>LocalImage-exif.getThumbnail");
-                    thumbData = exif.getThumbnail();
+                    Trace.traceBegin(Trace.TRACE_TAG_APP, ">>>>LocalImage-Exif.getThumbnail");
+                    thumbData = Exif.getThumbnail(mLocalFilePath);
                     Trace.traceEnd(Trace.TRACE_TAG_APP);
                 } catch (FileNotFoundException e) {
                     Log.w(TAG, "failed to find file to read thumbnail: " + mLocalFilePath);
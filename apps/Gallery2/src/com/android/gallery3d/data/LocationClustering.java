@@ -25,8 +25,18 @@ import android.widget.Toast;
 import com.android.gallery3d.R;
 import com.android.gallery3d.util.GalleryUtils;
 import com.android.gallery3d.util.ReverseGeocoder;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class LocationClustering extends Clustering {
     @SuppressWarnings("unused")
@@ -38,11 +48,22 @@ class LocationClustering extends Clustering {
 
     // If the total distance change is less than this ratio, stop iterating.
     private static final float STOP_CHANGE_RATIO = 0.01f;
+
+    // The kind of clustering, for ClusteringStore
+    private static final String STORE_KIND = "location";
+    // A new item is added to the nearest stored cluster if it is within the
+    // cluster's radius, or within this distance of its center.
+    private static final double NEW_ITEM_MAX_DISTANCE_METERS = 5000;
+
     private Context mContext;
+    private ThreadPool mThreadPool;
     private ArrayList<ArrayList<SmallItem>> mClusters;
     private ArrayList<String> mNames;
+    // Whether the name of each cluster was resolved by the geocoder
+    private ArrayList<Boolean> mResolved;
     private String mNoLocationString;
     private Handler mHandler;
+    private String mStoreKey;
 
     private static class Point {
         public Point(double lat, double lng) {
@@ -58,8 +79,9 @@ class LocationClustering extends Clustering {
         double lat, lng;
     }
 
-    public LocationClustering(Context context) {
+    public LocationClustering(Context context, ThreadPool threadPool) {
         mContext = context;
+        mThreadPool = threadPool;
         mNoLocationString = mContext.getResources().getString(R.string.no_location);
         mHandler = new Handler(Looper.getMainLooper());
     }
@@ -83,12 +105,34 @@ class LocationClustering extends Clustering {
             }
         });
 
+        ArrayList<SmallItem> items = new ArrayList<SmallItem>(total);
+        for (int i = 0; i < total; i++) {
+            if (buf[i] != null) items.add(buf[i]);
+        }
+
+        mStoreKey = ClusteringStore.getKey(STORE_KIND, baseSet);
+        boolean changed = true;
+        DataInputStream in = ClusteringStore.load(mContext, mStoreKey);
+        if (in != null) {
+            try {
+                changed = runIncrementally(in, items);
+            } catch (IOException e) {
+                Log.w(TAG, "cannot read stored clusters", e);
+                mClusters = null;
+            }
+        }
+        if (mClusters == null) {
+            runFully(items);
+        }
+        if (changed) saveClusters();
+    }
+
+    private void runFully(ArrayList<SmallItem> items) {
         final ArrayList<SmallItem> withLatLong = new ArrayList<SmallItem>();
         final ArrayList<SmallItem> withoutLatLong = new ArrayList<SmallItem>();
         final ArrayList<Point> points = new ArrayList<Point>();
-        for (int i = 0; i < total; i++) {
-            SmallItem s = buf[i];
-            if (s == null) continue;
+        for (int i = 0, total = items.size(); i < total; i++) {
+            SmallItem s = items.get(i);
             if (GalleryUtils.isValidLocation(s.lat, s.lng)) {
                 withLatLong.add(s);
                 points.add(new Point(s.lat, s.lng));
@@ -116,15 +160,183 @@ class LocationClustering extends Clustering {
             }
         }
 
+        if (withoutLatLong.size() > 0) {
+            clusters.add(withoutLatLong);
+        }
+        boolean[] named = new boolean[clusters.size()];
+        nameClusters(clusters, named, withoutLatLong.size() > 0 ? withoutLatLong : null);
+    }
+
+    // Starts from the stored clusters, drops the items which are gone and
+    // adds the new ones to the nearest cluster. Only the clusters which
+    // changed are named again. Returns whether anything changed, and leaves
+    // mClusters null if the clusters have to be computed from scratch.
+    private boolean runIncrementally(DataInputStream in, ArrayList<SmallItem> items)
+            throws IOException {
+        HashMap<Path, SmallItem> added = new HashMap<Path, SmallItem>(items.size() * 2);
+        for (int i = 0, n = items.size(); i < n; i++) {
+            SmallItem s = items.get(i);
+            added.put(s.path, s);
+        }
+
+        // The names depend on the language
+        boolean sameLocale = Locale.getDefault().toString().equals(in.readUTF());
+        int clusterCount = in.readInt();
+        ArrayList<ArrayList<SmallItem>> clusters =
+                new ArrayList<ArrayList<SmallItem>>(clusterCount + 1);
+        ArrayList<String> names = new ArrayList<String>(clusterCount + 1);
+        ArrayList<Boolean> dirty = new ArrayList<Boolean>(clusterCount + 1);
+        ArrayList<SmallItem> withoutLatLong = null;
+        int storedItems = 0;
+        int changedItems = 0;
+        for (int i = 0; i < clusterCount; i++) {
+            boolean noLocation = in.readBoolean();
+            boolean resolved = in.readBoolean();
+            String name = in.readUTF();
+            int n = in.readInt();
+            ArrayList<SmallItem> cluster = new ArrayList<SmallItem>(n);
+            boolean clusterChanged = !resolved || !sameLocale;
+            for (int j = 0; j < n; j++) {
+                // Paths are interned by their DRM inclusion as well
+                String pathString = in.readUTF();
+                Path path = Path.fromString(pathString, in.readInt());
+                double lat = in.readDouble();
+                double lng = in.readDouble();
+                ++storedItems;
+                SmallItem s = added.get(path);
+                if (s != null && Double.compare(s.lat, lat) == 0
+                        && Double.compare(s.lng, lng) == 0) {
+                    cluster.add(s);
+                    added.remove(path);
+                } else {
+                    // Removed, or moved and placed again below
+                    ++changedItems;
+                    clusterChanged = true;
+                }
+            }
+            if (noLocation) withoutLatLong = cluster;
+            clusters.add(cluster);
+            names.add(name);
+            dirty.add(clusterChanged);
+        }
+
+        changedItems += added.size();
+        if (ClusteringStore.isDrifted(changedItems, storedItems)) {
+            Log.d(TAG, "recluster: " + changedItems + " of " + storedItems + " items changed");
+            return true;
+        }
+
+        if (!added.isEmpty()) {
+            // The centers and radii of the clusters with a location
+            int m = clusters.size();
+            Point[] centers = new Point[m];
+            double[] radii = new double[m];
+            for (int i = 0; i < m; i++) {
+                ArrayList<SmallItem> cluster = clusters.get(i);
+                if (cluster == withoutLatLong || cluster.isEmpty()) continue;
+                Point center = new Point();
+                int n = cluster.size();
+                for (int j = 0; j < n; j++) {
+                    SmallItem s = cluster.get(j);
+                    center.latRad += Math.toRadians(s.lat);
+                    center.lngRad += Math.toRadians(s.lng);
+                }
+                center.latRad /= n;
+                center.lngRad /= n;
+                for (int j = 0; j < n; j++) {
+                    SmallItem s = cluster.get(j);
+                    radii[i] = Math.max(radii[i], GalleryUtils.fastDistanceMeters(
+                            center.latRad, center.lngRad,
+                            Math.toRadians(s.lat), Math.toRadians(s.lng)));
+                }
+                centers[i] = center;
+            }
+
+            for (SmallItem s : added.values()) {
+                if (!GalleryUtils.isValidLocation(s.lat, s.lng)) {
+                    if (withoutLatLong == null) {
+                        withoutLatLong = new ArrayList<SmallItem>();
+                        clusters.add(withoutLatLong);
+                        names.add(mNoLocationString);
+                        dirty.add(true);
+                    }
+                    withoutLatLong.add(s);
+                    continue;
+                }
+                Point p = new Point(s.lat, s.lng);
+                int bestIndex = -1;
+                double bestDistance = Double.MAX_VALUE;
+                for (int i = 0; i < m; i++) {
+                    if (centers[i] == null) continue;
+                    double distance = GalleryUtils.fastDistanceMeters(
+                            p.latRad, p.lngRad, centers[i].latRad, centers[i].lngRad);
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        bestIndex = i;
+                    }
+                }
+                if (bestIndex < 0 || bestDistance
+                        > Math.max(radii[bestIndex], NEW_ITEM_MAX_DISTANCE_METERS)) {
+                    // A new place: the groups have to be worked out again
+                    Log.d(TAG, "recluster: new location");
+                    return true;
+                }
+                clusters.get(bestIndex).add(s);
+                dirty.set(bestIndex, true);
+            }
+        }
+
+        // Drop the clusters which became empty, and keep the one without
+        // location last.
+        ArrayList<ArrayList<SmallItem>> result = new ArrayList<ArrayList<SmallItem>>(clusters.size());
+        ArrayList<String> resultNames = new ArrayList<String>(clusters.size());
+        ArrayList<Boolean> resultDirty = new ArrayList<Boolean>(clusters.size());
+        for (int i = 0, m = clusters.size(); i < m; i++) {
+            ArrayList<SmallItem> cluster = clusters.get(i);
+            if (cluster.isEmpty() || cluster == withoutLatLong) continue;
+            result.add(cluster);
+            resultNames.add(names.get(i));
+            resultDirty.add(dirty.get(i));
+        }
+        if (withoutLatLong != null && !withoutLatLong.isEmpty()) {
+            result.add(withoutLatLong);
+            resultNames.add(mNoLocationString);
+            resultDirty.add(false);
+        }
+
+        boolean[] named = new boolean[result.size()];
+        for (int i = 0; i < named.length; i++) {
+            named[i] = !resultDirty.get(i);
+        }
+        mNames = resultNames;
+        nameClusters(result, named, withoutLatLong);
+        return changedItems > 0 || !sameLocale || mResolved.contains(Boolean.FALSE);
+    }
+
+    // Names the clusters which are not named yet; the names of the others are
+    // already in mNames. Sets mClusters, mNames and mResolved.
+    private void nameClusters(ArrayList<ArrayList<SmallItem>> clusters, boolean[] named,
+            ArrayList<SmallItem> withoutLatLong) {
         ReverseGeocoder geocoder = new ReverseGeocoder(mContext);
-        mNames = new ArrayList<String>();
+        ArrayList<String> names = new ArrayList<String>(clusters.size());
+        mResolved = new ArrayList<Boolean>(clusters.size());
         boolean hasUnresolvedAddress = false;
-        mClusters = new ArrayList<ArrayList<SmallItem>>();
-        for (ArrayList<SmallItem> cluster : clusters) {
+        for (int i = 0, m = clusters.size(); i < m; i++) {
+            ArrayList<SmallItem> cluster = clusters.get(i);
+            if (cluster == withoutLatLong) {
+                names.add(mNoLocationString);
+                mResolved.add(true);
+                continue;
+            }
+            if (named[i]) {
+                names.add(mNames.get(i));
+                mResolved.add(true);
+                continue;
+            }
             String name = generateName(cluster, geocoder, true);
             if (name != null) {
-                mNames.add(name);
-                mClusters.add(cluster);
+                names.add(name);
+                mResolved.add(true);
             } else {
                 ///M: make the No_Location cluster named
                 // (longitude,latitude)  @{
@@ -134,17 +346,14 @@ class LocationClustering extends Clustering {
                                              .append((float)cluster.get(0).lat)
                                              .append(",")
                                              .append((float)cluster.get(0).lng);
-                mNames.add(new String(location));
-                mClusters.add(cluster);
+                names.add(new String(location));
+                mResolved.add(false);
                 /// @}
                 hasUnresolvedAddress = true;
             }
         }
-
-        if (withoutLatLong.size() > 0) {
-            mNames.add(mNoLocationString);
-            mClusters.add(withoutLatLong);
-        }
+        mNames = names;
+        mClusters = clusters;
 
         if (hasUnresolvedAddress) {
             mHandler.post(new Runnable() {
@@ -172,6 +381,7 @@ class LocationClustering extends Clustering {
                     String newName = generateName(cluster, geocoder, false);
                     if (newName != null) {
                         mNames.set(i, newName);
+                        mResolved.set(i, true);
                     } else {
                         haveGenerateAllNewName = false;
                         Log.d(TAG, "RegenerateName got null");
@@ -181,10 +391,40 @@ class LocationClustering extends Clustering {
                     mNames.set(i, mNoLocationString);
                 }
             }
+            saveClusters();
             return haveGenerateAllNewName;
         }
     }
 
+    private void saveClusters() {
+        if (mStoreKey == null) return;
+        try {
+            ClusteringStore.Writer out = new ClusteringStore.Writer(mStoreKey);
+            out.writeUTF(Locale.getDefault().toString());
+            int m = mClusters.size();
+            out.writeInt(m);
+            for (int i = 0; i < m; i++) {
+                String name = mNames.get(i);
+                out.writeBoolean(name == mNoLocationString);
+                out.writeBoolean(mResolved.get(i));
+                out.writeUTF(name);
+                ArrayList<SmallItem> items = mClusters.get(i);
+                int n = items.size();
+                out.writeInt(n);
+                for (int j = 0; j < n; j++) {
+                    SmallItem s = items.get(j);
+                    out.writeUTF(s.path.toString());
+                    out.writeInt(s.path.getMtkInclusion());
+                    out.writeDouble(s.lat);
+                    out.writeDouble(s.lng);
+                }
+            }
+            ClusteringStore.save(mContext, mStoreKey, out);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot save clusters", e);
+        }
+    }
+
     private static String generateName(ArrayList<SmallItem> items,
             ReverseGeocoder geocoder, boolean useCache) {
         ReverseGeocoder.SetLatLong set = new ReverseGeocoder.SetLatLong();
@@ -239,15 +479,99 @@ class LocationClustering extends Clustering {
         return mNames.get(index);
     }
 
+    // The best grouping found by a kMeans worker.
+    private static class KMeansResult {
+        float score = Float.MAX_VALUE;
+        int k;
+        int realK = 1;
+        int[] grouping;
+    }
+
     // Input: n points
     // Output: the best k is stored in bestK[0], and the return value is the
     // an array which specifies the group that each point belongs (0 to k - 1).
-    private static int[] kMeans(Point points[], int[] bestK) {
-        int n = points.length;
+    //
+    // Each k is tried independently, so they are spread over the thread pool.
+    // The calling thread takes part as well, so this completes even if the
+    // pool has no thread to spare.
+    private int[] kMeans(final Point points[], int[] bestK) {
+        final int n = points.length;
 
         // min and max number of groups wanted
-        int minK = Math.min(n, MIN_GROUPS);
-        int maxK = Math.min(n, MAX_GROUPS);
+        final int minK = Math.min(n, MIN_GROUPS);
+        final int maxK = Math.min(n, MAX_GROUPS);
+
+        final AtomicInteger nextK = new AtomicInteger(minK);
+        // No k beyond the first one with a zero score can do better
+        final AtomicInteger lastK = new AtomicInteger(maxK);
+        int workerCount = Math.min(ThreadPool.PARALLEL_THREAD_NUM, maxK - minK + 1);
+        final KMeansResult[] results = new KMeansResult[workerCount];
+
+        // A helper runs only if it claims its flag before the calling thread
+        // is done; the ones still queued by then are skipped, so the calling
+        // thread never waits behind other jobs of the pool.
+        final AtomicBoolean[] claimed = new AtomicBoolean[workerCount - 1];
+        final CountDownLatch helpersDone = new CountDownLatch(claimed.length);
+        for (int w = 0; w < workerCount; w++) {
+            final KMeansResult result = new KMeansResult();
+            results[w] = result;
+            if (w < claimed.length) {
+                final AtomicBoolean helperClaimed = new AtomicBoolean();
+                claimed[w] = helperClaimed;
+                mThreadPool.submit(new Job<Void>() {
+                    @Override
+                    public Void run(JobContext jc) {
+                        if (!helperClaimed.compareAndSet(false, true)) return null;
+                        try {
+                            kMeansWorker(points, nextK, lastK, result);
+                        } finally {
+                            helpersDone.countDown();
+                        }
+                        return null;
+                    }
+                });
+            } else {
+                kMeansWorker(points, nextK, lastK, result);
+            }
+        }
+        for (AtomicBoolean helperClaimed : claimed) {
+            if (helperClaimed.compareAndSet(false, true)) helpersDone.countDown();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                helpersDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        // The smallest score wins, and the smallest k among equal scores.
+        KMeansResult best = null;
+        for (KMeansResult result : results) {
+            if (result.grouping == null) continue;
+            if (best == null || result.score < best.score
+                    || (result.score == best.score && result.k < best.k)) {
+                best = result;
+            }
+        }
+        if (best == null) {
+            // Every score was NaN: put everything in one group
+            bestK[0] = 1;
+            return new int[n];
+        }
+        bestK[0] = best.realK;
+        return best.grouping;
+    }
+
+    // Tries the values of k taken from nextK, and keeps the best grouping in
+    // the result.
+    private static void kMeansWorker(Point points[], AtomicInteger nextK,
+            AtomicInteger lastK, KMeansResult result) {
+        int n = points.length;
+        int maxK = lastK.get();
 
         Point[] center = new Point[maxK];  // center of each group.
         Point[] groupSum = new Point[maxK];  // sum of points in each group.
@@ -261,16 +585,11 @@ class LocationClustering extends Clustering {
 
         // The score we want to minimize is:
         //   (sum of distance from each point to its group center) * sqrt(k).
-        float bestScore = Float.MAX_VALUE;
-        // The best group assignment up to now.
-        int[] bestGrouping = new int[n];
-        // The best K up to now.
-        bestK[0] = 1;
+        for (int k = nextK.getAndIncrement(); k <= lastK.get();
+                k = nextK.getAndIncrement()) {
+            float lastDistance = 0;
+            float totalDistance = 0;
 
-        float lastDistance = 0;
-        float totalDistance = 0;
-
-        for (int k = minK; k <= maxK; k++) {
             // step 1: (arbitrarily) pick k points as the initial centers.
             int delta = n / k;
             for (int i = 0; i < k; i++) {
@@ -340,17 +659,23 @@ class LocationClustering extends Clustering {
             // step 5: calculate the final score
             float score = totalDistance * FloatMath.sqrt(realK);
 
-            if (score < bestScore) {
-                bestScore = score;
-                bestK[0] = realK;
+            if (score < result.score) {
+                result.score = score;
+                result.k = k;
+                result.realK = realK;
+                if (result.grouping == null) result.grouping = new int[n];
                 for (int i = 0; i < n; i++) {
-                    bestGrouping[i] = reassign[grouping[i]];
+                    result.grouping[i] = reassign[grouping[i]];
                 }
                 if (score == 0) {
+                    // Lower lastK to k, unless another worker got lower already
+                    int last = lastK.get();
+                    while (k < last && !lastK.compareAndSet(last, k)) {
+                        last = lastK.get();
+                    }
                     break;
                 }
             }
         }
-        return bestGrouping;
     }
 }
@@ -17,19 +17,28 @@
 package com.android.gallery3d.data;
 
 import com.android.gallery3d.common.Utils;
-import com.android.gallery3d.util.IdentityCache;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Paths are interned in a tree which is read without locks: each node keeps its children in a
+// ConcurrentHashMap of weak references, so a lookup never blocks, and only insertions into the
+// same node contend.  Children that are no longer referenced are removed from their parent as
+// their references are enqueued.
 public class Path {
     private static final String TAG = "Gallery2/Path";
-    private static Path sRoot = new Path(null, "ROOT");
+    private static volatile Path sRoot = new Path(null, "ROOT", 0);
+
+    // References to collected children, waiting to be removed from their parents
+    private static final ReferenceQueue<Path> sQueue = new ReferenceQueue<Path>();
 
     private final Path mParent;
     private final String mSegment;
-    private WeakReference<MediaObject> mObject;
-    private IdentityCache<String, Path> mChildren;
+    private volatile WeakReference<MediaObject> mObject;
+    private volatile ConcurrentHashMap<String, ChildRef> mChildren;
 
     // By google's default design, each Path represents a kind of
     // MediaSet(s). As DRM (digital rights management) feature is
@@ -44,26 +53,31 @@ public class Path {
 
     // we enlarge the extent of drm inclusion to Mtk inclusion to
     // add support for other feature, such as stereo, mpo
-    private int mMtkInclusion;
+    private volatile int mMtkInclusion;
 
-    public int getMtkInclusion() {
-        synchronized (Path.class) {
-            return mMtkInclusion;
+    private static class ChildRef extends WeakReference<Path> {
+        final Path mParent;
+        final String mKey;
+
+        ChildRef(Path parent, String key, Path child) {
+            super(child, sQueue);
+            mParent = parent;
+            mKey = key;
         }
     }
-    public void setMtkInclusion(int mtkInclusion) {
-        synchronized (Path.class) {
-            Path current = this;
-            if (current == sRoot) return;
-            mMtkInclusion = mtkInclusion;
-            return;
-        }
 
+    public int getMtkInclusion() {
+        return mMtkInclusion;
+    }
+    public void setMtkInclusion(int mtkInclusion) {
+        if (this == sRoot) return;
+        mMtkInclusion = mtkInclusion;
     }
 
-    private Path(Path parent, String segment) {
+    private Path(Path parent, String segment, int mtkInclusion) {
         mParent = parent;
         mSegment = segment;
+        mMtkInclusion = mtkInclusion;
     }
 
     public Path getChild(String segment) {
@@ -71,18 +85,7 @@ public class Path {
         if (com.mediatek.gallery3d.util.MediatekFeature.isDrmSupported()) {
             segmentExt = segment+"|"+mMtkInclusion;
         }
-        synchronized (Path.class) {
-            if (mChildren == null) {
-                mChildren = new IdentityCache<String, Path>();
-            } else {
-                Path p = mChildren.get(segmentExt);
-                if (p != null) return p;
-            }
-
-            Path p = new Path(this, segment);
-            mChildren.put(segmentExt, p);
-            return p;
-        }
+        return getOrAddChild(segmentExt, segment, 0);
     }
 
     public Path getChild(String segment, int mtkInclusion) {
@@ -90,25 +93,64 @@ public class Path {
         if (com.mediatek.gallery3d.util.MediatekFeature.isDrmSupported()) {
             segmentExt = segment + "|" + mtkInclusion;
         }
-        synchronized (Path.class) {
-            if (mChildren == null) {
-                mChildren = new IdentityCache<String, Path>();
-            } else {
-                Path p = mChildren.get(segmentExt);
-                if (p != null) return p;
+        return getOrAddChild(segmentExt, segment, mtkInclusion);
+    }
+
+    private ConcurrentHashMap<String, ChildRef> getChildren() {
+        ConcurrentHashMap<String, ChildRef> children = mChildren;
+        if (children == null) {
+            synchronized (this) {
+                children = mChildren;
+                if (children == null) {
+                    children = new ConcurrentHashMap<String, ChildRef>(4, 0.75f, 2);
+                    mChildren = children;
+                }
+            }
+        }
+        return children;
+    }
+
+    private Path getOrAddChild(String key, String segment, int mtkInclusion) {
+        final ConcurrentHashMap<String, ChildRef> children = getChildren();
+        ChildRef ref = children.get(key);
+        if (ref != null) {
+            Path p = ref.get();
+            if (p != null) return p;
+        }
+
+        expungeCollected();
+        Path p = new Path(this, segment, mtkInclusion);
+        ChildRef newRef = new ChildRef(this, key, p);
+        while (true) {
+            if (ref == null || ref.get() == null) {
+                // Either there is no child, or it has been collected: try to put ours in
+                boolean added = (ref == null)
+                        ? children.putIfAbsent(key, newRef) == null
+                        : children.replace(key, ref, newRef);
+                if (added) return p;
+            }
+            // Someone else got there first; use theirs if it is still alive
+            ref = children.get(key);
+            if (ref != null) {
+                Path other = ref.get();
+                if (other != null) return other;
             }
+        }
+    }
 
-            Path p = new Path(this, segment);
-            p.setMtkInclusion(mtkInclusion);
-            mChildren.put(segmentExt, p);
-            return p;
+    private static void expungeCollected() {
+        ChildRef ref;
+        while ((ref = (ChildRef) sQueue.poll()) != null) {
+            ConcurrentHashMap<String, ChildRef> children = ref.mParent.mChildren;
+            if (children != null) {
+                // Only remove the entry if it still is the collected one
+                children.remove(ref.mKey, ref);
+            }
         }
     }
 
     public Path getParent() {
-        synchronized (Path.class) {
-            return mParent;
-        }
+        return mParent;
     }
 
     public Path getChild(int segment) {
@@ -128,36 +170,41 @@ public class Path {
     }
 
     public void setObject(MediaObject object) {
-        synchronized (Path.class) {
+        synchronized (this) {
             Utils.assertTrue(mObject == null || mObject.get() == null);
             mObject = new WeakReference<MediaObject>(object);
         }
     }
 
     public MediaObject getObject() {
-        synchronized (Path.class) {
-            return (mObject == null) ? null : mObject.get();
-        }
+        WeakReference<MediaObject> object = mObject;
+        return (object == null) ? null : object.get();
     }
     ///M: clear
     public void clearObject() {
-        if(mObject != null) {
-            mObject.clear();
+        WeakReference<MediaObject> object = mObject;
+        if(object != null) {
+            object.clear();
         }
         mObject = null;
     }
     @Override
-    // TODO: toString() should be more efficient, will fix it later
     public String toString() {
-        synchronized (Path.class) {
-            StringBuilder sb = new StringBuilder();
-            String[] segments = split();
-            for (int i = 0; i < segments.length; i++) {
-                sb.append("/");
-                sb.append(segments[i]);
-            }
-            return sb.toString();
+        final Path root = sRoot;
+        int length = 0;
+        for (Path p = this; p != root; p = p.mParent) {
+            length += p.mSegment.length() + 1;
         }
+        char[] chars = new char[length];
+        int end = length;
+        for (Path p = this; p != root; p = p.mParent) {
+            String segment = p.mSegment;
+            int start = end - segment.length();
+            segment.getChars(0, segment.length(), chars, start);
+            chars[start - 1] = '/';
+            end = start - 1;
+        }
+        return new String(chars);
     }
     
     public boolean equalsIgnoreCase (String p) {
@@ -166,46 +213,41 @@ public class Path {
     }
 
     public static Path fromString(String s) {
-        synchronized (Path.class) {
-            //added to support drm feature.
-            //this is intended to reset drm inclusion status
-            //for original routin
-            sRoot.setMtkInclusion(0);
-
-            String[] segments = split(s);
-            Path current = sRoot;
-            for (int i = 0; i < segments.length; i++) {
-                current = current.getChild(segments[i]);
-            }
-            return current;
+        //added to support drm feature.
+        //this is intended to reset drm inclusion status
+        //for original routin
+        Path current = sRoot;
+        current.setMtkInclusion(0);
+
+        String[] segments = split(s);
+        for (int i = 0; i < segments.length; i++) {
+            current = current.getChild(segments[i]);
         }
+        return current;
     }
 
     public static Path fromString(String s, int mtkInclusion) {
-        synchronized (Path.class) {
-            String[] segments = split(s);
-            Path current = sRoot;
-            sRoot.setMtkInclusion(mtkInclusion);
-            for (int i = 0; i < segments.length; i++) {
-                current = current.getChild(segments[i], mtkInclusion);
-            }
-            return current;
+        String[] segments = split(s);
+        Path current = sRoot;
+        current.setMtkInclusion(mtkInclusion);
+        for (int i = 0; i < segments.length; i++) {
+            current = current.getChild(segments[i], mtkInclusion);
         }
+        return current;
     }
 
     public String[] split() {
-        synchronized (Path.class) {
-            int n = 0;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                n++;
-            }
-            String[] segments = new String[n];
-            int i = n - 1;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                segments[i--] = p.mSegment;
-            }
-            return segments;
+        final Path root = sRoot;
+        int n = 0;
+        for (Path p = this; p != root; p = p.mParent) {
+            n++;
         }
+        String[] segments = new String[n];
+        int i = n - 1;
+        for (Path p = this; p != root; p = p.mParent) {
+            segments[i--] = p.mSegment;
+        }
+        return segments;
     }
 
     public static String[] split(String s) {
@@ -271,16 +313,15 @@ public class Path {
     }
 
     public Path getPrefixPath() {
-        synchronized (Path.class) {
-            Path current = this;
-            if (current == sRoot) {
-                throw new IllegalStateException();
-            }
-            while (current.mParent != sRoot) {
-                current = current.mParent;
-            }
-            return current;
+        final Path root = sRoot;
+        Path current = this;
+        if (current == root) {
+            throw new IllegalStateException();
+        }
+        while (current.mParent != root) {
+            current = current.mParent;
         }
+        return current;
     }
 
     public String getSuffix() {
@@ -290,9 +331,7 @@ public class Path {
 
     // Below are for testing/debugging only
     static void clearAll() {
-        synchronized (Path.class) {
-            sRoot = new Path(null, "");
-        }
+        sRoot = new Path(null, "", 0);
     }
 
     static void dumpAll() {
@@ -300,25 +339,22 @@ public class Path {
     }
 
     static void dumpAll(Path p, String prefix1, String prefix2) {
-        synchronized (Path.class) {
-            MediaObject obj = p.getObject();
-            Log.d(TAG, prefix1 + p.mSegment + ":"
-                    + (obj == null ? "null" : obj.getClass().getSimpleName()));
-            if (p.mChildren != null) {
-                ArrayList<String> childrenKeys = p.mChildren.keys();
-                int i = 0, n = childrenKeys.size();
-                for (String key : childrenKeys) {
-                    Path child = p.mChildren.get(key);
-                    if (child == null) {
-                        ++i;
-                        continue;
-                    }
-                    Log.d(TAG, prefix2 + "|");
-                    if (++i < n) {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
-                    } else {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
-                    }
+        MediaObject obj = p.getObject();
+        Log.d(TAG, prefix1 + p.mSegment + ":"
+                + (obj == null ? "null" : obj.getClass().getSimpleName()));
+        if (p.mChildren != null) {
+            ArrayList<Path> children = new ArrayList<Path>();
+            for (Map.Entry<String, ChildRef> entry : p.mChildren.entrySet()) {
+                Path child = entry.getValue().get();
+                if (child != null) children.add(child);
+            }
+            int n = children.size();
+            for (int i = 0; i < n; i++) {
+                Log.d(TAG, prefix2 + "|");
+                if (i + 1 < n) {
+                    dumpAll(children.get(i), prefix2 + "+-- ", prefix2 + "|   ");
+                } else {
+                    dumpAll(children.get(i), prefix2 + "+-- ", prefix2 + "    ");
                 }
             }
         }
@@ -23,9 +23,12 @@ import android.text.format.DateUtils;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.GalleryUtils;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 
 public class TimeClustering extends Clustering {
     @SuppressWarnings("unused")
@@ -80,6 +83,9 @@ public class TimeClustering extends Clustering {
     private int mMaxClusterSize = (MIN_MAX_CLUSTER_SIZE + MAX_MAX_CLUSTER_SIZE) / 2;
 
 
+    // The kind of clustering, for ClusteringStore
+    private static final String STORE_KIND = "time";
+
     private static final Comparator<SmallItem> sDateComparator =
             new DateComparator();
 
@@ -90,6 +96,18 @@ public class TimeClustering extends Clustering {
         }
     }
 
+    // Orders clusters by their newest item, newest first.
+    private static final Comparator<Cluster> sClusterComparator = new Comparator<Cluster>() {
+        @Override
+        public int compare(Cluster cluster1, Cluster cluster2) {
+            return sDateComparator.compare(cluster1.getItems().get(0),
+                    cluster2.getItems().get(0));
+        }
+    };
+
+    // Whether the clusters differ from the stored ones
+    private boolean mChanged = true;
+
     public TimeClustering(Context context) {
         mContext = context;
         mClusters = new ArrayList<Cluster>();
@@ -123,6 +141,25 @@ public class TimeClustering extends Clustering {
             }
         }
 
+        String key = ClusteringStore.getKey(STORE_KIND, baseSet);
+        if (!runIncrementally(key, items)) {
+            runFully(items);
+        }
+
+        int m = mClusters.size();
+        mNames = new String[m];
+        for (int i = 0; i < m; i++) {
+            mNames[i] = mClusters.get(i).generateCaption(mContext);
+        }
+
+        if (mChanged) saveClusters(key);
+    }
+
+    private void runFully(ArrayList<SmallItem> items) {
+        mClusters = new ArrayList<Cluster>();
+        mCurrCluster = new Cluster();
+        mChanged = true;
+
         Collections.sort(items, sDateComparator);
 
         int n = items.size();
@@ -146,11 +183,148 @@ public class TimeClustering extends Clustering {
         }
 
         compute(null);
+    }
 
-        int m = mClusters.size();
-        mNames = new String[m];
-        for (int i = 0; i < m; i++) {
-            mNames[i] = mClusters.get(i).generateCaption(mContext);
+    // Starts from the stored clusters, drops the items which are gone and
+    // places the new ones. Returns false if there are no stored clusters, or
+    // too much has changed since they were stored.
+    private boolean runIncrementally(String key, ArrayList<SmallItem> items) {
+        DataInputStream in = ClusteringStore.load(mContext, key);
+        if (in == null) return false;
+
+        HashMap<Path, SmallItem> added = new HashMap<Path, SmallItem>(items.size() * 2);
+        for (int i = 0, n = items.size(); i < n; i++) {
+            SmallItem s = items.get(i);
+            added.put(s.path, s);
+        }
+
+        ArrayList<Cluster> clusters;
+        int storedItems = 0;
+        int changedItems = 0;
+        try {
+            mClusterSplitTime = in.readLong();
+            mLargeClusterSplitTime = in.readLong();
+            mMinClusterSize = in.readInt();
+            mMaxClusterSize = in.readInt();
+            int clusterCount = in.readInt();
+            clusters = new ArrayList<Cluster>(clusterCount);
+            for (int i = 0; i < clusterCount; i++) {
+                Cluster cluster = new Cluster();
+                cluster.mGeographicallySeparatedFromPrevCluster = in.readBoolean();
+                int n = in.readInt();
+                for (int j = 0; j < n; j++) {
+                    // Paths are interned by their DRM inclusion as well
+                    String pathString = in.readUTF();
+                    Path path = Path.fromString(pathString, in.readInt());
+                    long dateInMs = in.readLong();
+                    double lat = in.readDouble();
+                    double lng = in.readDouble();
+                    ++storedItems;
+                    SmallItem s = added.get(path);
+                    if (s != null && s.dateInMs == dateInMs
+                            && Double.compare(s.lat, lat) == 0
+                            && Double.compare(s.lng, lng) == 0) {
+                        cluster.addItem(s);
+                        added.remove(path);
+                    } else {
+                        // Removed, or changed and placed again below
+                        ++changedItems;
+                    }
+                }
+                if (cluster.size() > 0) clusters.add(cluster);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot read stored clusters", e);
+            return false;
+        }
+
+        changedItems += added.size();
+        if (ClusteringStore.isDrifted(changedItems, storedItems)) {
+            Log.d(TAG, "recluster: " + changedItems + " of " + storedItems + " items changed");
+            return false;
+        }
+        mChanged = changedItems > 0;
+
+        ArrayList<SmallItem> newItems = new ArrayList<SmallItem>(added.values());
+        Collections.sort(newItems, sDateComparator);
+        ArrayList<SmallItem> unplaced = new ArrayList<SmallItem>();
+        for (int i = 0, n = newItems.size(); i < n; i++) {
+            SmallItem s = newItems.get(i);
+            Cluster cluster = findClusterFor(clusters, s);
+            if (cluster != null) {
+                cluster.insertItem(s, sDateComparator);
+            } else {
+                unplaced.add(s);
+            }
+        }
+
+        // The items which don't fit in any cluster are clustered on their own,
+        // then merged in by date.
+        mClusters = new ArrayList<Cluster>();
+        mCurrCluster = new Cluster();
+        if (!unplaced.isEmpty()) {
+            for (int i = 0, n = unplaced.size(); i < n; i++) {
+                compute(unplaced.get(i));
+            }
+            compute(null);
+            clusters.addAll(mClusters);
+            Collections.sort(clusters, sClusterComparator);
+        }
+        mClusters = clusters;
+        return true;
+    }
+
+    // Returns the cluster whose time range the item falls within, give or
+    // take the split time, or null if there is none.
+    private Cluster findClusterFor(ArrayList<Cluster> clusters, SmallItem item) {
+        int n = clusters.size();
+        if (n == 0) return null;
+        // Items without a date are sorted last
+        if (item.dateInMs == 0) return clusters.get(n - 1);
+        for (int i = 0; i < n; i++) {
+            Cluster cluster = clusters.get(i);
+            ArrayList<SmallItem> clusterItems = cluster.getItems();
+            long maxTime = clusterItems.get(0).dateInMs;
+            long minTime = 0;
+            for (int j = clusterItems.size() - 1; j >= 0 && minTime == 0; j--) {
+                minTime = clusterItems.get(j).dateInMs;
+            }
+            if (maxTime == 0) continue;
+            if (item.dateInMs <= maxTime + mClusterSplitTime
+                    && item.dateInMs >= minTime - mClusterSplitTime) {
+                return cluster;
+            }
+        }
+        return null;
+    }
+
+    private void saveClusters(String key) {
+        try {
+            ClusteringStore.Writer out = new ClusteringStore.Writer(key);
+            out.writeLong(mClusterSplitTime);
+            out.writeLong(mLargeClusterSplitTime);
+            out.writeInt(mMinClusterSize);
+            out.writeInt(mMaxClusterSize);
+            int m = mClusters.size();
+            out.writeInt(m);
+            for (int i = 0; i < m; i++) {
+                Cluster cluster = mClusters.get(i);
+                out.writeBoolean(cluster.mGeographicallySeparatedFromPrevCluster);
+                ArrayList<SmallItem> items = cluster.getItems();
+                int n = items.size();
+                out.writeInt(n);
+                for (int j = 0; j < n; j++) {
+                    SmallItem s = items.get(j);
+                    out.writeUTF(s.path.toString());
+                    out.writeInt(s.path.getMtkInclusion());
+                    out.writeLong(s.dateInMs);
+                    out.writeDouble(s.lat);
+                    out.writeDouble(s.lng);
+                }
+            }
+            ClusteringStore.save(mContext, key, out);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot save clusters", e);
         }
     }
 
@@ -381,6 +555,13 @@ class Cluster {
         mItems.add(item);
     }
 
+    // Inserts the item where it belongs in the given order.
+    public void insertItem(SmallItem item, Comparator<SmallItem> comparator) {
+        int index = Collections.binarySearch(mItems, item, comparator);
+        if (index < 0) index = -index - 1;
+        mItems.add(index, item);
+    }
+
     public int size() {
         return mItems.size();
     }
@@ -470,7 +470,9 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener,
             }
             /// @}
             return mThreadPool.submit(mMediaItem.requestImage(
-                    MediaItem.TYPE_MICROTHUMBNAIL), l);
+                    MediaItem.TYPE_MICROTHUMBNAIL), l,
+                    isActiveSlot(mSlotIndex)
+                            ? ThreadPool.PRIORITY_VISIBLE : ThreadPool.PRIORITY_PREFETCH);
         }
 
         @Override
@@ -21,7 +21,10 @@ import android.os.Message;
 
 import com.android.gallery3d.app.AbstractGalleryActivity;
 import com.android.gallery3d.app.AlbumDataLoader;
+import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.ImageCacheService;
+import com.android.gallery3d.data.LocalMediaItem;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.MediaObject;
 import com.android.gallery3d.data.MediaObject.PanoramaSupportCallback;
@@ -33,6 +36,8 @@ import com.android.gallery3d.util.FutureListener;
 import com.android.gallery3d.util.GalleryUtils;
 import com.android.gallery3d.util.JobLimiter;
 import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import android.os.SystemClock;
 import com.mediatek.gallery3d.util.MediatekFeature;
@@ -94,6 +99,13 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener, VideoTh
     private int mActiveRequestCount = 0;
     private boolean mIsActive = false;
 
+    // Looks up the microthumbnails of the active slots in one pass, ahead of their requests
+    private final ThreadPool mPrefetchPool;
+    private final ImageCacheService mImageCacheService;
+    private Future<Integer> mPrefetchTask;
+    private int mPrefetchStart = -1;
+    private int mPrefetchEnd = -1;
+
     private class PanoSupportListener implements PanoramaSupportCallback {
         public final AlbumEntry mEntry;
         public PanoSupportListener (AlbumEntry entry) {
@@ -127,6 +139,8 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener, VideoTh
                 .getVideoMicroThumbDecodingPool(activity.getThreadPool());
         /// @}
         mTileUploader = new TiledTexture.Uploader(activity.getGLRoot());
+        mPrefetchPool = activity.getThreadPool();
+        mImageCacheService = ((GalleryApp) activity.getApplication()).getImageCacheService();
     }
 
     public void setListener(Listener listener) {
@@ -307,7 +321,46 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener, VideoTh
         mData[slotIndex % mData.length] = entry;
     }
 
+    private void prefetchActiveImages() {
+        // Content changes within the same window are left to the slot requests
+        if (mActiveStart == mPrefetchStart && mActiveEnd == mPrefetchEnd) return;
+        mPrefetchStart = mActiveStart;
+        mPrefetchEnd = mActiveEnd;
+        if (mPrefetchTask != null) {
+            mPrefetchTask.cancel();
+            mPrefetchTask = null;
+        }
+        // The cached data isn't used when picture quality tuning is on
+        if (MtkLog.SUPPORT_PQ) return;
+
+        int n = mActiveEnd - mActiveStart;
+        final Path[] paths = new Path[n];
+        final long[] timesModified = new long[n];
+        int count = 0;
+        for (int i = mActiveStart; i < mActiveEnd; ++i) {
+            if (i < mContentStart || i >= mContentEnd) continue;
+            AlbumEntry entry = mData[i % mData.length];
+            if (entry == null || entry.content != null) continue;
+            // Only local items are keyed by their modification time
+            if (!(entry.item instanceof LocalMediaItem)) continue;
+            paths[count] = entry.path;
+            timesModified[count] = ((LocalMediaItem) entry.item).dateModifiedInSec;
+            ++count;
+        }
+        if (count < 2) return;
+
+        final int prefetchCount = count;
+        mPrefetchTask = mPrefetchPool.submit(new Job<Integer>() {
+            @Override
+            public Integer run(JobContext jc) {
+                return mImageCacheService.prefetchImageData(jc, paths, timesModified,
+                        prefetchCount, MediaItem.TYPE_MICROTHUMBNAIL);
+            }
+        }, null, ThreadPool.PRIORITY_PREFETCH);
+    }
+
     private void updateAllImageRequests() {
+        prefetchActiveImages();
         mActiveRequestCount = 0;
         for (int i = mActiveStart, n = mActiveEnd; i < n; ++i) {
             if (requestSlotImage(i)) ++mActiveRequestCount;
@@ -337,7 +390,9 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener, VideoTh
             }
             /// @}
             return mThreadPool.submit(
-                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this);
+                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this,
+                    isActiveSlot(mSlotIndex)
+                            ? ThreadPool.PRIORITY_VISIBLE : ThreadPool.PRIORITY_PREFETCH);
         }
 
         @Override
@@ -408,6 +463,11 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener, VideoTh
 
     public void pause() {
         mIsActive = false;
+        if (mPrefetchTask != null) {
+            mPrefetchTask.cancel();
+            mPrefetchTask = null;
+        }
+        mPrefetchStart = mPrefetchEnd = -1;
         mTileUploader.clear();
         TiledTexture.freeResources();
         for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
@@ -55,7 +55,13 @@ public class TileImageView extends GLView {
 
     // TILE_SIZE must be 2^N - 2. We put one pixel border in each side of the
     // texture to avoid seams between tiles.
-    private static final int UPLOAD_LIMIT = 1;
+    // Tile uploads are limited by the time they take in a frame rather than
+    // by count; at least one tile is uploaded each time.
+    private static final long UPLOAD_BUDGET_NS = 4 * 1000 * 1000;
+
+    // Queued tiles of the displayed level are decoded before those of other
+    // levels, unless they are this far (squared, in tiles) from the center.
+    private static final float OTHER_LEVEL_PENALTY = 64f;
 
     // TILE_SIZE must be 2^N
     private static int sTileSize;
@@ -103,7 +109,8 @@ public class TileImageView extends GLView {
     private int mOffsetX;
     private int mOffsetY;
 
-    private int mUploadQuota;
+    private long mUploadDeadline;
+    private boolean mUploadedInRender;
     private boolean mRenderComplete;
 
     private final RectF mSourceRect = new RectF();
@@ -115,6 +122,7 @@ public class TileImageView extends GLView {
     private final TileQueue mRecycledQueue = new TileQueue();
     private final TileQueue mUploadQueue = new TileQueue();
     private final TileQueue mDecodeQueue = new TileQueue();
+    private final TileQueue mKeptDecodeQueue = new TileQueue();
 
     // The width and height of the full-sized bitmap
     protected int mImageWidth = SIZE_UNKNOWN;
@@ -132,7 +140,8 @@ public class TileImageView extends GLView {
     private final TileUploader mTileUploader = new TileUploader();
     private boolean mIsTextureFreed;
     // M: Do region decode in multi-thread @{
-    private static final int TILE_DECODER_NUM = 2;
+    private static final int TILE_DECODER_NUM =
+            Utils.clamp(ThreadPool.CPU_CORES_NUM / 2, 2, 4);
     private ArrayList<Thread> mTileDecoderThread;
     // @}
     private final ThreadPool mThreadPool;
@@ -288,7 +297,20 @@ public class TileImageView extends GLView {
         if (rotation % 90 != 0) return;
 
         synchronized (this) {
-            mDecodeQueue.clean();
+            // Queued tiles which stay in the active range stay queued; the
+            // others are recycled below, which cancels their decoding.
+            Tile queued = mDecodeQueue.pop();
+            while (queued != null) {
+                if (isInActiveRange(queued, fromLevel, endLevel)) {
+                    mKeptDecodeQueue.push(queued);
+                }
+                queued = mDecodeQueue.pop();
+            }
+            queued = mKeptDecodeQueue.pop();
+            while (queued != null) {
+                mDecodeQueue.push(queued);
+                queued = mKeptDecodeQueue.pop();
+            }
             mUploadQueue.clean();
             mBackgroundTileUploaded = false;
 
@@ -297,9 +319,7 @@ public class TileImageView extends GLView {
             int n = mActiveTiles.size();
             for (int i = 0; i < n; i++) {
                 Tile tile = mActiveTiles.valueAt(i);
-                int level = tile.mTileLevel;
-                if (level < fromLevel || level >= endLevel
-                        || !range[level - fromLevel].contains(tile.mX, tile.mY)) {
+                if (!isInActiveRange(tile, fromLevel, endLevel)) {
                     mActiveTiles.removeAt(i);
                     i--;
                     n--;
@@ -320,6 +340,12 @@ public class TileImageView extends GLView {
         invalidate();
     }
 
+    private boolean isInActiveRange(Tile tile, int fromLevel, int endLevel) {
+        int level = tile.mTileLevel;
+        return level >= fromLevel && level < endLevel
+                && mActiveRange[level - fromLevel].contains(tile.mX, tile.mY);
+    }
+
     protected synchronized void invalidateTiles() {
         mDecodeQueue.clean();
         mUploadQueue.clean();
@@ -478,7 +504,8 @@ public class TileImageView extends GLView {
 
     @Override
     protected void render(GLCanvas canvas) {
-        mUploadQuota = UPLOAD_LIMIT;
+        mUploadDeadline = System.nanoTime() + UPLOAD_BUDGET_NS;
+        mUploadedInRender = false;
         mRenderComplete = true;
 
         // M: for performance auto test
@@ -646,12 +673,7 @@ public class TileImageView extends GLView {
     private void activateTile(int x, int y, int level) {
         long key = makeTileKey(x, y, level);
         Tile tile = mActiveTiles.get(key);
-        if (tile != null) {
-            if (tile.mTileState == STATE_IN_QUEUE) {
-                tile.mTileState = STATE_ACTIVATED;
-            }
-            return;
-        }
+        if (tile != null) return;
         tile = obtainTile(x, y, level);
         mActiveTiles.put(key, tile);
     }
@@ -675,9 +697,10 @@ public class TileImageView extends GLView {
             // Skips uploading if there is a pending rendering request.
             // Returns true to keep uploading in next rendering loop.
             if (renderRequested) return true;
-            int quota = UPLOAD_LIMIT;
+            long deadline = System.nanoTime() + UPLOAD_BUDGET_NS;
+            boolean uploaded = false;
             Tile tile = null;
-            while (quota > 0) {
+            while (!uploaded || System.nanoTime() < deadline) {
                 synchronized (TileImageView.this) {
                     tile = mUploadQueue.pop();
                 }
@@ -692,7 +715,7 @@ public class TileImageView extends GLView {
                     ///}@
                     tile.updateContent(canvas);
                     if (!hasBeenLoaded) tile.draw(canvas, 0, 0);
-                    --quota;
+                    uploaded = true;
                 }
             }
             if (tile == null) mActive.set(false);
@@ -713,8 +736,8 @@ public class TileImageView extends GLView {
         if (tile != null) {
             if (!tile.isContentValid()) {
                 if (tile.mTileState == STATE_DECODED) {
-                    if (mUploadQuota > 0) {
-                        --mUploadQuota;
+                    if (!mUploadedInRender || System.nanoTime() < mUploadDeadline) {
+                        mUploadedInRender = true;
                         tile.updateContent(canvas);
                     } else {
                         mRenderComplete = false;
@@ -875,6 +898,35 @@ public class TileImageView extends GLView {
         public void clean() {
             mHead = null;
         }
+
+        // Removes and returns the tile to decode first: the one nearest to
+        // (centerX, centerY), counted in tiles of its own level, with tiles of
+        // other levels than the given one put further away.
+        public Tile popNearest(float centerX, float centerY, int level) {
+            Tile best = null;
+            Tile bestPrev = null;
+            float bestScore = Float.MAX_VALUE;
+            for (Tile prev = null, tile = mHead; tile != null; prev = tile, tile = tile.mNext) {
+                int size = sTileSize << tile.mTileLevel;
+                float dx = (tile.mX + size / 2 - centerX) / size;
+                float dy = (tile.mY + size / 2 - centerY) / size;
+                float score = dx * dx + dy * dy
+                        + Math.abs(tile.mTileLevel - level) * OTHER_LEVEL_PENALTY;
+                if (score < bestScore) {
+                    bestScore = score;
+                    best = tile;
+                    bestPrev = prev;
+                }
+            }
+            if (best != null) {
+                if (bestPrev == null) {
+                    mHead = best.mNext;
+                } else {
+                    bestPrev.mNext = best.mNext;
+                }
+            }
+            return best;
+        }
     }
 
     private class TileDecoder extends Thread {
@@ -883,7 +935,7 @@ public class TileImageView extends GLView {
             while (!isInterrupted()) {
                 Tile tile = null;
                 synchronized(TileImageView.this) {
-                    tile = mDecodeQueue.pop();
+                    tile = mDecodeQueue.popNearest(mCenterX, mCenterY, mLevel);
                     if (tile == null && !isInterrupted()) {
                         MtkLog.i(TAG, "<TileDecoder.run> wait, this = " + TileDecoder.this);
                         try {
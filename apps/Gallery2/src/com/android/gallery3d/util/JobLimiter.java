@@ -21,6 +21,7 @@ import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.LinkedList;
+import java.util.ListIterator;
 
 // Limit the number of concurrent jobs that has been submitted into a ThreadPool
 @SuppressWarnings("rawtypes")
@@ -44,10 +45,12 @@ public class JobLimiter implements FutureListener {
         private Future<T> mDelegate;
         private FutureListener<T> mListener;
         private T mResult;
+        private final int mPriority;
 
-        public JobWrapper(Job<T> job, FutureListener<T> listener) {
+        public JobWrapper(Job<T> job, FutureListener<T> listener, int priority) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
         }
 
         public synchronized void setFuture(Future<T> future) {
@@ -133,9 +136,24 @@ public class JobLimiter implements FutureListener {
         mLimit = limit;
     }
 
-    public synchronized <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        JobWrapper<T> future = new JobWrapper<T>(Utils.checkNotNull(job), listener);
-        mJobs.addLast(future);
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, ThreadPool.PRIORITY_DEFAULT);
+    }
+
+    // The waiting jobs are ordered the way the ThreadPool orders its lanes
+    public synchronized <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority) {
+        JobWrapper<T> future = new JobWrapper<T>(Utils.checkNotNull(job), listener, priority);
+        boolean recentFirst = ThreadPool.isRecentFirst(priority);
+        ListIterator<JobWrapper<?>> it = mJobs.listIterator(mJobs.size());
+        while (it.hasPrevious()) {
+            int p = it.previous().mPriority;
+            if (p < priority || (p == priority && !recentFirst)) {
+                it.next();
+                break;
+            }
+        }
+        it.add(future);
         submitTasksIfAllowed();
         return future;
     }
@@ -146,7 +164,7 @@ public class JobLimiter implements FutureListener {
             JobWrapper wrapper = mJobs.removeFirst();
             if (!wrapper.isCancelled()) {
                 --mLimit;
-                wrapper.setFuture(mPool.submit(wrapper, this));
+                wrapper.setFuture(mPool.submit(wrapper, this, wrapper.mPriority));
             }
         }
     }
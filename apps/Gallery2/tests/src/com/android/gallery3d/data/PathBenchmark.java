@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.gallery3d.util.IdentityCache;
+import com.mediatek.gallery3d.util.MediatekFeature;
+
+import junit.framework.TestCase;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares {@link Path} with the previous implementation, which took the Path.class lock for
+ * every operation, by resolving the paths of a large album from several threads at once the way
+ * the ThreadPool workers and the album loaders do.  It checks that every thread gets the same
+ * interned paths from both, and logs how long a lookup took on average.
+ */
+@LargeTest
+public class PathBenchmark extends TestCase {
+    private static final String TAG = "Gallery2/PathBenchmark";
+
+    // Not a real source, so that no MediaObject of the app is ever attached to these paths
+    private static final String ALBUM = "/benchmark/image/item";
+    private static final String ITEM_PREFIX = ALBUM + "/";
+
+    private static final int MAX_THREADS = 8;
+    private static final int ITEMS = 5000;
+    private static final int ROUNDS = 20;
+
+    /**
+     * The path operations made by a worker, on one of the two implementations.
+     */
+    private interface Resolver {
+        /**
+         * Resolves the path, looks up its object and returns a value depending on both; 5 if
+         * the path has no object and is the same one as the album's child
+         */
+        int resolve(String s, int id);
+    }
+
+    private static class CurrentResolver implements Resolver {
+        private final Path mAlbum = Path.fromString(ALBUM);
+
+        @Override
+        public int resolve(String s, int id) {
+            Path p = Path.fromString(s);
+            MediaObject object = p.getObject();
+            return (object == null ? 0 : 1) + (mAlbum.getChild(id) == p ? 1 : 0)
+                    + p.getParent().getSuffix().length();
+        }
+    }
+
+    private static class LegacyResolver implements Resolver {
+        private final LegacyPath mAlbum = LegacyPath.fromString(ALBUM);
+
+        @Override
+        public int resolve(String s, int id) {
+            LegacyPath p = LegacyPath.fromString(s);
+            MediaObject object = p.getObject();
+            return (object == null ? 0 : 1) + (mAlbum.getChild(id) == p ? 1 : 0)
+                    + p.getParent().getSuffix().length();
+        }
+    }
+
+    public void testLookups() {
+        final String[] paths = new String[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            paths[i] = ITEM_PREFIX + i;
+        }
+        // Keep every path alive, so that both implementations only measure lookups
+        final Object[] keep = new Object[2 * ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            keep[2 * i] = Path.fromString(paths[i]);
+            keep[2 * i + 1] = LegacyPath.fromString(paths[i]);
+        }
+        // Warm up
+        measure(new LegacyResolver(), paths, 1, 1, new AtomicLong());
+        measure(new CurrentResolver(), paths, 1, 1, new AtomicLong());
+
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            AtomicLong legacySum = new AtomicLong();
+            AtomicLong currentSum = new AtomicLong();
+            long legacyNs = measure(new LegacyResolver(), paths, threads, ROUNDS, legacySum);
+            long currentNs = measure(new CurrentResolver(), paths, threads, ROUNDS, currentSum);
+            long ops = (long) threads * ROUNDS * ITEMS;
+            Log.d(TAG, threads + " threads: " + (legacyNs / ops) + "ns per lookup with lock, "
+                    + (currentNs / ops) + "ns lock-free");
+            assertEquals(5 * ops, legacySum.get());
+            assertEquals(5 * ops, currentSum.get());
+        }
+        for (int i = 0; i < ITEMS; i++) {
+            assertSame(keep[2 * i], Path.fromString(paths[i]));
+            assertSame(keep[2 * i + 1], LegacyPath.fromString(paths[i]));
+        }
+    }
+
+    /**
+     * @param total where the sum of the values returned by the resolver is added
+     * @return the wall time taken for all the threads to go through the paths, in ns
+     */
+    private static long measure(final Resolver resolver, final String[] paths,
+            int threadCount, final int rounds, final AtomicLong total) {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t * paths.length / threadCount;
+            new Thread("path-bench-" + t) {
+                @Override
+                public void run() {
+                    int sum = 0;
+                    try {
+                        start.await();
+                        int n = paths.length;
+                        for (int r = 0; r < rounds; r++) {
+                            // Threads start at different items, as they would on a real album
+                            for (int i = 0; i < n; i++) {
+                                int id = (offset + i) % n;
+                                sum += resolver.resolve(paths[id], id);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Just stop
+                    } finally {
+                        total.addAndGet(sum);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * The interning part of Path as it was, with every operation under the Path.class lock.
+     */
+    private static class LegacyPath {
+        private static final LegacyPath sRoot = new LegacyPath(null, "ROOT");
+
+        private final LegacyPath mParent;
+        private final String mSegment;
+        private WeakReference<MediaObject> mObject;
+        private IdentityCache<String, LegacyPath> mChildren;
+        private int mMtkInclusion;
+
+        private LegacyPath(LegacyPath parent, String segment) {
+            mParent = parent;
+            mSegment = segment;
+        }
+
+        LegacyPath getChild(String segment) {
+            String segmentExt = segment;
+            if (MediatekFeature.isDrmSupported()) {
+                segmentExt = segment + "|" + mMtkInclusion;
+            }
+            synchronized (LegacyPath.class) {
+                if (mChildren == null) {
+                    mChildren = new IdentityCache<String, LegacyPath>();
+                } else {
+                    LegacyPath p = mChildren.get(segmentExt);
+                    if (p != null) return p;
+                }
+
+                LegacyPath p = new LegacyPath(this, segment);
+                mChildren.put(segmentExt, p);
+                return p;
+            }
+        }
+
+        LegacyPath getChild(int segment) {
+            return getChild(String.valueOf(segment));
+        }
+
+        LegacyPath getParent() {
+            synchronized (LegacyPath.class) {
+                return mParent;
+            }
+        }
+
+        MediaObject getObject() {
+            synchronized (LegacyPath.class) {
+                return (mObject == null) ? null : mObject.get();
+            }
+        }
+
+        String getSuffix() {
+            return mSegment;
+        }
+
+        static LegacyPath fromString(String s) {
+            synchronized (LegacyPath.class) {
+                String[] segments = Path.split(s);
+                LegacyPath current = sRoot;
+                for (int i = 0; i < segments.length; i++) {
+                    current = current.getChild(segments[i]);
+                }
+                return current;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.exif;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Environment;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.TimeZone;
+
+/**
+ * Compares {@link ExifCursor} with {@link ExifInterface}, reading what the album scan needs:
+ * the orientation, the date taken and the thumbnail.  The corpus is a set of generated JPEGs,
+ * plus the beginning of the files in DCIM/Camera if there are any; everything is read into
+ * memory first, so that only the parsing is measured.  It checks that both readers agree on
+ * every image, and logs how long each took per image.
+ */
+@LargeTest
+public class ExifCursorBenchmark extends TestCase {
+    private static final String TAG = "ExifCursorBenchmark";
+
+    private static final int GENERATED_IMAGES = 32;
+    private static final int ROUNDS = 20;
+
+    // Only the beginning of each camera file is kept; EXIF segments are smaller.
+    private static final int MAX_HEAD_BYTES = 128 * 1024;
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    public void testSameValues() throws IOException {
+        ExifCursor cursor = newCursor();
+        ArrayList<byte[]> corpus = new ArrayList<byte[]>();
+        for (int i = 0; i < GENERATED_IMAGES; i++) {
+            byte[] jpeg = generateJpeg(i);
+            corpus.add(jpeg);
+            assertTrue(cursor.read(jpeg));
+            assertEquals(ExifInterface.getOrientationValueForRotation(ROTATIONS[i % 4]),
+                    cursor.getInt(ExifInterface.TAG_ORIENTATION, 0, 0));
+            assertEquals(i % 2 == 0, cursor.getThumbnailLength() > 0);
+        }
+        corpus.addAll(loadCameraFiles());
+        for (int i = 0; i < corpus.size(); i++) {
+            byte[] jpeg = corpus.get(i);
+            assertEquals("image " + i, readWithInterface(jpeg), readWithCursor(cursor, jpeg));
+        }
+    }
+
+    public void testSpeed() throws IOException {
+        ExifCursor cursor = newCursor();
+        ArrayList<byte[]> corpus = new ArrayList<byte[]>();
+        for (int i = 0; i < GENERATED_IMAGES; i++) {
+            corpus.add(generateJpeg(i));
+        }
+        corpus.addAll(loadCameraFiles());
+
+        // Warm up
+        measure(corpus, null, 1);
+        measure(corpus, cursor, 1);
+
+        long interfaceNs = measure(corpus, null, ROUNDS);
+        long cursorNs = measure(corpus, cursor, ROUNDS);
+        long images = (long) corpus.size() * ROUNDS;
+        Log.d(TAG, corpus.size() + " files: " + (interfaceNs / images / 1000)
+                + "us per image with ExifInterface, " + (cursorNs / images / 1000)
+                + "us with ExifCursor");
+    }
+
+    private static ExifCursor newCursor() {
+        return new ExifCursor(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.TAG_DATE_TIME_ORIGINAL,
+                ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
+                ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+    }
+
+    /**
+     * Makes a JPEG with the tags a camera writes for the scan: an orientation, a date taken and,
+     * for even indices, a thumbnail.
+     */
+    private static byte[] generateJpeg(int i) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(640, 480, Bitmap.Config.ARGB_8888);
+        new Canvas(bitmap).drawColor(Color.rgb(i * 8, 255 - i * 8, 128));
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, image);
+
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(ROTATIONS[i % 4])));
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME_ORIGINAL,
+                1388577600000L + i * 60000L, TimeZone.getTimeZone("UTC"));
+        if (i % 2 == 0) {
+            Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, 160, 120, true);
+            exif.setCompressedThumbnail(thumbnail);
+            thumbnail.recycle();
+        }
+        bitmap.recycle();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(image.toByteArray(), out);
+        return out.toByteArray();
+    }
+
+    private static ArrayList<byte[]> loadCameraFiles() throws IOException {
+        ArrayList<byte[]> corpus = new ArrayList<byte[]>();
+        File dir = new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DCIM), "Camera");
+        File[] files = dir.listFiles();
+        if (files == null) return corpus;
+        byte[] buffer = new byte[MAX_HEAD_BYTES];
+        for (File file : files) {
+            String name = file.getName().toLowerCase();
+            if (!name.endsWith(".jpg") && !name.endsWith(".jpeg")) continue;
+            InputStream in = new FileInputStream(file);
+            try {
+                int length = 0;
+                int r;
+                while (length < buffer.length
+                        && (r = in.read(buffer, length, buffer.length - length)) > 0) {
+                    length += r;
+                }
+                byte[] head = new byte[length];
+                System.arraycopy(buffer, 0, head, 0, length);
+                corpus.add(head);
+            } finally {
+                in.close();
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * @return the wall time taken to parse the corpus, in ns
+     */
+    private static long measure(ArrayList<byte[]> corpus, ExifCursor cursor, int rounds) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0, n = corpus.size(); i < n; i++) {
+                byte[] jpeg = corpus.get(i);
+                sum += (cursor == null) ? readWithInterface(jpeg) : readWithCursor(cursor, jpeg);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(sum != 0);
+        return elapsed;
+    }
+
+    // Returns a value depending on the orientation, date and thumbnail
+    private static long readWithInterface(byte[] jpeg) {
+        ExifInterface exif = new ExifInterface();
+        try {
+            exif.readExif(new ByteArrayInputStream(jpeg));
+        } catch (IOException e) {
+            return 0;
+        }
+        Integer orientation = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+        String date = exif.getTagStringValue(ExifInterface.TAG_DATE_TIME_ORIGINAL);
+        byte[] thumbnail = exif.getThumbnail();
+        return combine(orientation == null ? 0 : orientation, date,
+                thumbnail == null ? 0 : thumbnail.length);
+    }
+
+    private static long readWithCursor(ExifCursor cursor, byte[] jpeg) {
+        if (!cursor.read(jpeg)) return 0;
+        return combine(cursor.getInt(ExifInterface.TAG_ORIENTATION, 0, 0),
+                cursor.getString(ExifInterface.TAG_DATE_TIME_ORIGINAL),
+                cursor.getThumbnailLength());
+    }
+
+    private static long combine(int orientation, String date, int thumbnailLength) {
+        long hash = orientation;
+        hash = hash * 31 + (date == null ? 0 : date.trim().hashCode());
+        return hash * 31 + thumbnailLength;
+    }
+}
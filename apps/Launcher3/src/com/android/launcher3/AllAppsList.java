@@ -167,6 +167,7 @@ class AllAppsList {
             if (packageName.equals(component.getPackageName())) {
                 removed.add(info);
                 data.remove(i);
+                mIconCache.remove(component);
             }
         }
         // This is more aggressive than it needs to be.
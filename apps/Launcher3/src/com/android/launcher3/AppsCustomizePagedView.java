@@ -1504,9 +1504,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
 
         // Prepare the set of widgets to load previews for in the background
         int offset = page * numItemsPerPage;
-        for (int i = offset; i < Math.min(offset + numItemsPerPage, mWidgets.size()); ++i) {
-            items.add(mWidgets.get(i));
-        }
+        getWidgetPageItems(page, items);
         if (LauncherLog.DEBUG) {
             LauncherLog.d(TAG, "syncWidgetPageItems: page = " + page + ", immediate = " + immediate
                     + ", numItemsPerPage = " + numItemsPerPage
@@ -1612,6 +1610,34 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
             }
         });
     }
+    private void getWidgetPageItems(int page, ArrayList<Object> items) {
+        int numItemsPerPage = mWidgetCountX * mWidgetCountY;
+        int offset = page * numItemsPerPage;
+        for (int i = offset; i < Math.min(offset + numItemsPerPage, mWidgets.size()); ++i) {
+            items.add(mWidgets.get(i));
+        }
+    }
+
+    /**
+     * Prefetch the stored previews of the widget pages just outside of the loaded ones, so that
+     * they show up without a decode when the user swipes to them.
+     */
+    private void prefetchAdjacentWidgetPages() {
+        if (mWidgetPreviewLoader == null || mContentType != ContentType.Widgets) {
+            return;
+        }
+        final ArrayList<Object> items = new ArrayList<Object>();
+        final int upper = getAssociatedUpperPageBound(mCurrentPage) + 1;
+        final int lower = getAssociatedLowerPageBound(mCurrentPage) - 1;
+        if (upper >= 0 && upper < mNumWidgetPages) {
+            getWidgetPageItems(upper, items);
+        }
+        if (lower >= 0 && lower < mNumWidgetPages) {
+            getWidgetPageItems(lower, items);
+        }
+        mWidgetPreviewLoader.prefetch(items);
+    }
+
     private void loadWidgetPreviewsInBackground(AppsCustomizeAsyncTask task,
             AsyncTaskPageData data) {
         // loadWidgetPreviewsInBackground can be called without a task to load a set of widget
@@ -1662,6 +1688,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
                     + ", count = " + count + ", this = " + this);
             }
             enableHwLayersOnVisiblePages();
+            prefetchAdjacentWidgetPages();
 
             // Update all thread priorities
             Iterator<AppsCustomizeAsyncTask> iter = mRunningTasks.iterator();
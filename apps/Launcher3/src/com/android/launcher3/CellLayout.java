@@ -88,8 +88,8 @@ public class CellLayout extends ViewGroup {
     private final int[] mTmpPoint = new int[2];
     int[] mTempLocation = new int[2];
 
-    boolean[][] mOccupied;
-    boolean[][] mTmpOccupied;
+    GridOccupancy mOccupied;
+    GridOccupancy mTmpOccupied;
     private boolean mLastDownOnOccupiedCell = false;
 
     private OnTouchListener mInterceptTouchListener;
@@ -165,6 +165,7 @@ public class CellLayout extends ViewGroup {
     private float mReorderHintAnimationMagnitude;
 
     private ArrayList<View> mIntersectingViews = new ArrayList<View>();
+    private final ReorderCache mReorderCache = new ReorderCache();
     private Rect mOccupiedRect = new Rect();
     private int[] mDirectionVector = new int[2];
     int[] mPreviousReorderDirection = new int[2];
@@ -209,8 +210,8 @@ public class CellLayout extends ViewGroup {
         mMaxGap = Integer.MAX_VALUE;
         mCountX = (int) grid.numColumns;
         mCountY = (int) grid.numRows;
-        mOccupied = new boolean[mCountX][mCountY];
-        mTmpOccupied = new boolean[mCountX][mCountY];
+        mOccupied = new GridOccupancy(mCountX, mCountY);
+        mTmpOccupied = new GridOccupancy(mCountX, mCountY);
         mPreviousReorderDirection[0] = INVALID_DIRECTION;
         mPreviousReorderDirection[1] = INVALID_DIRECTION;
 
@@ -328,8 +329,8 @@ public class CellLayout extends ViewGroup {
     public void setGridSize(int x, int y) {
         mCountX = x;
         mCountY = y;
-        mOccupied = new boolean[mCountX][mCountY];
-        mTmpOccupied = new boolean[mCountX][mCountY];
+        mOccupied = new GridOccupancy(mCountX, mCountY);
+        mTmpOccupied = new GridOccupancy(mCountX, mCountY);
         mTempRectStack.clear();
         mShortcutsAndWidgets.setCellDimensions(mCellWidth, mCellHeight, mWidthGap, mHeightGap,
                 mCountX, mCountY);
@@ -466,7 +467,7 @@ public class CellLayout extends ViewGroup {
             cd.setBounds(0, 0,  mCellWidth, mCellHeight);
             for (int i = 0; i < mCountX; i++) {
                 for (int j = 0; j < mCountY; j++) {
-                    if (mOccupied[i][j]) {
+                    if (mOccupied.isOccupied(i, j)) {
                         cellToPoint(i, j, pt);
                         canvas.save();
                         canvas.translate(pt[0], pt[1]);
@@ -1119,7 +1120,7 @@ public class CellLayout extends ViewGroup {
     public boolean animateChildToPosition(final View child, int cellX, int cellY, int duration,
             int delay, boolean permanent, boolean adjustOccupied) {
         ShortcutAndWidgetContainer clc = getShortcutsAndWidgets();
-        boolean[][] occupied = mOccupied;
+        GridOccupancy occupied = mOccupied;
         if (!permanent) {
             occupied = mTmpOccupied;
         }
@@ -1137,8 +1138,8 @@ public class CellLayout extends ViewGroup {
             final int oldX = lp.x;
             final int oldY = lp.y;
             if (adjustOccupied) {
-                occupied[lp.cellX][lp.cellY] = false;
-                occupied[cellX][cellY] = true;
+                occupied.markCells(lp.cellX, lp.cellY, 1, 1, false);
+                occupied.markCells(cellX, cellY, 1, 1, true);
             }
             lp.isLockedToGrid = true;
             if (permanent) {
@@ -1394,7 +1395,7 @@ public class CellLayout extends ViewGroup {
      */
     int[] findNearestArea(int pixelX, int pixelY, int minSpanX, int minSpanY, int spanX, int spanY,
             View ignoreView, boolean ignoreOccupied, int[] result, int[] resultSpan,
-            boolean[][] occupied) {
+            GridOccupancy occupied) {
         lazyInitTempRectStack();
         // mark space take by ignoreView as available (method checks if ignoreView is null)
         markCellsAsUnoccupiedForView(ignoreView, occupied);
@@ -1420,18 +1421,13 @@ public class CellLayout extends ViewGroup {
         }
 
         for (int y = 0; y < countY - (minSpanY - 1); y++) {
-            inner:
             for (int x = 0; x < countX - (minSpanX - 1); x++) {
                 int ySize = -1;
                 int xSize = -1;
                 if (ignoreOccupied) {
                     // First, let's see if this thing fits anywhere
-                    for (int i = 0; i < minSpanX; i++) {
-                        for (int j = 0; j < minSpanY; j++) {
-                            if (occupied[x + i][y + j]) {
-                                continue inner;
-                            }
-                        }
+                    if (!occupied.isRegionVacant(x, y, minSpanX, minSpanY)) {
+                        continue;
                     }
                     xSize = minSpanX;
                     ySize = minSpanY;
@@ -1444,21 +1440,19 @@ public class CellLayout extends ViewGroup {
                     boolean hitMaxY = ySize >= spanY;
                     while (!(hitMaxX && hitMaxY)) {
                         if (incX && !hitMaxX) {
-                            for (int j = 0; j < ySize; j++) {
-                                if (x + xSize > countX -1 || occupied[x + xSize][y + j]) {
-                                    // We can't move out horizontally
-                                    hitMaxX = true;
-                                }
+                            if (x + xSize > countX - 1 ||
+                                    !occupied.isRegionVacant(x + xSize, y, 1, ySize)) {
+                                // We can't move out horizontally
+                                hitMaxX = true;
                             }
                             if (!hitMaxX) {
                                 xSize++;
                             }
                         } else if (!hitMaxY) {
-                            for (int i = 0; i < xSize; i++) {
-                                if (y + ySize > countY - 1 || occupied[x + i][y + ySize]) {
-                                    // We can't move out vertically
-                                    hitMaxY = true;
-                                }
+                            if (y + ySize > countY - 1 ||
+                                    !occupied.isRegionVacant(x, y + ySize, xSize, 1)) {
+                                // We can't move out vertically
+                                hitMaxY = true;
                             }
                             if (!hitMaxY) {
                                 ySize++;
@@ -1529,16 +1523,16 @@ public class CellLayout extends ViewGroup {
      * @param direction The favored direction in which the views should move from x, y
      * @param exactDirectionOnly If this parameter is true, then only solutions where the direction
      *        matches exactly. Otherwise we find the best matching direction.
-     * @param occoupied The array which represents which cells in the CellLayout are occupied
-     * @param blockOccupied The array which represents which cells in the specified block (cellX,
-     *        cellY, spanX, spanY) are occupied. This is used when try to move a group of views.
+     * @param occoupied Which cells in the CellLayout are occupied
+     * @param blockOccupied Which cells in the specified block (cellX, cellY, spanX, spanY) are
+     *        occupied. This is used when try to move a group of views.
      * @param result Array in which to place the result, or null (in which case a new array will
      *        be allocated)
      * @return The X, Y cell of a vacant area that can contain this object,
      *         nearest the requested location.
      */
     private int[] findNearestArea(int cellX, int cellY, int spanX, int spanY, int[] direction,
-            boolean[][] occupied, boolean blockOccupied[][], int[] result) {
+            GridOccupancy occupied, GridOccupancy blockOccupied, int[] result) {
         // Keep track of best-scoring drop area
         final int[] bestXY = result != null ? result : new int[2];
         float bestDistance = Float.MAX_VALUE;
@@ -1548,15 +1542,11 @@ public class CellLayout extends ViewGroup {
         final int countY = mCountY;
 
         for (int y = 0; y < countY - (spanY - 1); y++) {
-            inner:
             for (int x = 0; x < countX - (spanX - 1); x++) {
                 // First, let's see if this thing fits anywhere
-                for (int i = 0; i < spanX; i++) {
-                    for (int j = 0; j < spanY; j++) {
-                        if (occupied[x + i][y + j] && (blockOccupied == null || blockOccupied[i][j])) {
-                            continue inner;
-                        }
-                    }
+                if (blockOccupied == null ? !occupied.isRegionVacant(x, y, spanX, spanY)
+                        : !occupied.isRegionVacant(x, y, blockOccupied)) {
+                    continue;
                 }
 
                 float distance = (float)
@@ -1959,7 +1949,8 @@ public class CellLayout extends ViewGroup {
             markCellsForView(c.x, c.y, c.spanX, c.spanY, mTmpOccupied, false);
         }
 
-        boolean[][] blockOccupied = new boolean[boundingRect.width()][boundingRect.height()];
+        GridOccupancy blockOccupied = new GridOccupancy(boundingRect.width(),
+                boundingRect.height());
         int top = boundingRect.top;
         int left = boundingRect.left;
         // We mark more precisely which parts of the bounding rect are truly occupied, allowing
@@ -1994,7 +1985,7 @@ public class CellLayout extends ViewGroup {
         return success;
     }
 
-    private void markCellsForRect(Rect r, boolean[][] occupied, boolean value) {
+    private void markCellsForRect(Rect r, GridOccupancy occupied, boolean value) {
         markCellsForView(r.left, r.top, r.width(), r.height(), occupied, value);
     }
 
@@ -2100,6 +2091,25 @@ public class CellLayout extends ViewGroup {
         // Return early if get invalid cell positions
         if (cellX < 0 || cellY < 0) return false;
 
+        // The search always starts from the committed positions (see simpleSwap()), so while
+        // those don't change its outcome only depends on the arguments.
+        final int key = mReorderCache.getKey(cellX, cellY, spanX, spanY, direction);
+        if (key >= 0) {
+            final ReorderResult cached = mReorderCache.results.get(key);
+            if (cached != null) {
+                return cached.apply(solution, direction);
+            }
+        }
+        final boolean success = searchRearrangement(cellX, cellY, spanX, spanY, direction,
+                ignoreView, solution);
+        if (key >= 0) {
+            mReorderCache.put(key, success, solution, direction);
+        }
+        return success;
+    }
+
+    private boolean searchRearrangement(int cellX, int cellY, int spanX, int spanY,
+            int[] direction, View ignoreView, ItemConfiguration solution) {
         mIntersectingViews.clear();
         mOccupiedRect.set(cellX, cellY, cellX + spanX, cellY + spanY);
 
@@ -2166,12 +2176,8 @@ public class CellLayout extends ViewGroup {
         }
     }
 
-    private void copyOccupiedArray(boolean[][] occupied) {
-        for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                occupied[i][j] = mOccupied[i][j];
-            }
-        }
+    private void copyOccupiedArray(GridOccupancy occupied) {
+        mOccupied.copyTo(occupied);
     }
 
     ItemConfiguration simpleSwap(int pixelX, int pixelY, int minSpanX, int minSpanY, int spanX,
@@ -2230,11 +2236,7 @@ public class CellLayout extends ViewGroup {
     }
 
     private void copySolutionToTempState(ItemConfiguration solution, View dragView) {
-        for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                mTmpOccupied[i][j] = false;
-            }
-        }
+        mTmpOccupied.clear();
 
         int childCount = mShortcutsAndWidgets.getChildCount();
         for (int i = 0; i < childCount; i++) {
@@ -2257,12 +2259,8 @@ public class CellLayout extends ViewGroup {
     private void animateItemsToSolution(ItemConfiguration solution, View dragView, boolean
             commitDragView) {
 
-        boolean[][] occupied = DESTRUCTIVE_REORDER ? mOccupied : mTmpOccupied;
-        for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                occupied[i][j] = false;
-            }
-        }
+        GridOccupancy occupied = DESTRUCTIVE_REORDER ? mOccupied : mTmpOccupied;
+        occupied.clear();
 
         int childCount = mShortcutsAndWidgets.getChildCount();
         for (int i = 0; i < childCount; i++) {
@@ -2420,11 +2418,7 @@ public class CellLayout extends ViewGroup {
     }
 
     private void commitTempPlacement() {
-        for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                mOccupied[i][j] = mTmpOccupied[i][j];
-            }
-        }
+        mTmpOccupied.copyTo(mOccupied);
         int childCount = mShortcutsAndWidgets.getChildCount();
         for (int i = 0; i < childCount; i++) {
             View child = mShortcutsAndWidgets.getChildAt(i);
@@ -2578,6 +2572,7 @@ public class CellLayout extends ViewGroup {
         regionToCenterPoint(cellX, cellY, spanX, spanY, pixelXY);
 
         // First we determine if things have moved enough to cause a different layout
+        mReorderCache.validate(dragView);
         ItemConfiguration swapSolution = simpleSwap(pixelXY[0], pixelXY[1], spanX, spanY,
                  spanX,  spanY, direction, dragView,  true,  new ItemConfiguration());
 
@@ -2630,6 +2625,7 @@ public class CellLayout extends ViewGroup {
             mPreviousReorderDirection[1] = mDirectionVector[1];
         }
 
+        mReorderCache.validate(dragView);
         ItemConfiguration swapSolution = simpleSwap(pixelX, pixelY, minSpanX, minSpanY,
                  spanX,  spanY, mDirectionVector, dragView,  true,  new ItemConfiguration());
 
@@ -2695,6 +2691,151 @@ public class CellLayout extends ViewGroup {
         return mItemPlacementDirty;
     }
 
+    /**
+     * Used by benchmarks to compare the reorder search with and without {@link ReorderCache}.
+     */
+    void setReorderCacheEnabled(boolean enabled) {
+        mReorderCache.enabled = enabled;
+        mReorderCache.reset();
+    }
+
+    /**
+     * The outcome of a rearrangementExists() search: whether it succeeded, where it moved each
+     * of the children, and the direction it left behind.
+     */
+    private class ReorderResult {
+        final boolean success;
+        final int directionX, directionY;
+        // x, y of each of ReorderCache.children; null if the search failed
+        final int[] cells;
+
+        ReorderResult(boolean success, int[] direction, View[] children,
+                ItemConfiguration solution) {
+            this.success = success;
+            directionX = direction[0];
+            directionY = direction[1];
+            if (success) {
+                cells = new int[children.length * 2];
+                for (int i = 0; i < children.length; i++) {
+                    CellAndSpan c = solution.map.get(children[i]);
+                    if (c != null) {
+                        cells[2 * i] = c.x;
+                        cells[2 * i + 1] = c.y;
+                    }
+                }
+            } else {
+                cells = null;
+            }
+        }
+
+        boolean apply(ItemConfiguration solution, int[] direction) {
+            direction[0] = directionX;
+            direction[1] = directionY;
+            if (success) {
+                final View[] children = mReorderCache.children;
+                for (int i = 0; i < children.length; i++) {
+                    CellAndSpan c = solution.map.get(children[i]);
+                    if (c != null) {
+                        c.x = cells[2 * i];
+                        c.y = cells[2 * i + 1];
+                    }
+                }
+            }
+            return success;
+        }
+    }
+
+    /**
+     * Remembers the outcome of the reorder search for each (cell, span, direction) tried during
+     * a drag, so that moving back and forth over the same cells doesn't search again.  It holds
+     * for as long as the committed layout and the dragged view stay the same.
+     */
+    private class ReorderCache {
+        private static final int MAX_RESULTS = 256;
+        // Bits per cell coordinate or span in a key
+        private static final int KEY_BITS = 6;
+        private static final int KEY_MAX = (1 << KEY_BITS) - 1;
+
+        boolean enabled = true;
+        final SparseArray<ReorderResult> results = new SparseArray<ReorderResult>();
+
+        // The state the results were computed from
+        View[] children = new View[0];
+        private int[] mChildCells = new int[0];
+        private View mDragView;
+        private GridOccupancy mOccupiedSnapshot;
+
+        void reset() {
+            results.clear();
+            mOccupiedSnapshot = null;
+        }
+
+        /**
+         * Drops the cached results if the committed layout or the dragged view changed since
+         * they were computed.
+         */
+        void validate(View dragView) {
+            if (!enabled) {
+                return;
+            }
+            final int count = mShortcutsAndWidgets.getChildCount();
+            boolean valid = mOccupiedSnapshot != null && dragView == mDragView &&
+                    count == children.length && mOccupied.contentEquals(mOccupiedSnapshot);
+            for (int i = 0; valid && i < count; i++) {
+                final View child = mShortcutsAndWidgets.getChildAt(i);
+                final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+                valid = child == children[i] && lp.cellX == mChildCells[4 * i] &&
+                        lp.cellY == mChildCells[4 * i + 1] &&
+                        lp.cellHSpan == mChildCells[4 * i + 2] &&
+                        lp.cellVSpan == mChildCells[4 * i + 3];
+            }
+            if (valid) {
+                return;
+            }
+
+            results.clear();
+            mDragView = dragView;
+            if (children.length != count) {
+                children = new View[count];
+                mChildCells = new int[4 * count];
+            }
+            for (int i = 0; i < count; i++) {
+                final View child = mShortcutsAndWidgets.getChildAt(i);
+                final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+                children[i] = child;
+                mChildCells[4 * i] = lp.cellX;
+                mChildCells[4 * i + 1] = lp.cellY;
+                mChildCells[4 * i + 2] = lp.cellHSpan;
+                mChildCells[4 * i + 3] = lp.cellVSpan;
+            }
+            if (mOccupiedSnapshot == null || mOccupiedSnapshot.countX != mCountX ||
+                    mOccupiedSnapshot.countY != mCountY) {
+                mOccupiedSnapshot = new GridOccupancy(mCountX, mCountY);
+            }
+            mOccupied.copyTo(mOccupiedSnapshot);
+        }
+
+        /**
+         * @return the key for the given search, or -1 if it can't be cached
+         */
+        int getKey(int cellX, int cellY, int spanX, int spanY, int[] direction) {
+            if (!enabled || mOccupiedSnapshot == null || cellX > KEY_MAX || cellY > KEY_MAX ||
+                    spanX > KEY_MAX || spanY > KEY_MAX ||
+                    Math.abs(direction[0]) > 1 || Math.abs(direction[1]) > 1) {
+                return -1;
+            }
+            return ((((cellX << KEY_BITS | cellY) << KEY_BITS | spanX) << KEY_BITS | spanY) << 4)
+                    | ((direction[0] + 1) << 2) | (direction[1] + 1);
+        }
+
+        void put(int key, boolean success, ItemConfiguration solution, int[] direction) {
+            if (results.size() >= MAX_RESULTS) {
+                results.clear();
+            }
+            results.put(key, new ReorderResult(success, direction, children, solution));
+        }
+    }
+
     private class ItemConfiguration {
         HashMap<View, CellAndSpan> map = new HashMap<View, CellAndSpan>();
         private HashMap<View, CellAndSpan> savedMap = new HashMap<View, CellAndSpan>();
@@ -2869,7 +3010,7 @@ public class CellLayout extends ViewGroup {
      * The superset of the above two methods
      */
     boolean findCellForSpanThatIntersectsIgnoring(int[] cellXY, int spanX, int spanY,
-            int intersectX, int intersectY, View ignoreView, boolean occupied[][]) {
+            int intersectX, int intersectY, View ignoreView, GridOccupancy occupied) {
         // mark space take by ignoreView as available (method checks if ignoreView is null)
         markCellsAsUnoccupiedForView(ignoreView, occupied);
 
@@ -2893,17 +3034,13 @@ public class CellLayout extends ViewGroup {
             }
 
             for (int y = startY; y < endY && !foundCell; y++) {
-                inner:
                 for (int x = startX; x < endX; x++) {
-                    for (int i = 0; i < spanX; i++) {
-                        for (int j = 0; j < spanY; j++) {
-                            if (occupied[x + i][y + j]) {
-                                // small optimization: we can skip to after the column we just found
-                                // an occupied cell
-                                x += i;
-                                continue inner;
-                            }
-                        }
+                    final int i = occupied.firstOccupiedColumn(x, y, spanX, spanY);
+                    if (i >= 0) {
+                        // small optimization: we can skip to after the column we just found
+                        // an occupied cell
+                        x += i;
+                        continue;
                     }
                     if (cellXY != null) {
                         cellXY[0] = x;
@@ -3087,8 +3224,7 @@ public class CellLayout extends ViewGroup {
      * @return True if a vacant cell was found
      */
     public boolean getVacantCell(int[] vacant, int spanX, int spanY) {
-
-        return findVacantCell(vacant, spanX, spanY, mCountX, mCountY, mOccupied);
+        return mOccupied.findVacantCell(vacant, spanX, spanY);
     }
 
     static boolean findVacantCell(int[] vacant, int spanX, int spanY,
@@ -3116,11 +3252,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
     }
 
     private void clearOccupiedCells() {
-        for (int x = 0; x < mCountX; x++) {
-            for (int y = 0; y < mCountY; y++) {
-                mOccupied[x][y] = false;
-            }
-        }
+        mOccupied.clear();
     }
 
     public void onMove(View view, int newCellX, int newCellY, int newSpanX, int newSpanY) {
@@ -3131,7 +3263,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
     public void markCellsAsOccupiedForView(View view) {
         markCellsAsOccupiedForView(view, mOccupied);
     }
-    public void markCellsAsOccupiedForView(View view, boolean[][] occupied) {
+    public void markCellsAsOccupiedForView(View view, GridOccupancy occupied) {
         if (view == null || view.getParent() != mShortcutsAndWidgets) return;
         LayoutParams lp = (LayoutParams) view.getLayoutParams();
         markCellsForView(lp.cellX, lp.cellY, lp.cellHSpan, lp.cellVSpan, occupied, true);
@@ -3140,20 +3272,15 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
     public void markCellsAsUnoccupiedForView(View view) {
         markCellsAsUnoccupiedForView(view, mOccupied);
     }
-    public void markCellsAsUnoccupiedForView(View view, boolean occupied[][]) {
+    public void markCellsAsUnoccupiedForView(View view, GridOccupancy occupied) {
         if (view == null || view.getParent() != mShortcutsAndWidgets) return;
         LayoutParams lp = (LayoutParams) view.getLayoutParams();
         markCellsForView(lp.cellX, lp.cellY, lp.cellHSpan, lp.cellVSpan, occupied, false);
     }
 
-    private void markCellsForView(int cellX, int cellY, int spanX, int spanY, boolean[][] occupied,
-            boolean value) {
-        if (cellX < 0 || cellY < 0) return;
-        for (int x = cellX; x < cellX + spanX && x < mCountX; x++) {
-            for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
-                occupied[x][y] = value;
-            }
-        }
+    private void markCellsForView(int cellX, int cellY, int spanX, int spanY,
+            GridOccupancy occupied, boolean value) {
+        occupied.markCells(cellX, cellY, spanX, spanY, value);
     }
 
     public int getDesiredWidth() {
@@ -3168,7 +3295,7 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
 
     public boolean isOccupied(int x, int y) {
         if (x < mCountX && y < mCountY) {
-            return mOccupied[x][y];
+            return mOccupied.isOccupied(x, y);
         } else {
             throw new RuntimeException("Position exceeds the bound of this CellLayout");
         }
@@ -87,6 +87,16 @@ public class DeferredHandler {
         }
     }
 
+    /** Schedule runnable to run before everything that's on the queue right now. */
+    public void postAtFrontOfQueue(Runnable runnable, int type) {
+        synchronized (mQueue) {
+            mQueue.addFirst(new Pair<Runnable, Integer>(runnable, type));
+            if (mQueue.size() == 1) {
+                scheduleNextLocked();
+            }
+        }
+    }
+
     /** Schedule runnable to run when the queue goes idle. */
     public void postIdle(final Runnable runnable) {
         postIdle(runnable, 0);
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import java.util.Arrays;
+
+/**
+ * Which cells of a {@link CellLayout} grid are occupied, one bit per cell.
+ *
+ * Each row is a bitmask, so a span of cells in a row is tested or marked with a single mask
+ * operation, and none of the queries allocate.
+ */
+class GridOccupancy {
+    private static final int MAX_COLUMNS = 64;
+
+    final int countX;
+    final int countY;
+
+    // Bit x of mRows[y] is set if cell (x, y) is occupied
+    private final long[] mRows;
+
+    GridOccupancy(int countX, int countY) {
+        if (countX > MAX_COLUMNS) {
+            throw new IllegalArgumentException("Too many columns: " + countX);
+        }
+        this.countX = countX;
+        this.countY = countY;
+        mRows = new long[countY];
+    }
+
+    private static long spanMask(int x, int spanX) {
+        return ((spanX >= MAX_COLUMNS) ? -1L : ((1L << spanX) - 1)) << x;
+    }
+
+    boolean isOccupied(int x, int y) {
+        return (mRows[y] & (1L << x)) != 0;
+    }
+
+    /**
+     * Marks the cells of the given region, clipped to the grid.  Nothing is marked if the
+     * region starts at a negative cell.
+     */
+    void markCells(int cellX, int cellY, int spanX, int spanY, boolean value) {
+        if (cellX < 0 || cellY < 0) return;
+        final int endX = Math.min(cellX + spanX, countX);
+        final int endY = Math.min(cellY + spanY, countY);
+        if (endX <= cellX) return;
+        final long mask = spanMask(cellX, endX - cellX);
+        for (int y = cellY; y < endY; y++) {
+            if (value) {
+                mRows[y] |= mask;
+            } else {
+                mRows[y] &= ~mask;
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(mRows, 0);
+    }
+
+    void copyTo(GridOccupancy dest) {
+        System.arraycopy(mRows, 0, dest.mRows, 0, countY);
+    }
+
+    boolean contentEquals(GridOccupancy other) {
+        return countX == other.countX && Arrays.equals(mRows, other.mRows);
+    }
+
+    /**
+     * @return whether none of the cells of the region, which must lie within the grid, are
+     *         occupied
+     */
+    boolean isRegionVacant(int x, int y, int spanX, int spanY) {
+        final long mask = spanMask(x, spanX);
+        for (int j = y; j < y + spanY; j++) {
+            if ((mRows[j] & mask) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the occupied cells of the block, with its top left corner at (x, y), all
+     *         fall on vacant cells of this grid.  The block must lie within the grid.
+     */
+    boolean isRegionVacant(int x, int y, GridOccupancy block) {
+        for (int j = 0; j < block.countY; j++) {
+            if ((mRows[y + j] & (block.mRows[j] << x)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the offset from x of the leftmost column of the region that has an occupied
+     *         cell, or -1 if the region is vacant
+     */
+    int firstOccupiedColumn(int x, int y, int spanX, int spanY) {
+        long bits = 0;
+        for (int j = y; j < y + spanY; j++) {
+            bits |= mRows[j];
+        }
+        bits = (bits >>> x) & spanMask(0, spanX);
+        return (bits == 0) ? -1 : Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Finds the first vacant region of the given span, scanning rows from the top.
+     *
+     * @return true if one was found, in which case its top left cell is put in vacant
+     */
+    boolean findVacantCell(int[] vacant, int spanX, int spanY) {
+        for (int y = 0; y + spanY <= countY; y++) {
+            for (int x = 0; x + spanX <= countX; x++) {
+                if (isRegionVacant(x, y, spanX, spanY)) {
+                    vacant[0] = x;
+                    vacant[1] = y;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -20,23 +20,39 @@ import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ContentValues;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 
 import com.mediatek.common.featureoption.FeatureOption;
 import com.mediatek.launcher3.ext.LauncherLog;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * Icons and labels are also persisted in {@link IconDb}, so that after a restart they can be
+ * decoded from the database instead of loading every app's resources again.  A persisted entry
+ * is only used if the package's version, the icon size and the locale are still the same.
  */
 public class IconCache {
     @SuppressWarnings("unused")
@@ -56,6 +72,33 @@ public class IconCache {
             new HashMap<ComponentName, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
     private int mIconDpi;
 
+    private static class PersistedEntry {
+        int versionCode;
+        long lastUpdateTime;
+        String title;
+        byte[] icon;
+    }
+
+    private final IconDb mIconDb;
+
+    // Everything below is guarded by mIconDb.
+    // Entries read from mIconDb that haven't been used yet; null until read.
+    private HashMap<ComponentName, PersistedEntry> mPersisted;
+    private int mPersistedIconSize;
+    private String mPersistedLocale;
+    private final HashMap<String, PackageInfo> mPackageInfos = new HashMap<String, PackageInfo>();
+    // Bumped whenever mPackageInfos is cleared, so that package manager results read while it
+    // was being cleared aren't kept.
+    private int mPackageInfoGeneration;
+    // Persisted entries used before their package was checked; see scheduleCheckLocked()
+    private final HashMap<ComponentName, PersistedEntry> mPendingChecks =
+            new HashMap<ComponentName, PersistedEntry>();
+    private boolean mCheckScheduled;
+    // Entries to write to mIconDb, or remove from it if null
+    private final LinkedHashMap<ComponentName, CacheEntry> mPendingWrites =
+            new LinkedHashMap<ComponentName, CacheEntry>();
+    private boolean mWriteScheduled;
+
     public IconCache(Context context) {
         ActivityManager activityManager =
                 (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
@@ -66,6 +109,7 @@ public class IconCache {
         if (LauncherLog.DEBUG) {
             LauncherLog.d(TAG, "IconCache, mIconDpi = " + mIconDpi);
         }
+        mIconDb = new IconDb(context);
 
         // need to set mIconDpi before getting default icon
         mDefaultIcon = makeDefaultIcon();
@@ -143,6 +187,17 @@ public class IconCache {
         synchronized (mCache) {
             mCache.remove(componentName);
         }
+        // The package has changed or is gone; forget what we know about it.
+        synchronized (mIconDb) {
+            if (mPersisted != null) {
+                mPersisted.remove(componentName);
+            }
+            mPackageInfos.remove(componentName.getPackageName());
+            mPackageInfoGeneration++;
+            mPendingChecks.remove(componentName);
+            mPendingWrites.put(componentName, null);
+            scheduleWriteLocked();
+        }
     }
 
     /**
@@ -160,6 +215,14 @@ public class IconCache {
 
             mCache.clear();
 
+            // The persisted entries stay valid, but the locale may have changed, so read them
+            // again when they are needed.
+            synchronized (mIconDb) {
+                mPersisted = null;
+                mPackageInfos.clear();
+                mPackageInfoGeneration++;
+            }
+
             /// M: Add for smart book feature. Need to update mIconDpi when plug in/out smart book.
             if (FeatureOption.MTK_SMARTBOOK_SUPPORT) {
                 ActivityManager activityManager =
@@ -260,31 +323,44 @@ public class IconCache {
             entry = new CacheEntry();
 
             ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
-            if (labelCache != null && labelCache.containsKey(key)) {
-                retVal.title = labelCache.get(key).toString();
-                if (LauncherLog.DEBUG_LOADERS) {
-                    LauncherLog.d(TAG, "CacheLocked get title from cache: title = " + retVal.title);
-                }
-            } else {
-                retVal.title = info.loadLabel(mPackageManager).toString();
+            if (loadPersistedEntry(componentName, info, retVal)) {
                 if (LauncherLog.DEBUG_LOADERS) {
-                    LauncherLog.d(TAG, "CacheLocked get title from pms: title = " + retVal.title);
+                    LauncherLog.d(TAG, "CacheLocked get title and icon from db: title = "
+                            + retVal.title);
                 }
                 if (labelCache != null) {
                     labelCache.put(key, retVal.title);
                 }
-            }
-            if (retVal.title == null) {
-                retVal.title = info.activityInfo.name;
-                if (LauncherLog.DEBUG_LOADERS) {
-                    LauncherLog.d(TAG, "CacheLocked get title from activity information: entry.title = " + retVal.title);
+                entry.title = retVal.title;
+                entry.icon = retVal.icon;
+            } else {
+                if (labelCache != null && labelCache.containsKey(key)) {
+                    retVal.title = labelCache.get(key).toString();
+                    if (LauncherLog.DEBUG_LOADERS) {
+                        LauncherLog.d(TAG, "CacheLocked get title from cache: title = " + retVal.title);
+                    }
+                } else {
+                    retVal.title = info.loadLabel(mPackageManager).toString();
+                    if (LauncherLog.DEBUG_LOADERS) {
+                        LauncherLog.d(TAG, "CacheLocked get title from pms: title = " + retVal.title);
+                    }
+                    if (labelCache != null) {
+                        labelCache.put(key, retVal.title);
+                    }
+                }
+                if (retVal.title == null) {
+                    retVal.title = info.activityInfo.name;
+                    if (LauncherLog.DEBUG_LOADERS) {
+                        LauncherLog.d(TAG, "CacheLocked get title from activity information: entry.title = " + retVal.title);
+                    }
                 }
-            }
 
-            entry.title = retVal.title;
-            retVal.icon = Utilities.createIconBitmap(
-                    getFullResIcon(info), mContext);
-            entry.icon = retVal.icon;
+                entry.title = retVal.title;
+                retVal.icon = Utilities.createIconBitmap(
+                        getFullResIcon(info), mContext);
+                entry.icon = retVal.icon;
+                persistEntry(componentName, entry);
+            }
         }
         
         synchronized (mCache) {
@@ -295,6 +371,291 @@ public class IconCache {
         return retVal;
     }
 
+    /**
+     * Fill in {@code out} from the entry persisted for {@code componentName}, if there is one
+     * and the package hasn't changed since.  The package manager isn't called here: if the
+     * package's info isn't known yet, the entry is used and checked in the background.
+     *
+     * @return whether {@code out} was filled in
+     */
+    private boolean loadPersistedEntry(ComponentName componentName, ResolveInfo info,
+            CacheEntry out) {
+        final PersistedEntry persisted;
+        final PackageInfo packageInfo;
+        synchronized (mIconDb) {
+            final int iconSize = Utilities.getIconBitmapSize(mContext);
+            final String locale = getLocale();
+            if (mPersisted == null || mPersistedIconSize != iconSize
+                    || !locale.equals(mPersistedLocale)) {
+                mPersisted = mIconDb.readEntries(iconSize, locale);
+                mPersistedIconSize = iconSize;
+                mPersistedLocale = locale;
+            }
+            persisted = mPersisted.remove(componentName);
+            packageInfo = mPackageInfos.get(info.activityInfo.packageName);
+        }
+        if (persisted == null || (packageInfo != null && !isCurrent(persisted, packageInfo))) {
+            return false;
+        }
+        final Bitmap icon;
+        try {
+            icon = BitmapFactory.decodeByteArray(persisted.icon, 0, persisted.icon.length);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (icon == null) {
+            return false;
+        }
+        if (packageInfo == null) {
+            synchronized (mIconDb) {
+                mPendingChecks.put(componentName, persisted);
+                scheduleCheckLocked();
+            }
+        }
+        out.title = persisted.title;
+        out.icon = icon;
+        return true;
+    }
+
+    private static boolean isCurrent(PersistedEntry persisted, PackageInfo packageInfo) {
+        return packageInfo.versionCode == persisted.versionCode
+                && packageInfo.lastUpdateTime == persisted.lastUpdateTime;
+    }
+
+    /**
+     * Queue {@code entry} to be written to {@link #mIconDb}.
+     */
+    private void persistEntry(ComponentName componentName, CacheEntry entry) {
+        synchronized (mIconDb) {
+            mPendingWrites.put(componentName, entry);
+            scheduleWriteLocked();
+        }
+    }
+
+    /**
+     * Get the package's info from {@link #mPackageInfos}, or else from the package manager.  The
+     * package manager is called without holding mIconDb, as it is an IPC.
+     *
+     * @return null if the package is gone, or if it changed while it was being looked up
+     */
+    private PackageInfo getPackageInfo(String packageName) {
+        final int generation;
+        synchronized (mIconDb) {
+            final PackageInfo packageInfo = mPackageInfos.get(packageName);
+            if (packageInfo != null) {
+                return packageInfo;
+            }
+            generation = mPackageInfoGeneration;
+        }
+        final PackageInfo packageInfo;
+        try {
+            packageInfo = mPackageManager.getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+        synchronized (mIconDb) {
+            if (generation != mPackageInfoGeneration) {
+                return null;
+            }
+            mPackageInfos.put(packageName, packageInfo);
+        }
+        return packageInfo;
+    }
+
+    private String getLocale() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    /**
+     * Write out {@link #mPendingWrites} in the background.  Writes queued while loading all the
+     * apps go to the database in a single transaction.
+     */
+    private void scheduleWriteLocked() {
+        if (mWriteScheduled) {
+            return;
+        }
+        mWriteScheduled = true;
+        new AsyncTask<Void, Void, Void>() {
+            public Void doInBackground(Void ... args) {
+                final LinkedHashMap<ComponentName, CacheEntry> writes;
+                final int iconSize;
+                final String locale;
+                synchronized (mIconDb) {
+                    writes = new LinkedHashMap<ComponentName, CacheEntry>(mPendingWrites);
+                    mPendingWrites.clear();
+                    mWriteScheduled = false;
+                    iconSize = Utilities.getIconBitmapSize(mContext);
+                    locale = getLocale();
+                }
+                final ContentValues values = new ContentValues();
+                final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                try {
+                    SQLiteDatabase db = mIconDb.getWritableDatabase();
+                    db.beginTransaction();
+                    try {
+                        for (Entry<ComponentName, CacheEntry> write : writes.entrySet()) {
+                            final String name = write.getKey().flattenToString();
+                            final CacheEntry e = write.getValue();
+                            if (e == null || e.icon == null || e.title == null
+                                    || e.icon.getWidth() != iconSize) {
+                                db.delete(IconDb.TABLE_NAME, IconDb.COLUMN_COMPONENT + " = ?",
+                                        new String[] { name });
+                                continue;
+                            }
+                            final PackageInfo packageInfo =
+                                    getPackageInfo(write.getKey().getPackageName());
+                            if (packageInfo == null) {
+                                continue;
+                            }
+                            stream.reset();
+                            e.icon.compress(Bitmap.CompressFormat.PNG, 100, stream);
+                            values.clear();
+                            values.put(IconDb.COLUMN_COMPONENT, name);
+                            values.put(IconDb.COLUMN_VERSION, packageInfo.versionCode);
+                            values.put(IconDb.COLUMN_LAST_UPDATED, packageInfo.lastUpdateTime);
+                            values.put(IconDb.COLUMN_ICON_SIZE, iconSize);
+                            values.put(IconDb.COLUMN_LOCALE, locale);
+                            values.put(IconDb.COLUMN_LABEL, e.title);
+                            values.put(IconDb.COLUMN_ICON, stream.toByteArray());
+                            db.replace(IconDb.TABLE_NAME, null, values);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } catch (SQLException e) {
+                    LauncherLog.e(TAG, "scheduleWriteLocked: Error writing icons", e);
+                }
+                if (LauncherLog.DEBUG_LOADERS) {
+                    LauncherLog.d(TAG, "Wrote " + writes.size() + " icons to db");
+                }
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
+    }
+
+    /**
+     * Check the packages of {@link #mPendingChecks} in the background.  Entries whose package
+     * changed or is gone are removed, and their packages are loaded again by the model.
+     */
+    private void scheduleCheckLocked() {
+        if (mCheckScheduled) {
+            return;
+        }
+        mCheckScheduled = true;
+        new AsyncTask<Void, Void, Void>() {
+            public Void doInBackground(Void ... args) {
+                final HashMap<ComponentName, PersistedEntry> checks;
+                synchronized (mIconDb) {
+                    checks = new HashMap<ComponentName, PersistedEntry>(mPendingChecks);
+                    mPendingChecks.clear();
+                    mCheckScheduled = false;
+                }
+                final HashSet<String> changedPackages = new HashSet<String>();
+                for (Entry<ComponentName, PersistedEntry> check : checks.entrySet()) {
+                    final String packageName = check.getKey().getPackageName();
+                    final PackageInfo packageInfo = getPackageInfo(packageName);
+                    if (packageInfo == null || !isCurrent(check.getValue(), packageInfo)) {
+                        remove(check.getKey());
+                        changedPackages.add(packageName);
+                    }
+                }
+                if (!changedPackages.isEmpty()) {
+                    final LauncherModel model = LauncherAppState.getInstance().getModel();
+                    for (String packageName : changedPackages) {
+                        model.reloadPackage(packageName);
+                    }
+                }
+                if (LauncherLog.DEBUG_LOADERS) {
+                    LauncherLog.d(TAG, "Checked " + checks.size() + " icons, "
+                            + changedPackages.size() + " packages changed");
+                }
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
+    }
+
+    /**
+     * Icons and labels kept across restarts, keyed by component.  Each row records the package
+     * version, icon size and locale it was made for.
+     */
+    static class IconDb extends SQLiteOpenHelper {
+        final static int DB_VERSION = 1;
+        final static String DB_NAME = "app_icons.db";
+        final static String TABLE_NAME = "icons";
+        final static String COLUMN_COMPONENT = "component";
+        final static String COLUMN_VERSION = "version";
+        final static String COLUMN_LAST_UPDATED = "last_updated";
+        final static String COLUMN_ICON_SIZE = "icon_size";
+        final static String COLUMN_LOCALE = "locale";
+        final static String COLUMN_LABEL = "label";
+        final static String COLUMN_ICON = "icon";
+
+        public IconDb(Context context) {
+            super(context, new File(context.getCacheDir(), DB_NAME).getPath(), null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_COMPONENT + " TEXT NOT NULL PRIMARY KEY, " +
+                    COLUMN_VERSION + " INTEGER NOT NULL, " +
+                    COLUMN_LAST_UPDATED + " INTEGER NOT NULL, " +
+                    COLUMN_ICON_SIZE + " INTEGER NOT NULL, " +
+                    COLUMN_LOCALE + " TEXT NOT NULL, " +
+                    COLUMN_LABEL + " TEXT NOT NULL, " +
+                    COLUMN_ICON + " BLOB NOT NULL" +
+                    ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion != newVersion) {
+                // Delete all the records; they'll be repopulated as this is a cache
+                db.execSQL("DELETE FROM " + TABLE_NAME);
+            }
+        }
+
+        /**
+         * @return all the entries made for the given icon size and locale
+         */
+        HashMap<ComponentName, PersistedEntry> readEntries(int iconSize, String locale) {
+            final HashMap<ComponentName, PersistedEntry> entries =
+                    new HashMap<ComponentName, PersistedEntry>();
+            Cursor c = null;
+            try {
+                c = getReadableDatabase().query(TABLE_NAME,
+                        new String[] { COLUMN_COMPONENT, COLUMN_VERSION, COLUMN_LAST_UPDATED,
+                                COLUMN_LABEL, COLUMN_ICON },
+                        COLUMN_ICON_SIZE + " = ? AND " + COLUMN_LOCALE + " = ?",
+                        new String[] { Integer.toString(iconSize), locale },
+                        null, null, null);
+                while (c.moveToNext()) {
+                    final ComponentName cn = ComponentName.unflattenFromString(c.getString(0));
+                    if (cn == null) {
+                        continue;
+                    }
+                    final PersistedEntry e = new PersistedEntry();
+                    e.versionCode = c.getInt(1);
+                    e.lastUpdateTime = c.getLong(2);
+                    e.title = c.getString(3);
+                    e.icon = c.getBlob(4);
+                    entries.put(cn, e);
+                }
+            } catch (SQLException e) {
+                LauncherLog.e(TAG, "readEntries: Error reading icons", e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            if (LauncherLog.DEBUG_LOADERS) {
+                LauncherLog.d(TAG, "Read " + entries.size() + " icons from db");
+            }
+            return entries;
+        }
+    }
+
     public HashMap<ComponentName,Bitmap> getAllIcons() {
         synchronized (mCache) {
             HashMap<ComponentName,Bitmap> set = new HashMap<ComponentName,Bitmap>();
@@ -37,7 +37,7 @@ public class LauncherAppState {
     private LauncherModel mModel;
     private IconCache mIconCache;
     private AppFilter mAppFilter;
-    private WidgetPreviewLoader.CacheDb mWidgetPreviewCacheDb;
+    private WidgetPreviewLoader.PreviewStore mWidgetPreviewStore;
     private boolean mIsScreenLarge;
     private float mScreenDensity;
     private int mLongPressTimeout = 300;
@@ -86,7 +86,7 @@ public class LauncherAppState {
         mIsScreenLarge = isScreenLarge(sContext.getResources());
         mScreenDensity = sContext.getResources().getDisplayMetrics().density;
 
-        mWidgetPreviewCacheDb = new WidgetPreviewLoader.CacheDb(sContext);
+        mWidgetPreviewStore = new WidgetPreviewLoader.PreviewStore(sContext);
         mIconCache = new IconCache(sContext);
 
         mAppFilter = AppFilter.loadByName(sContext.getString(R.string.app_filter_class));
@@ -169,8 +169,8 @@ public class LauncherAppState {
         return mAppFilter == null || mAppFilter.shouldShowApp(componentName);
     }
 
-    WidgetPreviewLoader.CacheDb getWidgetPreviewCacheDb() {
-        return mWidgetPreviewCacheDb;
+    WidgetPreviewLoader.PreviewStore getWidgetPreviewStore() {
+        return mWidgetPreviewStore;
     }
 
     static void setLauncherProvider(LauncherProvider provider) {
@@ -57,11 +57,19 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -76,7 +84,8 @@ public class LauncherModel extends BroadcastReceiver {
     // false = strew non-workspace apps across the workspace on upgrade
     public static final boolean UPGRADE_USE_MORE_APPS_FOLDER = false;
 
-    private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+    // Time the main thread may spend binding workspace icons before it yields to draw a frame
+    private static final long BIND_FRAME_BUDGET_MS = 8;
     private final boolean mAppsCanBeOnRemoveableStorage;
 
     private final LauncherAppState mApp;
@@ -98,6 +107,33 @@ public class LauncherModel extends BroadcastReceiver {
     }
     private static final Handler sWorker = new Handler(sWorkerThread.getLooper());
 
+    // Package changes that arrive within this time of each other are handled as one batch
+    private static final int PACKAGE_UPDATE_COALESCE_MS = 250;
+    private final ArrayList<PackageUpdatedTask> mPendingPackageUpdates =
+            new ArrayList<PackageUpdatedTask>();
+    private final Runnable mFlushPackageUpdates = new Runnable() {
+        @Override
+        public void run() {
+            flushPackageUpdates();
+        }
+    };
+
+    // Resolves the icons and titles of the application shortcuts read by loadWorkspace(), so
+    // that the package manager calls for different items overlap.
+    private static final int RESOLVE_THREAD_COUNT = 3;
+    private static final ThreadPoolExecutor sResolvePool = new ThreadPoolExecutor(
+            RESOLVE_THREAD_COUNT, RESOLVE_THREAD_COUNT, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "launcher-resolve #" + mCount.incrementAndGet());
+                }
+            });
+    static {
+        sResolvePool.allowCoreThreadTimeOut(true);
+    }
+
     // We start off with everything not loaded.  After that, we assume that
     // our monitoring of the package manager provides all updates and we never
     // need to do a requery.  These are only ever touched from the loader thread.
@@ -122,8 +158,8 @@ public class LauncherModel extends BroadcastReceiver {
     static final Object sBgLock = new Object();
 
     // sBgItemsIdMap maps *all* the ItemInfos (shortcuts, folders, and widgets) created by
-    // LauncherModel to their ids
-    static final HashMap<Long, ItemInfo> sBgItemsIdMap = new HashMap<Long, ItemInfo>();
+    // LauncherModel to their ids, and indexes the shortcuts and widgets by package
+    static final ItemInfoIdMap sBgItemsIdMap = new ItemInfoIdMap();
 
     // sBgWorkspaceItems is passed to bindItems, which expects a list of all folders and shortcuts
     //       created by LauncherModel that are directly on the home screen (however, no widgets or
@@ -195,6 +231,101 @@ public class LauncherModel extends BroadcastReceiver {
         public boolean filterItem(ItemInfo parent, ItemInfo info, ComponentName cn);
     }
 
+    /**
+     * The map of ids to ItemInfos, which also keeps the shortcuts and widgets (including those in
+     * folders) indexed by package name, so that package changes find their items without going
+     * through every item on the workspace.
+     */
+    static class ItemInfoIdMap extends HashMap<Long, ItemInfo> {
+        private final HashMap<String, ArrayList<ItemInfo>> mItemsByPackage =
+                new HashMap<String, ArrayList<ItemInfo>>();
+
+        static ComponentName getComponent(ItemInfo item) {
+            if (item instanceof ShortcutInfo) {
+                final Intent intent = ((ShortcutInfo) item).intent;
+                return (intent != null) ? intent.getComponent() : null;
+            } else if (item instanceof LauncherAppWidgetInfo) {
+                return ((LauncherAppWidgetInfo) item).providerName;
+            }
+            return null;
+        }
+
+        @Override
+        public ItemInfo put(Long id, ItemInfo item) {
+            final ItemInfo old = super.put(id, item);
+            if (old != item) {
+                if (old != null) {
+                    unindex(old);
+                }
+                index(item);
+            }
+            return old;
+        }
+
+        @Override
+        public ItemInfo remove(Object id) {
+            final ItemInfo old = super.remove(id);
+            if (old != null) {
+                unindex(old);
+            }
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            mItemsByPackage.clear();
+        }
+
+        private void index(ItemInfo item) {
+            final ComponentName cn = getComponent(item);
+            if (cn == null) {
+                return;
+            }
+            ArrayList<ItemInfo> items = mItemsByPackage.get(cn.getPackageName());
+            if (items == null) {
+                items = new ArrayList<ItemInfo>(2);
+                mItemsByPackage.put(cn.getPackageName(), items);
+            }
+            items.add(item);
+        }
+
+        private void unindex(ItemInfo item) {
+            final ComponentName cn = getComponent(item);
+            if (cn == null) {
+                return;
+            }
+            final ArrayList<ItemInfo> items = mItemsByPackage.get(cn.getPackageName());
+            if (items != null && items.remove(item) && items.isEmpty()) {
+                mItemsByPackage.remove(cn.getPackageName());
+            }
+        }
+
+        /**
+         * @return a copy of the list of shortcuts and widgets of the given package
+         */
+        ArrayList<ItemInfo> getItemsForPackage(String packageName) {
+            final ArrayList<ItemInfo> items = mItemsByPackage.get(packageName);
+            return (items != null) ? new ArrayList<ItemInfo>(items) : new ArrayList<ItemInfo>();
+        }
+
+        /**
+         * @return the shortcuts and widgets of the given component
+         */
+        ArrayList<ItemInfo> getItemsForComponent(ComponentName cname) {
+            final ArrayList<ItemInfo> result = new ArrayList<ItemInfo>();
+            final ArrayList<ItemInfo> items = mItemsByPackage.get(cname.getPackageName());
+            if (items != null) {
+                for (ItemInfo item : items) {
+                    if (cname.equals(getComponent(item))) {
+                        result.add(item);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
     LauncherModel(LauncherAppState app, IconCache iconCache, AppFilter appFilter) {
         final Context context = app.getContext();
 
@@ -1176,7 +1307,8 @@ public class LauncherModel extends BroadcastReceiver {
         } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)) {
             // First, schedule to add these apps back in.
             String[] packages = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
-            enqueuePackageUpdated(new PackageUpdatedTask(PackageUpdatedTask.OP_ADD, packages));
+            enqueuePackageUpdated(new PackageUpdatedTask(PackageUpdatedTask.OP_ADD, packages),
+                    false);
             // Then, rebind everything.
             startLoaderFromBackground();
         } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
@@ -1386,6 +1518,62 @@ public class LauncherModel extends BroadcastReceiver {
         return false;
     }
 
+    /**
+     * An application shortcut read from the db by the loader, whose icon and title are still to
+     * be filled in from the package manager.
+     */
+    private class ResolveJob implements Runnable {
+        final Context context;
+        final ShortcutInfo info;
+        final Intent intent;
+        final byte[] dbIcon;
+        final String dbTitle;
+        // Only used by this job, so that jobs can run in parallel; merged into the loader's
+        // label cache afterwards.
+        final HashMap<Object, CharSequence> labelCache = new HashMap<Object, CharSequence>();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        ResolveJob(Context context, ShortcutInfo info, Intent intent, byte[] dbIcon,
+                String dbTitle) {
+            this.context = context;
+            this.info = info;
+            this.intent = intent;
+            this.dbIcon = dbIcon;
+            this.dbTitle = dbTitle;
+        }
+
+        @Override
+        public void run() {
+            try {
+                fillApplicationShortcutInfo(info, context.getPackageManager(), intent, context,
+                        dbIcon, dbTitle, labelCache);
+            } catch (Exception e) {
+                Launcher.addDumpLog(TAG, "Desktop item resolving interrupted: " + e, true);
+                info.setIcon(getFallbackIcon());
+                info.usingFallbackIcon = true;
+                info.title = (dbTitle != null) ? dbTitle : intent.getComponent().getClassName();
+                info.itemType = LauncherSettings.Favorites.ITEM_TYPE_APPLICATION;
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /**
      * Runnable for the thread that loads the contents of the launcher:
      *   - workspace icons
@@ -1401,6 +1589,16 @@ public class LauncherModel extends BroadcastReceiver {
 
         private HashMap<Object, CharSequence> mLabelCache;
 
+        // Application shortcuts handed to sResolvePool by loadWorkspace(), until finishResolving()
+        private final IdentityHashMap<ItemInfo, ResolveJob> mResolveJobs =
+                new IdentityHashMap<ItemInfo, ResolveJob>();
+
+        // Startup timing of each stage of loading the workspace, in ms
+        private long mDbReadTime;
+        private long mResolveStartTime;
+        private long mCurrentPageResolveTime;
+        private long mResolveTime;
+
         LoaderTask(Context context, boolean isLaunching) {
             mContext = context;
             mIsLaunching = isLaunching;
@@ -1429,22 +1627,146 @@ public class LauncherModel extends BroadcastReceiver {
             }
 
             boolean isUpgradePath = false;
-            if (!mWorkspaceLoaded) {
-                isUpgradePath = loadWorkspace();
-                synchronized (LoaderTask.this) {
-                    if (mStopped) {
-                        LauncherLog.d(TAG, "loadAndBindWorkspace returned by stop flag.");
-                        return isUpgradePath;
+            try {
+                if (!mWorkspaceLoaded) {
+                    isUpgradePath = loadWorkspace();
+                    synchronized (LoaderTask.this) {
+                        if (mStopped) {
+                            LauncherLog.d(TAG, "loadAndBindWorkspace returned by stop flag.");
+                            return isUpgradePath;
+                        }
+                        mWorkspaceLoaded = true;
                     }
-                    mWorkspaceLoaded = true;
                 }
-            }
 
-            // Bind the workspace
-            bindWorkspace(-1, isUpgradePath);
+                // Bind the workspace
+                bindWorkspace(-1, isUpgradePath);
+            } finally {
+                // Even when stopped, so that no job is left writing to the items after we return.
+                // If the workspace isn't marked as loaded, its items will be loaded again, so
+                // the jobs that haven't started yet don't need to run.
+                finishResolving(!mWorkspaceLoaded);
+            }
             return isUpgradePath;
         }
 
+        /**
+         * Start resolving the application shortcuts read from the db on sResolvePool.  The ones
+         * on the current page and in the hotseat go first, as they are bound first.
+         */
+        private void startResolving(ArrayList<ResolveJob> jobs) {
+            mResolveStartTime = SystemClock.uptimeMillis();
+            final Callbacks callbacks = (mCallbacks != null) ? mCallbacks.get() : null;
+            final int currentScreen = (callbacks != null)
+                    ? callbacks.getCurrentWorkspaceScreen() : -1;
+            final ArrayList<ResolveJob> later = new ArrayList<ResolveJob>();
+            for (ResolveJob job : jobs) {
+                if (isOnScreen(job.info, currentScreen)) {
+                    mResolveJobs.put(job.info, job);
+                    sResolvePool.execute(job);
+                } else {
+                    later.add(job);
+                }
+            }
+            for (ResolveJob job : later) {
+                mResolveJobs.put(job.info, job);
+                sResolvePool.execute(job);
+            }
+        }
+
+        /** Whether the item, or the folder it is in, is on the given screen or in the hotseat. */
+        private boolean isOnScreen(ItemInfo info, long screenId) {
+            if (info.container >= 0) {
+                info = sBgFolders.get(info.container);
+                if (info == null) {
+                    return false;
+                }
+            }
+            return info.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT ||
+                    (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP &&
+                            info.screenId == screenId);
+        }
+
+        /** Wait until the given items, and the items in the given folders, are resolved. */
+        private void awaitResolved(ArrayList<ItemInfo> items, HashMap<Long, FolderInfo> folders) {
+            if (mResolveJobs.isEmpty()) {
+                return;
+            }
+            for (ItemInfo item : items) {
+                if (item instanceof FolderInfo) {
+                    awaitResolved(((FolderInfo) item).contents);
+                } else {
+                    awaitResolved(item);
+                }
+            }
+            for (FolderInfo folder : folders.values()) {
+                awaitResolved(folder.contents);
+            }
+        }
+
+        private void awaitResolved(ArrayList<ShortcutInfo> items) {
+            for (ShortcutInfo item : items) {
+                awaitResolved(item);
+            }
+        }
+
+        private void awaitResolved(ItemInfo item) {
+            final ResolveJob job = mResolveJobs.get(item);
+            if (job != null) {
+                job.await();
+            }
+        }
+
+        /**
+         * Wait for all the application shortcuts to be resolved, and take their labels and db
+         * icons back into the loader's data structures.
+         *
+         * @param cancel whether the items are thrown away; then the jobs that are still queued
+         *        are removed instead, and only the running ones are waited for
+         */
+        private void finishResolving(boolean cancel) {
+            if (mResolveJobs.isEmpty()) {
+                return;
+            }
+            if (cancel) {
+                int cancelled = 0;
+                for (ResolveJob job : mResolveJobs.values()) {
+                    // A job taken off the queue never runs, so it can't write to its item
+                    if (sResolvePool.remove(job)) {
+                        cancelled++;
+                    } else {
+                        job.await();
+                    }
+                }
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "cancelled " + cancelled + " of " + mResolveJobs.size()
+                            + " shortcuts to resolve");
+                }
+                mResolveJobs.clear();
+                return;
+            }
+            for (ResolveJob job : mResolveJobs.values()) {
+                job.await();
+                mLabelCache.putAll(job.labelCache);
+            }
+            mResolveTime = SystemClock.uptimeMillis() - mResolveStartTime;
+            synchronized (sBgLock) {
+                for (ResolveJob job : mResolveJobs.values()) {
+                    // Skip items that were thrown away since, e.g. if we were stopped
+                    if (sBgItemsIdMap.get(job.info.id) == job.info) {
+                        // now that we've loaded everthing re-save it with the
+                        // icon in case it disappears somehow.
+                        queueIconToBeChecked(sBgDbIconCache, job.info, job.dbIcon);
+                    }
+                }
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "resolved " + mResolveJobs.size() + " shortcuts in " + mResolveTime
+                        + "ms, current page in " + mCurrentPageResolveTime + "ms");
+            }
+            mResolveJobs.clear();
+        }
+
         private void waitForIdle() {
             // Wait until the either we're stopped or the other threads are done.
             // This way we don't start loading all apps until the workspace has settled
@@ -1764,7 +2086,7 @@ public class LauncherModel extends BroadcastReceiver {
 
         /** Returns whether this is an upgradge path */
         private boolean loadWorkspace() {
-            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final long t = SystemClock.uptimeMillis();
 
             final Context context = mContext;
             final ContentResolver contentResolver = context.getContentResolver();
@@ -1787,6 +2109,7 @@ public class LauncherModel extends BroadcastReceiver {
                 clearSBgDataStructures();
 
                 final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
+                final ArrayList<ResolveJob> resolveJobs = new ArrayList<ResolveJob>();
                 final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI;
                 if (DEBUG_LOADERS) Log.d(TAG, "loading model from " + contentUri);
                 final Cursor c = contentResolver.query(contentUri, null, null, null, null);
@@ -1869,9 +2192,18 @@ public class LauncherModel extends BroadcastReceiver {
                                     continue;
                                 }
 
+                                ResolveJob resolveJob = null;
                                 if (itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
-                                    info = getShortcutInfo(manager, intent, context, c, iconIndex,
-                                            titleIndex, mLabelCache);
+                                    if (intent.getComponent() == null) {
+                                        Launcher.addDumpLog(TAG, "Application without component: "
+                                                + intentDescription, true);
+                                        continue;
+                                    }
+                                    // The icon and title are filled in on sResolvePool once all
+                                    // the rows are read; see startResolving().
+                                    info = new ShortcutInfo();
+                                    resolveJob = new ResolveJob(context, info, intent,
+                                            c.getBlob(iconIndex), c.getString(titleIndex));
                                 } else {
                                     info = getShortcutInfo(c, context, iconTypeIndex,
                                             iconPackageIndex, iconResourceIndex, iconIndex,
@@ -1931,9 +2263,14 @@ public class LauncherModel extends BroadcastReceiver {
                                     }
                                     sBgItemsIdMap.put(info.id, info);
 
-                                    // now that we've loaded everthing re-save it with the
-                                    // icon in case it disappears somehow.
-                                    queueIconToBeChecked(sBgDbIconCache, info, c, iconIndex);
+                                    if (resolveJob != null) {
+                                        resolveJobs.add(resolveJob);
+                                    } else {
+                                        // now that we've loaded everthing re-save it with the
+                                        // icon in case it disappears somehow.
+                                        queueIconToBeChecked(sBgDbIconCache, info,
+                                                c.getBlob(iconIndex));
+                                    }
                                 } else {
                                     throw new RuntimeException("Unexpected null ShortcutInfo");
                                 }
@@ -2135,8 +2472,11 @@ public class LauncherModel extends BroadcastReceiver {
                     }
                 }
 
+                mDbReadTime = SystemClock.uptimeMillis() - t;
+                startResolving(resolveJobs);
+
                 if (DEBUG_LOADERS) {
-                    Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis()-t) + "ms");
+                    Log.d(TAG, "read workspace db in " + mDbReadTime + "ms");
                     Log.d(TAG, "workspace layout: ");
                     int nScreens = occupied.size();
                     for (int y = 0; y < countY; y++) {
@@ -2303,21 +2643,13 @@ public class LauncherModel extends BroadcastReceiver {
 
             final boolean postOnMainThread = (deferredBindRunnables != null);
 
-            // Bind the workspace items
+            // Bind the workspace items, as many per frame as fit in BIND_FRAME_BUDGET_MS.  If we
+            // are already on the main thread we are binding synchronously, so bind them all.
             int N = workspaceItems.size();
-            for (int i = 0; i < N; i += ITEMS_CHUNK) {
-                final int start = i;
-                final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
-                final Runnable r = new Runnable() {
-                    @Override
-                    public void run() {
-                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                        if (callbacks != null) {
-                            callbacks.bindItems(workspaceItems, start, start+chunkSize,
-                                    false);
-                        }
-                    }
-                };
+            if (N > 0) {
+                final boolean budgeted = postOnMainThread
+                        || sWorkerThread.getThreadId() == Process.myTid();
+                final Runnable r = new BindItemsRunnable(oldCallbacks, workspaceItems, budgeted);
                 if (postOnMainThread) {
                     deferredBindRunnables.add(r);
                 } else {
@@ -2362,6 +2694,48 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
+        /**
+         * Binds workspace items on the main thread.  When budgeted, it binds in growing steps
+         * until it has used up BIND_FRAME_BUDGET_MS, then puts itself back at the front of the
+         * queue so that the rest is bound right after the next frame, before anything else.
+         */
+        private class BindItemsRunnable implements Runnable {
+            private final Callbacks mOldCallbacks;
+            private final ArrayList<ItemInfo> mItems;
+            private final boolean mBudgeted;
+            private int mNext;
+
+            BindItemsRunnable(Callbacks oldCallbacks, ArrayList<ItemInfo> items,
+                    boolean budgeted) {
+                mOldCallbacks = oldCallbacks;
+                mItems = items;
+                mBudgeted = budgeted;
+            }
+
+            @Override
+            public void run() {
+                Callbacks callbacks = tryGetCallbacks(mOldCallbacks);
+                if (callbacks == null) {
+                    return;
+                }
+                final int count = mItems.size();
+                final long start = SystemClock.uptimeMillis();
+                int step = 1;
+                while (mNext < count) {
+                    final int end = Math.min(mNext + step, count);
+                    callbacks.bindItems(mItems, mNext, end, false);
+                    mNext = end;
+                    if (mBudgeted && SystemClock.uptimeMillis() - start >= BIND_FRAME_BUDGET_MS) {
+                        break;
+                    }
+                    step *= 2;
+                }
+                if (mNext < count) {
+                    mHandler.postAtFrontOfQueue(this, MAIN_THREAD_BINDING_RUNNABLE);
+                }
+            }
+        }
+
         /**
          * Binds all loaded data to actual views on the main thread.
          */
@@ -2432,6 +2806,10 @@ public class LauncherModel extends BroadcastReceiver {
             bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
 
             // Load items on the current page
+            awaitResolved(currentWorkspaceItems, currentFolders);
+            if (mResolveStartTime > 0) {
+                mCurrentPageResolveTime = SystemClock.uptimeMillis() - mResolveStartTime;
+            }
             bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
                     currentFolders, null);
             if (isLoadingSynchronously) {
@@ -2449,6 +2827,7 @@ public class LauncherModel extends BroadcastReceiver {
             // Load all the remaining pages (if we are loading synchronously, we want to defer this
             // work until after the first render)
             mDeferredBindRunnables.clear();
+            awaitResolved(otherWorkspaceItems, otherFolders);
             bindWorkspaceItems(oldCallbacks, otherWorkspaceItems, otherAppWidgets, otherFolders,
                     (isLoadingSynchronously ? mDeferredBindRunnables : null));
 
@@ -2463,7 +2842,9 @@ public class LauncherModel extends BroadcastReceiver {
                     // If we're profiling, ensure this is the last thing in the queue.
                     if (DEBUG_LOADERS) {
                         Log.d(TAG, "bound workspace in "
-                            + (SystemClock.uptimeMillis()-t) + "ms");
+                            + (SystemClock.uptimeMillis()-t) + "ms (db read " + mDbReadTime
+                            + "ms, current page resolved after " + mCurrentPageResolveTime
+                            + "ms)");
                     }
 
                     mIsLoadingAndBindingWorkspace = false;
@@ -3080,7 +3461,63 @@ public class LauncherModel extends BroadcastReceiver {
     }
 
     void enqueuePackageUpdated(PackageUpdatedTask task) {
-        sWorker.post(task);
+        enqueuePackageUpdated(task, true);
+    }
+
+    /**
+     * Queue a package change.  Changes that arrive within {@link #PACKAGE_UPDATE_COALESCE_MS} of
+     * the first pending one are handled together, so that a burst of updates (e.g. from the
+     * store) costs one rebind rather than one per package.
+     *
+     * @param coalesce false to handle the change, and any pending ones, right away
+     */
+    void enqueuePackageUpdated(PackageUpdatedTask task, boolean coalesce) {
+        synchronized (mPendingPackageUpdates) {
+            final boolean scheduled = !mPendingPackageUpdates.isEmpty();
+            mPendingPackageUpdates.add(task);
+            if (!coalesce) {
+                sWorker.removeCallbacks(mFlushPackageUpdates);
+                sWorker.post(mFlushPackageUpdates);
+            } else if (!scheduled) {
+                sWorker.postDelayed(mFlushPackageUpdates, PACKAGE_UPDATE_COALESCE_MS);
+            }
+        }
+    }
+
+    /**
+     * Load a package's apps again, e.g. because their persisted icons turned out to be out of
+     * date.  Can be called from any thread.
+     */
+    void reloadPackage(String packageName) {
+        enqueuePackageUpdated(new PackageUpdatedTask(PackageUpdatedTask.OP_UPDATE,
+                new String[] { packageName }));
+    }
+
+    /**
+     * Runs the pending package changes, with consecutive changes of the same kind merged into
+     * one.  The widget and shortcut lists are only rebound once, after the last one.
+     */
+    private void flushPackageUpdates() {
+        final ArrayList<PackageUpdatedTask> merged = new ArrayList<PackageUpdatedTask>();
+        synchronized (mPendingPackageUpdates) {
+            PackageUpdatedTask last = null;
+            for (PackageUpdatedTask task : mPendingPackageUpdates) {
+                if (last != null && last.mOp == task.mOp) {
+                    last.merge(task);
+                } else {
+                    merged.add(task);
+                    last = task;
+                }
+            }
+            mPendingPackageUpdates.clear();
+        }
+        if (DEBUG_LOADERS && !merged.isEmpty()) {
+            Log.d(TAG, "flushPackageUpdates: " + merged.size() + " batches");
+        }
+        final int count = merged.size();
+        for (int i = 0; i < count; i++) {
+            merged.get(i).update(i == count - 1);
+        }
     }
 
     private class PackageUpdatedTask implements Runnable {
@@ -3099,7 +3536,25 @@ public class LauncherModel extends BroadcastReceiver {
             mPackages = packages;
         }
 
+        /**
+         * Add the packages of another task with the same op to this one.
+         */
+        void merge(PackageUpdatedTask other) {
+            final LinkedHashSet<String> packages =
+                    new LinkedHashSet<String>(Arrays.asList(mPackages));
+            packages.addAll(Arrays.asList(other.mPackages));
+            mPackages = packages.toArray(new String[packages.size()]);
+        }
+
         public void run() {
+            update(true);
+        }
+
+        /**
+         * @param bindWidgets whether to reload and rebind the widget and shortcut lists, which
+         *        only needs to be done once for a batch of tasks
+         */
+        void update(boolean bindWidgets) {
             final Context context = mApp.getContext();
 
             final String[] packages = mPackages;
@@ -3115,8 +3570,8 @@ public class LauncherModel extends BroadcastReceiver {
                     for (int i=0; i<N; i++) {
                         if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.updatePackage " + packages[i]);
                         mBgAllAppsList.updatePackage(context, packages[i]);
-                        WidgetPreviewLoader.removePackageFromDb(
-                                mApp.getWidgetPreviewCacheDb(), packages[i]);
+                        WidgetPreviewLoader.removePackageFromStore(
+                                mApp.getWidgetPreviewStore(), packages[i]);
                     }
                     break;
                 case OP_REMOVE:
@@ -3124,8 +3579,8 @@ public class LauncherModel extends BroadcastReceiver {
                     for (int i=0; i<N; i++) {
                         if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.removePackage " + packages[i]);
                         mBgAllAppsList.removePackage(packages[i]);
-                        WidgetPreviewLoader.removePackageFromDb(
-                                mApp.getWidgetPreviewCacheDb(), packages[i]);
+                        WidgetPreviewLoader.removePackageFromStore(
+                                mApp.getWidgetPreviewStore(), packages[i]);
                     }
                     break;
             }
@@ -3241,6 +3696,10 @@ public class LauncherModel extends BroadcastReceiver {
                 });
             }
 
+            if (!bindWidgets) {
+                return;
+            }
+
             final ArrayList<Object> widgetsAndShortcuts =
                 getSortedWidgetsAndShortcuts(context);
             mHandler.post(new Runnable() {
@@ -3312,18 +3771,34 @@ public class LauncherModel extends BroadcastReceiver {
     public ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent, Context context,
             Cursor c, int iconIndex, int titleIndex, HashMap<Object, CharSequence> labelCache) {
         ComponentName componentName = intent.getComponent();
-        final ShortcutInfo info = new ShortcutInfo();
         if (componentName != null && !isValidPackageComponent(manager, componentName)) {
             Log.d(TAG, "Invalid package found in getShortcutInfo: " + componentName);
             return null;
-        } else {
-            try {
-                PackageInfo pi = manager.getPackageInfo(componentName.getPackageName(), 0);
-                info.initFlagsAndFirstInstallTime(pi);
-            } catch (NameNotFoundException e) {
-                Log.d(TAG, "getPackInfo failed for package " +
-                        componentName.getPackageName());
-            }
+        }
+        final ShortcutInfo info = new ShortcutInfo();
+        fillApplicationShortcutInfo(info, manager, intent, context,
+                (c != null) ? c.getBlob(iconIndex) : null,
+                (c != null) ? c.getString(titleIndex) : null, labelCache);
+        return info;
+    }
+
+    /**
+     * Fill in the icon, title and flags of an application ShortcutInfo whose component is known
+     * to be valid.  If dbIcon and dbTitle are not null, they are used when the package manager
+     * can't provide the icon or title.
+     *
+     * This may be called from any thread, as long as labelCache is not used by another thread.
+     */
+    void fillApplicationShortcutInfo(ShortcutInfo info, PackageManager manager, Intent intent,
+            Context context, byte[] dbIcon, String dbTitle,
+            HashMap<Object, CharSequence> labelCache) {
+        ComponentName componentName = intent.getComponent();
+        try {
+            PackageInfo pi = manager.getPackageInfo(componentName.getPackageName(), 0);
+            info.initFlagsAndFirstInstallTime(pi);
+        } catch (NameNotFoundException e) {
+            Log.d(TAG, "getPackInfo failed for package " +
+                    componentName.getPackageName());
         }
 
         // TODO: See if the PackageManager knows about this case.  If it doesn't
@@ -3359,8 +3834,8 @@ public class LauncherModel extends BroadcastReceiver {
         }
         // the db
         if (icon == null) {
-            if (c != null) {
-                icon = getIconFromCursor(c, iconIndex, context);
+            if (dbIcon != null) {
+                icon = getIconFromBlob(dbIcon, context);
             }
         }
         // the fallback icon
@@ -3384,16 +3859,13 @@ public class LauncherModel extends BroadcastReceiver {
         }
         // from the db
         if (info.title == null) {
-            if (c != null) {
-                info.title =  c.getString(titleIndex);
-            }
+            info.title = dbTitle;
         }
         // fall back to the class name of the activity
         if (info.title == null) {
             info.title = componentName.getClassName();
         }
         info.itemType = LauncherSettings.Favorites.ITEM_TYPE_APPLICATION;
-        return info;
     }
 
     static ArrayList<ItemInfo> filterItemInfos(Collection<ItemInfo> infos,
@@ -3426,23 +3898,15 @@ public class LauncherModel extends BroadcastReceiver {
     }
 
     private ArrayList<ItemInfo> getItemInfoForPackageName(final String pn) {
-        ItemInfoFilter filter  = new ItemInfoFilter() {
-            @Override
-            public boolean filterItem(ItemInfo parent, ItemInfo info, ComponentName cn) {
-                return cn.getPackageName().equals(pn);
-            }
-        };
-        return filterItemInfos(sBgItemsIdMap.values(), filter);
+        synchronized (sBgLock) {
+            return sBgItemsIdMap.getItemsForPackage(pn);
+        }
     }
 
     private ArrayList<ItemInfo> getItemInfoForComponentName(final ComponentName cname) {
-        ItemInfoFilter filter  = new ItemInfoFilter() {
-            @Override
-            public boolean filterItem(ItemInfo parent, ItemInfo info, ComponentName cn) {
-                return cn.equals(cname);
-            }
-        };
-        return filterItemInfos(sBgItemsIdMap.values(), filter);
+        synchronized (sBgLock) {
+            return sBgItemsIdMap.getItemsForComponent(cname);
+        }
     }
 
     public static boolean isShortcutInfoUpdateable(ItemInfo i) {
@@ -3531,7 +3995,10 @@ public class LauncherModel extends BroadcastReceiver {
             Log.d(TAG, "getIconFromCursor app="
                     + c.getString(c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE)));
         }
-        byte[] data = c.getBlob(iconIndex);
+        return getIconFromBlob(c.getBlob(iconIndex), context);
+    }
+
+    Bitmap getIconFromBlob(byte[] data, Context context) {
         try {
             return Utilities.createIconBitmap(
                     BitmapFactory.decodeByteArray(data, 0, data.length), context);
@@ -3659,8 +4126,8 @@ public class LauncherModel extends BroadcastReceiver {
         return info;
     }
 
-    boolean queueIconToBeChecked(HashMap<Object, byte[]> cache, ShortcutInfo info, Cursor c,
-            int iconIndex) {
+    boolean queueIconToBeChecked(HashMap<Object, byte[]> cache, ShortcutInfo info,
+            byte[] dbIcon) {
         // If apps can't be on SD, don't even bother.
         if (!mAppsCanBeOnRemoveableStorage) {
             return false;
@@ -3672,7 +4139,7 @@ public class LauncherModel extends BroadcastReceiver {
         // package manager can't find an icon (for example because
         // the app is on SD) then we can use that instead.
         if (!info.customIcon && !info.usingFallbackIcon) {
-            cache.put(info, c.getBlob(iconIndex));
+            cache.put(info, dbIcon);
             return true;
         }
         return false;
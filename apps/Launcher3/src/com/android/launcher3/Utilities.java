@@ -295,6 +295,18 @@ public final class Utilities {
         return scale;
     }
 
+    /**
+     * Returns the size of the bitmaps made by {@link #createIconBitmap}.
+     */
+    static int getIconBitmapSize(Context context) {
+        synchronized (sCanvas) {
+            if (sIconWidth == -1) {
+                initStatics(context);
+            }
+            return sIconWidth;
+        }
+    }
+
     /// M: Change to public for smart book feature.
     public static void initStatics(Context context) {
         final Resources resources = context.getResources();
@@ -2,20 +2,13 @@ package com.android.launcher3;
 
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
-import android.database.sqlite.SQLiteOpenHelper;
-import android.database.SQLException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapShader;
 import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
@@ -30,13 +23,22 @@ import android.util.Log;
 
 import com.mediatek.launcher3.ext.LauncherLog;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 abstract class SoftReferenceThreadLocal<T> {
     private ThreadLocal<SoftReference<T>> mThreadLocal;
@@ -96,13 +98,6 @@ class RectCache extends SoftReferenceThreadLocal<Rect> {
     }
 }
 
-class BitmapFactoryOptionsCache extends SoftReferenceThreadLocal<BitmapFactory.Options> {
-    @Override
-    protected BitmapFactory.Options initialValue() {
-        return new BitmapFactory.Options();
-    }
-}
-
 public class WidgetPreviewLoader {
     static final String TAG = "WidgetPreviewLoader";
 
@@ -123,24 +118,44 @@ public class WidgetPreviewLoader {
     private RectCache mCachedAppWidgetPreviewSrcRect = new RectCache();
     private RectCache mCachedAppWidgetPreviewDestRect = new RectCache();
     private PaintCache mCachedAppWidgetPreviewPaint = new PaintCache();
-    private String mCachedSelectQuery;
-    private BitmapFactoryOptionsCache mCachedBitmapFactoryOptions = new BitmapFactoryOptionsCache();
 
     private int mAppIconSize;
     private IconCache mIconCache;
 
     private final float sWidgetPreviewIconPaddingPercentage = 0.25f;
 
-    private CacheDb mDb;
+    private PreviewStore mStore;
 
+    // Previews that are in use; guards mCachedPreviews too
     private HashMap<String, WeakReference<Bitmap>> mLoadedPreviews;
+    // Previews that were recycled or prefetched and can be handed out again as they are, least
+    // recently used first.  Bounded by mMaxCachedPreviewBytes.
+    private final LinkedHashMap<String, CachedPreview> mCachedPreviews =
+            new LinkedHashMap<String, CachedPreview>(16, 0.75f, true);
+    private final long mMaxCachedPreviewBytes = Runtime.getRuntime().maxMemory() / 16;
+    private long mCachedPreviewBytes;
     private ArrayList<SoftReference<Bitmap>> mUnusedBitmaps;
+    private AsyncTask<Void, Void, Void> mPrefetchTask;
     private static HashSet<String> sInvalidPackages;
+    // Bumped whenever a package's previews are thrown away, so that the ones already in memory
+    // are not used anymore
+    private static final HashMap<String, Integer> sPackageGenerations =
+            new HashMap<String, Integer>();
 
     static {
         sInvalidPackages = new HashSet<String>();
     }
 
+    private static class CachedPreview {
+        final Bitmap bitmap;
+        final int generation;
+
+        CachedPreview(Bitmap bitmap, int generation) {
+            this.bitmap = bitmap;
+            this.generation = generation;
+        }
+    }
+
     public WidgetPreviewLoader(Context context) {
         LauncherAppState app = LauncherAppState.getInstance();
         DeviceProfile grid = app.getDynamicGrid().getDeviceProfile();
@@ -149,7 +164,7 @@ public class WidgetPreviewLoader {
         mPackageManager = mContext.getPackageManager();
         mAppIconSize = grid.iconSizePx;
         mIconCache = app.getIconCache();
-        mDb = app.getWidgetPreviewCacheDb();
+        mStore = app.getWidgetPreviewStore();
         mLoadedPreviews = new HashMap<String, WeakReference<Bitmap>>();
         mUnusedBitmaps = new ArrayList<SoftReference<Bitmap>>();
     }
@@ -165,6 +180,7 @@ public class WidgetPreviewLoader {
     public Bitmap getPreview(final Object o) {
         final String name = getObjectName(o);
         final String packageName = getObjectPackage(o);
+        final String size = mSize;
         // check if the package is valid
         boolean packageValid = true;
         synchronized(sInvalidPackages) {
@@ -173,41 +189,28 @@ public class WidgetPreviewLoader {
         if (!packageValid) {
             return null;
         }
+        final int generation = getPackageGeneration(packageName);
         if (packageValid) {
             synchronized(mLoadedPreviews) {
                 // check if it exists in our existing cache
                 if (mLoadedPreviews.containsKey(name) && mLoadedPreviews.get(name).get() != null) {
                     return mLoadedPreviews.get(name).get();
                 }
+                // or among the ones that were recycled or prefetched
+                final Bitmap cached = takeCachedPreviewLocked(name, generation);
+                if (cached != null) {
+                    mLoadedPreviews.put(name, new WeakReference<Bitmap>(cached));
+                    return cached;
+                }
             }
         }
 
-        Bitmap unusedBitmap = null;
-        synchronized(mUnusedBitmaps) {
-            // not in cache; we need to load it from the db
-            while ((unusedBitmap == null || !unusedBitmap.isMutable() ||
-                    unusedBitmap.getWidth() != mPreviewBitmapWidth ||
-                    unusedBitmap.getHeight() != mPreviewBitmapHeight)
-                    && mUnusedBitmaps.size() > 0) {
-                unusedBitmap = mUnusedBitmaps.remove(0).get();
-            }
-            if (unusedBitmap != null) {
-                final Canvas c = mCachedAppWidgetPreviewCanvas.get();
-                c.setBitmap(unusedBitmap);
-                c.drawColor(0, PorterDuff.Mode.CLEAR);
-                c.setBitmap(null);
-            }
-        }
-
-        if (unusedBitmap == null) {
-            unusedBitmap = Bitmap.createBitmap(mPreviewBitmapWidth, mPreviewBitmapHeight,
-                    Bitmap.Config.ARGB_8888);
-        }
+        Bitmap unusedBitmap = obtainUnusedBitmap(mPreviewBitmapWidth, mPreviewBitmapHeight);
 
         Bitmap preview = null;
 
-        if (packageValid) {
-            preview = readFromDb(name, unusedBitmap);
+        if (packageValid && mStore.read(packageName, size, name, unusedBitmap)) {
+            preview = unusedBitmap;
         }
 
         if (preview != null) {
@@ -216,7 +219,7 @@ public class WidgetPreviewLoader {
             }
             return preview;
         } else {
-            // it's not in the db... we need to generate it
+            // it's not in the store... we need to generate it
             final Bitmap generatedPreview = generatePreview(o, unusedBitmap);
             preview = generatedPreview;
             if (preview != unusedBitmap) {
@@ -227,11 +230,13 @@ public class WidgetPreviewLoader {
                 mLoadedPreviews.put(name, new WeakReference<Bitmap>(preview));
             }
 
-            // write to db on a thread pool... this can be done lazily and improves the performance
-            // of the first time widget previews are loaded
+            // write to the store on a thread pool... this can be done lazily and improves the
+            // performance of the first time widget previews are loaded.  The pixels are copied
+            // now though, as the bitmap may be recycled and reused before the write happens.
+            final ByteBuffer pixels = PreviewStore.encode(generatedPreview);
             new AsyncTask<Void, Void, Void>() {
                 public Void doInBackground(Void ... args) {
-                    writeToDb(o, generatedPreview);
+                    mStore.write(packageName, size, name, pixels, generation);
                     return null;
                 }
             }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
@@ -240,6 +245,73 @@ public class WidgetPreviewLoader {
         }
     }
 
+    /**
+     * Reads the stored previews of the given items into memory in the background, so that they
+     * are ready by the time their page is shown.  Previews that haven't been generated yet are
+     * left alone.  Each call cancels the previous one.
+     */
+    public void prefetch(final ArrayList<Object> items) {
+        if (mPrefetchTask != null) {
+            mPrefetchTask.cancel(false);
+            mPrefetchTask = null;
+        }
+        final String size = mSize;
+        final int width = mPreviewBitmapWidth;
+        final int height = mPreviewBitmapHeight;
+        if (size == null || items.isEmpty()) {
+            return;
+        }
+        mPrefetchTask = new AsyncTask<Void, Void, Void>() {
+            public Void doInBackground(Void ... args) {
+                for (Object o : items) {
+                    if (isCancelled() || !prefetchPreview(o, size, width, height)) {
+                        break;
+                    }
+                }
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
+    }
+
+    /**
+     * @return false if there is no more room for prefetched previews
+     */
+    private boolean prefetchPreview(Object o, String size, int width, int height) {
+        final String name = getObjectName(o);
+        final String packageName = getObjectPackage(o);
+        synchronized(sInvalidPackages) {
+            if (sInvalidPackages.contains(packageName)) {
+                return true;
+            }
+        }
+        final int generation = getPackageGeneration(packageName);
+        synchronized(mLoadedPreviews) {
+            if (mLoadedPreviews.containsKey(name) && mLoadedPreviews.get(name).get() != null) {
+                return true;
+            }
+            if (mCachedPreviews.containsKey(name)) {
+                return true;
+            }
+            // Don't push out recycled previews for ones that may never be shown
+            if (mCachedPreviewBytes + width * height * 4 > mMaxCachedPreviewBytes) {
+                return false;
+            }
+        }
+        final Bitmap b = obtainUnusedBitmap(width, height);
+        if (!mStore.read(packageName, size, name, b)) {
+            addUnusedBitmap(b);
+            return true;
+        }
+        synchronized(mLoadedPreviews) {
+            if (mCachedPreviews.containsKey(name) || mLoadedPreviews.containsKey(name)) {
+                addUnusedBitmap(b);
+            } else {
+                cachePreviewLocked(name, b, generation);
+            }
+        }
+        return true;
+    }
+
     public void recycleBitmap(Object o, Bitmap bitmapToRecycle) {
         String name = getObjectName(o);
         synchronized (mLoadedPreviews) {
@@ -248,8 +320,13 @@ public class WidgetPreviewLoader {
                 if (b == bitmapToRecycle) {
                     mLoadedPreviews.remove(name);
                     if (bitmapToRecycle.isMutable()) {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(new SoftReference<Bitmap>(b));
+                        if (b.getWidth() == mPreviewBitmapWidth &&
+                                b.getHeight() == mPreviewBitmapHeight) {
+                            // Keep it around in case its page comes back
+                            cachePreviewLocked(name, b,
+                                    getPackageGeneration(getObjectPackage(o)));
+                        } else {
+                            addUnusedBitmap(b);
                         }
                     }
                 } else {
@@ -259,43 +336,311 @@ public class WidgetPreviewLoader {
         }
     }
 
-    static class CacheDb extends SQLiteOpenHelper {
-        final static int DB_VERSION = 2;
-        final static String DB_NAME = "widgetpreviews.db";
-        final static String TABLE_NAME = "shortcut_and_widget_previews";
-        final static String COLUMN_NAME = "name";
-        final static String COLUMN_SIZE = "size";
-        final static String COLUMN_PREVIEW_BITMAP = "preview_bitmap";
-        Context mContext;
+    private Bitmap obtainUnusedBitmap(int width, int height) {
+        Bitmap unusedBitmap = null;
+        synchronized(mUnusedBitmaps) {
+            // not in cache; we need to load it from the store
+            while ((unusedBitmap == null || !unusedBitmap.isMutable() ||
+                    unusedBitmap.getWidth() != width ||
+                    unusedBitmap.getHeight() != height)
+                    && mUnusedBitmaps.size() > 0) {
+                unusedBitmap = mUnusedBitmaps.remove(0).get();
+            }
+            if (unusedBitmap != null) {
+                final Canvas c = mCachedAppWidgetPreviewCanvas.get();
+                c.setBitmap(unusedBitmap);
+                c.drawColor(0, PorterDuff.Mode.CLEAR);
+                c.setBitmap(null);
+            }
+        }
+
+        if (unusedBitmap == null) {
+            unusedBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return unusedBitmap;
+    }
+
+    private void addUnusedBitmap(Bitmap b) {
+        synchronized (mUnusedBitmaps) {
+            mUnusedBitmaps.add(new SoftReference<Bitmap>(b));
+        }
+    }
 
-        public CacheDb(Context context) {
-            super(context, new File(context.getCacheDir(), DB_NAME).getPath(), null, DB_VERSION);
-            // Store the context for later use
-            mContext = context;
+    private void cachePreviewLocked(String name, Bitmap b, int generation) {
+        final CachedPreview old = mCachedPreviews.put(name, new CachedPreview(b, generation));
+        if (old != null) {
+            mCachedPreviewBytes -= old.bitmap.getByteCount();
+        }
+        mCachedPreviewBytes += b.getByteCount();
+        final Iterator<CachedPreview> iter = mCachedPreviews.values().iterator();
+        while (mCachedPreviewBytes > mMaxCachedPreviewBytes && iter.hasNext()) {
+            mCachedPreviewBytes -= iter.next().bitmap.getByteCount();
+            iter.remove();
+        }
+    }
+
+    private Bitmap takeCachedPreviewLocked(String name, int generation) {
+        final CachedPreview cached = mCachedPreviews.remove(name);
+        if (cached == null) {
+            return null;
+        }
+        final Bitmap b = cached.bitmap;
+        mCachedPreviewBytes -= b.getByteCount();
+        if (cached.generation != generation ||
+                b.getWidth() != mPreviewBitmapWidth || b.getHeight() != mPreviewBitmapHeight) {
+            // Stale; the bitmap itself can still be reused
+            addUnusedBitmap(b);
+            return null;
+        }
+        return b;
+    }
+
+    private static int getPackageGeneration(String packageName) {
+        synchronized (sPackageGenerations) {
+            final Integer generation = sPackageGenerations.get(packageName);
+            return (generation != null) ? generation : 0;
+        }
+    }
+
+    /**
+     * Generated previews, kept in the cache dir.  Each one is stored uncompressed in a file of
+     * its own, under a directory per package and preview size, so that it can be mapped and
+     * copied straight into a bitmap instead of being decoded, and so that the previews of a
+     * package can be thrown away without touching the others.
+     */
+    static class PreviewStore {
+        final static String DIR_NAME = "widget_previews";
+        // The PNG database that previews used to be kept in
+        final static String OLD_DB_NAME = "widgetpreviews.db";
+        final static int MAGIC = 0x57505631; // "WPV1"
+        final static int HEADER_SIZE = 12;
+        // Least recently written previews are deleted when the store grows past this
+        final static long MAX_STORE_BYTES = 32 * 1024 * 1024;
+
+        final File mDir;
+        // Size of all the files in the store, or -1 until they are first counted; guarded by this
+        private long mStoreBytes = -1;
+
+        public PreviewStore(Context context) {
+            final File cacheDir = context.getCacheDir();
+            mDir = new File(cacheDir, DIR_NAME);
             if (LauncherLog.DEBUG) {
-                LauncherLog.d(TAG, "CacheDb: ctor, cache dir = " + new File(context.getCacheDir(), DB_NAME).getPath());
+                LauncherLog.d(TAG, "PreviewStore: ctor, store dir = " + mDir.getPath());
+            }
+            new AsyncTask<Void, Void, Void>() {
+                public Void doInBackground(Void ... args) {
+                    new File(cacheDir, OLD_DB_NAME).delete();
+                    new File(cacheDir, OLD_DB_NAME + "-journal").delete();
+                    return null;
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
+        }
+
+        private File getFile(String packageName, String size, String name) {
+            // Object names are "<prefix>:<package>/<class>", neither part of which has a ':'
+            // or a '/' of its own
+            return new File(new File(new File(mDir, packageName), size),
+                    name.replace(':', '_').replace('/', '_'));
+        }
+
+        /**
+         * Copies the preview's pixels into a buffer that can be passed to {@link #write}.
+         */
+        static ByteBuffer encode(Bitmap preview) {
+            final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + preview.getByteCount());
+            buffer.putInt(MAGIC);
+            buffer.putInt(preview.getWidth());
+            buffer.putInt(preview.getHeight());
+            preview.copyPixelsToBuffer(buffer);
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Reads a stored preview into the given bitmap, which must be of the preview size.
+         *
+         * @return false if it isn't stored
+         */
+        boolean read(String packageName, String size, String name, Bitmap b) {
+            final File file = getFile(packageName, size, name);
+            if (!file.isFile()) {
+                return false;
+            }
+            RandomAccessFile in = null;
+            try {
+                in = new RandomAccessFile(file, "r");
+                final long length = in.length();
+                if (length == HEADER_SIZE + b.getByteCount()) {
+                    final MappedByteBuffer buffer =
+                            in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                    if (buffer.getInt() == MAGIC && buffer.getInt() == b.getWidth() &&
+                            buffer.getInt() == b.getHeight()) {
+                        b.copyPixelsFromBuffer(buffer);
+                        return true;
+                    }
+                }
+            } catch (IOException e) {
+                LauncherLog.e(TAG, "read: Error reading " + file, e);
+            } catch (RuntimeException e) {
+                LauncherLog.e(TAG, "read: Error reading " + file, e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+            // It's truncated or otherwise broken; it will be generated again
+            removeFile(file);
+            return false;
+        }
+
+        /**
+         * Stores a preview, unless the package's previews were removed since {@code generation},
+         * in which case the preview may be out of date.
+         */
+        void write(String packageName, String size, String name, ByteBuffer pixels,
+                int generation) {
+            final File file = getFile(packageName, size, name);
+            final File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                LauncherLog.e(TAG, "write: Can't create " + dir);
+                return;
+            }
+            // Write to a temp file first, so that readers never see a partial preview
+            final File tmp = new File(dir, file.getName() + ".tmp");
+            final long oldLength = file.length();
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(tmp);
+                final FileChannel channel = out.getChannel();
+                while (pixels.hasRemaining()) {
+                    channel.write(pixels);
+                }
+                out.close();
+                out = null;
+                // Checked under the same lock as removePackage(), which runs after the
+                // generation is bumped, so that a stale preview can't land after the removal
+                synchronized (this) {
+                    if (generation != getPackageGeneration(packageName)) {
+                        tmp.delete();
+                        return;
+                    }
+                    if (!tmp.renameTo(file)) {
+                        LauncherLog.e(TAG, "write: Can't rename " + tmp);
+                        tmp.delete();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                LauncherLog.e(TAG, "write: Error writing " + file, e);
+                tmp.delete();
+                return;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+            addStoreBytes(file.length() - oldLength);
+        }
+
+        /**
+         * Deletes all the previews of a package.
+         */
+        synchronized void removePackage(String packageName) {
+            addStoreBytes(-deleteRecursive(new File(mDir, packageName)));
+        }
+
+        private void removeFile(File file) {
+            final long length = file.length();
+            if (file.delete()) {
+                addStoreBytes(-length);
+            }
+        }
+
+        private synchronized void addStoreBytes(long delta) {
+            if (mStoreBytes < 0) {
+                mStoreBytes = 0;
+                final ArrayList<File> files = new ArrayList<File>();
+                listFiles(mDir, files);
+                for (File f : files) {
+                    mStoreBytes += f.length();
+                }
+            } else {
+                mStoreBytes += delta;
+            }
+            if (mStoreBytes > MAX_STORE_BYTES) {
+                trimLocked();
             }
         }
 
-        @Override
-        public void onCreate(SQLiteDatabase database) {
-            database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
-                    COLUMN_NAME + " TEXT NOT NULL, " +
-                    COLUMN_SIZE + " TEXT NOT NULL, " +
-                    COLUMN_PREVIEW_BITMAP + " BLOB NOT NULL, " +
-                    "PRIMARY KEY (" + COLUMN_NAME + ", " + COLUMN_SIZE + ") " +
-                    ");");
+        /**
+         * Deletes the least recently written previews until the store is down to 3/4 of its
+         * maximum size.
+         */
+        private void trimLocked() {
+            final ArrayList<File> list = new ArrayList<File>();
+            listFiles(mDir, list);
+            final File[] files = list.toArray(new File[list.size()]);
+            final HashMap<File, Long> lastModified = new HashMap<File, Long>();
+            for (File f : files) {
+                lastModified.put(f, f.lastModified());
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    final long l = lastModified.get(lhs);
+                    final long r = lastModified.get(rhs);
+                    return (l < r) ? -1 : ((l == r) ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < files.length && mStoreBytes > MAX_STORE_BYTES * 3 / 4; i++) {
+                final long length = files[i].length();
+                if (files[i].delete()) {
+                    mStoreBytes -= length;
+                }
+            }
             if (LauncherLog.DEBUG) {
-                LauncherLog.d(TAG, "onCreate: create database");
+                LauncherLog.d(TAG, "trimLocked: store size = " + mStoreBytes);
+            }
+        }
+
+        private static void listFiles(File dir, ArrayList<File> out) {
+            final File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    listFiles(f, out);
+                } else {
+                    out.add(f);
+                }
             }
         }
 
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (oldVersion != newVersion) {
-                // Delete all the records; they'll be repopulated as this is a cache
-                db.execSQL("DELETE FROM " + TABLE_NAME);
+        /**
+         * @return the number of bytes deleted
+         */
+        private static long deleteRecursive(File file) {
+            long deleted = 0;
+            final File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    deleted += deleteRecursive(f);
+                }
             }
+            final long length = file.isFile() ? file.length() : 0;
+            if (file.delete()) {
+                deleted += length;
+            }
+            return deleted;
         }
     }
 
@@ -332,44 +677,20 @@ public class WidgetPreviewLoader {
         }
     }
 
-    private void writeToDb(Object o, Bitmap preview) {
-        String name = getObjectName(o);
-        SQLiteDatabase db = mDb.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        if (LauncherLog.DEBUG) {
-            LauncherLog.d(TAG, "writeToDb: db = " + db);
-        }
-        values.put(CacheDb.COLUMN_NAME, name);
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        preview.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, stream.toByteArray());
-        values.put(CacheDb.COLUMN_SIZE, mSize);
-        db.insert(CacheDb.TABLE_NAME, null, values);
-    }
-
-    public static void removePackageFromDb(final CacheDb cacheDb, final String packageName) {
+    public static void removePackageFromStore(final PreviewStore store,
+            final String packageName) {
         synchronized(sInvalidPackages) {
             sInvalidPackages.add(packageName);
         }
+        synchronized (sPackageGenerations) {
+            sPackageGenerations.put(packageName, getPackageGeneration(packageName) + 1);
+        }
         new AsyncTask<Void, Void, Void>() {
             public Void doInBackground(Void ... args) {
-                try {
-                    SQLiteDatabase db = cacheDb.getWritableDatabase();
-                    if (LauncherLog.DEBUG) {
-                        LauncherLog.d(TAG, "removeFromDb: db = " + db);
-                    }
-                    db.delete(CacheDb.TABLE_NAME,
-                        CacheDb.COLUMN_NAME + " LIKE ? OR " +
-                        CacheDb.COLUMN_NAME + " LIKE ?", // SELECT query
-                        new String[] {
-                            WIDGET_PREFIX + packageName + "/%",
-                            SHORTCUT_PREFIX + packageName + "/%"} // args to SELECT query
-                            );
-                } catch (SQLiteException e) {
-                    LauncherLog.e(TAG, "removePackageFromDb: Error delete", e);
-                } catch (SQLException e) {
-                    LauncherLog.e(TAG, "removePackageFromDb: Error delete", e);
+                if (LauncherLog.DEBUG) {
+                    LauncherLog.d(TAG, "removePackageFromStore: packageName = " + packageName);
                 }
+                store.removePackage(packageName);
                 synchronized(sInvalidPackages) {
                     sInvalidPackages.remove(packageName);
                 }
@@ -378,57 +699,6 @@ public class WidgetPreviewLoader {
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
     }
 
-    public static void removeItemFromDb(final CacheDb cacheDb, final String objectName) {
-        new AsyncTask<Void, Void, Void>() {
-            public Void doInBackground(Void ... args) {
-                try {
-                    SQLiteDatabase db = cacheDb.getWritableDatabase();
-                    db.delete(CacheDb.TABLE_NAME,
-                            CacheDb.COLUMN_NAME + " = ? ", // SELECT query
-                            new String[] { objectName }); // args to SELECT query
-                } catch (SQLiteException e) {
-                    LauncherLog.e(TAG, "removeItemFromDb: Error delete", e);
-                } catch (SQLException e) {
-                    LauncherLog.e(TAG, "removeItemFromDb: Error delete", e);
-                }
-                return null;
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
-    }
-
-    private Bitmap readFromDb(String name, Bitmap b) {
-        if (mCachedSelectQuery == null) {
-            mCachedSelectQuery = CacheDb.COLUMN_NAME + " = ? AND " +
-                    CacheDb.COLUMN_SIZE + " = ?";
-        }
-        SQLiteDatabase db = mDb.getReadableDatabase();
-        Cursor result = db.query(CacheDb.TABLE_NAME,
-                new String[] { CacheDb.COLUMN_PREVIEW_BITMAP }, // cols to return
-                mCachedSelectQuery, // select query
-                new String[] { name, mSize }, // args to select query
-                null,
-                null,
-                null,
-                null);
-        if (result.getCount() > 0) {
-            result.moveToFirst();
-            byte[] blob = result.getBlob(0);
-            result.close();
-            final BitmapFactory.Options opts = mCachedBitmapFactoryOptions.get();
-            opts.inBitmap = b;
-            opts.inSampleSize = 1;
-            try {
-                return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
-            } catch (IllegalArgumentException e) {
-                removeItemFromDb(mDb, name);
-                return null;
-            }
-        } else {
-            result.close();
-            return null;
-        }
-    }
-
     public Bitmap generatePreview(Object info, Bitmap preview) {
         if (preview != null &&
                 (preview.getWidth() != mPreviewBitmapWidth ||
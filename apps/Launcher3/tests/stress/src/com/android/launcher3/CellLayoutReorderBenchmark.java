@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Replays drag paths over dense 5x5 layouts through CellLayout's reorder logic, once with the
+ * reorder cache and once without.  It checks that both come to the same layout at every step,
+ * and logs how long each step took on average.
+ */
+public class CellLayoutReorderBenchmark extends ActivityInstrumentationTestCase2<Launcher> {
+    private static final String LOG_TAG = "CellLayoutReorderBenchmark";
+
+    private static final int COUNT_X = 5;
+    private static final int COUNT_Y = 5;
+    private static final int CELL_SIZE = 100;
+    // Pixels between two move events of a drag
+    private static final int STEP = 12;
+    // Times each path is dragged back and forth
+    private static final int PASSES = 5;
+
+    public CellLayoutReorderBenchmark() {
+        super(Launcher.class);
+    }
+
+    /**
+     * A layout to drag over: the items on it, as { cellX, cellY, spanX, spanY }, and which of
+     * them is being dragged, or -1 for an item dragged in from elsewhere.
+     */
+    private static class Scenario {
+        final String name;
+        final int[][] items;
+        final int dragIndex;
+        final int spanX, spanY;
+        final int[][] path;
+
+        Scenario(String name, int[][] items, int dragIndex, int spanX, int spanY, int[][] path) {
+            this.name = name;
+            this.items = items;
+            this.dragIndex = dragIndex;
+            this.spanX = spanX;
+            this.spanY = spanY;
+            this.path = path;
+        }
+    }
+
+    /** Fills all the cells not covered by the given items with 1x1 icons. */
+    private static int[][] fill(int[]... items) {
+        final boolean[][] covered = new boolean[COUNT_X][COUNT_Y];
+        final ArrayList<int[]> all = new ArrayList<int[]>();
+        for (int[] item : items) {
+            all.add(item);
+            for (int x = item[0]; x < item[0] + item[2]; x++) {
+                for (int y = item[1]; y < item[1] + item[3]; y++) {
+                    covered[x][y] = true;
+                }
+            }
+        }
+        for (int y = 0; y < COUNT_Y; y++) {
+            for (int x = 0; x < COUNT_X; x++) {
+                if (!covered[x][y]) {
+                    all.add(new int[] { x, y, 1, 1 });
+                }
+            }
+        }
+        return all.toArray(new int[all.size()][]);
+    }
+
+    /** A path through the centers of the given cells, in cell units. */
+    private static int[][] path(float... cells) {
+        final int[][] points = new int[cells.length / 2][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new int[] { (int) (cells[2 * i] * CELL_SIZE + CELL_SIZE / 2),
+                    (int) (cells[2 * i + 1] * CELL_SIZE + CELL_SIZE / 2) };
+        }
+        return points;
+    }
+
+    private static Scenario[] createScenarios() {
+        return new Scenario[] {
+            new Scenario("4x4 widget across a full screen",
+                    fill(new int[] { 0, 0, 4, 4 }), 0, 4, 4,
+                    path(1.5f, 1.5f, 2.5f, 1.5f, 2.5f, 2.5f, 1.5f, 2.5f, 1.5f, 1.5f)),
+            new Scenario("2x2 widget among widgets and icons",
+                    fill(new int[] { 0, 0, 2, 2 }, new int[] { 3, 0, 2, 2 },
+                            new int[] { 1, 3, 2, 2 }), 0, 2, 2,
+                    path(0.5f, 0.5f, 3.5f, 0.5f, 3.5f, 3.5f, 0.5f, 3.5f, 2f, 2f)),
+            new Scenario("icon dropped onto a full screen",
+                    fill(new int[] { 1, 1, 3, 2 }), -1, 1, 1,
+                    path(0, 0, 4, 0, 4, 4, 0, 4, 0, 0, 4, 4)),
+        };
+    }
+
+    private CellLayout createLayout(Scenario scenario, ArrayList<View> children) {
+        final Launcher launcher = getActivity();
+        final CellLayout layout = new CellLayout(launcher);
+        layout.setGridSize(COUNT_X, COUNT_Y);
+        layout.setCellDimensions(CELL_SIZE, CELL_SIZE);
+        for (int i = 0; i < scenario.items.length; i++) {
+            final int[] item = scenario.items[i];
+            final View child = new View(launcher);
+            final CellLayout.LayoutParams lp =
+                    new CellLayout.LayoutParams(item[0], item[1], item[2], item[3]);
+            assertTrue(layout.addViewToCellLayout(child, -1, i, lp, true));
+            children.add(child);
+        }
+        if (scenario.dragIndex >= 0) {
+            layout.prepareChildForDrag(children.get(scenario.dragIndex));
+        }
+        return layout;
+    }
+
+    /**
+     * Drags along the scenario's path, and records the drop cell and the temporary cell of
+     * every child at each step.
+     *
+     * @return the time spent in the reorder logic, in ns
+     */
+    private long replay(Scenario scenario, boolean cached, ArrayList<int[]> outcome) {
+        final ArrayList<View> children = new ArrayList<View>();
+        final CellLayout layout = createLayout(scenario, children);
+        layout.setReorderCacheEnabled(cached);
+        final View dragView = (scenario.dragIndex >= 0) ? children.get(scenario.dragIndex) : null;
+        final int[] result = new int[2];
+        final int[] resultSpan = new int[2];
+
+        long elapsed = 0;
+        for (int pass = 0; pass < PASSES; pass++) {
+            final int[][] path = scenario.path;
+            for (int i = 0; i < path.length - 1; i++) {
+                // Go back along the path on odd passes
+                final int[] from = (pass % 2 == 0) ? path[i] : path[path.length - 1 - i];
+                final int[] to = (pass % 2 == 0) ? path[i + 1] : path[path.length - 2 - i];
+                final int steps = Math.max(1, Math.max(Math.abs(to[0] - from[0]),
+                        Math.abs(to[1] - from[1])) / STEP);
+                for (int step = 0; step < steps; step++) {
+                    final int x = from[0] + (to[0] - from[0]) * step / steps;
+                    final int y = from[1] + (to[1] - from[1]) * step / steps;
+
+                    final long start = System.nanoTime();
+                    layout.createArea(x, y, scenario.spanX, scenario.spanY, scenario.spanX,
+                            scenario.spanY, dragView, result, resultSpan,
+                            CellLayout.MODE_DRAG_OVER);
+                    elapsed += System.nanoTime() - start;
+
+                    final int[] state = new int[4 + 2 * children.size()];
+                    state[0] = result[0];
+                    state[1] = result[1];
+                    state[2] = resultSpan[0];
+                    state[3] = resultSpan[1];
+                    for (int c = 0; c < children.size(); c++) {
+                        final CellLayout.LayoutParams lp =
+                                (CellLayout.LayoutParams) children.get(c).getLayoutParams();
+                        state[4 + 2 * c] = lp.tmpCellX;
+                        state[5 + 2 * c] = lp.tmpCellY;
+                    }
+                    outcome.add(state);
+                }
+            }
+        }
+        layout.revertTempState();
+        return elapsed;
+    }
+
+    private void runScenario(Scenario scenario) {
+        // Warm up, so that neither run pays for class loading and JIT
+        replay(scenario, false, new ArrayList<int[]>());
+        replay(scenario, true, new ArrayList<int[]>());
+
+        final ArrayList<int[]> uncached = new ArrayList<int[]>();
+        final ArrayList<int[]> cached = new ArrayList<int[]>();
+        final long uncachedNs = replay(scenario, false, uncached);
+        final long cachedNs = replay(scenario, true, cached);
+
+        assertEquals(uncached.size(), cached.size());
+        for (int i = 0; i < uncached.size(); i++) {
+            assertTrue(scenario.name + ": layouts differ at step " + i,
+                    Arrays.equals(uncached.get(i), cached.get(i)));
+        }
+        final int steps = uncached.size();
+        Log.d(LOG_TAG, scenario.name + ": " + steps + " moves, "
+                + (uncachedNs / steps / 1000) + "us per move uncached, "
+                + (cachedNs / steps / 1000) + "us per move cached");
+    }
+
+    public void testDragReplay() throws Throwable {
+        getActivity();
+        getInstrumentation().waitForIdleSync();
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Scenario scenario : createScenarios()) {
+                    runScenario(scenario);
+                }
+            }
+        });
+    }
+}
@@ -551,6 +551,7 @@ public class Conversation {
                        new Thread(new Runnable() {
                            @Override
                            public void run() {
+                               final long maxSmsId = MessagingNotification.getMaxUnseenSmsId();
                                int updateCount = UPDATE_LIMIT;
                                if (allNeedUpdateCount >= UPDATE_LIMIT) {
                                    while (updateCount > 0) {
@@ -575,7 +576,8 @@ public class Conversation {
                                }
                                conv.setIsDoingMarkAsRead(false);
                                // Always update notifications regardless of the read state.
-                               MessagingNotification.blockingUpdateAllNotifications(mContext);
+                               MessagingNotification.blockingUpdateAllNotificationsAfterSeen(
+                                       mContext, mThreadId, maxSmsId);
                            }
                        }, "markAsRead-updateThread").start();
                    } else {
@@ -1488,6 +1490,7 @@ public class Conversation {
 
         Thread thread = new Thread(new Runnable() {
             public void run() {
+                final long maxSmsId = MessagingNotification.getMaxUnseenSmsId();
                 blockingMarkAllSmsMessagesAsSeen(context);
                 blockingMarkAllMmsMessagesAsSeen(context);
 
@@ -1498,7 +1501,8 @@ public class Conversation {
                 /// @}
 
                 // Always update notifications regardless of the read state.
-                MessagingNotification.blockingUpdateAllNotifications(context);
+                MessagingNotification.blockingUpdateAllNotificationsAfterSeen(context,
+                        MessagingNotification.THREAD_ALL, maxSmsId);
             }
         }, "Conversation.markAllConversationsAsSeen");
         thread.setPriority(Thread.MIN_PRIORITY);
@@ -2379,7 +2383,11 @@ public class Conversation {
 
                     if (needUpdate && !mComposeIsPause) {
                         MmsLog.d(TAG, "markAsRead: update read/seen for thread uri: " + threadUri);
+                        final long maxSmsId = MessagingNotification.getMaxUnseenSmsId();
                         mContext.getContentResolver().update(threadUri, ct, UNSEEN_SELECTION, null);
+                        MessagingNotification.blockingUpdateAllNotificationsAfterSeen(mContext,
+                                mThreadId, maxSmsId);
+                        return null;
                     }
                 }
                 // Always update notifications regardless of the seen state.
@@ -62,6 +62,8 @@ import android.media.ToneGenerator;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.preference.PreferenceManager;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
@@ -75,7 +77,9 @@ import android.util.Log;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -154,6 +158,13 @@ public class MessagingNotification {
     /// M: add for ip message
     private static final int COLUMN_IPMSG_ID    = 6;
 
+    // Lightweight projection used to track the unseen SMS set without pulling message bodies.
+    private static final String[] SMS_UNSEEN_PROJECTION = new String[] {
+        Sms._ID, Sms.THREAD_ID, Sms.DATE };
+    private static final int COLUMN_UNSEEN_SMS_ID        = 0;
+    private static final int COLUMN_UNSEEN_SMS_THREAD_ID = 1;
+    private static final int COLUMN_UNSEEN_SMS_DATE      = 2;
+
     private static final String[] SMS_THREAD_ID_PROJECTION = new String[] { Sms.THREAD_ID };
     private static final String[] MMS_THREAD_ID_PROJECTION = new String[] { Mms.THREAD_ID };
 
@@ -240,6 +251,28 @@ public class MessagingNotification {
     private static long sLastNotificationTime = 0;
     private final static int RINGTONE_WAIT_TIME = 500;
 
+    /**
+     * Requests to update the new message indicator that arrive within this window are
+     * merged into a single update, so a burst of incoming messages only rebuilds the
+     * notification once.
+     */
+    private static final int UPDATE_COALESCE_DELAY_MS = 200;
+
+    /**
+     * Maximum time the unseen message model is trusted before it is reconciled with the
+     * provider again, even if no change we can't account for was reported.
+     */
+    private static final long UNSEEN_MODEL_RECONCILE_INTERVAL_MS = 5 * 60 * 1000;
+
+    private static final UnseenMessageModel sUnseenModel = new UnseenMessageModel();
+
+    private static final Object sPendingUpdateLock = new Object();
+    private static Handler sUpdateHandler;
+    private static boolean sUpdatePending;
+    private static Context sPendingUpdateContext;
+    private static long sPendingThreadId = THREAD_NONE;
+    private static boolean sPendingIsStatusMessage;
+
     /// M: Add for DTMF tone
     private static final String DTMF_TONE = "SetWarningTone=16";
 
@@ -302,22 +335,99 @@ public class MessagingNotification {
     /**
      * Checks to see if there are any "unseen" messages or delivery
      * reports.  Shows the most recent notification if there is one.
-     * Does its work and query in a worker thread.
+     * Does its work and query in a worker thread. Requests made within
+     * UPDATE_COALESCE_DELAY_MS of each other are merged into one update.
      *
      * @param context the context to use
      */
     public static void nonBlockingUpdateNewMessageIndicator(final Context context,
             final long newMsgThreadId,
             final boolean isStatusMessage) {
+        nonBlockingUpdateNewMessageIndicator(context, newMsgThreadId, isStatusMessage, false);
+    }
+
+    /**
+     * @param knownChange whether the model was already told about the change that caused
+     *  this update, so that it doesn't need to be reconciled with the provider
+     */
+    private static void nonBlockingUpdateNewMessageIndicator(final Context context,
+            final long newMsgThreadId,
+            final boolean isStatusMessage, boolean knownChange) {
         /// M:
         Log.d(TAG, "nonBlockingUpdateNewMessageIndicator, newMsgThreadId = " + newMsgThreadId + "," +
                 " isStatusMessage = " + isStatusMessage) ;
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                blockingUpdateNewMessageIndicator(context, newMsgThreadId, isStatusMessage);
+        sUnseenModel.noteUpdateRequest(newMsgThreadId, knownChange);
+        synchronized (sPendingUpdateLock) {
+            sPendingThreadId = mergeThreadIds(sPendingThreadId, newMsgThreadId);
+            sPendingIsStatusMessage |= isStatusMessage;
+            Context appContext = context.getApplicationContext();
+            sPendingUpdateContext = appContext != null ? appContext : context;
+            if (sUpdatePending) {
+                return;
+            }
+            sUpdatePending = true;
+            if (sUpdateHandler == null) {
+                HandlerThread thread = new HandlerThread("MessagingNotification",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sUpdateHandler = new Handler(thread.getLooper());
             }
-        }, "MessagingNotification.nonBlockingUpdateNewMessageIndicator").start();
+            sUpdateHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    Context pendingContext;
+                    long threadId;
+                    boolean isStatus;
+                    synchronized (sPendingUpdateLock) {
+                        pendingContext = sPendingUpdateContext;
+                        threadId = sPendingThreadId;
+                        isStatus = sPendingIsStatusMessage;
+                        sPendingUpdateContext = null;
+                        sPendingThreadId = THREAD_NONE;
+                        sPendingIsStatusMessage = false;
+                        sUpdatePending = false;
+                    }
+                    updateNewMessageIndicator(pendingContext, threadId, isStatus);
+                }
+            }, UPDATE_COALESCE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Merges the thread IDs of two coalesced update requests. A new message in a single
+     * thread keeps its thread ID, new messages in different threads become THREAD_ALL.
+     */
+    private static long mergeThreadIds(long pendingThreadId, long newMsgThreadId) {
+        if (pendingThreadId == THREAD_NONE || pendingThreadId == newMsgThreadId) {
+            return newMsgThreadId;
+        }
+        if (newMsgThreadId == THREAD_NONE) {
+            return pendingThreadId;
+        }
+        return THREAD_ALL;
+    }
+
+    /**
+     * Returns the newest SMS the notification code knows about. Call it before marking
+     * messages as seen, and pass the result to {@link #blockingUpdateAllNotificationsAfterSeen}.
+     */
+    public static long getMaxUnseenSmsId() {
+        return sUnseenModel.getMaxSmsId();
+    }
+
+    /**
+     * Like {@link #blockingUpdateAllNotifications}, after the unseen messages of a thread, or
+     * of all threads, have been marked as seen. The SMS the notification code knew about
+     * before then are dropped without re-querying the provider; newer ones, which may have
+     * arrived while the messages were being marked, are checked against the provider.
+     *
+     * @param threadId the thread whose messages were marked as seen, or THREAD_ALL
+     * @param maxSmsId what {@link #getMaxUnseenSmsId} returned before they were marked
+     */
+    public static void blockingUpdateAllNotificationsAfterSeen(final Context context,
+            long threadId, long maxSmsId) {
+        sUnseenModel.removeSeen(threadId, maxSmsId);
+        blockingUpdateAllNotifications(context, true);
     }
 
     /**
@@ -332,6 +442,12 @@ public class MessagingNotification {
      */
     public static void blockingUpdateNewMessageIndicator(Context context, long newMsgThreadId,
             boolean isStatusMessage) {
+        sUnseenModel.noteUpdateRequest(newMsgThreadId, false);
+        updateNewMessageIndicator(context, newMsgThreadId, isStatusMessage);
+    }
+
+    private static void updateNewMessageIndicator(Context context, long newMsgThreadId,
+            boolean isStatusMessage) {
         /// M: add for notification settings
         NotificationProfile notiProf = getNotificationProfileByThreadId(context, newMsgThreadId);
         boolean isContinuousComming = false;
@@ -364,8 +480,13 @@ public class MessagingNotification {
         Set<Long> threads = new HashSet<Long>(4);
 
         int count = 0;
-        int mmsUnReadCount = addMmsNotificationInfos(context, threads, notificationSet);
-        int smsUnReadCount = addSmsNotificationInfos(context, threads, notificationSet);
+        int mmsUnReadCount;
+        int smsUnReadCount;
+        synchronized (sUnseenModel) {
+            sUnseenModel.refresh(context);
+            mmsUnReadCount = addMmsNotificationInfos(context, threads, notificationSet);
+            smsUnReadCount = addSmsNotificationInfos(context, threads, notificationSet);
+        }
 
         if (!isContinuousComming) {
             cancelNotification(context, NOTIFICATION_ID);
@@ -425,7 +546,12 @@ public class MessagingNotification {
      * necessary.
      */
     public static void blockingUpdateAllNotifications(final Context context) {
-        nonBlockingUpdateNewMessageIndicator(context, THREAD_NONE, false);
+        blockingUpdateAllNotifications(context, false);
+    }
+
+    private static void blockingUpdateAllNotifications(final Context context,
+            boolean knownChange) {
+        nonBlockingUpdateNewMessageIndicator(context, THREAD_NONE, false, knownChange);
         nonBlockingUpdateSendFailedNotification(context);
         updateDownloadFailedNotification(context);
         /// M:Code analyze 006,Checks to see if there are any unread messages or delivery
@@ -659,125 +785,359 @@ public class MessagingNotification {
         }
     }
 
-    private static final int addMmsNotificationInfos(
-            Context context, Set<Long> threads, SortedSet<NotificationInfo> notificationSet) {
-        ContentResolver resolver = context.getContentResolver();
+    /**
+     * A message that is currently unseen, as tracked by {@link UnseenMessageModel}. The
+     * notification info is built lazily the first time the message is displayed and then
+     * reused by later updates.
+     */
+    private static final class UnseenMessage {
+        public final long mMsgId;
+        public final long mThreadId;
+        public final long mTimeMillis;
+        /** MMS only: the raw subject and its charset. */
+        public final String mSubject;
+        public final int mSubjectCharset;
 
-        // This query looks like this when logged:
-        // I/Database(  147): elapsedTime4Sql|/data/data/com.android.providers.telephony/databases/
-        // mmssms.db|0.362 ms|SELECT thread_id, date, _id, sub, sub_cs FROM pdu WHERE ((msg_box=1
-        // AND seen=0 AND (m_type=130 OR m_type=132))) ORDER BY date desc
+        public NotificationInfo mInfo;
+        /** MMS only: whether mInfo was built with the attached picture of the first slide. */
+        public boolean mInfoHasPicture;
+        /** True if the sender is sent to voicemail, so the message never shows up. */
+        public boolean mSkip;
 
-        Cursor cursor = SqliteWrapper.query(context, resolver, Mms.CONTENT_URI,
-                            MMS_STATUS_PROJECTION, NEW_INCOMING_MM_CONSTRAINT,
-                            null, Mms.DATE + " desc");
+        public UnseenMessage(long msgId, long threadId, long timeMillis,
+                String subject, int subjectCharset) {
+            mMsgId = msgId;
+            mThreadId = threadId;
+            mTimeMillis = timeMillis;
+            mSubject = subject;
+            mSubjectCharset = subjectCharset;
+        }
+    }
 
-        if (cursor == null) {
-            return 0;
+    /**
+     * Sorts unseen messages by date in descending order, like the provider queries do.
+     */
+    private static final Comparator<UnseenMessage> UNSEEN_MESSAGE_COMPARATOR =
+            new Comparator<UnseenMessage>() {
+        @Override
+        public int compare(UnseenMessage msg1, UnseenMessage msg2) {
+            if (msg1.mTimeMillis != msg2.mTimeMillis) {
+                return msg2.mTimeMillis > msg1.mTimeMillis ? 1 : -1;
+            }
+            return msg2.mMsgId > msg1.mMsgId ? 1 : (msg2.mMsgId == msg1.mMsgId ? 0 : -1);
         }
+    };
 
-        int addNotifyCount = 0;
-        Set<Long> mmsThreads = new HashSet<Long>(4);
-        try {
-            while (cursor.moveToNext()) {
-
-                long threadId = cursor.getLong(COLUMN_THREAD_ID);
-                //for ALPS00812092 SMS received process is behind sent too much
-                 /*
-                 * our Notification show has 3 case:
-                 * 1. 1 thread and 1 item => show the item
-                 * 2. 1 thread and many items => show all items of this thread
-                 * 3. many threads => show 1 item for every thread
-                 * But total items can show out is <= MAX_MESSAGES_TO_SHOW
-                 */
-                if (mmsThreads.size() > MAX_MESSAGES_TO_SHOW) {
-                    //has enough item of many thread, no need check cursor anymore
-                    break;
-                } else if (mmsThreads.contains(threadId) && mmsThreads.size() > 1) {
-                    //threads count > 1, only need 1 item for every thread
-                    continue;
-                } else if (mmsThreads.contains(threadId) && addNotifyCount > MAX_MESSAGES_TO_SHOW) {
-                    //only 1 thread, but has enough items for this thread
-                    continue;
-                }
+    /**
+     * In-memory model of the unseen incoming SMS and MMS that drive the new message
+     * notification.
+     *
+     * New SMS are folded in with a delta query on _id, threads marked as seen are dropped
+     * without touching the provider, and notification infos are kept across updates so the
+     * PDU loading, contact lookup and ticker formatting only happen once per message. The
+     * model is reconciled with the provider (an ids-only query, no message bodies) when an
+     * update is requested for a change it can't account for, such as a deletion, and at
+     * least every UNSEEN_MODEL_RECONCILE_INTERVAL_MS.
+     *
+     * MMS are reconciled on every refresh: a notification indication is replaced by the
+     * retrieved PDU under a new _id, which a delta query would not notice. The unseen MMS
+     * set is small and the query only reads the pdu table; the expensive part, loading
+     * the slideshow, stays cached.
+     */
+    private static final class UnseenMessageModel {
+        private final HashMap<Long, UnseenMessage> mSms = new HashMap<Long, UnseenMessage>();
+        private final HashMap<Long, UnseenMessage> mMms = new HashMap<Long, UnseenMessage>();
+        private long mMaxSmsId;
+        private long mLastReconcileTime;
+        private boolean mLoaded;
+        private boolean mDirty;
+
+        /**
+         * Records that an update was requested. New messages (a real thread ID) are picked
+         * up by the delta query; any other request means something changed that the model
+         * doesn't know about, unless the caller reported the change through
+         * {@link #removeSeen}.
+         */
+        public synchronized void noteUpdateRequest(long threadId, boolean knownChange) {
+            if (threadId > 0 || knownChange) {
+                return;
+            }
+            mDirty = true;
+        }
 
-                long msgId = cursor.getLong(COLUMN_MMS_ID);
-                Uri msgUri = Mms.CONTENT_URI.buildUpon().appendPath(
-                        Long.toString(msgId)).build();
-                String address = AddressUtils.getFrom(context, msgUri);
+        public synchronized long getMaxSmsId() {
+            return mMaxSmsId;
+        }
 
-                Contact contact = Contact.get(address, false);
-                if (contact.getSendToVoicemail()) {
-                    // don't notify, skip this one
+        /**
+         * Drops the SMS of the thread, or of all threads for THREAD_ALL, up to maxSmsId. Newer
+         * ones may or may not have been marked as seen, so the model is reconciled if there
+         * are any. MMS are reconciled on every refresh anyway.
+         */
+        public synchronized void removeSeen(long threadId, long maxSmsId) {
+            Iterator<UnseenMessage> iter = mSms.values().iterator();
+            while (iter.hasNext()) {
+                UnseenMessage msg = iter.next();
+                if (threadId != THREAD_ALL && msg.mThreadId != threadId) {
                     continue;
                 }
+                if (msg.mMsgId <= maxSmsId) {
+                    iter.remove();
+                } else {
+                    mDirty = true;
+                }
+            }
+        }
 
-                String subject = getMmsSubject(
-                        cursor.getString(COLUMN_SUBJECT), cursor.getInt(COLUMN_SUBJECT_CS));
-                /// M: google jb.mr1 patch
-                subject = MessageUtils.cleanseMmsSubject(context, subject);
+        public synchronized ArrayList<UnseenMessage> getSms() {
+            return sorted(mSms);
+        }
 
-                long timeMillis = cursor.getLong(COLUMN_DATE) * 1000;
+        public synchronized ArrayList<UnseenMessage> getMms() {
+            return sorted(mMms);
+        }
 
-                if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
-                    Log.d(TAG, "addMmsNotificationInfos: count=" + cursor.getCount() +
-                            ", addr = " + address + ", thread_id=" + threadId);
+        /**
+         * Brings the model up to date with the provider, doing a full reconcile only when
+         * needed.
+         */
+        public synchronized void refresh(Context context) {
+            long now = System.currentTimeMillis();
+            boolean expired = now - mLastReconcileTime > UNSEEN_MODEL_RECONCILE_INTERVAL_MS
+                    || now < mLastReconcileTime;
+            if (!mLoaded || mDirty || expired) {
+                if (expired) {
+                    // Contact names and attachments may have changed since the infos were built.
+                    mSms.clear();
+                    mMms.clear();
                 }
+                reconcileSms(context);
+                mLoaded = true;
+                mDirty = false;
+                mLastReconcileTime = now;
+            } else {
+                loadNewSms(context);
+            }
+            reconcileMms(context);
+        }
 
-                // Extract the message and/or an attached picture from the first slide
-                Bitmap attachedPicture = null;
-                String messageBody = null;
-                int attachmentType = WorkingMessage.TEXT;
-                try {
-                    GenericPdu pdu = sPduPersister.load(msgUri);
-                    if (pdu != null && pdu instanceof MultimediaMessagePdu) {
-                        SlideshowModel slideshow = SlideshowModel.createFromPduBody(context,
-                                ((MultimediaMessagePdu)pdu).getBody());
-                        attachmentType = getAttachmentType(slideshow);
-                        SlideModel firstSlide = slideshow.get(0);
-                        if (firstSlide != null) {
-                            if (cursor.getCount() <= 1) {
-                                if (firstSlide.hasImage()) {
-                                    int maxDim = dp2Pixels(MAX_BITMAP_DIMEN_DP);
-                                    attachedPicture = firstSlide.getImage().getBitmap(maxDim, maxDim);
-                                }
-                            }
-                            if (firstSlide.hasText()) {
-                                messageBody = firstSlide.getText().getText();
-                            }
-                        }
+        private void reconcileSms(Context context) {
+            Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                    Sms.CONTENT_URI, SMS_UNSEEN_PROJECTION, NEW_INCOMING_SM_CONSTRAINT,
+                    null, null);
+            if (cursor == null) {
+                return;
+            }
+            HashMap<Long, UnseenMessage> previous = new HashMap<Long, UnseenMessage>(mSms);
+            mSms.clear();
+            mMaxSmsId = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    long msgId = cursor.getLong(COLUMN_UNSEEN_SMS_ID);
+                    UnseenMessage msg = previous.get(msgId);
+                    if (msg == null) {
+                        msg = newSms(cursor);
                     }
-                } catch (final MmsException e) {
-                    Log.e(TAG, "MmsException loading uri: " + msgUri, e);
+                    putSms(msg);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (DEBUG) {
+                Log.d(TAG, "UnseenMessageModel.reconcileSms: unseen=" + mSms.size());
+            }
+        }
+
+        private void loadNewSms(Context context) {
+            Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                    Sms.CONTENT_URI, SMS_UNSEEN_PROJECTION,
+                    NEW_INCOMING_SM_CONSTRAINT + " AND " + Sms._ID + " > " + mMaxSmsId,
+                    null, null);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    putSms(newSms(cursor));
                 }
+            } finally {
+                cursor.close();
+            }
+        }
 
-                /// M:Code analyze 008,add a parameter msgUri for storing uri of message @{
-                NotificationInfo info = getNewMessageNotificationInfo(context,
-                        false /* isSms */,
-                        address,
-                        messageBody, subject,
-                        threadId,
-                        timeMillis,
-                        attachedPicture,
-                        contact,
-                        attachmentType,
-                        msgUri);
-                /// @}
-                /// M:Code analyze 20,add a lock prevent multithreads accessing the same resources meantime
-                /// avoid function sNotificationSet.add accessing by many threads at the same time @{
-                synchronized (objectLock) {
-                    notificationSet.add(info);
-                    addNotifyCount ++;
+        private void reconcileMms(Context context) {
+            Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                    Mms.CONTENT_URI, MMS_STATUS_PROJECTION, NEW_INCOMING_MM_CONSTRAINT,
+                    null, null);
+            if (cursor == null) {
+                return;
+            }
+            HashMap<Long, UnseenMessage> previous = new HashMap<Long, UnseenMessage>(mMms);
+            mMms.clear();
+            try {
+                while (cursor.moveToNext()) {
+                    long msgId = cursor.getLong(COLUMN_MMS_ID);
+                    UnseenMessage msg = previous.get(msgId);
+                    if (msg == null) {
+                        msg = new UnseenMessage(msgId,
+                                cursor.getLong(COLUMN_THREAD_ID),
+                                cursor.getLong(COLUMN_DATE) * 1000,
+                                cursor.getString(COLUMN_SUBJECT),
+                                cursor.getInt(COLUMN_SUBJECT_CS));
+                    }
+                    mMms.put(msgId, msg);
                 }
-                /// @}
+            } finally {
+                cursor.close();
+            }
+        }
+
+        private UnseenMessage newSms(Cursor cursor) {
+            return new UnseenMessage(cursor.getLong(COLUMN_UNSEEN_SMS_ID),
+                    cursor.getLong(COLUMN_UNSEEN_SMS_THREAD_ID),
+                    cursor.getLong(COLUMN_UNSEEN_SMS_DATE), null, 0);
+        }
 
-                threads.add(threadId);
-                mmsThreads.add(threadId);
+        private void putSms(UnseenMessage msg) {
+            mSms.put(msg.mMsgId, msg);
+            if (msg.mMsgId > mMaxSmsId) {
+                mMaxSmsId = msg.mMsgId;
             }
-            return cursor.getCount();
-        } finally {
-            cursor.close();
         }
+
+        private static ArrayList<UnseenMessage> sorted(HashMap<Long, UnseenMessage> messages) {
+            ArrayList<UnseenMessage> list = new ArrayList<UnseenMessage>(messages.values());
+            Collections.sort(list, UNSEEN_MESSAGE_COMPARATOR);
+            return list;
+        }
+    }
+
+    /**
+     * Adds the notification infos for the given unseen messages, newest first, and returns
+     * the number of unseen messages.
+     */
+    private static int addNotificationInfos(Context context, boolean isSms,
+            ArrayList<UnseenMessage> messages, Set<Long> threads,
+            SortedSet<NotificationInfo> notificationSet) {
+        int addNotifyCount = 0;
+        int unseenCount = messages.size();
+        Set<Long> typeThreads = new HashSet<Long>(4);
+        for (UnseenMessage msg : messages) {
+            long threadId = msg.mThreadId;
+            //for ALPS00812092 SMS received process is behind sent too much
+             /*
+             * our Notification show has 3 case:
+             * 1. 1 thread and 1 item => show the item
+             * 2. 1 thread and many items => show all items of this thread
+             * 3. many threads => show 1 item for every thread
+             * But total items can show out is <= MAX_MESSAGES_TO_SHOW
+             */
+            if (typeThreads.size() > MAX_MESSAGES_TO_SHOW) {
+                //has enough item of many thread, no need check anymore
+                break;
+            } else if (typeThreads.contains(threadId) && typeThreads.size() > 1) {
+                //threads count > 1, only need 1 item for every thread
+                continue;
+            } else if (typeThreads.contains(threadId) && addNotifyCount > MAX_MESSAGES_TO_SHOW) {
+                //only 1 thread, but has enough items for this thread
+                continue;
+            }
+
+            NotificationInfo info = isSms ? getSmsNotificationInfo(context, msg)
+                    : getMmsNotificationInfo(context, msg, unseenCount <= 1);
+            if (info == null) {
+                continue;
+            }
+            /// M:Code analyze 20,add a lock prevent multithreads accessing the same resources meantime
+            /// avoid function sNotificationSet.add accessing by many threads at the same time @{
+            synchronized (objectLock) {
+                notificationSet.add(info);
+                addNotifyCount ++;
+            }
+            /// @}
+
+            threads.add(threadId);
+            typeThreads.add(threadId);
+        }
+        return unseenCount;
+    }
+
+    private static final int addMmsNotificationInfos(
+            Context context, Set<Long> threads, SortedSet<NotificationInfo> notificationSet) {
+        return addNotificationInfos(context, false /* isSms */, sUnseenModel.getMms(),
+                threads, notificationSet);
+    }
+
+    private static NotificationInfo getMmsNotificationInfo(Context context, UnseenMessage msg,
+            boolean withPicture) {
+        if (msg.mSkip) {
+            return null;
+        }
+        if (msg.mInfo != null && msg.mInfoHasPicture == withPicture) {
+            return msg.mInfo;
+        }
+
+        long threadId = msg.mThreadId;
+        Uri msgUri = Mms.CONTENT_URI.buildUpon().appendPath(
+                Long.toString(msg.mMsgId)).build();
+        String address = AddressUtils.getFrom(context, msgUri);
+
+        Contact contact = Contact.get(address, false);
+        if (contact.getSendToVoicemail()) {
+            // don't notify, skip this one
+            msg.mSkip = true;
+            return null;
+        }
+
+        String subject = getMmsSubject(msg.mSubject, msg.mSubjectCharset);
+        /// M: google jb.mr1 patch
+        subject = MessageUtils.cleanseMmsSubject(context, subject);
+
+        if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
+            Log.d(TAG, "getMmsNotificationInfo: addr = " + address + ", thread_id=" + threadId);
+        }
+
+        // Extract the message and/or an attached picture from the first slide
+        Bitmap attachedPicture = null;
+        String messageBody = null;
+        int attachmentType = WorkingMessage.TEXT;
+        try {
+            GenericPdu pdu = sPduPersister.load(msgUri);
+            if (pdu != null && pdu instanceof MultimediaMessagePdu) {
+                SlideshowModel slideshow = SlideshowModel.createFromPduBody(context,
+                        ((MultimediaMessagePdu)pdu).getBody());
+                attachmentType = getAttachmentType(slideshow);
+                SlideModel firstSlide = slideshow.get(0);
+                if (firstSlide != null) {
+                    if (withPicture) {
+                        if (firstSlide.hasImage()) {
+                            int maxDim = dp2Pixels(MAX_BITMAP_DIMEN_DP);
+                            attachedPicture = firstSlide.getImage().getBitmap(maxDim, maxDim);
+                        }
+                    }
+                    if (firstSlide.hasText()) {
+                        messageBody = firstSlide.getText().getText();
+                    }
+                }
+            }
+        } catch (final MmsException e) {
+            Log.e(TAG, "MmsException loading uri: " + msgUri, e);
+        }
+
+        /// M:Code analyze 008,add a parameter msgUri for storing uri of message @{
+        msg.mInfo = getNewMessageNotificationInfo(context,
+                false /* isSms */,
+                address,
+                messageBody, subject,
+                threadId,
+                msg.mTimeMillis,
+                attachedPicture,
+                contact,
+                attachmentType,
+                msgUri);
+        /// @}
+        msg.mInfoHasPicture = withPicture;
+        return msg.mInfo;
     }
 
     // Look at the passed in slideshow and determine what type of attachment it is.
@@ -836,100 +1196,77 @@ public class MessagingNotification {
 
     private static final int addSmsNotificationInfos(
             Context context, Set<Long> threads, SortedSet<NotificationInfo> notificationSet) {
-        ContentResolver resolver = context.getContentResolver();
-        Cursor cursor = SqliteWrapper.query(context, resolver, Sms.CONTENT_URI,
-                            SMS_STATUS_PROJECTION, NEW_INCOMING_SM_CONSTRAINT,
-                            null, Sms.DATE + " desc");
+        return addNotificationInfos(context, true /* isSms */, sUnseenModel.getSms(),
+                threads, notificationSet);
+    }
 
+    private static NotificationInfo getSmsNotificationInfo(Context context, UnseenMessage msg) {
+        if (msg.mSkip) {
+            return null;
+        }
+        if (msg.mInfo != null) {
+            return msg.mInfo;
+        }
+
+        Uri msgUri = ContentUris.withAppendedId(Sms.CONTENT_URI, msg.mMsgId);
+        Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(), msgUri,
+                SMS_STATUS_PROJECTION, null, null, null);
         if (cursor == null) {
-            return 0;
+            return null;
         }
 
-        int addNotifyCount = 0;
-        Set<Long> smsThreads = new HashSet<Long>(4);
         try {
-            while (cursor.moveToNext()) {
-
-                long threadId = cursor.getLong(COLUMN_THREAD_ID);
-                //for ALPS00812092 SMS received process is behind sent too much
-                 /*
-                 * our Notification show has 3 case:
-                 * 1. 1 thread and 1 item => show the item
-                 * 2. 1 thread and many items => show all items of this thread
-                 * 3. many threads => show 1 item for every thread
-                 * But total items can show out is <= MAX_MESSAGES_TO_SHOW
-                 */
-                if (smsThreads.size() > MAX_MESSAGES_TO_SHOW) {
-                    //has enough item of many thread, no need check cursor anymore
-                    break;
-                } else if (smsThreads.contains(threadId) && smsThreads.size() > 1) {
-                    //threads count > 1, only need 1 item for every thread
-                    continue;
-                } else if (smsThreads.contains(threadId) && addNotifyCount > MAX_MESSAGES_TO_SHOW) {
-                    //only 1 thread, but has enough items for this thread
-                    continue;
-                }
-
-                String address = cursor.getString(COLUMN_SMS_ADDRESS);
+            if (!cursor.moveToFirst()) {
+                // The message went away since the model was refreshed.
+                return null;
+            }
+            long threadId = cursor.getLong(COLUMN_THREAD_ID);
+            String address = cursor.getString(COLUMN_SMS_ADDRESS);
 
-                Contact contact = Contact.get(address, false);
-                if (contact.getSendToVoicemail()) {
-                    // don't notify, skip this one
-                    continue;
-                }
+            Contact contact = Contact.get(address, false);
+            if (contact.getSendToVoicemail()) {
+                // don't notify, skip this one
+                msg.mSkip = true;
+                return null;
+            }
 
-                String message = cursor.getString(COLUMN_SMS_BODY);
-                long timeMillis = cursor.getLong(COLUMN_DATE);
-                int ipMessageId = cursor.getInt(COLUMN_IPMSG_ID);
-                boolean smsOrIpTextMsg = true;
-                Bitmap attachmentBitmap = null;
-
-                if (ipMessageId > 0) {
-                    long messageId = cursor.getLong(COLUMN_SMS_ID);
-                    IpMessage ipMessage = IpMessageUtils.getMessageManager(context).getIpMsgInfo(messageId);
-                    if (null != ipMessage) {
-                        int ipMessageType = ipMessage.getType();
-                        if (ipMessageType != IpMessageConsts.IpMessageType.TEXT) {
-                            smsOrIpTextMsg = false;
-                            if (ipMessageType == IpMessageConsts.IpMessageType.PICTURE
-                                || ipMessageType == IpMessageConsts.IpMessageType.SKETCH) {
-                                BitmapFactory.Options options = new BitmapFactory.Options();
-                                options.inJustDecodeBounds = true;
-                                String filePath = ((IpImageMessage)ipMessage).getPath();
-                                attachmentBitmap = BitmapFactory.decodeFile(filePath);
-                                MmsLog.d(TAG, "picture path=" + filePath
-                                        + "get Bitmap=" + attachmentBitmap == null ? "fail" : "OK");
-                            }
+            String message = cursor.getString(COLUMN_SMS_BODY);
+            long timeMillis = cursor.getLong(COLUMN_DATE);
+            int ipMessageId = cursor.getInt(COLUMN_IPMSG_ID);
+            boolean smsOrIpTextMsg = true;
+            Bitmap attachmentBitmap = null;
+
+            if (ipMessageId > 0) {
+                long messageId = cursor.getLong(COLUMN_SMS_ID);
+                IpMessage ipMessage = IpMessageUtils.getMessageManager(context).getIpMsgInfo(messageId);
+                if (null != ipMessage) {
+                    int ipMessageType = ipMessage.getType();
+                    if (ipMessageType != IpMessageConsts.IpMessageType.TEXT) {
+                        smsOrIpTextMsg = false;
+                        if (ipMessageType == IpMessageConsts.IpMessageType.PICTURE
+                            || ipMessageType == IpMessageConsts.IpMessageType.SKETCH) {
+                            BitmapFactory.Options options = new BitmapFactory.Options();
+                            options.inJustDecodeBounds = true;
+                            String filePath = ((IpImageMessage)ipMessage).getPath();
+                            attachmentBitmap = BitmapFactory.decodeFile(filePath);
+                            MmsLog.d(TAG, "picture path=" + filePath
+                                    + "get Bitmap=" + attachmentBitmap == null ? "fail" : "OK");
                         }
                     }
                 }
+            }
 
-                if (Log.isLoggable(LogTag.APP, Log.VERBOSE))
-                {
-                    Log.d(TAG, "addSmsNotificationInfos: count=" + cursor.getCount() +
-                            ", addr=" + address + ", thread_id=" + threadId);
-                }
-
-                /// M:Code analyze 009,add a parameter for storing uri of message @{
-                NotificationInfo info = getNewMessageNotificationInfo(context, smsOrIpTextMsg /* isSms */,
-                        address, message, null /* subject */,
-                        threadId, timeMillis, attachmentBitmap /* attachmentBitmap */,
-                        contact, WorkingMessage.TEXT,Sms.CONTENT_URI.buildUpon()
-                                        .appendPath(Long.toString(cursor.getLong(COLUMN_SMS_ID))).build());
-                /// @}
-                /// M:Code analyze 20,add a lock prevent multithreads accessing the same resources meantime
-                /// avoid function sNotificationSet.add accessing by many threads at the same time @{
-                synchronized (objectLock) {
-                    notificationSet.add(info);
-                }
-                addNotifyCount ++;
-                /// @}
-
-                threads.add(threadId);
-                threads.add(cursor.getLong(COLUMN_THREAD_ID));
-                smsThreads.add(threadId);
+            if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
+                Log.d(TAG, "getSmsNotificationInfo: addr=" + address + ", thread_id=" + threadId);
             }
-            return cursor.getCount();
+
+            /// M:Code analyze 009,add a parameter for storing uri of message @{
+            msg.mInfo = getNewMessageNotificationInfo(context, smsOrIpTextMsg /* isSms */,
+                    address, message, null /* subject */,
+                    threadId, timeMillis, attachmentBitmap /* attachmentBitmap */,
+                    contact, WorkingMessage.TEXT, msgUri);
+            /// @}
+            return msg.mInfo;
         } finally {
             cursor.close();
         }
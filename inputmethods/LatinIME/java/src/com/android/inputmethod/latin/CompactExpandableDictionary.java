@@ -0,0 +1,760 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.inputmethod.keyboard.ProximityInfo;
+import com.android.inputmethod.latin.SuggestedWords.SuggestedWordInfo;
+import com.android.inputmethod.latin.utils.CollectionUtils;
+import com.android.inputmethod.latin.utils.UserHistoryForgettingCurveUtils.ForgettingCurveParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * An in-memory dictionary that can grow dynamically, like {@link ExpandableDictionary}, but
+ * which stores its trie in a few primitive arrays instead of a graph of objects.
+ *
+ * The trie is immutable once built. Lookups and suggestions read the current trie without
+ * locking, while an edit builds a new trie with the change and then replaces the current one.
+ * As building a trie takes time proportional to the size of the dictionary, many edits should be
+ * made between {@link #startBatchEdit()} and {@link #endBatchEdit()}, which builds the trie only
+ * once, at the end.
+ *
+ * Outside a batch, every edit that changes the dictionary rebuilds the whole trie; only edits
+ * that change nothing (adding a word that is already there with at least that frequency, or a
+ * bigram that is already there) are cheap. This class is therefore meant for dictionaries that
+ * are loaded and reloaded in bulk, like the user and contacts dictionaries. It is unsuitable for
+ * dictionaries updated on every word typed, like the user history, which should keep using
+ * {@link ExpandableDictionary}.
+ */
+public class CompactExpandableDictionary extends Dictionary {
+    private static final String TAG = CompactExpandableDictionary.class.getSimpleName();
+
+    private static final int FLAG_TERMINAL = 0x1;
+    private static final int FLAG_SHORTCUT_ONLY = 0x2;
+
+    /**
+     * The trie. Node 0 is the root and has no character. The children of node i are the nodes
+     * mFirstChildren[i] to mFirstChildren[i + 1] - 1, sorted by character: as the nodes are in
+     * breadth-first order, the children of consecutive nodes follow each other.
+     */
+    private static final class Trie {
+        public static final Trie EMPTY = new Trie(1);
+
+        public final int mNodeCount;
+        public final char[] mCodes;
+        public final int[] mParents;
+        public final int[] mFirstChildren;
+        public final int[] mFrequencies;
+        public final byte[] mFlags;
+        // The shortcuts of node i are the targets mShortcutStarts[i] to mShortcutStarts[i + 1] - 1.
+        // Null if there are no shortcuts at all; so are the bigram arrays if there are no bigrams.
+        public int[] mShortcutStarts;
+        public String[] mShortcutTargets;
+        // The bigrams of node i are the bigrams mBigramStarts[i] to mBigramStarts[i + 1] - 1.
+        public int[] mBigramStarts;
+        public int[] mBigramTargets;
+        public int[] mBigramFrequencies;
+        // Null if no bigram comes from the history.
+        public ForgettingCurveParams[] mBigramFcps;
+
+        public Trie(final int nodeCount) {
+            mNodeCount = nodeCount;
+            mCodes = new char[nodeCount];
+            mParents = new int[nodeCount];
+            mFirstChildren = new int[nodeCount + 1];
+            mFrequencies = new int[nodeCount];
+            mFlags = new byte[nodeCount];
+            Arrays.fill(mFirstChildren, nodeCount);
+        }
+
+        public boolean isTerminal(final int node) {
+            return (mFlags[node] & FLAG_TERMINAL) != 0;
+        }
+
+        public boolean isShortcutOnly(final int node) {
+            return (mFlags[node] & FLAG_SHORTCUT_ONLY) != 0;
+        }
+
+        /**
+         * Returns the terminal node of the word, or -1 if the word is not in the trie.
+         */
+        public int findWord(final CharSequence word) {
+            final int length = word.length();
+            if (length == 0) return -1;
+            int node = 0;
+            for (int i = 0; i < length; ++i) {
+                final int child = Arrays.binarySearch(mCodes, mFirstChildren[node],
+                        mFirstChildren[node + 1], word.charAt(i));
+                if (child < 0) return -1;
+                node = child;
+            }
+            return isTerminal(node) ? node : -1;
+        }
+
+        public int findBigram(final int node, final int target) {
+            if (null == mBigramStarts) return -1;
+            for (int i = mBigramStarts[node]; i < mBigramStarts[node + 1]; ++i) {
+                if (mBigramTargets[i] == target) return i;
+            }
+            return -1;
+        }
+
+        public int getBigramFrequency(final int bigram) {
+            final ForgettingCurveParams fcp = (null == mBigramFcps) ? null : mBigramFcps[bigram];
+            return (null == fcp) ? mBigramFrequencies[bigram] : fcp.getFrequency();
+        }
+
+        /**
+         * Writes the word of the node at the end of the buffer.
+         *
+         * @return the index of the first character of the word, or -1 if it is longer than the
+         *   buffer.
+         */
+        public int getWord(int node, final char[] buffer) {
+            int index = buffer.length;
+            while (node != 0) {
+                if (index == 0) return -1;
+                buffer[--index] = mCodes[node];
+                node = mParents[node];
+            }
+            return index;
+        }
+    }
+
+    private static final class Bigram {
+        public final String mWord;
+        public final int mFrequency;
+        public final ForgettingCurveParams mFcp;
+
+        public Bigram(final String word, final int frequency, final ForgettingCurveParams fcp) {
+            mWord = word;
+            mFrequency = frequency;
+            mFcp = fcp;
+        }
+    }
+
+    /**
+     * A word and its attributes, while a new trie is being built.
+     */
+    private static final class Entry {
+        public int mFrequency;
+        public boolean mShortcutOnly;
+        public ArrayList<String> mShortcutTargets;
+        public ArrayList<Bigram> mBigrams;
+        public int mNode;
+
+        public Bigram findBigram(final String word) {
+            if (null == mBigrams) return null;
+            for (final Bigram bigram : mBigrams) {
+                if (bigram.mWord.equals(word)) return bigram;
+            }
+            return null;
+        }
+    }
+
+    private interface Edit {
+        public void apply(final TreeMap<String, Entry> entries);
+    }
+
+    private volatile Trie mTrie = Trie.EMPTY;
+
+    // Guards the following fields, and serializes the edits.
+    private final Object mEditLock = new Object();
+    private final ArrayList<Edit> mPendingEdits = CollectionUtils.newArrayList();
+    private int mBatchEditDepth;
+
+    public CompactExpandableDictionary(final String dictType) {
+        super(dictType);
+    }
+
+    public int getMaxWordLength() {
+        return Constants.DICTIONARY_MAX_WORD_LENGTH;
+    }
+
+    /**
+     * Defers the following edits until the matching {@link #endBatchEdit()}. Calls can be
+     * nested. Lookups don't see the deferred edits.
+     */
+    public void startBatchEdit() {
+        synchronized (mEditLock) {
+            ++mBatchEditDepth;
+        }
+    }
+
+    /**
+     * Applies the edits made since the matching {@link #startBatchEdit()}.
+     */
+    public void endBatchEdit() {
+        synchronized (mEditLock) {
+            if (mBatchEditDepth == 0) return;
+            if (--mBatchEditDepth == 0) applyPendingEdits();
+        }
+    }
+
+    // Must be called with mEditLock held. Outside a batch, this rebuilds the whole trie.
+    private void edit(final Edit edit) {
+        mPendingEdits.add(edit);
+        if (mBatchEditDepth == 0) applyPendingEdits();
+    }
+
+    // Must be called with mEditLock held.
+    private void applyPendingEdits() {
+        if (mPendingEdits.isEmpty()) return;
+        final TreeMap<String, Entry> entries = getEntries(mTrie);
+        for (final Edit edit : mPendingEdits) {
+            edit.apply(entries);
+        }
+        mPendingEdits.clear();
+        mTrie = buildTrie(entries);
+    }
+
+    /**
+     * Add a word with an optional shortcut to the dictionary.
+     * @param word The word to add.
+     * @param shortcutTarget A shortcut target for this word, or null if none.
+     * @param frequency The frequency for this unigram.
+     * @param shortcutFreq The frequency of the shortcut (0~15, with 15 = whitelist). Ignored
+     *   if shortcutTarget is null.
+     */
+    public void addWord(final String word, final String shortcutTarget, final int frequency,
+            final int shortcutFreq) {
+        if (word.length() >= Constants.DICTIONARY_MAX_WORD_LENGTH || word.length() == 0) {
+            return;
+        }
+        synchronized (mEditLock) {
+            if (null == shortcutTarget && mPendingEdits.isEmpty()) {
+                // Nothing would change: don't rebuild the trie.
+                final Trie trie = mTrie;
+                final int node = trie.findWord(word);
+                if (node >= 0 && !trie.isShortcutOnly(node)
+                        && trie.mFrequencies[node] >= Math.min(255, frequency)) {
+                    return;
+                }
+            }
+            edit(new Edit() {
+                @Override
+                public void apply(final TreeMap<String, Entry> entries) {
+                    final boolean isShortcutOnly = (null != shortcutTarget);
+                    Entry entry = entries.get(word);
+                    if (null == entry) {
+                        entry = new Entry();
+                        entry.mShortcutOnly = isShortcutOnly;
+                        entries.put(word, entry);
+                    }
+                    if (isShortcutOnly) {
+                        if (null == entry.mShortcutTargets) {
+                            entry.mShortcutTargets = CollectionUtils.newArrayList();
+                        }
+                        entry.mShortcutTargets.add(shortcutTarget);
+                    } else {
+                        entry.mShortcutOnly = false;
+                    }
+                    entry.mFrequency = Math.min(255, Math.max(frequency, entry.mFrequency));
+                }
+            });
+        }
+    }
+
+    public int setBigramAndGetFrequency(final String word0, final String word1,
+            final int frequency) {
+        return setBigramAndGetFrequency(word0, word1, frequency, null /* unused */);
+    }
+
+    public int setBigramAndGetFrequency(final String word0, final String word1,
+            final ForgettingCurveParams fcp) {
+        return setBigramAndGetFrequency(word0, word1, 0 /* unused */, fcp);
+    }
+
+    /**
+     * Adds a bigram, adding its words if they are not in the dictionary yet.
+     * @param word0 the first word of this bigram
+     * @param word1 the second word of this bigram
+     * @param frequency frequency for this bigram
+     * @param fcp an instance of ForgettingCurveParams to use for decay policy
+     * @return returns the final bigram frequency
+     */
+    private int setBigramAndGetFrequency(final String word0, final String word1,
+            final int frequency, final ForgettingCurveParams fcp) {
+        if (TextUtils.isEmpty(word0)) {
+            Log.e(TAG, "Invalid bigram previous word: " + word0);
+            return frequency;
+        }
+        // The case of the first word is squashed, as in ExpandableDictionary.
+        final String word0Lower = word0.toLowerCase();
+        if (TextUtils.isEmpty(word0Lower) || TextUtils.isEmpty(word1)) {
+            Log.e(TAG, "Invalid bigram pair: " + word0 + ", " + word0Lower + ", " + word1);
+            return frequency;
+        }
+        synchronized (mEditLock) {
+            final Trie trie = mTrie;
+            final int firstWord = trie.findWord(word0Lower);
+            final int secondWord = trie.findWord(word1);
+            if (firstWord >= 0 && secondWord >= 0) {
+                final int bigram = trie.findBigram(firstWord, secondWord);
+                if (bigram >= 0) {
+                    final ForgettingCurveParams bigramFcp =
+                            (null == trie.mBigramFcps) ? null : trie.mBigramFcps[bigram];
+                    return (null == bigramFcp) ? trie.mBigramFrequencies[bigram]
+                            : bigramFcp.notifyTypedAgainAndGetFrequency();
+                }
+            }
+            edit(new Edit() {
+                @Override
+                public void apply(final TreeMap<String, Entry> entries) {
+                    final Entry first = getOrAddEntry(entries, word0Lower);
+                    getOrAddEntry(entries, word1);
+                    final Bigram bigram = first.findBigram(word1);
+                    if (null != bigram) {
+                        if (null != bigram.mFcp) bigram.mFcp.notifyTypedAgainAndGetFrequency();
+                        return;
+                    }
+                    if (null == first.mBigrams) first.mBigrams = CollectionUtils.newArrayList();
+                    first.mBigrams.add(new Bigram(word1, frequency, fcp));
+                }
+            });
+        }
+        return frequency;
+    }
+
+    private static Entry getOrAddEntry(final TreeMap<String, Entry> entries, final String word) {
+        Entry entry = entries.get(word);
+        if (null == entry) {
+            entry = new Entry();
+            entries.put(word, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Removes a bigram.
+     * @return whether the bigram was in the dictionary. Bigrams added in a batch edit that is not
+     *   ended yet are not counted.
+     */
+    public boolean removeBigram(final String word0, final String word1) {
+        final String word0Lower = word0.toLowerCase();
+        synchronized (mEditLock) {
+            final Trie trie = mTrie;
+            final int firstWord = trie.findWord(word0Lower);
+            final int secondWord = trie.findWord(word1);
+            final boolean exists = firstWord >= 0 && secondWord >= 0
+                    && trie.findBigram(firstWord, secondWord) >= 0;
+            if (!exists && mBatchEditDepth == 0) return false;
+            edit(new Edit() {
+                @Override
+                public void apply(final TreeMap<String, Entry> entries) {
+                    final Entry first = entries.get(word0Lower);
+                    if (null == first || null == first.mBigrams) return;
+                    final Bigram bigram = first.findBigram(word1);
+                    if (null != bigram) first.mBigrams.remove(bigram);
+                }
+            });
+            return exists;
+        }
+    }
+
+    /**
+     * Returns the frequency of the bigram, or -1 if it is not in the dictionary.
+     */
+    public int getBigramFrequency(final String word0, final String word1) {
+        final Trie trie = mTrie;
+        final int firstWord = trie.findWord(word0.toLowerCase());
+        final int secondWord = trie.findWord(word1);
+        if (firstWord < 0 || secondWord < 0) return -1;
+        final int bigram = trie.findBigram(firstWord, secondWord);
+        return (bigram < 0) ? -1 : trie.getBigramFrequency(bigram);
+    }
+
+    /**
+     * Returns the word's frequency or -1 if not found
+     */
+    public int getWordFrequency(final String word) {
+        // Case-sensitive search
+        final Trie trie = mTrie;
+        final int node = trie.findWord(word);
+        return (node < 0) ? -1 : trie.mFrequencies[node];
+    }
+
+    @Override
+    public boolean isValidWord(final String word) {
+        final Trie trie = mTrie;
+        final int node = trie.findWord(word);
+        // A word that only exists as a shortcut is not valid.
+        return node >= 0 && !trie.isShortcutOnly(node);
+    }
+
+    public void clearDictionary() {
+        synchronized (mEditLock) {
+            mPendingEdits.clear();
+            mTrie = Trie.EMPTY;
+        }
+    }
+
+    @Override
+    public ArrayList<SuggestedWordInfo> getSuggestions(final WordComposer composer,
+            final String prevWord, final ProximityInfo proximityInfo,
+            final boolean blockOffensiveWords, final int[] additionalFeaturesOptions) {
+        final Trie trie = mTrie;
+        if (composer.size() > 1) {
+            if (composer.size() >= Constants.DICTIONARY_MAX_WORD_LENGTH) {
+                return null;
+            }
+            return new Search(trie, composer, proximityInfo).getWords();
+        } else {
+            if (TextUtils.isEmpty(prevWord)) return null;
+            final ArrayList<SuggestedWordInfo> suggestions = CollectionUtils.newArrayList();
+            runBigramReverseLookUp(trie, prevWord, suggestions);
+            return suggestions;
+        }
+    }
+
+    private void runBigramReverseLookUp(final Trie trie, final String previousWord,
+            final ArrayList<SuggestedWordInfo> suggestions) {
+        // Search for the lowercase version of the word only, because that's where bigrams
+        // are stored.
+        final int prevWord = trie.findWord(previousWord.toLowerCase());
+        if (prevWord < 0 || null == trie.mBigramStarts) return;
+        final char[] word = new char[Constants.DICTIONARY_MAX_WORD_LENGTH];
+        for (int i = trie.mBigramStarts[prevWord]; i < trie.mBigramStarts[prevWord + 1]; ++i) {
+            final int freq = trie.getBigramFrequency(i);
+            final int index = trie.getWord(trie.mBigramTargets[i], word);
+            // Words longer than the buffer are ignored, as in ExpandableDictionary.
+            if (freq >= 0 && index >= 0) {
+                suggestions.add(new SuggestedWordInfo(new String(word, index, word.length - index),
+                        freq, SuggestedWordInfo.KIND_CORRECTION, this /* sourceDict */,
+                        SuggestedWordInfo.NOT_AN_INDEX /* indexOfTouchPointOfSecondWord */,
+                        SuggestedWordInfo.NOT_A_CONFIDENCE /* autoCommitFirstWordConfidence */));
+            }
+        }
+    }
+
+    /**
+     * The state of a search for suggestions, so that searches can run concurrently. It walks the
+     * trie like ExpandableDictionary#getWordsRec.
+     */
+    private final class Search {
+        private final Trie mSearchTrie;
+        private final WordComposer mComposer;
+        private final int mInputLength;
+        private final int mMaxDepth;
+        private final int[][] mCodes;
+        private final char[] mWordBuilder = new char[Constants.DICTIONARY_MAX_WORD_LENGTH];
+        private final ArrayList<SuggestedWordInfo> mSuggestions = CollectionUtils.newArrayList();
+
+        public Search(final Trie trie, final WordComposer composer,
+                final ProximityInfo proximityInfo) {
+            mSearchTrie = trie;
+            mComposer = composer;
+            mInputLength = composer.size();
+            mMaxDepth = mInputLength * 3;
+            mCodes = new int[mInputLength][];
+            final InputPointers ips = composer.getInputPointers();
+            final int[] xCoordinates = ips.getXCoordinates();
+            final int[] yCoordinates = ips.getYCoordinates();
+            for (int i = 0; i < mInputLength; i++) {
+                mCodes[i] = new int[ProximityInfo.MAX_PROXIMITY_CHARS_SIZE];
+                final int x = xCoordinates != null && i < xCoordinates.length ?
+                        xCoordinates[i] : Constants.NOT_A_COORDINATE;
+                final int y = xCoordinates != null && i < yCoordinates.length ?
+                        yCoordinates[i] : Constants.NOT_A_COORDINATE;
+                proximityInfo.fillArrayWithNearestKeyCodes(x, y, composer.getCodeAt(i),
+                        mCodes[i]);
+            }
+        }
+
+        public ArrayList<SuggestedWordInfo> getWords() {
+            getWordsRec(0, 0, false, 1, 0, -1);
+            for (int i = 0; i < mInputLength; i++) {
+                getWordsRec(0, 0, false, 1, 0, i);
+            }
+            return mSuggestions;
+        }
+
+        private boolean addWordAndShortcutsFromNode(final int node, final int depth,
+                final int finalFreq) {
+            final Trie trie = mSearchTrie;
+            final ArrayList<SuggestedWordInfo> suggestions = mSuggestions;
+            if (finalFreq > 0 && !trie.isShortcutOnly(node)) {
+                suggestions.add(new SuggestedWordInfo(new String(mWordBuilder, 0, depth + 1),
+                        finalFreq, SuggestedWordInfo.KIND_CORRECTION, CompactExpandableDictionary.this,
+                        SuggestedWordInfo.NOT_AN_INDEX /* indexOfTouchPointOfSecondWord */,
+                        SuggestedWordInfo.NOT_A_CONFIDENCE /* autoCommitFirstWordConfidence */));
+                if (suggestions.size() >= Suggest.MAX_SUGGESTIONS) return false;
+            }
+            if (null != trie.mShortcutStarts) {
+                for (int i = trie.mShortcutStarts[node]; i < trie.mShortcutStarts[node + 1]; ++i) {
+                    suggestions.add(new SuggestedWordInfo(trie.mShortcutTargets[i], finalFreq,
+                            SuggestedWordInfo.KIND_SHORTCUT, CompactExpandableDictionary.this,
+                            SuggestedWordInfo.NOT_AN_INDEX /* indexOfTouchPointOfSecondWord */,
+                            SuggestedWordInfo.NOT_A_CONFIDENCE /* autoCommitFirstWordConfidence */));
+                    if (suggestions.size() > Suggest.MAX_SUGGESTIONS) return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Same as ExpandableDictionary#getWordsRec, on the children of the given node.
+         */
+        private void getWordsRec(final int parent, final int depth, final boolean completion,
+                final int snr, final int inputIndex, final int skipPos) {
+            final Trie trie = mSearchTrie;
+            final char[] word = mWordBuilder;
+            final int codeSize = mInputLength;
+            // Optimization: Prune out words that are too long compared to how much was typed.
+            if (depth > mMaxDepth) {
+                return;
+            }
+            final int[] currentChars;
+            if (codeSize <= inputIndex) {
+                currentChars = null;
+            } else {
+                currentChars = mCodes[inputIndex];
+            }
+
+            final int end = trie.mFirstChildren[parent + 1];
+            for (int node = trie.mFirstChildren[parent]; node < end; node++) {
+                final char c = trie.mCodes[node];
+                final char lowerC = ExpandableDictionary.toLowerCase(c);
+                final boolean terminal = trie.isTerminal(node);
+                final boolean hasChildren = trie.mFirstChildren[node] < trie.mFirstChildren[node + 1];
+                final int freq = trie.mFrequencies[node];
+                if (completion || currentChars == null) {
+                    word[depth] = c;
+                    if (terminal) {
+                        final int finalFreq;
+                        if (skipPos < 0) {
+                            finalFreq = freq * snr;
+                        } else {
+                            finalFreq = ExpandableDictionary.computeSkippedWordFinalFreq(freq, snr,
+                                    mInputLength);
+                        }
+                        if (!addWordAndShortcutsFromNode(node, depth, finalFreq)) {
+                            // No space left in the queue, bail out
+                            return;
+                        }
+                    }
+                    if (hasChildren) {
+                        getWordsRec(node, depth + 1, true, snr, inputIndex, skipPos);
+                    }
+                } else if ((c == Constants.CODE_SINGLE_QUOTE
+                        && currentChars[0] != Constants.CODE_SINGLE_QUOTE) || depth == skipPos) {
+                    // Skip the ' and continue deeper
+                    word[depth] = c;
+                    if (hasChildren) {
+                        getWordsRec(node, depth + 1, completion, snr, inputIndex, skipPos);
+                    }
+                } else {
+                    // Don't use alternatives if we're looking for missing characters
+                    final int alternativesSize = skipPos >= 0 ? 1 : currentChars.length;
+                    for (int j = 0; j < alternativesSize; j++) {
+                        final int addedAttenuation = (j > 0 ? 1 : 2);
+                        final int currentChar = currentChars[j];
+                        if (currentChar == Constants.NOT_A_CODE) {
+                            break;
+                        }
+                        if (currentChar == lowerC || currentChar == c) {
+                            word[depth] = c;
+
+                            if (codeSize == inputIndex + 1) {
+                                if (terminal) {
+                                    final int finalFreq;
+                                    if (skipPos < 0) {
+                                        finalFreq = freq * snr * addedAttenuation
+                                                * ExpandableDictionary.FULL_WORD_SCORE_MULTIPLIER;
+                                    } else {
+                                        finalFreq = ExpandableDictionary
+                                                .computeSkippedWordFinalFreq(freq,
+                                                        snr * addedAttenuation, mInputLength);
+                                    }
+                                    if (!addWordAndShortcutsFromNode(node, depth, finalFreq)) {
+                                        // No space left in the queue, bail out
+                                        return;
+                                    }
+                                }
+                                if (hasChildren) {
+                                    getWordsRec(node, depth + 1, true, snr * addedAttenuation,
+                                            inputIndex + 1, skipPos);
+                                }
+                            } else if (hasChildren) {
+                                getWordsRec(node, depth + 1, false, snr * addedAttenuation,
+                                        inputIndex + 1, skipPos);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the words of the trie with their attributes, sorted.
+     */
+    private static TreeMap<String, Entry> getEntries(final Trie trie) {
+        final TreeMap<String, Entry> entries = CollectionUtils.newTreeMap();
+        final String[] words = new String[trie.mNodeCount];
+        final char[] buffer = new char[Constants.DICTIONARY_MAX_WORD_LENGTH];
+        final StringBuilder sb = new StringBuilder();
+        for (int node = 1; node < trie.mNodeCount; ++node) {
+            if (!trie.isTerminal(node)) continue;
+            final int index = trie.getWord(node, buffer);
+            final String word;
+            if (index >= 0) {
+                word = new String(buffer, index, buffer.length - index);
+            } else {
+                // Only the targets of bigrams can be this long.
+                sb.setLength(0);
+                for (int n = node; n != 0; n = trie.mParents[n]) sb.append(trie.mCodes[n]);
+                word = sb.reverse().toString();
+            }
+            words[node] = word;
+            final Entry entry = new Entry();
+            entry.mFrequency = trie.mFrequencies[node];
+            entry.mShortcutOnly = trie.isShortcutOnly(node);
+            if (null != trie.mShortcutStarts
+                    && trie.mShortcutStarts[node] < trie.mShortcutStarts[node + 1]) {
+                entry.mShortcutTargets = CollectionUtils.newArrayList();
+                for (int i = trie.mShortcutStarts[node]; i < trie.mShortcutStarts[node + 1]; ++i) {
+                    entry.mShortcutTargets.add(trie.mShortcutTargets[i]);
+                }
+            }
+            entries.put(word, entry);
+        }
+        if (null != trie.mBigramStarts) {
+            for (int node = 1; node < trie.mNodeCount; ++node) {
+                if (trie.mBigramStarts[node] == trie.mBigramStarts[node + 1]) continue;
+                final Entry entry = entries.get(words[node]);
+                entry.mBigrams = CollectionUtils.newArrayList();
+                for (int i = trie.mBigramStarts[node]; i < trie.mBigramStarts[node + 1]; ++i) {
+                    entry.mBigrams.add(new Bigram(words[trie.mBigramTargets[i]],
+                            trie.mBigramFrequencies[i],
+                            null == trie.mBigramFcps ? null : trie.mBigramFcps[i]));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Builds the trie of the given words.
+     */
+    private static Trie buildTrie(final TreeMap<String, Entry> entries) {
+        if (entries.isEmpty()) return Trie.EMPTY;
+        final int wordCount = entries.size();
+        final String[] words = entries.keySet().toArray(new String[wordCount]);
+        final Entry[] wordEntries = entries.values().toArray(new Entry[wordCount]);
+
+        // The nodes of each depth are created before their children. All the words starting with
+        // the prefix of node i are words[mLows[i]] to words[mHighs[i] - 1], as they are sorted.
+        int maxNodeCount = 1;
+        for (final String word : words) maxNodeCount += word.length();
+        final char[] codes = new char[maxNodeCount];
+        final int[] parents = new int[maxNodeCount];
+        final int[] firstChildren = new int[maxNodeCount + 1];
+        final int[] lows = new int[maxNodeCount];
+        final int[] highs = new int[maxNodeCount];
+        final int[] depths = new int[maxNodeCount];
+        final int[] entryIndices = new int[maxNodeCount];
+        Arrays.fill(entryIndices, -1);
+        lows[0] = 0;
+        highs[0] = wordCount;
+        int nodeCount = 1;
+        for (int node = 0; node < nodeCount; ++node) {
+            firstChildren[node] = nodeCount;
+            final int depth = depths[node];
+            int i = lows[node];
+            final int high = highs[node];
+            // The word that ends at this node comes first.
+            if (i < high && words[i].length() == depth) {
+                entryIndices[node] = i;
+                ++i;
+            }
+            while (i < high) {
+                final char c = words[i].charAt(depth);
+                final int child = nodeCount++;
+                codes[child] = c;
+                parents[child] = node;
+                depths[child] = depth + 1;
+                lows[child] = i;
+                while (i < high && words[i].charAt(depth) == c) ++i;
+                highs[child] = i;
+            }
+        }
+        firstChildren[nodeCount] = nodeCount;
+
+        final Trie trie = new Trie(nodeCount);
+        System.arraycopy(codes, 0, trie.mCodes, 0, nodeCount);
+        System.arraycopy(parents, 0, trie.mParents, 0, nodeCount);
+        System.arraycopy(firstChildren, 0, trie.mFirstChildren, 0, nodeCount + 1);
+        int shortcutCount = 0;
+        int bigramCount = 0;
+        boolean hasFcps = false;
+        for (int node = 0; node < nodeCount; ++node) {
+            final int index = entryIndices[node];
+            if (index < 0) continue;
+            final Entry entry = wordEntries[index];
+            entry.mNode = node;
+            trie.mFrequencies[node] = entry.mFrequency;
+            trie.mFlags[node] = (byte) (FLAG_TERMINAL
+                    | (entry.mShortcutOnly ? FLAG_SHORTCUT_ONLY : 0));
+            if (null != entry.mShortcutTargets) shortcutCount += entry.mShortcutTargets.size();
+            if (null != entry.mBigrams) {
+                bigramCount += entry.mBigrams.size();
+                for (final Bigram bigram : entry.mBigrams) hasFcps |= (null != bigram.mFcp);
+            }
+        }
+
+        if (shortcutCount > 0) {
+            trie.mShortcutStarts = new int[nodeCount + 1];
+            trie.mShortcutTargets = new String[shortcutCount];
+            int shortcut = 0;
+            for (int node = 0; node < nodeCount; ++node) {
+                trie.mShortcutStarts[node] = shortcut;
+                final int index = entryIndices[node];
+                if (index < 0 || null == wordEntries[index].mShortcutTargets) continue;
+                for (final String target : wordEntries[index].mShortcutTargets) {
+                    trie.mShortcutTargets[shortcut++] = target;
+                }
+            }
+            trie.mShortcutStarts[nodeCount] = shortcut;
+        }
+        if (bigramCount > 0) {
+            trie.mBigramStarts = new int[nodeCount + 1];
+            trie.mBigramTargets = new int[bigramCount];
+            trie.mBigramFrequencies = new int[bigramCount];
+            if (hasFcps) trie.mBigramFcps = new ForgettingCurveParams[bigramCount];
+            int bigramIndex = 0;
+            for (int node = 0; node < nodeCount; ++node) {
+                trie.mBigramStarts[node] = bigramIndex;
+                final int index = entryIndices[node];
+                if (index < 0 || null == wordEntries[index].mBigrams) continue;
+                for (final Bigram bigram : wordEntries[index].mBigrams) {
+                    trie.mBigramTargets[bigramIndex] = entries.get(bigram.mWord).mNode;
+                    trie.mBigramFrequencies[bigramIndex] = bigram.mFrequency;
+                    if (hasFcps) trie.mBigramFcps[bigramIndex] = bigram.mFcp;
+                    ++bigramIndex;
+                }
+            }
+            trie.mBigramStarts[nodeCount] = bigramIndex;
+        }
+        return trie;
+    }
+}
@@ -24,6 +24,8 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
@@ -31,10 +33,15 @@ import android.provider.ContactsContract.Contacts;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.inputmethod.latin.utils.CollectionUtils;
 import com.android.inputmethod.latin.utils.StringUtils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
 
@@ -55,16 +62,56 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
     /** The maximum number of contacts that this dictionary supports. */
     private static final int MAX_CONTACT_COUNT = 10000;
 
+    /**
+     * The maximum number of changed names that are applied to the dictionary file in place. When
+     * more names have changed, the dictionary is rebuilt.
+     */
+    private static final int MAX_INCREMENTAL_NAME_CHANGES = 500;
+
+    /**
+     * The minimum time between two reloads caused by changes to the contacts, so that a sync
+     * which changes many contacts one by one doesn't update the dictionary for each of them.
+     */
+    private static final long MIN_RELOAD_INTERVAL_MILLIS = 5000;
+
+    private static final int INDEX_ID = 0;
     private static final int INDEX_NAME = 1;
 
     /** The number of contacts in the most recent dictionary rebuild. */
     static private int sContactCountAtLastRebuild = 0;
 
+    /**
+     * The names in each dictionary file, by filename. Only accessed while the file is locked.
+     */
+    private static final ConcurrentHashMap<String, NameIndex> sFilenameNameIndexMap =
+            CollectionUtils.newConcurrentHashMap();
+
     /** The locale for this contacts dictionary. Controls name bigram predictions. */
     public final Locale mLocale;
 
+    private final String mFilename;
+
     private ContentObserver mObserver;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRequestReloadTask = new Runnable() {
+        @Override
+        public void run() {
+            mIsReloadRequestPending = false;
+            mLastReloadRequestTime = SystemClock.uptimeMillis();
+            setRequiresReload(true);
+        }
+    };
+    // Only accessed on the main thread.
+    private boolean mIsReloadRequestPending;
+    private long mLastReloadRequestTime;
+
+    /**
+     * The contact names read by {@link #hasContentChanged()}, to be applied by
+     * {@link #updateBinaryDictionaryLocked()}.
+     */
+    private HashMap<Long, String> mScannedNames;
+
     /**
      * Whether to use "firstname lastname" in bigram predictions.
      */
@@ -73,6 +120,7 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
     public ContactsBinaryDictionary(final Context context, final Locale locale) {
         super(context, getFilenameWithLocale(NAME, locale.toString()), Dictionary.TYPE_CONTACTS,
                 false /* isUpdatable */);
+        mFilename = getFilenameWithLocale(NAME, locale.toString());
         mLocale = locale;
         mUseFirstLastBigrams = useFirstLastBigramsForLocale(locale);
         registerObserver(context);
@@ -88,14 +136,26 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
         if (mObserver != null) return;
         ContentResolver cres = context.getContentResolver();
         cres.registerContentObserver(Contacts.CONTENT_URI, true, mObserver =
-                new ContentObserver(null) {
+                new ContentObserver(mHandler) {
                     @Override
                     public void onChange(boolean self) {
-                        setRequiresReload(true);
+                        scheduleReloadRequest();
                     }
                 });
     }
 
+    /**
+     * Requests a reload, at most once in {@link #MIN_RELOAD_INTERVAL_MILLIS}. The changes made
+     * in the meantime are all handled by the next reload.
+     */
+    private void scheduleReloadRequest() {
+        if (mIsReloadRequestPending) return;
+        mIsReloadRequestPending = true;
+        final long delay = mLastReloadRequestTime + MIN_RELOAD_INTERVAL_MILLIS
+                - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mRequestReloadTask, Math.max(0, delay));
+    }
+
     public void reopen(final Context context) {
         registerObserver(context);
     }
@@ -111,13 +171,15 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
 
     @Override
     public void loadDictionaryAsync() {
-        loadDeviceAccountsEmailAddresses();
-        loadDictionaryAsyncForUri(ContactsContract.Profile.CONTENT_URI);
+        final NameIndex nameIndex = new NameIndex();
+        loadDeviceAccountsEmailAddresses(nameIndex);
+        loadDictionaryAsyncForUri(ContactsContract.Profile.CONTENT_URI, nameIndex);
         // TODO: Switch this URL to the newer ContactsContract too
-        loadDictionaryAsyncForUri(Contacts.CONTENT_URI);
+        loadDictionaryAsyncForUri(Contacts.CONTENT_URI, nameIndex);
+        sFilenameNameIndexMap.put(mFilename, nameIndex);
     }
 
-    private void loadDeviceAccountsEmailAddresses() {
+    private void loadDeviceAccountsEmailAddresses(final NameIndex nameIndex) {
         final List<String> accountVocabulary =
                 AccountUtils.getDeviceAccountsEmailAddresses(mContext);
         if (accountVocabulary == null || accountVocabulary.isEmpty()) {
@@ -129,10 +191,11 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
             }
             super.addWord(word, null /* shortcut */, FREQUENCY_FOR_CONTACTS, 0 /* shortcutFreq */,
                     false /* isNotAWord */);
+            nameIndex.addWord(word, 1);
         }
     }
 
-    private void loadDictionaryAsyncForUri(final Uri uri) {
+    private void loadDictionaryAsyncForUri(final Uri uri, final NameIndex nameIndex) {
         try {
             Cursor cursor = mContext.getContentResolver()
                     .query(uri, PROJECTION, null, null, null);
@@ -140,7 +203,7 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
                 try {
                     if (cursor.moveToFirst()) {
                         sContactCountAtLastRebuild = getContactCount();
-                        addWords(cursor);
+                        addWords(cursor, nameIndex, Contacts.CONTENT_URI.equals(uri));
                     }
                 } finally {
                     cursor.close();
@@ -161,12 +224,21 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
         return false;
     }
 
-    private void addWords(final Cursor cursor) {
+    /**
+     * Adds the names of the cursor to the dictionary and to the given index. The names of the
+     * contacts are also recorded by id; not those of the profile, as it isn't observed.
+     */
+    private void addWords(final Cursor cursor, final NameIndex nameIndex,
+            final boolean recordsIds) {
         int count = 0;
         while (!cursor.isAfterLast() && count < MAX_CONTACT_COUNT) {
             String name = cursor.getString(INDEX_NAME);
             if (isValidName(name)) {
                 addName(name);
+                nameIndex.addName(getWordsInName(name), mUseFirstLastBigrams, 1);
+                if (recordsIds) {
+                    nameIndex.mNamesById.put(cursor.getLong(INDEX_ID), name);
+                }
                 ++count;
             }
             cursor.moveToNext();
@@ -197,8 +269,29 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
      * bigrams depending on locale.
      */
     private void addName(final String name) {
-        int len = StringUtils.codePointCount(name);
         String prevWord = null;
+        for (final String word : getWordsInName(name)) {
+            if (DEBUG) {
+                Log.d(TAG, "addName " + name + ", " + word + ", " + prevWord);
+            }
+            super.addWord(word, null /* shortcut */, FREQUENCY_FOR_CONTACTS,
+                    0 /* shortcutFreq */, false /* isNotAWord */);
+            if (!TextUtils.isEmpty(prevWord)) {
+                if (mUseFirstLastBigrams) {
+                    super.addBigram(prevWord, word, FREQUENCY_FOR_CONTACTS_BIGRAM,
+                            0 /* lastModifiedTime */);
+                }
+            }
+            prevWord = word;
+        }
+    }
+
+    /**
+     * Returns the words in a name that are added to the dictionary, in order.
+     */
+    private static ArrayList<String> getWordsInName(final String name) {
+        final ArrayList<String> words = CollectionUtils.newArrayList();
+        int len = StringUtils.codePointCount(name);
         // TODO: Better tokenization for non-Latin writing systems
         for (int i = 0; i < len; i++) {
             if (Character.isLetter(name.codePointAt(i))) {
@@ -209,21 +302,11 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
                 // capitalization of i.
                 final int wordLen = StringUtils.codePointCount(word);
                 if (wordLen < MAX_WORD_LENGTH && wordLen > 1) {
-                    if (DEBUG) {
-                        Log.d(TAG, "addName " + name + ", " + word + ", " + prevWord);
-                    }
-                    super.addWord(word, null /* shortcut */, FREQUENCY_FOR_CONTACTS,
-                            0 /* shortcutFreq */, false /* isNotAWord */);
-                    if (!TextUtils.isEmpty(prevWord)) {
-                        if (mUseFirstLastBigrams) {
-                            super.addBigram(prevWord, word, FREQUENCY_FOR_CONTACTS_BIGRAM,
-                                    0 /* lastModifiedTime */);
-                        }
-                    }
-                    prevWord = word;
+                    words.add(word);
                 }
             }
         }
+        return words;
     }
 
     /**
@@ -258,6 +341,18 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
             // TODO: Sort and check only the MAX_CONTACT_COUNT most recent contacts?
             return false;
         }
+        mScannedNames = null;
+        final NameIndex nameIndex = sFilenameNameIndexMap.get(mFilename);
+        if (nameIndex != null) {
+            // The names in the dictionary are known, so compare them with the current ones.
+            mScannedNames = getContactNames();
+            final boolean hasChanged = !nameIndex.mNamesById.equals(mScannedNames);
+            if (DEBUG) {
+                Log.d(TAG, "Contact names changed: " + hasChanged + " (runtime = "
+                        + (SystemClock.uptimeMillis() - startTime) + " ms)");
+            }
+            return hasChanged;
+        }
         if (contactCount != sContactCountAtLastRebuild) {
             if (DEBUG) {
                 Log.d(TAG, "Contact count changed: " + sContactCountAtLastRebuild + " to "
@@ -296,6 +391,112 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
         return false;
     }
 
+    /**
+     * Returns the valid contact names, by contact id, or null if they can't be read.
+     */
+    private HashMap<Long, String> getContactNames() {
+        final HashMap<Long, String> names = CollectionUtils.newHashMap();
+        try {
+            final Cursor cursor = mContext.getContentResolver().query(
+                    Contacts.CONTENT_URI, PROJECTION, null, null, null);
+            if (cursor == null) return null;
+            try {
+                if (cursor.moveToFirst()) {
+                    while (!cursor.isAfterLast() && names.size() < MAX_CONTACT_COUNT) {
+                        final String name = cursor.getString(INDEX_NAME);
+                        if (isValidName(name)) {
+                            names.put(cursor.getLong(INDEX_ID), name);
+                        }
+                        cursor.moveToNext();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (final SQLiteException e) {
+            Log.e(TAG, "SQLiteException in the remote Contacts process.", e);
+            return null;
+        } catch (final IllegalStateException e) {
+            Log.e(TAG, "Contacts DB is having problems", e);
+            return null;
+        }
+        return names;
+    }
+
+    @Override
+    protected boolean supportsIncrementalUpdate() {
+        return true;
+    }
+
+    /**
+     * Adds the words and bigrams of the new or renamed contacts to the dictionary, and removes the
+     * bigrams that are no longer used by any contact. The binary dictionary can't remove words,
+     * so if a word is no longer used by any contact, the dictionary is rebuilt instead.
+     */
+    @Override
+    protected boolean updateBinaryDictionaryLocked() {
+        final NameIndex nameIndex = sFilenameNameIndexMap.get(mFilename);
+        final HashMap<Long, String> names = mScannedNames;
+        mScannedNames = null;
+        if (nameIndex == null || names == null) return false;
+
+        final NameIndex delta = new NameIndex();
+        int changeCount = 0;
+        for (final Map.Entry<Long, String> entry : nameIndex.mNamesById.entrySet()) {
+            if (!entry.getValue().equals(names.get(entry.getKey()))) {
+                delta.addName(getWordsInName(entry.getValue()), mUseFirstLastBigrams, -1);
+                ++changeCount;
+            }
+        }
+        for (final Map.Entry<Long, String> entry : names.entrySet()) {
+            if (!entry.getValue().equals(nameIndex.mNamesById.get(entry.getKey()))) {
+                delta.addName(getWordsInName(entry.getValue()), mUseFirstLastBigrams, 1);
+                ++changeCount;
+            }
+        }
+        if (changeCount > MAX_INCREMENTAL_NAME_CHANGES) return false;
+        for (final Map.Entry<String, Integer> entry : delta.mWordCounts.entrySet()) {
+            if (entry.getValue() < 0
+                    && nameIndex.getWordCount(entry.getKey()) + entry.getValue() <= 0) {
+                if (DEBUG) {
+                    Log.d(TAG, "Word no longer used: " + entry.getKey());
+                }
+                return false;
+            }
+        }
+
+        for (final Map.Entry<String, Integer> entry : delta.mWordCounts.entrySet()) {
+            final String word = entry.getKey();
+            if (nameIndex.getWordCount(word) == 0) {
+                addWordToBinaryDictionaryLocked(word, FREQUENCY_FOR_CONTACTS);
+            }
+            nameIndex.addWord(word, entry.getValue());
+        }
+        for (final Map.Entry<String, Integer> entry : delta.mBigramCounts.entrySet()) {
+            final String bigram = entry.getKey();
+            final int count = nameIndex.getBigramCount(bigram);
+            final int newCount = count + entry.getValue();
+            if (count == 0 || newCount == 0) {
+                final int separator = bigram.indexOf(NameIndex.BIGRAM_SEPARATOR);
+                final String word0 = bigram.substring(0, separator);
+                final String word1 = bigram.substring(separator + 1);
+                if (count == 0) {
+                    addBigramToBinaryDictionaryLocked(word0, word1,
+                            FREQUENCY_FOR_CONTACTS_BIGRAM);
+                } else if (newCount == 0) {
+                    removeBigramFromBinaryDictionaryLocked(word0, word1);
+                }
+            }
+            nameIndex.addBigram(bigram, entry.getValue());
+        }
+        nameIndex.mNamesById.clear();
+        nameIndex.mNamesById.putAll(names);
+        if (DEBUG) {
+            Log.d(TAG, "Applied " + changeCount + " contact name changes in place");
+        }
+        return true;
+    }
+
     private static boolean isValidName(final String name) {
         if (name != null && -1 == name.indexOf(Constants.CODE_COMMERCIAL_AT)) {
             return true;
@@ -307,28 +508,76 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
      * Checks if the words in a name are in the current binary dictionary.
      */
     private boolean isNameInDictionary(final String name) {
-        int len = StringUtils.codePointCount(name);
         String prevWord = null;
-        for (int i = 0; i < len; i++) {
-            if (Character.isLetter(name.codePointAt(i))) {
-                int end = getWordEndPosition(name, len, i);
-                String word = name.substring(i, end);
-                i = end - 1;
-                final int wordLen = StringUtils.codePointCount(word);
-                if (wordLen < MAX_WORD_LENGTH && wordLen > 1) {
-                    if (!TextUtils.isEmpty(prevWord) && mUseFirstLastBigrams) {
-                        if (!super.isValidBigramLocked(prevWord, word)) {
-                            return false;
-                        }
-                    } else {
-                        if (!super.isValidWordLocked(word)) {
-                            return false;
-                        }
-                    }
-                    prevWord = word;
+        for (final String word : getWordsInName(name)) {
+            if (!TextUtils.isEmpty(prevWord) && mUseFirstLastBigrams) {
+                if (!super.isValidBigramLocked(prevWord, word)) {
+                    return false;
+                }
+            } else {
+                if (!super.isValidWordLocked(word)) {
+                    return false;
                 }
             }
+            prevWord = word;
         }
         return true;
     }
+
+    /**
+     * The contact names in a dictionary file, with the number of names using each of its words
+     * and bigrams, so that changes to the contacts can be applied to the file in place.
+     */
+    private static final class NameIndex {
+        // Words in names are made of letters, dashes and quotes.
+        public static final char BIGRAM_SEPARATOR = ' ';
+
+        public final HashMap<Long, String> mNamesById = CollectionUtils.newHashMap();
+        public final HashMap<String, Integer> mWordCounts = CollectionUtils.newHashMap();
+        public final HashMap<String, Integer> mBigramCounts = CollectionUtils.newHashMap();
+
+        /**
+         * Counts the words of a name, and its bigrams if they are used, the given number of times.
+         */
+        public void addName(final ArrayList<String> words, final boolean useBigrams,
+                final int count) {
+            String prevWord = null;
+            for (final String word : words) {
+                addWord(word, count);
+                if (prevWord != null && useBigrams) {
+                    addBigram(prevWord + BIGRAM_SEPARATOR + word, count);
+                }
+                prevWord = word;
+            }
+        }
+
+        public void addWord(final String word, final int count) {
+            add(mWordCounts, word, count);
+        }
+
+        public void addBigram(final String bigram, final int count) {
+            add(mBigramCounts, bigram, count);
+        }
+
+        public int getWordCount(final String word) {
+            final Integer count = mWordCounts.get(word);
+            return count == null ? 0 : count;
+        }
+
+        public int getBigramCount(final String bigram) {
+            final Integer count = mBigramCounts.get(bigram);
+            return count == null ? 0 : count;
+        }
+
+        private static void add(final HashMap<String, Integer> counts, final String key,
+                final int count) {
+            final Integer oldCount = counts.get(key);
+            final int newCount = (oldCount == null ? 0 : oldCount) + count;
+            if (newCount == 0) {
+                counts.remove(key);
+            } else {
+                counts.put(key, newCount);
+            }
+        }
+    }
 }
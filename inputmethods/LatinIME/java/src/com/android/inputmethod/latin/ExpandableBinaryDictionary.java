@@ -132,6 +132,27 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
      */
     protected abstract boolean hasContentChanged();
 
+    /**
+     * Whether the changes of the source content can be applied to the binary dictionary file in
+     * place with {@link #updateBinaryDictionaryLocked()}. If so, the binary dictionary is opened
+     * for update.
+     */
+    protected boolean supportsIncrementalUpdate() {
+        return false;
+    }
+
+    /**
+     * Applies the changes of the source content to the current binary dictionary, instead of
+     * writing a new file. Called after {@link #hasContentChanged()} returned true, when
+     * {@link #supportsIncrementalUpdate()} is true and the binary dictionary is loaded; the file is
+     * flushed afterwards. Note that the shared binary dictionary is locked when this is called.
+     *
+     * @return whether the changes were applied. If not, the binary dictionary is regenerated.
+     */
+    protected boolean updateBinaryDictionaryLocked() {
+        return false;
+    }
+
     /**
      * Gets the dictionary update controller for the given filename.
      */
@@ -251,7 +272,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
                             DICTIONARY_FORMAT_VERSION, getHeaderAttributeMap());
                     mBinaryDictionary = new BinaryDictionary(
                             file.getAbsolutePath(), 0 /* offset */, file.length(),
-                            true /* useFullEditDistance */, null, mDictType, mIsUpdatable);
+                            true /* useFullEditDistance */, null, mDictType, isOpenedForUpdate());
                 } else {
                     mDictionaryWriter.clear();
                 }
@@ -479,6 +500,23 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         return mBinaryDictionary.isValidBigram(word1, word2);
     }
 
+    protected void addWordToBinaryDictionaryLocked(final String word, final int frequency) {
+        mBinaryDictionary.addUnigramWord(word, frequency);
+    }
+
+    protected void addBigramToBinaryDictionaryLocked(final String word0, final String word1,
+            final int frequency) {
+        mBinaryDictionary.addBigramWords(word0, word1, frequency);
+    }
+
+    protected void removeBigramFromBinaryDictionaryLocked(final String word0, final String word1) {
+        mBinaryDictionary.removeBigramWords(word0, word1);
+    }
+
+    private boolean isOpenedForUpdate() {
+        return mIsUpdatable || supportsIncrementalUpdate();
+    }
+
     /**
      * Load the current binary dictionary from internal storage in a background thread. If no binary
      * dictionary exists, this method will generate one.
@@ -505,7 +543,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
 
         // Build the new binary dictionary
         final BinaryDictionary newBinaryDictionary = new BinaryDictionary(filename, 0 /* offset */,
-                length, true /* useFullEditDistance */, null, mDictType, mIsUpdatable);
+                length, true /* useFullEditDistance */, null, mDictType, isOpenedForUpdate());
 
         // Ensure all threads accessing the current dictionary have finished before
         // swapping in the new one.
@@ -626,9 +664,16 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
                             // rebuild the binary dictionary. Empty dictionaries are supported (in
                             // the case where loadDictionaryAsync() adds nothing) in order to
                             // provide a uniform framework.
+                            // The binary dictionary of this instance can only be updated in
+                            // place if no other instance has written the file since it was loaded.
+                            final boolean canUpdateInPlace = dictionaryFileExists
+                                    && mPerInstanceDictionaryUpdateController.mLastUpdateTime
+                                            >= mFilenameDictionaryUpdateController.mLastUpdateTime;
                             mFilenameDictionaryUpdateController.mLastUpdateTime = time;
-                            writeBinaryDictionary();
-                            loadBinaryDictionary();
+                            if (!canUpdateInPlace || !updateBinaryDictionaryIfSupported()) {
+                                writeBinaryDictionary();
+                                loadBinaryDictionary();
+                            }
                         } else {
                             // If not, the reload request was unnecessary so revert
                             // LastUpdateRequestTime to LastUpdateTime.
@@ -656,6 +701,29 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         });
     }
 
+    /**
+     * Applies the changes of the source content to the binary dictionary in place and flushes it,
+     * if the subclass supports it.
+     *
+     * @return whether the binary dictionary has been updated.
+     */
+    private boolean updateBinaryDictionaryIfSupported() {
+        if (!supportsIncrementalUpdate() || mBinaryDictionary == null
+                || !mBinaryDictionary.isValidDictionary()) {
+            return false;
+        }
+        if (!updateBinaryDictionaryLocked()) return false;
+        if (DEBUG) {
+            Log.d(TAG, "Updated binary dictionary in place: " + mFilename);
+        }
+        if (mBinaryDictionary.needsToRunGC(false /* mindsBlockByGC */)) {
+            mBinaryDictionary.flushWithGC();
+        } else {
+            mBinaryDictionary.flush();
+        }
+        return true;
+    }
+
     // TODO: cache the file's existence so that we avoid doing a disk access each time.
     private boolean dictionaryFileExists() {
         final File file = new File(mContext.getFilesDir(), mFilename);
@@ -38,7 +38,7 @@ public class ExpandableDictionary extends Dictionary {
     /**
      * The weight to give to a word if it's length is the same as the number of typed characters.
      */
-    private static final int FULL_WORD_SCORE_MULTIPLIER = 2;
+    /* package */ static final int FULL_WORD_SCORE_MULTIPLIER = 2;
 
     private char[] mWordBuilder = new char[Constants.DICTIONARY_MAX_WORD_LENGTH];
     private int mMaxDepth;
@@ -336,7 +336,7 @@ public class ExpandableDictionary extends Dictionary {
         return null;
     }
 
-    private static int computeSkippedWordFinalFreq(final int freq, final int snr,
+    /* package */ static int computeSkippedWordFinalFreq(final int freq, final int snr,
             final int inputLength) {
         // The computation itself makes sense for >= 2, but the == 2 case returns 0
         // anyway so we may as well test against 3 instead and return the constant
@@ -671,7 +671,7 @@ public class ExpandableDictionary extends Dictionary {
         mRoots = new NodeArray();
     }
 
-    private static char toLowerCase(final char c) {
+    /* package */ static char toLowerCase(final char c) {
         char baseChar = c;
         if (c < BASE_CHARS.length) {
             baseChar = BASE_CHARS[c];
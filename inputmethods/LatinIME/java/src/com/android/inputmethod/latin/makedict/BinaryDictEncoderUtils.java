@@ -48,7 +48,7 @@ public class BinaryDictEncoderUtils {
     // compression in five passes.
     // If the number of passes exceeds this number, makedict bails with an exception on
     // suspicion that a bug might be causing an infinite loop.
-    private static final int MAX_PASSES = 24;
+    /* package */ static final int MAX_PASSES = 24;
 
     /**
      * Compute the binary size of the character array.
@@ -152,7 +152,7 @@ public class BinaryDictEncoderUtils {
      * @param ptNodeArray the node array to compute the maximum size of.
      * @param options file format options.
      */
-    private static void calculatePtNodeArrayMaximumSize(final PtNodeArray ptNodeArray,
+    /* package */ static void calculatePtNodeArrayMaximumSize(final PtNodeArray ptNodeArray,
             final FormatOptions options) {
         int size = getPtNodeCountSize(ptNodeArray);
         for (PtNode node : ptNodeArray.mData) {
@@ -172,7 +172,7 @@ public class BinaryDictEncoderUtils {
      * @param ptNode the PtNode of which to compute the size of the header
      * @param options file format options.
      */
-    private static int getNodeHeaderSize(final PtNode ptNode, final FormatOptions options) {
+    /* package */ static int getNodeHeaderSize(final PtNode ptNode, final FormatOptions options) {
         if (BinaryDictIOUtils.supportsDynamicUpdate(options)) {
             return FormatSpec.PTNODE_FLAGS_SIZE + FormatSpec.PARENT_ADDRESS_SIZE
                     + getPtNodeCharactersSize(ptNode);
@@ -300,8 +300,9 @@ public class BinaryDictEncoderUtils {
      * @param targetNodeArray the target node array to get the offset to
      * @return the offset to the target node array
      */
-    private static int getOffsetToTargetNodeArrayDuringUpdate(final PtNodeArray currentNodeArray,
-            final int offsetFromStartOfCurrentNodeArray, final PtNodeArray targetNodeArray) {
+    /* package */ static int getOffsetToTargetNodeArrayDuringUpdate(
+            final PtNodeArray currentNodeArray, final int offsetFromStartOfCurrentNodeArray,
+            final PtNodeArray targetNodeArray) {
         final boolean isTargetBeforeCurrent = (targetNodeArray.mCachedAddressBeforeUpdate
                 < currentNodeArray.mCachedAddressBeforeUpdate);
         if (isTargetBeforeCurrent) {
@@ -325,7 +326,7 @@ public class BinaryDictEncoderUtils {
      * @return the offset to the target PtNode
      */
     // TODO: is there any way to factorize this method with the one above?
-    private static int getOffsetToTargetPtNodeDuringUpdate(final PtNodeArray currentNodeArray,
+    /* package */ static int getOffsetToTargetPtNodeDuringUpdate(final PtNodeArray currentNodeArray,
             final int offsetFromStartOfCurrentNodeArray, final PtNode targetPtNode) {
         final int oldOffsetBasePoint = currentNodeArray.mCachedAddressBeforeUpdate
                 + offsetFromStartOfCurrentNodeArray;
@@ -414,8 +415,8 @@ public class BinaryDictEncoderUtils {
      * @param formatOptions file format options.
      * @return the byte size of the entire stack.
      */
-    private static int initializePtNodeArraysCachedAddresses(final ArrayList<PtNodeArray> flatNodes,
-            final FormatOptions formatOptions) {
+    /* package */ static int initializePtNodeArraysCachedAddresses(
+            final ArrayList<PtNodeArray> flatNodes, final FormatOptions formatOptions) {
         int nodeArrayOffset = 0;
         for (final PtNodeArray nodeArray : flatNodes) {
             nodeArray.mCachedAddressBeforeUpdate = nodeArrayOffset;
@@ -436,7 +437,8 @@ public class BinaryDictEncoderUtils {
      *
      * @param flatNodes the list of node arrays.
      */
-    private static void updatePtNodeArraysCachedAddresses(final ArrayList<PtNodeArray> flatNodes) {
+    /* package */ static void updatePtNodeArraysCachedAddresses(
+            final ArrayList<PtNodeArray> flatNodes) {
         for (final PtNodeArray nodeArray : flatNodes) {
             nodeArray.mCachedAddressBeforeUpdate = nodeArray.mCachedAddressAfterUpdate;
             for (final PtNode ptNode : nodeArray.mData) {
@@ -453,7 +455,7 @@ public class BinaryDictEncoderUtils {
      *
      * @param flatNodes the flat array of node arrays to fill in
      */
-    private static void computeParentAddresses(final ArrayList<PtNodeArray> flatNodes) {
+    /* package */ static void computeParentAddresses(final ArrayList<PtNodeArray> flatNodes) {
         for (final PtNodeArray nodeArray : flatNodes) {
             for (final PtNode ptNode : nodeArray.mData) {
                 if (null != ptNode.mChildren) {
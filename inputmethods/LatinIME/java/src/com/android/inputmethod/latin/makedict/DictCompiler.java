@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin.makedict;
+
+import com.android.inputmethod.latin.makedict.FormatSpec.FormatOptions;
+import com.android.inputmethod.latin.makedict.FusionDictionary.PtNode;
+import com.android.inputmethod.latin.makedict.FusionDictionary.PtNodeArray;
+import com.android.inputmethod.latin.makedict.FusionDictionary.WeightedString;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Flattens a FusionDictionary and computes the addresses of its PtNode arrays.
+ *
+ * The result is the same as that of {@link BinaryDictEncoderUtils#flattenTree} followed by
+ * {@link BinaryDictEncoderUtils#computeAddresses}, but large dictionaries are compiled faster:
+ * - The subtrees under the root PtNodes don't depend on each other until addresses are
+ *   computed, so they are flattened and their maximum sizes computed in parallel. The bigram
+ *   targets are looked up at the same time, once, instead of once per pass.
+ * - The sizes that don't depend on addresses are computed once.
+ * - Once all the addresses in a PtNode array take one byte, it can't shrink any more; the
+ *   following passes only move it. When all the PtNode arrays are like that, the last pass
+ *   would change nothing, so it is skipped.
+ */
+final class DictCompiler {
+    // Below this number of PtNodes, the dictionary is compiled on the calling thread.
+    private static final int MIN_PTNODES_FOR_PARALLEL = 10000;
+
+    private DictCompiler() {
+        // This utility class is not publicly instantiable.
+    }
+
+    /**
+     * The parts of the size of a PtNode array that don't depend on addresses.
+     */
+    private static final class PtNodeArrayLayout {
+        public final PtNodeArray mPtNodeArray;
+        // For each PtNode, the size of the fields before its children address.
+        public final int[] mHeadSizes;
+        // For each PtNode, the size of the fields between its children address and bigrams.
+        public final int[] mMiddleSizes;
+        // For each PtNode, the PtNodes of its bigram targets if they are addressed in the trie,
+        // null otherwise.
+        public final PtNode[][] mBigramTargets;
+        // Whether every address in the array takes one byte.
+        public boolean mIsSettled;
+
+        public PtNodeArrayLayout(final PtNodeArray ptNodeArray, final FusionDictionary dict,
+                final FormatOptions formatOptions) {
+            mPtNodeArray = ptNodeArray;
+            final int ptNodeCount = ptNodeArray.mData.size();
+            mHeadSizes = new int[ptNodeCount];
+            mMiddleSizes = new int[ptNodeCount];
+            mBigramTargets = new PtNode[ptNodeCount][];
+            final boolean hasAttributesInTrie =
+                    formatOptions.mVersion < FormatSpec.FIRST_VERSION_WITH_TERMINAL_ID;
+            for (int i = 0; i < ptNodeCount; ++i) {
+                final PtNode ptNode = ptNodeArray.mData.get(i);
+                int headSize = BinaryDictEncoderUtils.getNodeHeaderSize(ptNode, formatOptions);
+                if (ptNode.isTerminal()) {
+                    headSize += formatOptions.mHasTerminalId ? FormatSpec.PTNODE_TERMINAL_ID_SIZE
+                            : FormatSpec.PTNODE_FREQUENCY_SIZE;
+                }
+                mHeadSizes[i] = headSize;
+                int middleSize = 0;
+                if (formatOptions.mSupportsDynamicUpdate) {
+                    middleSize += FormatSpec.SIGNED_CHILDREN_ADDRESS_SIZE;
+                }
+                if (hasAttributesInTrie) {
+                    middleSize += BinaryDictEncoderUtils.getShortcutListSize(
+                            ptNode.mShortcutTargets);
+                    if (null != ptNode.mBigrams) {
+                        final PtNode[] targets = new PtNode[ptNode.mBigrams.size()];
+                        for (int j = 0; j < targets.length; ++j) {
+                            final WeightedString bigram = ptNode.mBigrams.get(j);
+                            targets[j] = FusionDictionary.findWordInTree(dict.mRootNodeArray,
+                                    bigram.mWord);
+                        }
+                        mBigramTargets[i] = targets;
+                    }
+                }
+                mMiddleSizes[i] = middleSize;
+            }
+            BinaryDictEncoderUtils.calculatePtNodeArrayMaximumSize(ptNodeArray, formatOptions);
+        }
+    }
+
+    /**
+     * Flattens the tree and computes the addresses and sizes of the PtNode arrays.
+     *
+     * @param dict the dictionary
+     * @param formatOptions file format options.
+     * @return the ordered list of PtNode arrays, updated for address and size.
+     */
+    /* package */ static ArrayList<PtNodeArray> compile(final FusionDictionary dict,
+            final FormatOptions formatOptions) {
+        final int treeSize = FusionDictionary.countPtNodes(dict.mRootNodeArray);
+        MakedictLog.i("Counted nodes : " + treeSize);
+        final int threadCount = treeSize < MIN_PTNODES_FOR_PARALLEL ? 1
+                : Runtime.getRuntime().availableProcessors();
+        final ArrayList<PtNodeArrayLayout> layouts = layOut(dict, formatOptions, threadCount);
+        final ArrayList<PtNodeArray> flatNodes = new ArrayList<PtNodeArray>(layouts.size());
+        for (final PtNodeArrayLayout layout : layouts) {
+            flatNodes.add(layout.mPtNodeArray);
+        }
+        computeAddresses(layouts, flatNodes, formatOptions);
+        return flatNodes;
+    }
+
+    /**
+     * Flattens the tree in the order of {@link BinaryDictEncoderUtils#flattenTree}, laying out
+     * the subtrees under each root PtNode on the given number of threads.
+     */
+    private static ArrayList<PtNodeArrayLayout> layOut(final FusionDictionary dict,
+            final FormatOptions formatOptions, final int threadCount) {
+        final PtNodeArray rootNodeArray = dict.mRootNodeArray;
+        final ArrayList<PtNodeArrayLayout> layouts = new ArrayList<PtNodeArrayLayout>();
+        layouts.add(new PtNodeArrayLayout(rootNodeArray, dict, formatOptions));
+        if (threadCount <= 1) {
+            for (final PtNode ptNode : rootNodeArray.mData) {
+                if (null != ptNode.mChildren) {
+                    layOutSubtree(layouts, ptNode.mChildren, dict, formatOptions);
+                }
+            }
+            return layouts;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            final ArrayList<Future<ArrayList<PtNodeArrayLayout>>> subtrees =
+                    new ArrayList<Future<ArrayList<PtNodeArrayLayout>>>();
+            for (final PtNode ptNode : rootNodeArray.mData) {
+                if (null == ptNode.mChildren) continue;
+                subtrees.add(executor.submit(new Callable<ArrayList<PtNodeArrayLayout>>() {
+                    @Override
+                    public ArrayList<PtNodeArrayLayout> call() {
+                        return layOutSubtree(new ArrayList<PtNodeArrayLayout>(),
+                                ptNode.mChildren, dict, formatOptions);
+                    }
+                }));
+            }
+            // The subtrees follow each other in the order of the root PtNodes.
+            for (final Future<ArrayList<PtNodeArrayLayout>> subtree : subtrees) {
+                layouts.addAll(subtree.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while flattening the tree", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        return layouts;
+    }
+
+    // Same order as BinaryDictEncoderUtils#flattenTreeInner.
+    private static ArrayList<PtNodeArrayLayout> layOutSubtree(
+            final ArrayList<PtNodeArrayLayout> list, final PtNodeArray ptNodeArray,
+            final FusionDictionary dict, final FormatOptions formatOptions) {
+        list.add(new PtNodeArrayLayout(ptNodeArray, dict, formatOptions));
+        for (final PtNode ptNode : ptNodeArray.mData) {
+            if (null != ptNode.mChildren) {
+                layOutSubtree(list, ptNode.mChildren, dict, formatOptions);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Computes the addresses like {@link BinaryDictEncoderUtils#computeAddresses}.
+     */
+    private static void computeAddresses(final ArrayList<PtNodeArrayLayout> layouts,
+            final ArrayList<PtNodeArray> flatNodes, final FormatOptions formatOptions) {
+        final int offset =
+                BinaryDictEncoderUtils.initializePtNodeArraysCachedAddresses(flatNodes,
+                        formatOptions);
+        MakedictLog.i("Compressing the array addresses. Original size : " + offset);
+
+        int passes = 0;
+        boolean changesDone = false;
+        do {
+            changesDone = false;
+            boolean allSettled = true;
+            int ptNodeArrayStartOffset = 0;
+            for (final PtNodeArrayLayout layout : layouts) {
+                final PtNodeArray ptNodeArray = layout.mPtNodeArray;
+                ptNodeArray.mCachedAddressAfterUpdate = ptNodeArrayStartOffset;
+                final int oldNodeArraySize = ptNodeArray.mCachedSize;
+                final boolean changed;
+                if (layout.mIsSettled) {
+                    changed = moveSettledPtNodeArray(ptNodeArray);
+                } else {
+                    changed = computeActualPtNodeArraySize(layout, formatOptions);
+                    allSettled &= layout.mIsSettled;
+                }
+                final int newNodeArraySize = ptNodeArray.mCachedSize;
+                if (oldNodeArraySize < newNodeArraySize) {
+                    throw new RuntimeException("Increased size ?!");
+                }
+                ptNodeArrayStartOffset += newNodeArraySize;
+                changesDone |= changed;
+            }
+            BinaryDictEncoderUtils.updatePtNodeArraysCachedAddresses(flatNodes);
+            ++passes;
+            if (passes > BinaryDictEncoderUtils.MAX_PASSES) {
+                throw new RuntimeException("Too many passes - probably a bug");
+            }
+            // No size can change any more, so another pass would not change anything.
+            if (allSettled) break;
+        } while (changesDone);
+
+        if (formatOptions.mSupportsDynamicUpdate) {
+            BinaryDictEncoderUtils.computeParentAddresses(flatNodes);
+        }
+        final PtNodeArray lastPtNodeArray = flatNodes.get(flatNodes.size() - 1);
+        MakedictLog.i("Compression complete in " + passes + " passes.");
+        MakedictLog.i("After address compression : "
+                + (lastPtNodeArray.mCachedAddressAfterUpdate + lastPtNodeArray.mCachedSize));
+    }
+
+    /**
+     * Moves the PtNodes of an array whose size can't change to the new address of the array.
+     *
+     * @return whether the array moved.
+     */
+    private static boolean moveSettledPtNodeArray(final PtNodeArray ptNodeArray) {
+        final int delta =
+                ptNodeArray.mCachedAddressAfterUpdate - ptNodeArray.mCachedAddressBeforeUpdate;
+        if (delta == 0) return false;
+        for (final PtNode ptNode : ptNodeArray.mData) {
+            ptNode.mCachedAddressAfterUpdate = ptNode.mCachedAddressBeforeUpdate + delta;
+        }
+        return true;
+    }
+
+    /**
+     * Same as BinaryDictEncoderUtils#computeActualPtNodeArraySize, using the precomputed
+     * sizes, and marking the array as settled if all its addresses take one byte.
+     */
+    private static boolean computeActualPtNodeArraySize(final PtNodeArrayLayout layout,
+            final FormatOptions formatOptions) {
+        final PtNodeArray ptNodeArray = layout.mPtNodeArray;
+        boolean changed = false;
+        boolean settled = true;
+        int size = BinaryDictIOUtils.getPtNodeCountSize(ptNodeArray.mData.size());
+        for (int i = 0; i < layout.mHeadSizes.length; ++i) {
+            final PtNode ptNode = ptNodeArray.mData.get(i);
+            ptNode.mCachedAddressAfterUpdate = ptNodeArray.mCachedAddressAfterUpdate + size;
+            if (ptNode.mCachedAddressAfterUpdate != ptNode.mCachedAddressBeforeUpdate) {
+                changed = true;
+            }
+            int nodeSize = layout.mHeadSizes[i];
+            if (!formatOptions.mSupportsDynamicUpdate && null != ptNode.mChildren) {
+                final int addressSize = BinaryDictEncoderUtils.getByteSize(
+                        BinaryDictEncoderUtils.getOffsetToTargetNodeArrayDuringUpdate(
+                                ptNodeArray, nodeSize + size, ptNode.mChildren));
+                if (addressSize > 1) settled = false;
+                nodeSize += addressSize;
+            }
+            nodeSize += layout.mMiddleSizes[i];
+            final PtNode[] bigramTargets = layout.mBigramTargets[i];
+            if (null != bigramTargets) {
+                for (final PtNode target : bigramTargets) {
+                    final int offset = BinaryDictEncoderUtils.getOffsetToTargetPtNodeDuringUpdate(
+                            ptNodeArray,
+                            nodeSize + size + FormatSpec.PTNODE_ATTRIBUTE_FLAGS_SIZE, target);
+                    final int addressSize = BinaryDictEncoderUtils.getByteSize(offset);
+                    if (addressSize > 1) settled = false;
+                    nodeSize += addressSize + FormatSpec.PTNODE_ATTRIBUTE_FLAGS_SIZE;
+                }
+            }
+            ptNode.mCachedSize = nodeSize;
+            size += nodeSize;
+        }
+        if (formatOptions.mSupportsDynamicUpdate) {
+            size += FormatSpec.FORWARD_LINK_ADDRESS_SIZE;
+        }
+        if (ptNodeArray.mCachedSize != size) {
+            ptNodeArray.mCachedSize = size;
+            changed = true;
+        }
+        layout.mIsSettled = settled;
+        return changed;
+    }
+}
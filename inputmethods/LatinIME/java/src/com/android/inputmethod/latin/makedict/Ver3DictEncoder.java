@@ -27,6 +27,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 
@@ -34,11 +36,18 @@ import java.util.Iterator;
  * An implementation of DictEncoder for version 3 binary dictionary.
  */
 public class Ver3DictEncoder implements DictEncoder {
+    // The PtNode arrays are written to a buffer of this size, or of the size of the largest
+    // array if it is larger, which is written out each time it is full.
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
 
     private final File mDictFile;
     private OutputStream mOutStream;
+    private FileChannel mOutChannel;
     private byte[] mBuffer;
+    // The position in the buffer.
     private int mPosition;
+    // The position of the start of the buffer in the PtNode arrays.
+    private int mBufferOffset;
 
     public Ver3DictEncoder(final File dictFile) {
         mDictFile = dictFile;
@@ -55,14 +64,30 @@ public class Ver3DictEncoder implements DictEncoder {
     }
 
     private void openStream() throws FileNotFoundException {
-        mOutStream = new FileOutputStream(mDictFile);
+        final FileOutputStream outStream = new FileOutputStream(mDictFile);
+        mOutStream = outStream;
+        mOutChannel = outStream.getChannel();
     }
 
     private void close() throws IOException {
         if (mOutStream != null) {
             mOutStream.close();
             mOutStream = null;
+            mOutChannel = null;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mOutChannel != null) {
+            final ByteBuffer bytes = ByteBuffer.wrap(mBuffer, 0, mPosition);
+            while (bytes.hasRemaining()) {
+                mOutChannel.write(bytes);
+            }
+        } else {
+            mOutStream.write(mBuffer, 0, mPosition);
         }
+        mBufferOffset += mPosition;
+        mPosition = 0;
     }
 
     @Override
@@ -87,26 +112,31 @@ public class Ver3DictEncoder implements DictEncoder {
         // grow to any size.
 
         // Leave the choice of the optimal node order to the flattenTree function.
-        MakedictLog.i("Flattening the tree...");
-        ArrayList<PtNodeArray> flatNodes = BinaryDictEncoderUtils.flattenTree(dict.mRootNodeArray);
-
-        MakedictLog.i("Computing addresses...");
-        BinaryDictEncoderUtils.computeAddresses(dict, flatNodes, formatOptions);
+        MakedictLog.i("Flattening the tree and computing addresses...");
+        ArrayList<PtNodeArray> flatNodes = DictCompiler.compile(dict, formatOptions);
         MakedictLog.i("Checking PtNode array...");
         if (MakedictLog.DBG) BinaryDictEncoderUtils.checkFlatPtNodeArrayList(flatNodes);
 
-        // Create a buffer that matches the final dictionary size.
+        // Create a buffer that can hold any PtNode array, but not larger than the dictionary.
         final PtNodeArray lastNodeArray = flatNodes.get(flatNodes.size() - 1);
-        final int bufferSize = lastNodeArray.mCachedAddressAfterUpdate + lastNodeArray.mCachedSize;
-        mBuffer = new byte[bufferSize];
+        final int dictSize = lastNodeArray.mCachedAddressAfterUpdate + lastNodeArray.mCachedSize;
+        int bufferSize = OUTPUT_BUFFER_SIZE;
+        for (final PtNodeArray nodeArray : flatNodes) {
+            bufferSize = Math.max(bufferSize, nodeArray.mCachedSize);
+        }
+        mBuffer = new byte[Math.min(bufferSize, dictSize)];
+        mPosition = 0;
+        mBufferOffset = 0;
 
         MakedictLog.i("Writing file...");
 
         for (PtNodeArray nodeArray : flatNodes) {
+            if (mPosition + nodeArray.mCachedSize > mBuffer.length) flushBuffer();
             BinaryDictEncoderUtils.writePlacedPtNodeArray(dict, this, nodeArray, formatOptions);
         }
         if (MakedictLog.DBG) BinaryDictEncoderUtils.showStatistics(flatNodes);
-        mOutStream.write(mBuffer, 0, mPosition);
+        flushBuffer();
+        mBuffer = null;
 
         MakedictLog.i("Done");
         close();
@@ -114,13 +144,14 @@ public class Ver3DictEncoder implements DictEncoder {
 
     @Override
     public void setPosition(final int position) {
-        if (mBuffer == null || position < 0 || position >= mBuffer.length) return;
-        mPosition = position;
+        final int index = position - mBufferOffset;
+        if (mBuffer == null || index < 0 || index >= mBuffer.length) return;
+        mPosition = index;
     }
 
     @Override
     public int getPosition() {
-        return mPosition;
+        return mBufferOffset + mPosition;
     }
 
     @Override
@@ -223,7 +254,7 @@ public class Ver3DictEncoder implements DictEncoder {
             final int addressOfBigram = target.mCachedAddressAfterUpdate;
             final int unigramFrequencyForThisWord = target.mFrequency;
             final int offset = addressOfBigram
-                    - (mPosition + FormatSpec.PTNODE_ATTRIBUTE_FLAGS_SIZE);
+                    - (getPosition() + FormatSpec.PTNODE_ATTRIBUTE_FLAGS_SIZE);
             final int bigramFlags = BinaryDictEncoderUtils.makeBigramFlags(bigramIterator.hasNext(),
                     offset, bigram.mFrequency, unigramFrequencyForThisWord, bigram.mWord);
             mPosition = BinaryDictEncoderUtils.writeUIntToBuffer(mBuffer, mPosition, bigramFlags,
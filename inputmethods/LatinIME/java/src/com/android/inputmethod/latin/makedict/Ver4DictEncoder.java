@@ -243,17 +243,15 @@ public class Ver4DictEncoder implements DictEncoder {
         mHeaderSize = BinaryDictEncoderUtils.writeDictionaryHeader(mTrieOutStream, dict,
                 formatOptions);
 
-        MakedictLog.i("Flattening the tree...");
-        ArrayList<PtNodeArray> flatNodes = BinaryDictEncoderUtils.flattenTree(dict.mRootNodeArray);
+        MakedictLog.i("Flattening the tree and computing addresses...");
+        ArrayList<PtNodeArray> flatNodes = DictCompiler.compile(dict, formatOptions);
+        // The terminal ids have a fixed size, so they can be assigned after the addresses.
         int terminalCount = 0;
         for (final PtNodeArray array : flatNodes) {
             for (final PtNode node : array.mData) {
                 if (node.isTerminal()) node.mTerminalId = terminalCount++;
             }
         }
-
-        MakedictLog.i("Computing addresses...");
-        BinaryDictEncoderUtils.computeAddresses(dict, flatNodes, formatOptions);
         if (MakedictLog.DBG) BinaryDictEncoderUtils.checkFlatPtNodeArrayList(flatNodes);
 
         writeTerminalData(flatNodes, terminalCount);
@@ -22,6 +22,8 @@ import android.preference.PreferenceManager;
 import android.service.textservice.SpellCheckerService;
 import android.text.InputType;
 import android.util.Log;
+import android.util.PrintWriterPrinter;
+import android.util.Printer;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodSubtype;
 import android.view.textservice.SuggestionsInfo;
@@ -41,6 +43,8 @@ import com.android.inputmethod.latin.utils.CollectionUtils;
 import com.android.inputmethod.latin.utils.LocaleUtils;
 import com.android.inputmethod.latin.utils.StringUtils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -58,7 +62,9 @@ public final class AndroidSpellCheckerService extends SpellCheckerService
         implements SharedPreferences.OnSharedPreferenceChangeListener {
     private static final String TAG = AndroidSpellCheckerService.class.getSimpleName();
     private static final boolean DBG = false;
-    private static final int POOL_SIZE = 2;
+    // The number of dictionaries per locale that are kept while idle, and the maximum number.
+    private static final int MIN_POOL_SIZE = 1;
+    private static final int MAX_POOL_SIZE = 4;
 
     public static final String PREF_USE_CONTACTS_KEY = "pref_spellcheck_use_contacts";
 
@@ -409,7 +415,7 @@ public final class AndroidSpellCheckerService extends SpellCheckerService
         DictionaryPool pool = mDictionaryPools.get(locale);
         if (null == pool) {
             final Locale localeObject = LocaleUtils.constructLocaleFromString(locale);
-            pool = new DictionaryPool(POOL_SIZE, this, localeObject);
+            pool = new DictionaryPool(MIN_POOL_SIZE, MAX_POOL_SIZE, this, localeObject);
             mDictionaryPools.put(locale, pool);
         }
         return pool;
@@ -449,6 +455,38 @@ public final class AndroidSpellCheckerService extends SpellCheckerService
         return new DictAndKeyboard(dictionaryCollection, keyboardLayoutSet);
     }
 
+    /**
+     * Closes a dictionary that a pool no longer needs. The user and contacts dictionaries are
+     * shared by all the dictionaries of the pools, so they are left open.
+     */
+    public void closeDictAndKeyboard(final DictAndKeyboard dictInfo, final Locale locale) {
+        final DictionaryCollection dictionaryCollection =
+                (DictionaryCollection) dictInfo.mDictionary;
+        final UserBinaryDictionary userDictionary = mUserDictionaries.get(locale.toString());
+        if (null != userDictionary) {
+            dictionaryCollection.removeDictionary(userDictionary);
+        }
+        synchronized (mUseContactsLock) {
+            if (null != mContactsDictionary) {
+                dictionaryCollection.removeDictionary(mContactsDictionary);
+            }
+        }
+        dictionaryCollection.close();
+    }
+
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter fout, final String[] args) {
+        super.dump(fd, fout, args);
+
+        final Printer p = new PrintWriterPrinter(fout);
+        p.println("Spell checker dictionary pools :");
+        synchronized (mDictionaryPools) {
+            for (final DictionaryPool pool : mDictionaryPools.values()) {
+                pool.dump(p);
+            }
+        }
+    }
+
     private KeyboardLayoutSet createKeyboardSetForSpellChecker(final InputMethodSubtype subtype) {
         final EditorInfo editorInfo = new EditorInfo();
         editorInfo.inputType = InputType.TYPE_CLASS_TEXT;
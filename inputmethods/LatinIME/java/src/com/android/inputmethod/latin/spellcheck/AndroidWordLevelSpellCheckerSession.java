@@ -37,6 +37,7 @@ import com.android.inputmethod.latin.utils.LocaleUtils;
 import com.android.inputmethod.latin.utils.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Locale;
 
 public abstract class AndroidWordLevelSpellCheckerSession extends Session {
@@ -50,21 +51,38 @@ public abstract class AndroidWordLevelSpellCheckerSession extends Session {
     // Cache this for performance
     private int mScript; // One of SCRIPT_LATIN or SCRIPT_CYRILLIC for now.
     private final AndroidSpellCheckerService mService;
-    protected final SuggestionsCache mSuggestionsCache = new SuggestionsCache();
+    // Shared by the sessions of the same locale. Likewise, not available in the constructor.
+    protected SuggestionsCache mSuggestionsCache;
     private final ContentObserver mObserver;
 
     private static final class SuggestionsParams {
         public final String[] mSuggestions;
         public final int mFlags;
-        public SuggestionsParams(String[] suggestions, int flags) {
+        // The limit the suggestions were gathered with; the cache is shared by the clients of
+        // the locale, which may ask for different numbers of suggestions.
+        public final int mSuggestionsLimit;
+        public SuggestionsParams(String[] suggestions, int flags, int suggestionsLimit) {
             mSuggestions = suggestions;
             mFlags = flags;
+            mSuggestionsLimit = suggestionsLimit;
+        }
+
+        // Whether these hold as many suggestions as gathering them again would give
+        public boolean hasSuggestionsFor(final int suggestionsLimit) {
+            return suggestionsLimit <= mSuggestionsLimit;
+        }
+
+        public String[] getSuggestions(final int suggestionsLimit) {
+            if (null == mSuggestions || mSuggestions.length <= suggestionsLimit) {
+                return mSuggestions;
+            }
+            return Arrays.copyOf(mSuggestions, Math.max(suggestionsLimit, 0));
         }
     }
 
     protected static final class SuggestionsCache {
         private static final char CHAR_DELIMITER = '\uFFFC';
-        private static final int MAX_CACHE_SIZE = 50;
+        private static final int MAX_CACHE_SIZE = 200;
         private final LruCache<String, SuggestionsParams> mUnigramSuggestionsInfoCache =
                 new LruCache<String, SuggestionsParams>(MAX_CACHE_SIZE);
 
@@ -82,18 +100,26 @@ public abstract class AndroidWordLevelSpellCheckerSession extends Session {
         }
 
         // TODO: Support n-gram input
-        public void putSuggestionsToCache(
-                String query, String prevWord, String[] suggestions, int flags) {
+        public void putSuggestionsToCache(String query, String prevWord, String[] suggestions,
+                int flags, int suggestionsLimit) {
             if (suggestions == null || TextUtils.isEmpty(query)) {
                 return;
             }
-            mUnigramSuggestionsInfoCache.put(
-                    generateKey(query, prevWord), new SuggestionsParams(suggestions, flags));
+            mUnigramSuggestionsInfoCache.put(generateKey(query, prevWord),
+                    new SuggestionsParams(suggestions, flags, suggestionsLimit));
         }
 
         public void clearCache() {
             mUnigramSuggestionsInfoCache.evictAll();
         }
+
+        public int getHitCount() {
+            return mUnigramSuggestionsInfoCache.hitCount();
+        }
+
+        public int getMissCount() {
+            return mUnigramSuggestionsInfoCache.missCount();
+        }
     }
 
     AndroidWordLevelSpellCheckerSession(final AndroidSpellCheckerService service) {
@@ -103,7 +129,10 @@ public abstract class AndroidWordLevelSpellCheckerSession extends Session {
         mObserver = new ContentObserver(null) {
             @Override
             public void onChange(boolean self) {
-                mSuggestionsCache.clearCache();
+                final SuggestionsCache suggestionsCache = mSuggestionsCache;
+                if (null != suggestionsCache) {
+                    suggestionsCache.clearCache();
+                }
             }
         };
         cres.registerContentObserver(Words.CONTENT_URI, true, mObserver);
@@ -113,6 +142,7 @@ public abstract class AndroidWordLevelSpellCheckerSession extends Session {
     public void onCreate() {
         final String localeString = getLocale();
         mDictionaryPool = mService.getDictionaryPool(localeString);
+        mSuggestionsCache = mDictionaryPool.getSuggestionsCache();
         mLocale = LocaleUtils.constructLocaleFromString(localeString);
         mScript = AndroidSpellCheckerService.getScriptFromLocale(mLocale);
     }
@@ -262,12 +292,13 @@ public abstract class AndroidWordLevelSpellCheckerSession extends Session {
             final String inText = textInfo.getText();
             final SuggestionsParams cachedSuggestionsParams =
                     mSuggestionsCache.getSuggestionsFromCache(inText, prevWord);
-            if (cachedSuggestionsParams != null) {
+            if (cachedSuggestionsParams != null
+                    && cachedSuggestionsParams.hasSuggestionsFor(suggestionsLimit)) {
                 if (DBG) {
                     Log.d(TAG, "Cache hit: " + inText + ", " + cachedSuggestionsParams.mFlags);
                 }
-                return new SuggestionsInfo(
-                        cachedSuggestionsParams.mFlags, cachedSuggestionsParams.mSuggestions);
+                return new SuggestionsInfo(cachedSuggestionsParams.mFlags,
+                        cachedSuggestionsParams.getSuggestions(suggestionsLimit));
             }
 
             final int checkability = getCheckabilityInScript(inText, mScript);
@@ -362,7 +393,8 @@ public abstract class AndroidWordLevelSpellCheckerSession extends Session {
                                     .getValueOf_RESULT_ATTR_HAS_RECOMMENDED_SUGGESTIONS()
                             : 0);
             final SuggestionsInfo retval = new SuggestionsInfo(flags, result.mSuggestions);
-            mSuggestionsCache.putSuggestionsToCache(text, prevWord, result.mSuggestions, flags);
+            mSuggestionsCache.putSuggestionsToCache(
+                    text, prevWord, result.mSuggestions, flags, suggestionsLimit);
             return retval;
         } catch (RuntimeException e) {
             // Don't kill the keyboard if there is a bug in the spell checker
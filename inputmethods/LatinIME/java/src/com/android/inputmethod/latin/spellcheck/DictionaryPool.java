@@ -16,7 +16,9 @@
 
 package com.android.inputmethod.latin.spellcheck;
 
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Printer;
 
 import com.android.inputmethod.keyboard.ProximityInfo;
 import com.android.inputmethod.latin.Dictionary;
@@ -28,12 +30,18 @@ import java.util.ArrayList;
 import java.util.Locale;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A blocking queue that creates dictionaries up to a certain limit as necessary.
  * As a deadlock-detecting device, if waiting for more than TIMEOUT = 3 seconds, we
  * will clear the queue and generate its contents again. This is transparent for
  * the client code, but may help with sloppy clients.
+ *
+ * The pool grows up to its maximum size while requests find no idle dictionary, and shrinks back
+ * to its minimum size once it has had idle dictionaries for SHRINK_DELAY_MILLIS. It also holds
+ * the suggestions cache shared by the sessions of its locale.
  */
 @SuppressWarnings("serial")
 public final class DictionaryPool extends LinkedBlockingQueue<DictAndKeyboard> {
@@ -41,11 +49,31 @@ public final class DictionaryPool extends LinkedBlockingQueue<DictAndKeyboard> {
     // How many seconds we wait for a dictionary to become available. Past this delay, we give up in
     // fear some bug caused a deadlock, and reset the whole pool.
     private final static int TIMEOUT = 3;
+    // How long the pool must not have run out of idle dictionaries before it closes the ones
+    // above its minimum size.
+    private final static long SHRINK_DELAY_MILLIS = 30 * 1000;
     private final AndroidSpellCheckerService mService;
+    private final int mMinSize;
     private final int mMaxSize;
     private final Locale mLocale;
+    private final AndroidWordLevelSpellCheckerSession.SuggestionsCache mSuggestionsCache =
+            new AndroidWordLevelSpellCheckerSession.SuggestionsCache();
     private int mSize;
+    private long mLastMissTime;
     private volatile boolean mClosed;
+
+    // Statistics, for dumpsys.
+    private final AtomicInteger mPollCount = new AtomicInteger();
+    // The polls that found no idle dictionary.
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    // The polls that waited for a dictionary, as the pool was at its maximum size.
+    private final AtomicInteger mWaitCount = new AtomicInteger();
+    private final AtomicInteger mTimeoutCount = new AtomicInteger();
+    private final AtomicLong mTotalWaitTimeMillis = new AtomicLong();
+    private long mMaxWaitTimeMillis;
+    private final AtomicInteger mCreatedCount = new AtomicInteger();
+    private final AtomicInteger mShrinkCount = new AtomicInteger();
+
     final static ArrayList<SuggestedWordInfo> noSuggestions = CollectionUtils.newArrayList();
     private final static DictAndKeyboard dummyDict = new DictAndKeyboard(
             new Dictionary(Dictionary.TYPE_MAIN) {
@@ -68,9 +96,10 @@ public final class DictionaryPool extends LinkedBlockingQueue<DictAndKeyboard> {
         return null != dictInfo && dummyDict != dictInfo;
     }
 
-    public DictionaryPool(final int maxSize, final AndroidSpellCheckerService service,
-            final Locale locale) {
+    public DictionaryPool(final int minSize, final int maxSize,
+            final AndroidSpellCheckerService service, final Locale locale) {
         super();
+        mMinSize = minSize;
         mMaxSize = maxSize;
         mService = service;
         mLocale = locale;
@@ -78,27 +107,58 @@ public final class DictionaryPool extends LinkedBlockingQueue<DictAndKeyboard> {
         mClosed = false;
     }
 
+    public AndroidWordLevelSpellCheckerSession.SuggestionsCache getSuggestionsCache() {
+        return mSuggestionsCache;
+    }
+
     @Override
     public DictAndKeyboard poll(final long timeout, final TimeUnit unit)
             throws InterruptedException {
+        mPollCount.incrementAndGet();
         final DictAndKeyboard dict = poll();
         if (null != dict) return dict;
+        mMissCount.incrementAndGet();
+        final boolean needsToCreate;
         synchronized(this) {
-            if (mSize >= mMaxSize) {
-                // Our pool is already full. Wait until some dictionary is ready, or TIMEOUT
-                // expires to avoid a deadlock.
-                final DictAndKeyboard result = super.poll(timeout, unit);
-                if (null == result) {
-                    Log.e(TAG, "Deadlock detected ! Resetting dictionary pool");
-                    clear();
-                    mSize = 1;
-                    return mService.createDictAndKeyboard(mLocale);
-                } else {
-                    return result;
+            mLastMissTime = SystemClock.uptimeMillis();
+            needsToCreate = mSize < mMaxSize;
+            if (needsToCreate) ++mSize;
+        }
+        if (needsToCreate) {
+            // Create the dictionary outside of the lock, so that other threads can take the
+            // dictionaries that are returned in the meantime.
+            return createDictAndKeyboard();
+        }
+        // Our pool is already full. Wait until some dictionary is ready, or TIMEOUT
+        // expires to avoid a deadlock.
+        mWaitCount.incrementAndGet();
+        final long startTime = SystemClock.uptimeMillis();
+        final DictAndKeyboard result = super.poll(timeout, unit);
+        final long waitTime = SystemClock.uptimeMillis() - startTime;
+        mTotalWaitTimeMillis.addAndGet(waitTime);
+        synchronized(this) {
+            mMaxWaitTimeMillis = Math.max(mMaxWaitTimeMillis, waitTime);
+            if (null != result) return result;
+            Log.e(TAG, "Deadlock detected ! Resetting dictionary pool");
+            clear();
+            mSize = 1;
+        }
+        mTimeoutCount.incrementAndGet();
+        return createDictAndKeyboard();
+    }
+
+    private DictAndKeyboard createDictAndKeyboard() {
+        boolean created = false;
+        try {
+            final DictAndKeyboard dict = mService.createDictAndKeyboard(mLocale);
+            created = true;
+            mCreatedCount.incrementAndGet();
+            return dict;
+        } finally {
+            if (!created) {
+                synchronized(this) {
+                    --mSize;
                 }
-            } else {
-                ++mSize;
-                return mService.createDictAndKeyboard(mLocale);
             }
         }
     }
@@ -127,8 +187,42 @@ public final class DictionaryPool extends LinkedBlockingQueue<DictAndKeyboard> {
         if (mClosed) {
             dict.mDictionary.close();
             return super.offer(dummyDict);
-        } else {
-            return super.offer(dict);
         }
+        if (shouldShrink()) {
+            mShrinkCount.incrementAndGet();
+            mService.closeDictAndKeyboard(dict, mLocale);
+            return true;
+        }
+        return super.offer(dict);
+    }
+
+    // Returns whether a returned dictionary should be closed rather than kept idle.
+    private synchronized boolean shouldShrink() {
+        if (mSize <= mMinSize
+                || SystemClock.uptimeMillis() - mLastMissTime < SHRINK_DELAY_MILLIS) {
+            return false;
+        }
+        --mSize;
+        return true;
+    }
+
+    public void dump(final Printer p) {
+        final int pollCount = mPollCount.get();
+        final int waitCount = mWaitCount.get();
+        final int size;
+        final long maxWaitTime;
+        synchronized(this) {
+            size = mSize;
+            maxWaitTime = mMaxWaitTimeMillis;
+        }
+        p.println("  " + mLocale + ": " + size + " dictionaries (" + size() + " idle, "
+                + mMinSize + " to " + mMaxSize + "), " + mCreatedCount.get() + " created, "
+                + mShrinkCount.get() + " closed");
+        p.println("    polls=" + pollCount + " misses=" + mMissCount.get() + " waits=" + waitCount
+                + " timeouts=" + mTimeoutCount.get() + " averageWait="
+                + (waitCount == 0 ? 0 : mTotalWaitTimeMillis.get() / waitCount) + "ms maxWait="
+                + maxWaitTime + "ms");
+        p.println("    cache hits=" + mSuggestionsCache.getHitCount() + " misses="
+                + mSuggestionsCache.getMissCount());
     }
 }
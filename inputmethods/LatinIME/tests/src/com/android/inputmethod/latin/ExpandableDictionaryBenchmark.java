@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Compares {@link CompactExpandableDictionary} with {@link ExpandableDictionary} on generated
+ * words and bigrams: the heap retained by each, and the time taken by word lookups from one
+ * thread and from several threads at once. It checks that both return the same frequencies.
+ */
+@LargeTest
+public class ExpandableDictionaryBenchmark extends TestCase {
+    private static final String TAG = ExpandableDictionaryBenchmark.class.getSimpleName();
+
+    private static final int WORD_COUNT = 50000;
+    private static final int ROUNDS = 10;
+    private static final int LOOKUP_THREAD_COUNT = 4;
+    // One word in this many has a bigram.
+    private static final int BIGRAM_WORD_INTERVAL = 4;
+    private static final String LETTERS = "eeeeeetttaaaooiinnssrrhhlldcumfpgwybvkxjqz";
+
+    public void testLookups() throws InterruptedException {
+        final String[] words = makeWords(WORD_COUNT);
+        final Random random = new Random(words.length);
+        final int[] frequencies = new int[words.length];
+        final int[] bigramTargets = new int[words.length];
+        for (int i = 0; i < words.length; ++i) {
+            frequencies[i] = random.nextInt(256);
+            bigramTargets[i] = random.nextInt(words.length);
+        }
+
+        long heapBefore = getUsedHeap();
+        long start = System.nanoTime();
+        final ExpandableDictionary legacy = new ExpandableDictionary(Dictionary.TYPE_USER);
+        for (int i = 0; i < words.length; ++i) {
+            legacy.addWord(words[i], null, frequencies[i], 0);
+        }
+        for (int i = 0; i < words.length; i += BIGRAM_WORD_INTERVAL) {
+            legacy.setBigramAndGetFrequency(words[i], words[bigramTargets[i]], frequencies[i]);
+        }
+        final long legacyBuildNs = System.nanoTime() - start;
+        final long legacyHeap = getUsedHeap() - heapBefore;
+
+        heapBefore = getUsedHeap();
+        start = System.nanoTime();
+        final CompactExpandableDictionary compact =
+                new CompactExpandableDictionary(Dictionary.TYPE_USER);
+        compact.startBatchEdit();
+        for (int i = 0; i < words.length; ++i) {
+            compact.addWord(words[i], null, frequencies[i], 0);
+        }
+        for (int i = 0; i < words.length; i += BIGRAM_WORD_INTERVAL) {
+            compact.setBigramAndGetFrequency(words[i], words[bigramTargets[i]], frequencies[i]);
+        }
+        compact.endBatchEdit();
+        final long compactBuildNs = System.nanoTime() - start;
+        final long compactHeap = getUsedHeap() - heapBefore;
+
+        for (int i = 0; i < words.length; ++i) {
+            assertEquals(words[i], legacy.getWordFrequency(words[i]),
+                    compact.getWordFrequency(words[i]));
+            assertEquals(words[i], legacy.isValidWord(words[i]), compact.isValidWord(words[i]));
+        }
+
+        // Warm up
+        lookUp(legacy, words, 1);
+        lookUp(compact, words, 1);
+
+        final long legacyNs = lookUp(legacy, words, ROUNDS);
+        final long compactNs = lookUp(compact, words, ROUNDS);
+        final long legacyThreadedNs = lookUpInThreads(legacy, words, ROUNDS);
+        final long compactThreadedNs = lookUpInThreads(compact, words, ROUNDS);
+        final long lookups = (long) words.length * ROUNDS;
+        Log.d(TAG, words.length + " words: "
+                + (legacyHeap / 1024) + "KB built in " + (legacyBuildNs / 1000000) + "ms, "
+                + (compactHeap / 1024) + "KB in " + (compactBuildNs / 1000000)
+                + "ms compact; lookups " + (legacyNs / lookups) + "ns, "
+                + (compactNs / lookups) + "ns compact; on " + LOOKUP_THREAD_COUNT + " threads "
+                + (legacyThreadedNs / 1000000) + "ms, " + (compactThreadedNs / 1000000)
+                + "ms compact");
+    }
+
+    private static String[] makeWords(final int wordCount) {
+        // Always the same words, so that runs can be compared
+        final Random random = new Random(wordCount);
+        final String[] words = new String[wordCount];
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < wordCount; ++i) {
+            sb.setLength(0);
+            final int length = 2 + random.nextInt(4) + random.nextInt(7);
+            for (int j = 0; j < length; ++j) {
+                sb.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+            }
+            words[i] = sb.toString();
+        }
+        return words;
+    }
+
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return the wall time taken to look up all the words, in ns
+     */
+    private static long lookUp(final Dictionary dict, final String[] words, final int rounds) {
+        int found = 0;
+        final long start = System.nanoTime();
+        for (int r = 0; r < rounds; ++r) {
+            for (final String word : words) {
+                if (dict.isValidWord(word)) ++found;
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        if (found == 0) Log.d(TAG, "nothing found");
+        return elapsed;
+    }
+
+    /**
+     * @return the wall time taken by several threads to each look up all the words, in ns
+     */
+    private static long lookUpInThreads(final Dictionary dict, final String[] words,
+            final int rounds) throws InterruptedException {
+        final Thread[] threads = new Thread[LOOKUP_THREAD_COUNT];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    lookUp(dict, words, rounds);
+                }
+            };
+        }
+        final long start = System.nanoTime();
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin.makedict;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.inputmethod.latin.makedict.FormatSpec.FormatOptions;
+import com.android.inputmethod.latin.makedict.FusionDictionary.DictionaryOptions;
+import com.android.inputmethod.latin.makedict.FusionDictionary.PtNodeArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compares {@link DictCompiler} with {@link BinaryDictEncoderUtils#flattenTree} and
+ * {@link BinaryDictEncoderUtils#computeAddresses} on a generated dictionary the size of a main
+ * dictionary, then times writing it to a file with {@link Ver3DictEncoder}. It checks that both
+ * compute the same addresses.
+ */
+@LargeTest
+public class DictCompilerBenchmark extends AndroidTestCase {
+    private static final String TAG = DictCompilerBenchmark.class.getSimpleName();
+
+    private static final int WORD_COUNT = 200000;
+    // One word in this many has bigrams.
+    private static final int BIGRAM_WORD_INTERVAL = 8;
+    private static final int BIGRAMS_PER_WORD = 3;
+    private static final String LETTERS = "eeeeeetttaaaooiinnssrrhhlldcumfpgwybvkxjqz";
+
+    public void testCompile() throws IOException, UnsupportedFormatException {
+        final FusionDictionary dict = makeDictionary(WORD_COUNT);
+        final FormatOptions formatOptions = new FormatOptions(FormatSpec.VERSION3);
+
+        long start = System.nanoTime();
+        final ArrayList<PtNodeArray> flatNodes =
+                BinaryDictEncoderUtils.flattenTree(dict.mRootNodeArray);
+        BinaryDictEncoderUtils.computeAddresses(dict, flatNodes, formatOptions);
+        final long legacyNs = System.nanoTime() - start;
+        final int[] legacyLayout = getLayout(flatNodes);
+
+        start = System.nanoTime();
+        final ArrayList<PtNodeArray> compiledNodes = DictCompiler.compile(dict, formatOptions);
+        final long compilerNs = System.nanoTime() - start;
+        assertTrue("DictCompiler computed different addresses",
+                Arrays.equals(legacyLayout, getLayout(compiledNodes)));
+
+        final File file = File.createTempFile("dict-benchmark", ".dict",
+                getContext().getCacheDir());
+        try {
+            start = System.nanoTime();
+            new Ver3DictEncoder(file).writeDictionary(dict, formatOptions);
+            final long writeNs = System.nanoTime() - start;
+            assertTrue(file.length() > 0);
+            Log.d(TAG, "Addresses computed in " + (legacyNs / 1000000) + "ms, "
+                    + (compilerNs / 1000000) + "ms with DictCompiler; "
+                    + file.length() + " bytes written in " + (writeNs / 1000000) + "ms");
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Returns the address and size of each PtNode array, in order
+    private static int[] getLayout(final ArrayList<PtNodeArray> flatNodes) {
+        final int[] layout = new int[flatNodes.size() * 2];
+        for (int i = 0; i < flatNodes.size(); ++i) {
+            layout[2 * i] = flatNodes.get(i).mCachedAddressAfterUpdate;
+            layout[2 * i + 1] = flatNodes.get(i).mCachedSize;
+        }
+        return layout;
+    }
+
+    private static FusionDictionary makeDictionary(final int wordCount) {
+        final FusionDictionary dict = new FusionDictionary(new PtNodeArray(),
+                new DictionaryOptions(new HashMap<String, String>(), false, false));
+        // Always the same words, so that runs can be compared
+        final Random random = new Random(wordCount);
+        final String[] words = new String[wordCount];
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < wordCount; ++i) {
+            sb.setLength(0);
+            final int length = 2 + random.nextInt(4) + random.nextInt(7);
+            for (int j = 0; j < length; ++j) {
+                sb.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+            }
+            words[i] = sb.toString();
+            dict.add(words[i], 1 + random.nextInt(FormatSpec.MAX_TERMINAL_FREQUENCY),
+                    null, false /* isNotAWord */);
+        }
+        for (int i = 0; i < wordCount; i += BIGRAM_WORD_INTERVAL) {
+            for (int j = 0; j < BIGRAMS_PER_WORD; ++j) {
+                dict.setBigram(words[i], words[random.nextInt(wordCount)],
+                        FormatSpec.MAX_TERMINAL_FREQUENCY);
+            }
+        }
+        return dict;
+    }
+}
@@ -27,7 +27,7 @@ import android.content.SharedPreferences;
  */
 public class Romkan implements LetterConverter {
     /** HashMap for Romaji-to-Kana conversion (Japanese mode) */
-    private static final HashMap<String, String> romkanTable = new HashMap<String, String>() {{
+    static final HashMap<String, String> romkanTable = new HashMap<String, String>() {{
         put("la", "\u3041");        put("xa", "\u3041");        put("a", "\u3042");
         put("li", "\u3043");        put("lyi", "\u3043");       put("xi", "\u3043");
         put("xyi", "\u3043");       put("i", "\u3044");         put("yi", "\u3044");
@@ -144,9 +144,8 @@ public class Romkan implements LetterConverter {
         put("6", "\uff16"); put("7", "\uff17"); put("8", "\uff18"); put("9", "\uff19"); put("0", "\uff10");
     }};
 
-    /** Max length of the target text */
-    private static final int MAX_LENGTH = 4;
-
+    /** Trie for Romaji-to-Kana conversion (Japanese mode) */
+    private static final RomkanTrie romkanTrie = new RomkanTrie(romkanTable);
 
     /**
      * Default constructor
@@ -160,51 +159,7 @@ public class Romkan implements LetterConverter {
      ***********************************************************************/
     /** @see LetterConverter#convert */
     public boolean convert(ComposingText text) {
-        int cursor = text.getCursor(1);
-
-        if (cursor <= 0) {
-            return false;
-        }
-
-        StrSegment[] str = new StrSegment[MAX_LENGTH];
-        int start = MAX_LENGTH;
-        int checkLength = Math.min(cursor, MAX_LENGTH);
-        for (int i = 1; i <= checkLength; i++) {
-            str[MAX_LENGTH - i] = text.getStrSegment(1, cursor - i);
-            start--;
-        }
-
-        StringBuffer key = new StringBuffer();
-        while (start < MAX_LENGTH) {
-            for (int i = start; i < MAX_LENGTH; i++) {
-                key.append(str[i].string);
-            }
-            boolean upper = Character.isUpperCase(key.charAt(key.length() - 1));
-            String match = Romkan.romkanTable.get(key.toString().toLowerCase());
-            if (match != null) {
-                if (upper) {
-                    match = match.toUpperCase();
-                }
-                StrSegment[] out;
-                if (match.length() == 1) {
-                    out = new StrSegment[1];
-                    out[0] = new StrSegment(match, str[start].from, str[MAX_LENGTH - 1].to);
-                    text.replaceStrSegment(ComposingText.LAYER1, out, MAX_LENGTH - start);
-                } else {
-                    out = new StrSegment[2];
-                    out[0] = new StrSegment(match.substring(0, match.length() - 1),
-                                            str[start].from, str[MAX_LENGTH - 1].to - 1);
-                    out[1] = new StrSegment(match.substring(match.length() - 1),
-                                            str[MAX_LENGTH - 1].to, str[MAX_LENGTH - 1].to);
-                    text.replaceStrSegment(1, out, MAX_LENGTH - start);
-                }
-                return true;
-            }
-            start++;
-            key.delete(0, key.length());
-        }
-
-        return false;
+        return romkanTrie.convert(text);
     }
 
     /** @see LetterConverter#setPreferences */
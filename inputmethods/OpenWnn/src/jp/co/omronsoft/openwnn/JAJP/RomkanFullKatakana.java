@@ -18,7 +18,6 @@ package jp.co.omronsoft.openwnn.JAJP;
 
 import jp.co.omronsoft.openwnn.LetterConverter;
 import jp.co.omronsoft.openwnn.ComposingText;
-import jp.co.omronsoft.openwnn.StrSegment;
 import java.util.HashMap;
 import android.content.SharedPreferences;
 
@@ -140,9 +139,8 @@ public class RomkanFullKatakana implements LetterConverter {
         put("-", "\u30fc"); put(".", "\u3002"); put(",", "\u3001"); put("?", "\uff1f"); put("/", "\u30fb");
     }};
 
-    /** Max length of the target text */
-    private static final int MAX_LENGTH = 4;
-
+    /** Trie for Romaji-to-Kana conversion (Japanese mode) */
+    private static final RomkanTrie mRomkanTrie = new RomkanTrie(mRomkanTable);
 
     /**
      * Default constructor
@@ -153,62 +151,7 @@ public class RomkanFullKatakana implements LetterConverter {
 
     /** @see LetterConverter#convert */
     public boolean convert(ComposingText text) {
-        return convert(text, mRomkanTable);
-    }
-
-    /**
-     * convert Romaji to Full Katakana
-     *
-     * @param text              The input/output text
-     * @param table             HashMap for Romaji-to-Kana conversion
-     * @return                  {@code true} if conversion is compleated; {@code false} if not
-     */
-    public static boolean convert(ComposingText text, HashMap<String, String> table) {
-        int cursor = text.getCursor(1);
-
-        if (cursor <= 0) {
-            return false;
-        }
-
-        StrSegment[] str = new StrSegment[MAX_LENGTH];
-        int start = MAX_LENGTH;
-        int checkLength = Math.min(cursor, MAX_LENGTH);
-        for (int i = 1; i <= checkLength; i++) {
-            str[MAX_LENGTH - i] = text.getStrSegment(1, cursor - i);
-            start--;
-        }
-
-        StringBuffer key = new StringBuffer();
-        while (start < MAX_LENGTH) {
-            for (int i = start; i < MAX_LENGTH; i++) {
-                key.append(str[i].string);
-            }
-            boolean upper = Character.isUpperCase(key.charAt(key.length() - 1));
-            String match = table.get(key.toString().toLowerCase());
-            if (match != null) {
-                if (upper) {
-                    match = match.toUpperCase();
-                }
-                StrSegment[] out;
-                if (match.length() == 1) {
-                    out = new StrSegment[1];
-                    out[0] = new StrSegment(match, str[start].from, str[MAX_LENGTH - 1].to);
-                    text.replaceStrSegment(ComposingText.LAYER1, out, MAX_LENGTH - start);
-                } else {
-                    out = new StrSegment[2];
-                    out[0] = new StrSegment(match.substring(0, match.length() - 1),
-                                            str[start].from, str[MAX_LENGTH - 1].to - 1);
-                    out[1] = new StrSegment(match.substring(match.length() - 1),
-                                            str[MAX_LENGTH - 1].to, str[MAX_LENGTH - 1].to);
-                    text.replaceStrSegment(1, out, MAX_LENGTH - start);
-                }
-                return true;
-            }
-            start++;
-            key.delete(0, key.length());
-        }
-
-        return false;
+        return mRomkanTrie.convert(text);
     }
 
     /** @see LetterConverter#setPreferences */
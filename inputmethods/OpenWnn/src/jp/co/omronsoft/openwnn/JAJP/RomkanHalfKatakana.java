@@ -136,6 +136,9 @@ public class RomkanHalfKatakana implements LetterConverter {
         put("-", "\uff70"); put(".", "\uff61"); put(",", "\uff64"); put("/", "\uff65");
     }};
 
+    /** Trie for Romaji-to-Kana conversion (Japanese mode) */
+    private static final RomkanTrie mRomkanTrie = new RomkanTrie(mRomkanTable);
+
     /**
      * Default constructor
      */
@@ -145,7 +148,7 @@ public class RomkanHalfKatakana implements LetterConverter {
 
     /** @see LetterConverter#convert */
     public boolean convert(ComposingText text) {
-        return RomkanFullKatakana.convert(text, mRomkanTable);
+        return mRomkanTrie.convert(text);
     }
 
     /** @see LetterConverter#setPreferences */
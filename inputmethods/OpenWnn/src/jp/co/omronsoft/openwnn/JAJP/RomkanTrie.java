@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2008-2012  OMRON SOFTWARE Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.omronsoft.openwnn.JAJP;
+
+import jp.co.omronsoft.openwnn.ComposingText;
+import jp.co.omronsoft.openwnn.StrSegment;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The compiled Romaji-to-Kana conversion table shared by the Romaji converters.
+ * <br>
+ * The keys are stored reversed in a character trie, so that the segments before
+ * the cursor of the {@link ComposingText} can be matched from the cursor backwards,
+ * without building key strings.
+ *
+ * @author Copyright (C) 2009 OMRON SOFTWARE CO., LTD.  All Rights Reserved.
+ */
+public class RomkanTrie {
+    /** Max number of segments of the target text */
+    private static final int MAX_LENGTH = 4;
+
+    /** Character of each node. The root is node 0 */
+    private final char[] mChars;
+    /** The children of node i, sorted by character, are from {@code mFirstChild[i]} to {@code mFirstChild[i + 1]} */
+    private final int[] mFirstChild;
+    /** Index of the conversion of the key ending at each node, or -1 */
+    private final int[] mValues;
+    /** Conversions, or their beginning if they are longer than one character */
+    private final String[] mHeads;
+    /** Last characters of the conversions, or {@code null} if they are one character long */
+    private final String[] mTails;
+    /** Upper case versions of {@code mHeads} */
+    private final String[] mUpperHeads;
+    /** Upper case versions of {@code mTails} */
+    private final String[] mUpperTails;
+
+    /**
+     * Constructor
+     *
+     * @param table     Romaji-to-Kana conversion table, with lower case keys
+     */
+    public RomkanTrie(HashMap<String, String> table) {
+        int size = table.size();
+        String[] keys = new String[size];
+        String[] values = new String[size];
+        int maxNodes = 1;
+        int n = 0;
+        for (Map.Entry<String, String> entry : table.entrySet()) {
+            keys[n++] = new StringBuilder(entry.getKey()).reverse().toString();
+            maxNodes += entry.getKey().length();
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < size; i++) {
+            values[i] = table.get(new StringBuilder(keys[i]).reverse().toString());
+        }
+
+        /* Create the nodes breadth first; the keys of node i are keys[low[i]] to keys[high[i] - 1] */
+        char[] chars = new char[maxNodes];
+        int[] firstChild = new int[maxNodes + 1];
+        int[] nodeValues = new int[maxNodes];
+        int[] low = new int[maxNodes];
+        int[] high = new int[maxNodes];
+        int[] depth = new int[maxNodes];
+        high[0] = size;
+        int nodeCount = 1;
+        for (int node = 0; node < nodeCount; node++) {
+            firstChild[node] = nodeCount;
+            nodeValues[node] = -1;
+            int i = low[node];
+            if (i < high[node] && keys[i].length() == depth[node]) {
+                nodeValues[node] = i;
+                i++;
+            }
+            while (i < high[node]) {
+                char c = keys[i].charAt(depth[node]);
+                int child = nodeCount++;
+                chars[child] = c;
+                depth[child] = depth[node] + 1;
+                low[child] = i;
+                while (i < high[node] && keys[i].charAt(depth[node]) == c) {
+                    i++;
+                }
+                high[child] = i;
+            }
+        }
+        firstChild[nodeCount] = nodeCount;
+
+        mChars = Arrays.copyOf(chars, nodeCount);
+        mFirstChild = Arrays.copyOf(firstChild, nodeCount + 1);
+        mValues = Arrays.copyOf(nodeValues, nodeCount);
+        mHeads = new String[size];
+        mTails = new String[size];
+        mUpperHeads = new String[size];
+        mUpperTails = new String[size];
+        for (int i = 0; i < size; i++) {
+            String value = values[i];
+            String upper = value.toUpperCase();
+            if (value.length() == 1) {
+                mHeads[i] = value;
+                mUpperHeads[i] = upper;
+            } else {
+                mHeads[i] = value.substring(0, value.length() - 1);
+                mTails[i] = value.substring(value.length() - 1);
+                mUpperHeads[i] = upper.substring(0, upper.length() - 1);
+                mUpperTails[i] = upper.substring(upper.length() - 1);
+            }
+        }
+    }
+
+    /**
+     * Convert the longest Romaji sequence before the cursor of layer 1.
+     *
+     * @param text      The input/output text
+     * @return          {@code true} if conversion is compleated; {@code false} if not
+     */
+    public boolean convert(ComposingText text) {
+        int cursor = text.getCursor(ComposingText.LAYER1);
+
+        if (cursor <= 0) {
+            return false;
+        }
+
+        /* Walk back from the cursor; a key matches if it ends at the start of a segment */
+        int checkLength = Math.min(cursor, MAX_LENGTH);
+        int node = 0;
+        int match = -1;
+        int matchLength = 0;
+        boolean upper = false;
+        search:
+        for (int i = 1; i <= checkLength; i++) {
+            String str = text.getStrSegment(ComposingText.LAYER1, cursor - i).string;
+            for (int j = str.length() - 1; j >= 0; j--) {
+                char c = str.charAt(j);
+                if (i == 1 && j == str.length() - 1) {
+                    upper = Character.isUpperCase(c);
+                }
+                node = findChild(node, Character.toLowerCase(c));
+                if (node < 0) {
+                    break search;
+                }
+            }
+            if (mValues[node] >= 0) {
+                match = mValues[node];
+                matchLength = i;
+            }
+        }
+        if (match < 0) {
+            return false;
+        }
+
+        int from = text.getStrSegment(ComposingText.LAYER1, cursor - matchLength).from;
+        int to = text.getStrSegment(ComposingText.LAYER1, cursor - 1).to;
+        String head = upper ? mUpperHeads[match] : mHeads[match];
+        String tail = upper ? mUpperTails[match] : mTails[match];
+        StrSegment[] out;
+        if (tail == null) {
+            out = new StrSegment[1];
+            out[0] = new StrSegment(head, from, to);
+        } else {
+            out = new StrSegment[2];
+            out[0] = new StrSegment(head, from, to - 1);
+            out[1] = new StrSegment(tail, to, to);
+        }
+        text.replaceStrSegment(ComposingText.LAYER1, out, matchLength);
+        return true;
+    }
+
+    /**
+     * Get the child of a node.
+     *
+     * @param node      The parent node
+     * @param c         The character of the child
+     * @return          The child node, or a negative value if there is none
+     */
+    private int findChild(int node, char c) {
+        int child = Arrays.binarySearch(mChars, mFirstChild[node], mFirstChild[node + 1], c);
+        return (child < 0) ? -1 : child;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2008-2012  OMRON SOFTWARE Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.omronsoft.openwnn.JAJP;
+
+import jp.co.omronsoft.openwnn.ComposingText;
+import jp.co.omronsoft.openwnn.StrSegment;
+import java.util.HashMap;
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares {@link RomkanTrie} with the former lookup of the Romaji in a {@code HashMap},
+ * by replaying the typing of Romaji sentences into a {@link ComposingText}.
+ * It checks that both give the same Kana, and logs the time taken per key.
+ *
+ * @author Copyright (C) 2009 OMRON SOFTWARE CO., LTD.  All Rights Reserved.
+ */
+@LargeTest
+public class RomkanBenchmark extends TestCase {
+    /** Max length of the target text */
+    private static final int MAX_LENGTH = 4;
+
+    /** The number of times the sentences are typed with each converter */
+    private static final int ROUNDS = 200;
+
+    /** Sentences typed by the benchmark */
+    private static final String[] SENTENCES = {
+        "watashihanihongowobenkyoushiteimasu.",
+        "kyouhaiitenkidesune!",
+        "ashitatoukyoueikimasu",
+        "chottomattekudasai",
+        "shinkansennnokippuwokaimashita",
+        "Konnichiha, TanakaSan.",
+        "kakkoiikuruma-wokattanodesuka?",
+        "xtsuxyaxyuxyoltsufafifefovu",
+        "ryokouhatanoshikattadesu",
+        "dzudjadzyamyumyo1234",
+    };
+
+    /**
+     * Check that both converters give the same Kana.
+     */
+    public void testSameKana() {
+        RomkanTrie trie = new RomkanTrie(Romkan.romkanTable);
+        for (int i = 0; i < SENTENCES.length; i++) {
+            assertEquals(SENTENCES[i], type(null, SENTENCES[i]), type(trie, SENTENCES[i]));
+        }
+    }
+
+    /**
+     * Time both converters.
+     */
+    public void testSpeed() {
+        RomkanTrie trie = new RomkanTrie(Romkan.romkanTable);
+
+        /* Warm up */
+        replay(null, 1);
+        replay(trie, 1);
+
+        int keys = 0;
+        for (int i = 0; i < SENTENCES.length; i++) {
+            keys += SENTENCES[i].length();
+        }
+        keys *= ROUNDS;
+        long start = System.nanoTime();
+        replay(null, ROUNDS);
+        long tableNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        replay(trie, ROUNDS);
+        long trieNs = System.nanoTime() - start;
+
+        Log.d("OpenWnn", keys + " keys typed: " + (tableNs / keys) + "ns per key with HashMap, "
+            + (trieNs / keys) + "ns per key with RomkanTrie");
+    }
+
+    /**
+     * Type all the sentences.
+     *
+     * @param trie      The converter, or {@code null} for the {@code HashMap} lookup
+     * @param rounds    The number of times the sentences are typed
+     */
+    private static void replay(RomkanTrie trie, int rounds) {
+        int length = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < SENTENCES.length; i++) {
+                length += type(trie, SENTENCES[i]).length();
+            }
+        }
+        if (length == 0) {
+            Log.d("OpenWnn", "nothing typed");
+        }
+    }
+
+    /**
+     * Type a sentence one key at a time, converting after each key like {@code OpenWnnJAJP}.
+     *
+     * @param trie      The converter, or {@code null} for the {@code HashMap} lookup
+     * @param sentence  The Romaji to type
+     * @return          The resulting layer 1 text
+     */
+    private static String type(RomkanTrie trie, String sentence) {
+        ComposingText text = new ComposingText();
+        for (int i = 0; i < sentence.length(); i++) {
+            StrSegment key = new StrSegment(sentence.substring(i, i + 1));
+            text.insertStrSegment(ComposingText.LAYER0, ComposingText.LAYER1, key);
+            if (trie != null) {
+                trie.convert(text);
+            } else {
+                convert(text, Romkan.romkanTable);
+            }
+        }
+        return text.toString(ComposingText.LAYER1);
+    }
+
+    /**
+     * Convert Romaji to Kana with the lookup formerly used by the converters.
+     *
+     * @param text      The input/output text
+     * @param table     HashMap for Romaji-to-Kana conversion
+     * @return          {@code true} if conversion is compleated; {@code false} if not
+     */
+    private static boolean convert(ComposingText text, HashMap<String, String> table) {
+        int cursor = text.getCursor(1);
+
+        if (cursor <= 0) {
+            return false;
+        }
+
+        StrSegment[] str = new StrSegment[MAX_LENGTH];
+        int start = MAX_LENGTH;
+        int checkLength = Math.min(cursor, MAX_LENGTH);
+        for (int i = 1; i <= checkLength; i++) {
+            str[MAX_LENGTH - i] = text.getStrSegment(1, cursor - i);
+            start--;
+        }
+
+        StringBuffer key = new StringBuffer();
+        while (start < MAX_LENGTH) {
+            for (int i = start; i < MAX_LENGTH; i++) {
+                key.append(str[i].string);
+            }
+            boolean upper = Character.isUpperCase(key.charAt(key.length() - 1));
+            String match = table.get(key.toString().toLowerCase());
+            if (match != null) {
+                if (upper) {
+                    match = match.toUpperCase();
+                }
+                StrSegment[] out;
+                if (match.length() == 1) {
+                    out = new StrSegment[1];
+                    out[0] = new StrSegment(match, str[start].from, str[MAX_LENGTH - 1].to);
+                    text.replaceStrSegment(ComposingText.LAYER1, out, MAX_LENGTH - start);
+                } else {
+                    out = new StrSegment[2];
+                    out[0] = new StrSegment(match.substring(0, match.length() - 1),
+                                            str[start].from, str[MAX_LENGTH - 1].to - 1);
+                    out[1] = new StrSegment(match.substring(match.length() - 1),
+                                            str[MAX_LENGTH - 1].to, str[MAX_LENGTH - 1].to);
+                    text.replaceStrSegment(1, out, MAX_LENGTH - start);
+                }
+                return true;
+            }
+            start++;
+            key.delete(0, key.length());
+        }
+
+        return false;
+    }
+}